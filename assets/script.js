@@ -767,13 +767,17 @@ function replaceMessageBodies(messageIds) {
     measurePositions();
 }
 
-// handle the special case of adding a single new message at the end of a conversation
+// handle the special case of adding new messages at the end of a conversation
 function appendMessageHtml() {
     var msg = document.createElement("div");
+    var footer = document.getElementById("conversation-footer");
+    var body;
     msg.innerHTML = window.mail.getTempMessageBodies();
-    var body = msg.children[0];  // toss the outer div, it was just to render innerHTML into
-    document.body.insertBefore(body, document.getElementById("conversation-footer"));
-    processNewMessageBody(body.querySelector(".mail-message-content"));
+    // toss the outer div, it was just to render innerHTML into
+    while ((body = msg.firstElementChild)) {
+        document.body.insertBefore(body, footer);
+        processNewMessageBody(body.querySelector(".mail-message-content"));
+    }
     disablePostForms();
     measurePositions();
 }
@@ -21,46 +21,102 @@ import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.MessagingException;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.util.MappedFileInputStream;
 
 import android.util.Base64;
 import android.util.Base64OutputStream;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 
 /**
  * A Body that is backed by a temp file. The Body exposes a getOutputStream method that allows
  * the user to write to the temp file. After the write the body is available via getInputStream
  * and writeTo one time. After writeTo is called, or the InputStream returned from
  * getInputStream is closed the file is deleted and the Body should be considered disposed of.
+ *
+ * Bodies of up to {@link #SPILL_THRESHOLD} bytes never reach the file: they are kept in chunks
+ * taken from a shared pool, which go back to the pool once the body is disposed of and its last
+ * reader is closed. Larger
+ * bodies are read back through a memory-mapped view of the file, and {@link #copyTo} moves them
+ * to a file with a channel transfer.
  */
 public class BinaryTempFileBody implements Body {
+    /** Bodies up to this many bytes are kept in memory rather than written to a temp file. */
+    static final int SPILL_THRESHOLD = 256 * 1024;
+    static final int CHUNK_SIZE = 16 * 1024;
+    /** The most idle chunks kept for reuse, across all bodies. */
+    private static final int MAX_POOLED_CHUNKS = 64;
+
+    private static final ArrayList<byte[]> sChunkPool = new ArrayList<byte[]>();
+    /** Counts for bodies created outside of a parse, which nobody reads. */
+    private static final BodyCopyStats sUntrackedStats = new BodyCopyStats();
+
+    private final BodyCopyStats mStats;
     private File mFile;
+    /** The body while it is kept in memory, or null once it has spilled to mFile. */
+    private ArrayList<byte[]> mChunks;
+    private int mLength;
+    /**
+     * Readers open on the current content. Replacing the content starts a new generation; the
+     * readers of an older one keep its chunks, which are then left to the garbage collector
+     * rather than recycled under them.
+     */
+    private int mOpenReaders;
+    private int mGeneration;
+    private boolean mDisposed;
+
+    public BinaryTempFileBody() {
+        this(null);
+    }
+
+    /**
+     * @param stats where to count the bytes this body stores and copies, or null
+     */
+    public BinaryTempFileBody(BodyCopyStats stats) {
+        mStats = stats != null ? stats : sUntrackedStats;
+    }
 
     /**
      * An alternate way to put data into a BinaryTempFileBody is to simply supply an already-
      * created file.  Note that this file will be deleted after it is read.
      * @param filePath The file containing the data to be stored on disk temporarily
      */
-    public void setFile(String filePath) {
+    public synchronized void setFile(String filePath) {
+        replaceContent();
         mFile = new File(filePath);
+        mDisposed = false;
     }
 
-    public OutputStream getOutputStream() throws IOException {
-        mFile = File.createTempFile("body", null, TempDirectory.getTempDirectory());
-        mFile.deleteOnExit();
-        return new FileOutputStream(mFile);
+    public synchronized OutputStream getOutputStream() throws IOException {
+        replaceContent();
+        mFile = null;
+        mChunks = new ArrayList<byte[]>();
+        mLength = 0;
+        mDisposed = false;
+        return new SpillingOutputStream();
     }
 
     @Override
-    public InputStream getInputStream() throws MessagingException {
+    public synchronized InputStream getInputStream() throws MessagingException {
         try {
-            return new BinaryTempFileBodyInputStream(new FileInputStream(mFile));
+            final InputStream in;
+            if (mDisposed) {
+                throw new IOException("Body has been disposed of");
+            } else if (mChunks != null) {
+                in = new ChunkInputStream(mChunks, mLength);
+            } else if (mFile != null) {
+                in = MappedFileInputStream.open(mFile);
+            } else {
+                throw new IOException("Body has no content");
+            }
+            mOpenReaders++;
+            return new BinaryTempFileBodyInputStream(in, mGeneration);
         }
         catch (IOException ioe) {
             throw new MessagingException("Unable to open body", ioe);
@@ -74,18 +130,306 @@ public class BinaryTempFileBody implements Body {
             out, Base64.CRLF | Base64.NO_CLOSE);
         IOUtils.copy(in, base64Out);
         base64Out.close();
-        mFile.delete();
+        in.close();
+    }
+
+    /**
+     * Copies the decoded bytes of the body to a stream, without base64 encoding them, and
+     * disposes of the body. When the body is in a temp file and the stream writes to a file the
+     * bytes are moved between the two with a channel transfer.
+     *
+     * @param out the stream to copy to; it is not closed
+     * @return the number of bytes copied
+     */
+    public long copyTo(OutputStream out) throws IOException, MessagingException {
+        final ArrayList<byte[]> chunks;
+        final int length;
+        final File file;
+        final int generation;
+        synchronized (this) {
+            if (mDisposed || (mChunks == null && mFile == null)) {
+                throw new MessagingException("Unable to open body");
+            }
+            chunks = mChunks;
+            length = mLength;
+            file = mFile;
+            generation = mGeneration;
+            mOpenReaders++;
+        }
+        try {
+            if (chunks != null) {
+                for (int i = 0, remaining = length; remaining > 0; i++) {
+                    final int n = Math.min(remaining, CHUNK_SIZE);
+                    out.write(chunks.get(i), 0, n);
+                    remaining -= n;
+                }
+                mStats.addCopied(length);
+                return length;
+            }
+            final long n = MappedFileInputStream.transferTo(file, out);
+            if (out instanceof FileOutputStream) {
+                mStats.addTransferred(n);
+            } else {
+                mStats.addCopied(n);
+            }
+            return n;
+        } finally {
+            readerClosed(generation);
+        }
+    }
+
+    private synchronized void readerClosed(int generation) {
+        if (generation != mGeneration) {
+            // the content it read has been replaced already
+            return;
+        }
+        mOpenReaders--;
+        mDisposed = true;
+        if (mFile != null) {
+            mFile.delete();
+        }
+        if (mOpenReaders == 0) {
+            releaseChunks();
+        }
+    }
+
+    /**
+     * Lets go of the current content before new content is put in. Its chunks go back to the pool
+     * only if nobody is reading them.
+     */
+    private void replaceContent() {
+        if (mOpenReaders == 0) {
+            releaseChunks();
+        }
+        mChunks = null;
+        mOpenReaders = 0;
+        mGeneration++;
+    }
+
+    private void releaseChunks() {
+        if (mChunks != null) {
+            for (byte[] chunk : mChunks) {
+                recycleChunk(chunk);
+            }
+            mChunks = null;
+        }
+    }
+
+    private static byte[] obtainChunk() {
+        synchronized (sChunkPool) {
+            final int size = sChunkPool.size();
+            if (size > 0) {
+                return sChunkPool.remove(size - 1);
+            }
+        }
+        return new byte[CHUNK_SIZE];
+    }
+
+    private static void recycleChunk(byte[] chunk) {
+        synchronized (sChunkPool) {
+            if (sChunkPool.size() < MAX_POOLED_CHUNKS) {
+                sChunkPool.add(chunk);
+            }
+        }
+    }
+
+    /**
+     * Fills pooled chunks until the body grows past {@link #SPILL_THRESHOLD}, then moves them to
+     * a temp file and keeps one chunk as the buffer for the rest of the writes.
+     */
+    private class SpillingOutputStream extends OutputStream {
+        private final ArrayList<byte[]> mHeapChunks = mChunks;
+        private FileOutputStream mOut;
+        private byte[] mChunk;
+        private int mCount;
+        private boolean mClosed;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mChunk == null || mCount == CHUNK_SIZE) {
+                nextChunk();
+            }
+            mChunk[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mChunk == null || mCount == CHUNK_SIZE) {
+                    nextChunk();
+                }
+                final int n = Math.min(len, CHUNK_SIZE - mCount);
+                System.arraycopy(b, off, mChunk, mCount, n);
+                mCount += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void nextChunk() throws IOException {
+            if (mOut != null) {
+                writeChunk();
+            } else if (mHeapChunks.size() * CHUNK_SIZE >= SPILL_THRESHOLD) {
+                spill();
+            } else {
+                mChunk = obtainChunk();
+                mHeapChunks.add(mChunk);
+                mCount = 0;
+            }
+        }
+
+        private void spill() throws IOException {
+            final File file = File.createTempFile("body", null, TempDirectory.getTempDirectory());
+            file.deleteOnExit();
+            mOut = new FileOutputStream(file);
+            for (byte[] chunk : mHeapChunks) {
+                mOut.write(chunk, 0, CHUNK_SIZE);
+            }
+            mStats.addSpilled(mHeapChunks.size() * CHUNK_SIZE);
+            synchronized (BinaryTempFileBody.this) {
+                mHeapChunks.remove(mHeapChunks.size() - 1);
+                if (mOpenReaders == 0) {
+                    releaseChunks();
+                }
+                mChunks = null;
+                mFile = file;
+            }
+            mCount = 0;
+        }
+
+        private void writeChunk() throws IOException {
+            mOut.write(mChunk, 0, mCount);
+            mStats.addSpilled(mCount);
+            mCount = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mOut != null) {
+                try {
+                    writeChunk();
+                } finally {
+                    recycleChunk(mChunk);
+                    mChunk = null;
+                    mOut.close();
+                }
+            } else {
+                final int length = mHeapChunks.isEmpty()
+                        ? 0 : (mHeapChunks.size() - 1) * CHUNK_SIZE + mCount;
+                synchronized (BinaryTempFileBody.this) {
+                    mLength = length;
+                }
+                mStats.addBuffered(length);
+            }
+        }
+    }
+
+    /**
+     * Reads a body kept in memory. Once closed it no longer touches the chunks, which may have
+     * gone back to the pool.
+     */
+    private static class ChunkInputStream extends InputStream {
+        private ArrayList<byte[]> mSource;
+        private final int mLength;
+        private int mPosition;
+
+        ChunkInputStream(ArrayList<byte[]> chunks, int length) {
+            mSource = chunks;
+            mLength = length;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (mSource == null) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            ensureOpen();
+            if (mPosition == mLength) {
+                return -1;
+            }
+            final int b = mSource.get(mPosition / CHUNK_SIZE)[mPosition % CHUNK_SIZE] & 0xFF;
+            mPosition++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            if (len == 0) {
+                return 0;
+            }
+            if (mPosition == mLength) {
+                return -1;
+            }
+            final int offset = mPosition % CHUNK_SIZE;
+            final int n = Math.min(len, Math.min(mLength - mPosition, CHUNK_SIZE - offset));
+            System.arraycopy(mSource.get(mPosition / CHUNK_SIZE), offset, b, off, n);
+            mPosition += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, mLength - mPosition));
+            mPosition += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mSource == null ? 0 : mLength - mPosition;
+        }
+
+        @Override
+        public void close() {
+            mSource = null;
+        }
     }
 
     class BinaryTempFileBodyInputStream extends FilterInputStream {
-        public BinaryTempFileBodyInputStream(InputStream in) {
+        private final int mReaderGeneration;
+        private boolean mClosed;
+
+        public BinaryTempFileBodyInputStream(InputStream in, int generation) {
             super(in);
+            mReaderGeneration = generation;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                mStats.addCopied(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                mStats.addCopied(n);
+            }
+            return n;
         }
 
         @Override
         public void close() throws IOException {
-            super.close();
-            mFile.delete();
+            try {
+                super.close();
+            } finally {
+                if (!mClosed) {
+                    mClosed = true;
+                    readerClosed(mReaderGeneration);
+                }
+            }
         }
     }
 }
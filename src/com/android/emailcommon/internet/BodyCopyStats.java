@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how the bodies decoded by one parse were stored and how many of their bytes were copied
+ * back out, so the cost of handling large attachments can be measured. Bodies keep counting into
+ * the stats of the parse that created them for as long as they are read.
+ */
+public class BodyCopyStats {
+    private final AtomicLong mBufferedBytes = new AtomicLong();
+    private final AtomicLong mSpilledBytes = new AtomicLong();
+    private final AtomicLong mCopiedBytes = new AtomicLong();
+    private final AtomicLong mTransferredBytes = new AtomicLong();
+
+    /**
+     * @return the number of body bytes kept in pooled heap buffers
+     */
+    public long getBufferedBytes() {
+        return mBufferedBytes.get();
+    }
+
+    /**
+     * @return the number of body bytes written to temp files
+     */
+    public long getSpilledBytes() {
+        return mSpilledBytes.get();
+    }
+
+    /**
+     * @return the number of body bytes copied out of storage into readers' buffers or streams
+     */
+    public long getCopiedBytes() {
+        return mCopiedBytes.get();
+    }
+
+    /**
+     * @return the number of body bytes moved from temp files by channel transfers, without
+     * being copied through the heap
+     */
+    public long getTransferredBytes() {
+        return mTransferredBytes.get();
+    }
+
+    void addBuffered(long n) {
+        mBufferedBytes.addAndGet(n);
+    }
+
+    void addSpilled(long n) {
+        mSpilledBytes.addAndGet(n);
+    }
+
+    void addCopied(long n) {
+        mCopiedBytes.addAndGet(n);
+    }
+
+    void addTransferred(long n) {
+        mTransferredBytes.addAndGet(n);
+    }
+
+    @Override
+    public String toString() {
+        return "buffered=" + getBufferedBytes() + " spilled=" + getSpilledBytes()
+                + " copied=" + getCopiedBytes() + " transferred=" + getTransferredBytes();
+    }
+}
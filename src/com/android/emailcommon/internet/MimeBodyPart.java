@@ -138,7 +138,8 @@ public class MimeBodyPart extends BodyPart {
 
     @Override
     public String getMimeType() throws MessagingException {
-        return MimeUtility.getHeaderParameter(getContentType(), null);
+        return mHeader.getParsedHeader(MimeHeader.HEADER_CONTENT_TYPE,
+                MimeUtility.MIME_TYPE_PARSER);
     }
 
     @Override
@@ -23,8 +23,22 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
 
 public class MimeHeader {
+    /**
+     * Turns the first value of a header into a typed value, for
+     * {@link MimeHeader#getParsedHeader(String, HeaderParser)}. Implementations should be stateless
+     * singletons, since the parser is part of the memoization key.
+     */
+    public interface HeaderParser<T> {
+        /**
+         * @param value the first value of the header, or null if there is none
+         */
+        T parse(String value) throws MessagingException;
+    }
+
     /**
      * Application specific header that contains Store specific information about an attachment.
      * In IMAP this contains the IMAP BODYSTRUCTURE part id so that the ImapStore can later
@@ -50,20 +64,66 @@ public class MimeHeader {
 
     protected final ArrayList<Field> mFields = new ArrayList<Field>();
 
+    /**
+     * Values of mFields by case-folded name, in order. Built on the first lookup, since most
+     * headers are only ever added to while parsing.
+     */
+    private HashMap<String, ArrayList<String>> mIndex;
+
+    /** Memoized results of getParsedHeader(), by case-folded name and then by parser. */
+    private HashMap<String, HashMap<HeaderParser<?>, Object>> mParsedValues;
+
+    private static String foldName(String name) {
+        return name == null ? null : name.toLowerCase(Locale.US);
+    }
+
+    private HashMap<String, ArrayList<String>> getIndex() {
+        if (mIndex == null) {
+            mIndex = new HashMap<String, ArrayList<String>>();
+            for (Field field : mFields) {
+                addToIndex(field);
+            }
+        }
+        return mIndex;
+    }
+
+    private void addToIndex(Field field) {
+        final String key = foldName(field.name);
+        ArrayList<String> values = mIndex.get(key);
+        if (values == null) {
+            values = new ArrayList<String>(1);
+            mIndex.put(key, values);
+        }
+        values.add(field.value);
+    }
+
+    private void invalidateParsedValues(String key) {
+        if (mParsedValues != null) {
+            mParsedValues.remove(key);
+        }
+    }
+
     public void clear() {
         mFields.clear();
+        mIndex = null;
+        mParsedValues = null;
     }
 
     public String getFirstHeader(String name) throws MessagingException {
-        String[] header = getHeader(name);
-        if (header == null) {
+        final ArrayList<String> values = getIndex().get(foldName(name));
+        if (values == null) {
             return null;
         }
-        return header[0];
+        return values.get(0);
     }
 
     public void addHeader(String name, String value) throws MessagingException {
-        mFields.add(new Field(name, value));
+        final Field field = new Field(name, value);
+        mFields.add(field);
+        if (mIndex != null) {
+            addToIndex(field);
+        }
+        invalidateParsedValues(foldName(name));
     }
 
     public void setHeader(String name, String value) throws MessagingException {
@@ -75,19 +135,18 @@ public class MimeHeader {
     }
 
     public String[] getHeader(String name) throws MessagingException {
-        ArrayList<String> values = new ArrayList<String>();
-        for (Field field : mFields) {
-            if (field.name.equalsIgnoreCase(name)) {
-                values.add(field.value);
-            }
-        }
-        if (values.size() == 0) {
+        final ArrayList<String> values = getIndex().get(foldName(name));
+        if (values == null) {
             return null;
         }
-        return values.toArray(new String[] {});
+        return values.toArray(new String[values.size()]);
     }
 
     public void removeHeader(String name) throws MessagingException {
+        final String key = foldName(name);
+        if (mIndex != null && !mIndex.containsKey(key)) {
+            return;
+        }
         ArrayList<Field> removeFields = new ArrayList<Field>();
         for (Field field : mFields) {
             if (field.name.equalsIgnoreCase(name)) {
@@ -95,6 +154,48 @@ public class MimeHeader {
             }
         }
         mFields.removeAll(removeFields);
+        if (mIndex != null) {
+            mIndex.remove(key);
+        }
+        invalidateParsedValues(key);
+    }
+
+    /**
+     * Returns the first value of a header as parsed by the given parser. The result is memoized
+     * until the header is next added, set or removed, so repeated lookups of dates, addresses or
+     * content types don't parse the same value again.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getParsedHeader(String name, HeaderParser<T> parser) throws MessagingException {
+        final String key = foldName(name);
+        HashMap<HeaderParser<?>, Object> parsed = null;
+        if (mParsedValues != null) {
+            parsed = mParsedValues.get(key);
+            if (parsed != null && parsed.containsKey(parser)) {
+                return (T) parsed.get(parser);
+            }
+        }
+        final T value = parser.parse(getFirstHeader(name));
+        cacheParsedHeader(name, parser, value);
+        return value;
+    }
+
+    /**
+     * Records the parsed value of a header, for callers that set a header from a typed value and
+     * want {@link #getParsedHeader} to return that value rather than one parsed back from the
+     * header. Must be called after the header itself has been set.
+     */
+    public <T> void cacheParsedHeader(String name, HeaderParser<T> parser, T value) {
+        final String key = foldName(name);
+        if (mParsedValues == null) {
+            mParsedValues = new HashMap<String, HashMap<HeaderParser<?>, Object>>();
+        }
+        HashMap<HeaderParser<?>, Object> parsed = mParsedValues.get(key);
+        if (parsed == null) {
+            parsed = new HashMap<HeaderParser<?>, Object>(2);
+            mParsedValues.put(key, parsed);
+        }
+        parsed.put(parser, value);
     }
 
     /**
@@ -29,6 +29,7 @@ import org.apache.james.mime4j.BodyDescriptor;
 import org.apache.james.mime4j.ContentHandler;
 import org.apache.james.mime4j.EOLConvertingInputStream;
 import org.apache.james.mime4j.MimeStreamParser;
+import org.apache.james.mime4j.MimeTokenStream;
 import org.apache.james.mime4j.field.DateTimeField;
 import org.apache.james.mime4j.field.Field;
 
@@ -56,19 +57,13 @@ public class MimeMessage extends Message {
     private MimeHeader mHeader;
     private MimeHeader mExtendedHeader;
 
-    // NOTE:  The fields here are transcribed out of headers, and values stored here will supersede
-    // the values found in the headers.  Use caution to prevent any out-of-phase errors.  In
-    // particular, any adds/changes/deletes here must be echoed by changes in the parse() function.
-    private Address[] mFrom;
-    private Address[] mTo;
-    private Address[] mCc;
-    private Address[] mBcc;
-    private Address[] mReplyTo;
-    private Date mSentDate;
+    // NOTE:  Parsed header values (addresses, dates, subject, mime type) are memoized by mHeader
+    // itself, and forgotten whenever the header changes, so they can't get out of phase with it.
     private Body mBody;
     protected int mSize;
     private boolean mInhibitLocalMessageId = false;
     private boolean mComplete = true;
+    private BodyCopyStats mCopyStats = new BodyCopyStats();
 
     // Shared random source for generating local message-id values
     private static final java.util.Random sRandom = new java.util.Random();
@@ -81,11 +76,67 @@ public class MimeMessage extends Message {
     private static final SimpleDateFormat DATE_FORMAT =
         new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
 
+    private static final MimeHeader.HeaderParser<Address[]> ADDRESS_PARSER =
+            new MimeHeader.HeaderParser<Address[]>() {
+        @Override
+        public Address[] parse(String value) {
+            return Address.parse(MimeUtility.unfold(value));
+        }
+    };
+
+    private static final MimeHeader.HeaderParser<Date> DATE_PARSER =
+            new MimeHeader.HeaderParser<Date>() {
+        @Override
+        public Date parse(String value) {
+            if (value == null) {
+                return null;
+            }
+            // TODO: We should make it more clear what exceptions can be thrown here,
+            // and whether they reflect a normal or error condition.
+            try {
+                DateTimeField field = (DateTimeField)Field.parse("Date: "
+                        + MimeUtility.unfoldAndDecode(value));
+                return field.getDate();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    };
+
+    private static final MimeHeader.HeaderParser<String> SUBJECT_PARSER =
+            new MimeHeader.HeaderParser<String>() {
+        @Override
+        public String parse(String value) {
+            return MimeUtility.unfoldAndDecode(value);
+        }
+    };
+
     // regex that matches content id surrounded by "<>" optionally.
     private static final Pattern REMOVE_OPTIONAL_BRACKETS = Pattern.compile("^<?([^>]+)>?$");
     // regex that matches end of line.
     private static final Pattern END_OF_LINE = Pattern.compile("\r?\n");
 
+    /**
+     * Decides, part by part, which bodies a {@link MimeMessage#parse(InputStream, PartFilter)}
+     * keeps, and when it can stop.
+     */
+    public interface PartFilter {
+        /**
+         * Called once the headers of the message, of a body part or of an embedded message have
+         * been parsed, before its body is read.
+         *
+         * @return false to skip the body, including any parts nested in it; the part is then
+         * left without a body
+         */
+        boolean acceptBody(Part part) throws MessagingException;
+
+        /**
+         * Checked after each part has been parsed. Once it returns true the rest of the stream is
+         * not parsed, and the message is marked incomplete.
+         */
+        boolean isDone();
+    }
+
     public MimeMessage() {
         mHeader = null;
     }
@@ -121,18 +172,25 @@ public class MimeMessage extends Message {
         parse(in);
     }
 
+    /**
+     * Parse the given InputStream, keeping only the bodies the filter accepts.
+     *
+     * @param in InputStream providing message content
+     * @param filter decides which bodies to decode, and when to stop
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public MimeMessage(InputStream in, PartFilter filter) throws IOException, MessagingException {
+        parse(in, filter);
+    }
+
     private MimeStreamParser init() {
         // Before parsing the input stream, clear all local fields that may be superceded by
         // the new incoming message.
         getMimeHeaders().clear();
         mInhibitLocalMessageId = true;
-        mFrom = null;
-        mTo = null;
-        mCc = null;
-        mBcc = null;
-        mReplyTo = null;
-        mSentDate = null;
         mBody = null;
+        mCopyStats = new BodyCopyStats();
 
         final MimeStreamParser parser = new MimeStreamParser();
         parser.setContentHandler(new MimeMessageBuilder());
@@ -152,6 +210,70 @@ public class MimeMessage extends Message {
         mComplete = !parser.getPrematureEof();
     }
 
+    /**
+     * Parse the given InputStream, pulling parser events so that the bodies the filter rejects
+     * are skipped without being decoded or buffered, and parsing ends as soon as the filter is
+     * done.
+     */
+    public void parse(InputStream in, PartFilter filter) throws IOException, MessagingException {
+        init();
+        final MimeMessageBuilder builder = new MimeMessageBuilder();
+        final MimeTokenStream tokens = new MimeTokenStream();
+        tokens.parse(new EOLConvertingInputStream(in));
+        boolean stopped = false;
+        int state;
+        while ((state = tokens.next()) != MimeTokenStream.T_END_OF_STREAM) {
+            switch (state) {
+                case MimeTokenStream.T_START_MESSAGE:
+                    builder.startMessage();
+                    break;
+                case MimeTokenStream.T_END_MESSAGE:
+                    builder.endMessage();
+                    break;
+                case MimeTokenStream.T_START_HEADER:
+                    builder.startHeader();
+                    break;
+                case MimeTokenStream.T_FIELD:
+                    builder.field(tokens.getField());
+                    break;
+                case MimeTokenStream.T_END_HEADER:
+                    builder.endHeader();
+                    if (!stopped && !filter.acceptBody(builder.currentPart())) {
+                        tokens.skipBody();
+                    }
+                    break;
+                case MimeTokenStream.T_START_MULTIPART:
+                    builder.startMultipart(tokens.getBodyDescriptor());
+                    break;
+                case MimeTokenStream.T_END_MULTIPART:
+                    builder.endMultipart();
+                    break;
+                case MimeTokenStream.T_PREAMBLE:
+                    builder.preamble(tokens.getInputStream());
+                    break;
+                case MimeTokenStream.T_START_BODYPART:
+                    builder.startBodyPart();
+                    break;
+                case MimeTokenStream.T_END_BODYPART:
+                    builder.endBodyPart();
+                    break;
+                case MimeTokenStream.T_BODY:
+                    builder.body(tokens.getBodyDescriptor(), tokens.getInputStream());
+                    break;
+                case MimeTokenStream.T_EPILOGUE:
+                    // The epilogue is not kept, so it is skipped rather than read.
+                    break;
+            }
+            if (!stopped && (state == MimeTokenStream.T_END_BODYPART
+                    || state == MimeTokenStream.T_END_MESSAGE) && !builder.isFinished()
+                    && filter.isDone()) {
+                tokens.stop();
+                stopped = true;
+            }
+        }
+        mComplete = !stopped && !tokens.getPrematureEof();
+    }
+
     /**
      * Return the internal mHeader value, with very lazy initialization.
      * The goal is to save memory by not creating the headers until needed.
@@ -170,36 +292,22 @@ public class MimeMessage extends Message {
 
     @Override
     public Date getSentDate() throws MessagingException {
-        if (mSentDate == null) {
-            try {
-                DateTimeField field = (DateTimeField)Field.parse("Date: "
-                        + MimeUtility.unfoldAndDecode(getFirstHeader("Date")));
-                mSentDate = field.getDate();
-                // TODO: We should make it more clear what exceptions can be thrown here,
-                // and whether they reflect a normal or error condition.
-            } catch (Exception e) {
-                LogUtils.v(LogUtils.TAG, "Message missing Date header");
-            }
-        }
-        if (mSentDate == null) {
+        Date sentDate = getMimeHeaders().getParsedHeader("Date", DATE_PARSER);
+        if (sentDate == null) {
+            LogUtils.v(LogUtils.TAG, "Message missing Date header");
             // If we still don't have a date, fall back to "Delivery-date"
-            try {
-                DateTimeField field = (DateTimeField)Field.parse("Date: "
-                        + MimeUtility.unfoldAndDecode(getFirstHeader("Delivery-date")));
-                mSentDate = field.getDate();
-                // TODO: We should make it more clear what exceptions can be thrown here,
-                // and whether they reflect a normal or error condition.
-            } catch (Exception e) {
+            sentDate = getMimeHeaders().getParsedHeader("Delivery-date", DATE_PARSER);
+            if (sentDate == null) {
                 LogUtils.v(LogUtils.TAG, "Message also missing Delivery-Date header");
             }
         }
-        return mSentDate;
+        return sentDate;
     }
 
     @Override
     public void setSentDate(Date sentDate) throws MessagingException {
         setHeader("Date", DATE_FORMAT.format(sentDate));
-        this.mSentDate = sentDate;
+        getMimeHeaders().cacheParsedHeader("Date", DATE_PARSER, sentDate);
     }
 
     @Override
@@ -232,9 +340,18 @@ public class MimeMessage extends Message {
         return mComplete;
     }
 
+    /**
+     * @return how the bodies decoded by the last parse were stored, and how many of their bytes
+     * have been copied out since
+     */
+    public BodyCopyStats getCopyStats() {
+        return mCopyStats;
+    }
+
     @Override
     public String getMimeType() throws MessagingException {
-        return MimeUtility.getHeaderParameter(getContentType(), null);
+        return getMimeHeaders().getParsedHeader(MimeHeader.HEADER_CONTENT_TYPE,
+                MimeUtility.MIME_TYPE_PARSER);
     }
 
     @Override
@@ -249,20 +366,11 @@ public class MimeMessage extends Message {
     @Override
     public Address[] getRecipients(RecipientType type) throws MessagingException {
         if (type == RecipientType.TO) {
-            if (mTo == null) {
-                mTo = Address.parse(MimeUtility.unfold(getFirstHeader("To")));
-            }
-            return mTo;
+            return getMimeHeaders().getParsedHeader("To", ADDRESS_PARSER);
         } else if (type == RecipientType.CC) {
-            if (mCc == null) {
-                mCc = Address.parse(MimeUtility.unfold(getFirstHeader("CC")));
-            }
-            return mCc;
+            return getMimeHeaders().getParsedHeader("CC", ADDRESS_PARSER);
         } else if (type == RecipientType.BCC) {
-            if (mBcc == null) {
-                mBcc = Address.parse(MimeUtility.unfold(getFirstHeader("BCC")));
-            }
-            return mBcc;
+            return getMimeHeaders().getParsedHeader("BCC", ADDRESS_PARSER);
         } else {
             throw new MessagingException("Unrecognized recipient type.");
         }
@@ -274,40 +382,35 @@ public class MimeMessage extends Message {
         final int CC_LENGTH = 4;  // "Cc: "
         final int BCC_LENGTH = 5; // "Bcc: "
         if (type == RecipientType.TO) {
-            if (addresses == null || addresses.length == 0) {
-                removeHeader("To");
-                this.mTo = null;
-            } else {
-                setHeader("To", MimeUtility.fold(Address.toHeader(addresses), TO_LENGTH));
-                this.mTo = addresses;
-            }
+            setAddressHeader("To", addresses, TO_LENGTH);
         } else if (type == RecipientType.CC) {
-            if (addresses == null || addresses.length == 0) {
-                removeHeader("CC");
-                this.mCc = null;
-            } else {
-                setHeader("CC", MimeUtility.fold(Address.toHeader(addresses), CC_LENGTH));
-                this.mCc = addresses;
-            }
+            setAddressHeader("CC", addresses, CC_LENGTH);
         } else if (type == RecipientType.BCC) {
-            if (addresses == null || addresses.length == 0) {
-                removeHeader("BCC");
-                this.mBcc = null;
-            } else {
-                setHeader("BCC", MimeUtility.fold(Address.toHeader(addresses), BCC_LENGTH));
-                this.mBcc = addresses;
-            }
+            setAddressHeader("BCC", addresses, BCC_LENGTH);
         } else {
             throw new MessagingException("Unrecognized recipient type.");
         }
     }
 
+    /**
+     * Set or remove an address list header, remembering the addresses as its parsed value.
+     */
+    private void setAddressHeader(String name, Address[] addresses, int nameLength)
+            throws MessagingException {
+        if (addresses == null || addresses.length == 0) {
+            removeHeader(name);
+        } else {
+            setHeader(name, MimeUtility.fold(Address.toHeader(addresses), nameLength));
+            getMimeHeaders().cacheParsedHeader(name, ADDRESS_PARSER, addresses);
+        }
+    }
+
     /**
      * Returns the unfolded, decoded value of the Subject header.
      */
     @Override
     public String getSubject() throws MessagingException {
-        return MimeUtility.unfoldAndDecode(getFirstHeader("Subject"));
+        return getMimeHeaders().getParsedHeader("Subject", SUBJECT_PARSER);
     }
 
     @Override
@@ -318,14 +421,11 @@ public class MimeMessage extends Message {
 
     @Override
     public Address[] getFrom() throws MessagingException {
-        if (mFrom == null) {
-            String list = MimeUtility.unfold(getFirstHeader("From"));
-            if (list == null || list.length() == 0) {
-                list = MimeUtility.unfold(getFirstHeader("Sender"));
-            }
-            mFrom = Address.parse(list);
+        final String list = MimeUtility.unfold(getFirstHeader("From"));
+        if (list == null || list.length() == 0) {
+            return getMimeHeaders().getParsedHeader("Sender", ADDRESS_PARSER);
         }
-        return mFrom;
+        return getMimeHeaders().getParsedHeader("From", ADDRESS_PARSER);
     }
 
     @Override
@@ -333,32 +433,21 @@ public class MimeMessage extends Message {
         final int FROM_LENGTH = 6;  // "From: "
         if (from != null) {
             setHeader("From", MimeUtility.fold(from.toHeader(), FROM_LENGTH));
-            this.mFrom = new Address[] {
+            getMimeHeaders().cacheParsedHeader("From", ADDRESS_PARSER, new Address[] {
                     from
-                };
-        } else {
-            this.mFrom = null;
+                });
         }
     }
 
     @Override
     public Address[] getReplyTo() throws MessagingException {
-        if (mReplyTo == null) {
-            mReplyTo = Address.parse(MimeUtility.unfold(getFirstHeader("Reply-to")));
-        }
-        return mReplyTo;
+        return getMimeHeaders().getParsedHeader("Reply-to", ADDRESS_PARSER);
     }
 
     @Override
     public void setReplyTo(Address[] replyTo) throws MessagingException {
         final int REPLY_TO_LENGTH = 10;  // "Reply-to: "
-        if (replyTo == null || replyTo.length == 0) {
-            removeHeader("Reply-to");
-            mReplyTo = null;
-        } else {
-            setHeader("Reply-to", MimeUtility.fold(Address.toHeader(replyTo), REPLY_TO_LENGTH));
-            mReplyTo = replyTo;
-        }
+        setAddressHeader("Reply-to", replyTo, REPLY_TO_LENGTH);
     }
 
     /**
@@ -542,6 +631,21 @@ public class MimeMessage extends Message {
         public MimeMessageBuilder() {
         }
 
+        /**
+         * @return the part whose header or body is being parsed
+         */
+        Part currentPart() {
+            expect(Part.class);
+            return (Part)stack.peek();
+        }
+
+        /**
+         * @return true once the end of the top level message has been seen
+         */
+        boolean isFinished() {
+            return stack.isEmpty();
+        }
+
         private void expect(Class<?> c) {
             if (!c.isInstance(stack.peek())) {
                 throw new IllegalStateException("Internal stack error: " + "Expected '"
@@ -609,7 +713,7 @@ public class MimeMessage extends Message {
         @Override
         public void body(BodyDescriptor bd, InputStream in) throws IOException {
             expect(Part.class);
-            final Body body = MimeUtility.decodeBody(in, bd.getTransferEncoding());
+            final Body body = MimeUtility.decodeBody(in, bd.getTransferEncoding(), mCopyStats);
             try {
                 ((Part)stack.peek()).setBody(body);
             } catch (MessagingException me) {
@@ -339,11 +339,20 @@ public class MimeUtility {
      */
     public static Body decodeBody(InputStream in, String contentTransferEncoding)
             throws IOException {
+        return decodeBody(in, contentTransferEncoding, null);
+    }
+
+    /**
+     * Removes any content transfer encoding from the stream and returns a Body, counting the
+     * bytes it stores and copies in the given stats.
+     */
+    public static Body decodeBody(InputStream in, String contentTransferEncoding,
+            BodyCopyStats stats) throws IOException {
         /*
          * We'll remove any transfer encoding by wrapping the stream.
          */
         in = getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
-        BinaryTempFileBody tempBody = new BinaryTempFileBody();
+        BinaryTempFileBody tempBody = new BinaryTempFileBody(stats);
         OutputStream out = tempBody.getOutputStream();
         try {
             IOUtils.copy(in, out);
@@ -357,6 +366,18 @@ public class MimeUtility {
         return tempBody;
     }
 
+    /**
+     * Parses a Content-Type header value into its mime type, defaulting to
+     * text/plain, for {@link MimeHeader#getParsedHeader}.
+     */
+    static final MimeHeader.HeaderParser<String> MIME_TYPE_PARSER =
+            new MimeHeader.HeaderParser<String>() {
+        @Override
+        public String parse(String contentType) {
+            return getHeaderParameter(contentType == null ? "text/plain" : contentType, null);
+        }
+    };
+
     /**
      * Recursively scan a Part (usually a Message) and sort out which of its children will be
      * "viewable" and which will be attachments.
@@ -378,7 +399,11 @@ public class MimeUtility {
         // The lower-case mime type
         String mimeType = part.getMimeType().toLowerCase();
 
-        if (part.getBody() instanceof Multipart) {
+        if (part.getBody() == null && mimeType.startsWith("multipart/")) {
+            // A multipart whose body was skipped while parsing (see MimeMessage.PartFilter) has
+            // no parts to collect.
+            return;
+        } else if (part.getBody() instanceof Multipart) {
             // If the part is Multipart but not alternative it's either mixed or
             // something we don't know about, which means we treat it as mixed
             // per the spec. We just process its pieces recursively.
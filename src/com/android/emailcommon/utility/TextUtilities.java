@@ -20,14 +20,15 @@ import com.google.common.annotations.VisibleForTesting;
 
 import android.graphics.Color;
 import android.text.Spannable;
-import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.style.BackgroundColorSpan;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
 
@@ -538,182 +539,273 @@ public class TextUtilities {
         }
     }
 
-    static class SearchTerm {
-        final String mTerm;
-        final String mTermLowerCase;
-        final int mLength;
-        int mMatchLength = 0;
-        int mMatchStart = -1;
-
-        SearchTerm(String term) {
-            mTerm = term;
-            mTermLowerCase = term.toLowerCase();
-            mLength = term.length();
+    /**
+     * Aho-Corasick automaton finding every search term of a query, ignoring case, in a single
+     * pass over the text. Term characters are mapped to a small alphabet so the transitions of
+     * all states fit in one table, and every state knows the longest term ending there.
+     */
+    static class TermMatcher {
+        private static final int ASCII = 128;
+
+        /** Symbol of each ASCII char, in either case; 0 for chars in no term. */
+        private final int[] mAsciiSymbols = new int[ASCII];
+        /** Sorted non-ASCII (lower case) term chars, and their symbols. */
+        private final char[] mOtherChars;
+        private final int[] mOtherSymbols;
+        private final int mSymbolCount;
+        /** Next state, at state * mSymbolCount + symbol. */
+        private final int[] mTransitions;
+        /** Length of the longest term ending at each state, or 0. */
+        final int[] mMatchLength;
+
+        TermMatcher(String query) {
+            final ArrayList<String> terms = new ArrayList<String>();
+            if (query != null) {
+                final StringTokenizer st = new StringTokenizer(query);
+                while (st.hasMoreTokens()) {
+                    terms.add(st.nextToken());
+                }
+            }
+
+            // Number the distinct (lower case) term chars; symbol 0 stands for all other chars
+            final HashMap<Character, Integer> symbols = new HashMap<Character, Integer>();
+            int maxStates = 1;
+            for (String term : terms) {
+                maxStates += term.length();
+                for (int i = 0; i < term.length(); i++) {
+                    final Character c = Character.toLowerCase(term.charAt(i));
+                    if (!symbols.containsKey(c)) {
+                        symbols.put(c, symbols.size() + 1);
+                    }
+                }
+            }
+            mSymbolCount = symbols.size() + 1;
+            for (char c = 0; c < ASCII; c++) {
+                final Integer symbol = symbols.get(Character.toLowerCase(c));
+                mAsciiSymbols[c] = symbol != null ? symbol : 0;
+            }
+            int others = 0;
+            for (Character c : symbols.keySet()) {
+                if (c >= ASCII) {
+                    others++;
+                }
+            }
+            mOtherChars = new char[others];
+            mOtherSymbols = new int[others];
+            int n = 0;
+            for (Character c : symbols.keySet()) {
+                if (c >= ASCII) {
+                    mOtherChars[n++] = c;
+                }
+            }
+            Arrays.sort(mOtherChars);
+            for (int i = 0; i < others; i++) {
+                mOtherSymbols[i] = symbols.get(mOtherChars[i]);
+            }
+
+            // Build the trie of the terms
+            final int[] transitions = new int[maxStates * mSymbolCount];
+            Arrays.fill(transitions, -1);
+            final int[] matchLength = new int[maxStates];
+            int states = 1;
+            for (String term : terms) {
+                int state = 0;
+                for (int i = 0; i < term.length(); i++) {
+                    final int index = state * mSymbolCount + symbolOf(term.charAt(i));
+                    if (transitions[index] < 0) {
+                        transitions[index] = states++;
+                    }
+                    state = transitions[index];
+                }
+                matchLength[state] = term.length();
+            }
+
+            // Breadth first, point each missing transition to where the longest proper suffix
+            // of the state would go, and inherit the matches of that suffix
+            final int[] fail = new int[states];
+            final int[] queue = new int[states];
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = 0;
+            while (head < tail) {
+                final int state = queue[head++];
+                final int base = state * mSymbolCount;
+                for (int symbol = 0; symbol < mSymbolCount; symbol++) {
+                    final int fallback = state == 0
+                            ? 0 : transitions[fail[state] * mSymbolCount + symbol];
+                    final int next = transitions[base + symbol];
+                    if (next < 0) {
+                        transitions[base + symbol] = fallback;
+                    } else {
+                        fail[next] = fallback;
+                        matchLength[next] = Math.max(matchLength[next], matchLength[fallback]);
+                        queue[tail++] = next;
+                    }
+                }
+            }
+            mTransitions = transitions;
+            mMatchLength = matchLength;
+        }
+
+        /**
+         * @return true if the query had no terms, so nothing can match
+         */
+        boolean isEmpty() {
+            return mSymbolCount == 1;
+        }
+
+        private int symbolOf(char c) {
+            if (c < ASCII) {
+                return mAsciiSymbols[c];
+            }
+            c = Character.toLowerCase(c);
+            if (c < ASCII) {
+                return mAsciiSymbols[c];
+            }
+            final int index = Arrays.binarySearch(mOtherChars, c);
+            return index >= 0 ? mOtherSymbols[index] : 0;
+        }
+
+        /**
+         * @return the state after reading c in the given state; 0 is the initial state
+         */
+        int next(int state, char c) {
+            return mTransitions[state * mSymbolCount + symbolOf(c)];
         }
     }
 
+    // Search results highlight the same query in message after message, so its matcher is kept
+    private static final int TERM_MATCHER_CACHE_SIZE = 4;
+    private static final LinkedHashMap<String, TermMatcher> sTermMatchers =
+            new LinkedHashMap<String, TermMatcher>(TERM_MATCHER_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TermMatcher> eldest) {
+            return size() > TERM_MATCHER_CACHE_SIZE;
+        }
+    };
+
+    /*package*/ static TermMatcher getTermMatcher(String query) {
+        final String key = query != null ? query : "";
+        synchronized (sTermMatchers) {
+            TermMatcher matcher = sTermMatchers.get(key);
+            if (matcher == null) {
+                matcher = new TermMatcher(key);
+                sTermMatchers.put(key, matcher);
+            }
+            return matcher;
+        }
+    }
+
+    private static final String HIGHLIGHT_START_TAG =
+            "<span style=\"background-color: " + HIGHLIGHT_COLOR_STRING + "\">";
+    private static final String HIGHLIGHT_END_TAG = "</span>";
+
     /**
      * Generate a version of the incoming text in which all search terms in a query are highlighted.
      * If the input is HTML, we return a StringBuilder with additional markup as required
      * If the input is text, we return a SpannableStringBuilder with additional spans as required
      *
+     * Overlapping and adjoining matches are highlighted as one; in HTML, terms are only matched
+     * in the text between tags.
+     *
      * @param text the text to be processed
      * @param query the query, which can contain multiple terms separated by whitespace
      * @param html whether or not the text to be processed is HTML
      * @return highlighted text
      *
-     * @throws IOException as Appendable requires this
+     * @throws IOException never; declared for existing callers
      */
     public static CharSequence highlightTerms(String text, String query, boolean html)
             throws IOException {
         // Handle null and empty string
         if (TextUtils.isEmpty(text)) return "";
         final int length = text.length();
-
-        // Break up the query into search terms
-        ArrayList<SearchTerm> terms = new ArrayList<SearchTerm>();
-        if (query != null) {
-            StringTokenizer st = new StringTokenizer(query);
-            while (st.hasMoreTokens()) {
-                terms.add(new SearchTerm(st.nextToken()));
-            }
-        }
-
-        // Our appendable depends on whether we're building HTML text (for webview) or spannable
-        // text (for UI)
-        final Appendable sb = html ? new StringBuilder() : new SpannableStringBuilder();
-        // Indicates whether we're in the middle of an HTML tag
-        boolean inTag = false;
-        // The position of the last input character copied to output
-        int lastOut = -1;
-
-        // Walk through the text until we're done with the input
-        // Just copy any HTML tags directly into the output; search for terms in the remaining text
-        for (int i = 0; i < length; i++) {
-            char chr = text.charAt(i);
-            if (html) {
-                if (!inTag && (chr == '<')) {
-                    // Find tags; they will begin with <! or !- or </ or <letter
-                    if (i < (length - 1)) {
-                        char peek = text.charAt(i + 1);
+        final TermMatcher matcher = getTermMatcher(query);
+
+        // The highlighted ranges, as pairs of start and end (exclusive) offsets
+        int[] ranges = new int[16];
+        int rangeCount = 0;
+        if (!matcher.isEmpty()) {
+            // Indicates whether we're in the middle of an HTML tag
+            boolean inTag = false;
+            int state = 0;
+            scan:
+            for (int i = 0; i < length; i++) {
+                final char chr = text.charAt(i);
+                if (html) {
+                    if (!inTag && (chr == '<') && (i < (length - 1))) {
+                        // Find tags; they will begin with <! or !- or </ or <letter
+                        final char peek = text.charAt(i + 1);
                         if (peek == '!' || peek == '-' || peek == '/' || Character.isLetter(peek)) {
                             inTag = true;
+                            state = 0;
                             // Skip content of title, script, style and applet tags
                             if (i < (length - (MAX_STRIP_TAG_LENGTH + 2))) {
-                                String tag = text.substring(i + 1, i + MAX_STRIP_TAG_LENGTH + 1);
-                                String tagLowerCase = tag.toLowerCase();
-                                boolean stripContent = false;
-                                for (String stripTag: STRIP_TAGS) {
-                                    if (tagLowerCase.startsWith(stripTag)) {
-                                        stripContent = true;
-                                        tag = tag.substring(0, stripTag.length());
-                                        break;
-                                    }
-                                }
-                                if (stripContent) {
-                                    // Look for the end of this tag
-                                    int endTagPosition = findTagEnd(text, tag, i);
-                                    if (endTagPosition < 0) {
-                                        sb.append(text.substring(i));
-                                        break;
-                                    } else {
-                                        sb.append(text.substring(i, endTagPosition - 1));
+                                for (String stripTag : STRIP_TAGS) {
+                                    final int tagLength = stripTag.length();
+                                    if (text.regionMatches(true, i + 1, stripTag, 0, tagLength)) {
+                                        final int endTagPosition = findTagEnd(text,
+                                                text.substring(i + 1, i + 1 + tagLength), i);
+                                        if (endTagPosition < 0) {
+                                            break scan;
+                                        }
                                         i = endTagPosition - 1;
-                                        chr = text.charAt(i);
+                                        break;
                                     }
                                 }
                             }
                         }
+                    } else if (inTag && (chr == '>')) {
+                        inTag = false;
+                        continue;
+                    }
+                    if (inTag) {
+                        continue;
                     }
-                } else if (inTag && (chr == '>')) {
-                    inTag = false;
-                }
-
-                if (inTag) {
-                    sb.append(chr);
-                    continue;
                 }
-            }
 
-            // After all that, we've got some "body" text
-            char chrLowerCase = Character.toLowerCase(chr);
-            // Whether or not the current character should be appended to the output; we inhibit
-            // this while any search terms match
-            boolean appendNow = true;
-            // Look through search terms for matches
-            for (SearchTerm t: terms) {
-                if (chrLowerCase == t.mTermLowerCase.charAt(t.mMatchLength)) {
-                    if (t.mMatchLength++ == 0) {
-                        // New match start
-                        t.mMatchStart = i;
+                state = matcher.next(state, chr);
+                final int matchLength = matcher.mMatchLength[state];
+                if (matchLength > 0) {
+                    // Merge with the ranges this match overlaps or adjoins
+                    int start = i + 1 - matchLength;
+                    while (rangeCount > 0 && start <= ranges[rangeCount - 1]) {
+                        start = Math.min(start, ranges[rangeCount - 2]);
+                        rangeCount -= 2;
                     }
-                    if (t.mMatchLength == t.mLength) {
-                        String matchText = text.substring(t.mMatchStart, t.mMatchStart + t.mLength);
-                        // Completed match; add highlight and reset term
-                        if (t.mMatchStart <= lastOut) {
-                            matchText = text.substring(lastOut + 1, i + 1);
-                        }
-                        /*else*/
-                        if (matchText.length() == 0) {} else
-                        if (html) {
-                            sb.append("<span style=\"background-color: " + HIGHLIGHT_COLOR_STRING +
-                                    "\">");
-                            sb.append(matchText);
-                            sb.append("</span>");
-                        } else {
-                            SpannableString highlightSpan = new SpannableString(matchText);
-                            highlightSpan.setSpan(new BackgroundColorSpan(HIGHLIGHT_COLOR_INT), 0,
-                                    highlightSpan.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                            sb.append(highlightSpan);
-                        }
-                        lastOut = t.mMatchStart + t.mLength - 1;
-                        t.mMatchLength = 0;
-                        t.mMatchStart = -1;
+                    if (rangeCount == ranges.length) {
+                        ranges = Arrays.copyOf(ranges, rangeCount * 2);
                     }
-                    appendNow = false;
-                } else {
-                    if (t.mMatchStart >= 0) {
-                        // We're no longer matching; check for other matches in progress
-                        int leastOtherStart = -1;
-                        for (SearchTerm ot: terms) {
-                            // Save away the lowest match start for other search terms
-                            if ((ot != t) && (ot.mMatchStart >= 0) && ((leastOtherStart < 0) ||
-                                    (ot.mMatchStart <= leastOtherStart))) {
-                                leastOtherStart = ot.mMatchStart;
-                            }
-                        }
-                        int matchEnd = t.mMatchStart + t.mMatchLength;
-                        if (leastOtherStart < 0 || leastOtherStart > matchEnd) {
-                            // Append the whole thing
-                            if (t.mMatchStart > lastOut) {
-                                sb.append(text.substring(t.mMatchStart, matchEnd));
-                                lastOut = matchEnd;
-                            }
-                        } else if (leastOtherStart == t.mMatchStart) {
-                            // Ok to append the current char
-                        } else if (leastOtherStart < t.mMatchStart) {
-                            // We're already covered by another search term, so don't append
-                            appendNow = false;
-                        } else if (t.mMatchStart > lastOut) {
-                            // Append the piece of our term that's not already covered
-                            sb.append(text.substring(t.mMatchStart, leastOtherStart));
-                            lastOut = leastOtherStart;
-                        }
-                    }
-                    // Reset this term
-                    t.mMatchLength = 0;
-                    t.mMatchStart = -1;
+                    ranges[rangeCount++] = start;
+                    ranges[rangeCount++] = i + 1;
                 }
             }
+        }
 
-            if (appendNow) {
-                sb.append(chr);
-                lastOut = i;
+        // Our output depends on whether we're building HTML text (for webview) or spannable
+        // text (for UI)
+        if (html) {
+            final StringBuilder sb = new StringBuilder(length + (rangeCount / 2)
+                    * (HIGHLIGHT_START_TAG.length() + HIGHLIGHT_END_TAG.length()));
+            int lastOut = 0;
+            for (int r = 0; r < rangeCount; r += 2) {
+                sb.append(text, lastOut, ranges[r]);
+                sb.append(HIGHLIGHT_START_TAG);
+                sb.append(text, ranges[r], ranges[r + 1]);
+                sb.append(HIGHLIGHT_END_TAG);
+                lastOut = ranges[r + 1];
             }
+            sb.append(text, lastOut, length);
+            return sb;
+        } else {
+            final SpannableStringBuilder sb = new SpannableStringBuilder(text);
+            for (int r = 0; r < rangeCount; r += 2) {
+                sb.setSpan(new BackgroundColorSpan(HIGHLIGHT_COLOR_INT), ranges[r], ranges[r + 1],
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            return sb;
         }
-
-        return (CharSequence)sb;
-   }
+    }
 
     /**
      * Determine whether two Strings (either of which might be null) are the same; this is true
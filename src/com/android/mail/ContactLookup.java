@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.provider.ContactsContract;
+import android.util.LruCache;
+
+import com.android.mail.perf.CacheStats;
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The process-wide lookup of the contacts and contact photos of email addresses, for everything
+ * that shows senders: the sender images of the conversation list, the conversation view's
+ * headers and notifications.
+ * <ul>
+ *     <li>Results are kept in a memory cache bounded by the bytes of the photos it holds, which
+ *     is dropped whenever the contacts provider notifies of a change.</li>
+ *     <li>An email whose lookup is already in flight for another caller is not queried again;
+ *     the caller waits for that lookup instead.</li>
+ *     <li>Any number of emails may be looked up. They are split into queries of at most
+ *     {@link SenderInfoLoader#MAX_QUERY_PARAMS} params, which run in parallel, and the results
+ *     are merged.</li>
+ *     <li>A caller may cancel its lookup with a {@link CancellationSignal}, or by interrupting its
+ *     thread. It then stops waiting. Those of its queries that have not started yet are dropped
+ *     once no caller is waiting for any of their emails; other callers waiting for them keep
+ *     their results.</li>
+ * </ul>
+ * Lookups block, so they must be made from a background thread.
+ */
+public final class ContactLookup {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    /** Threads running batches beyond the first, which runs on the calling thread. */
+    private static final int QUERY_THREADS = 2;
+
+    private static final ThreadPoolExecutor QUERY_EXECUTOR = new ThreadPoolExecutor(
+            QUERY_THREADS, QUERY_THREADS, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        QUERY_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /** Bytes of photos, plus overhead, held by the cache of results at most. */
+    private static final int MAX_CACHE_BYTES = 512 * 1024;
+
+    /** Rough cost of a cached result besides its photo: the email, the uri and bookkeeping. */
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    /** How often a caller that may be cancelled checks its signal while waiting. */
+    private static final long CANCEL_POLL_MS = 50;
+
+    /**
+     * Cancels the lookup it is passed to. Unlike {@link android.os.CancellationSignal}, this is
+     * available on every platform version the app supports.
+     */
+    public static final class CancellationSignal {
+        private volatile boolean mCanceled;
+
+        public void cancel() {
+            mCanceled = true;
+        }
+
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+    }
+
+    /** Queries a batch of emails. Replaced in tests. */
+    @VisibleForTesting
+    interface BatchQuery {
+        /** @return every email's {@link ContactInfo}, or null if the query failed */
+        Map<String, ContactInfo> query(ContentResolver resolver, List<String> emails);
+    }
+
+    private static final BatchQuery PROVIDER_QUERY = new BatchQuery() {
+        @Override
+        public Map<String, ContactInfo> query(ContentResolver resolver, List<String> emails) {
+            return SenderInfoLoader.queryContactPhotos(resolver, emails);
+        }
+    };
+
+    /** The lookup of one email, which other callers wanting the same email wait for. */
+    private static final class PendingLookup {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile ContactInfo mResult;
+        /** Callers waiting for the lookup, starting with the one that queries it. */
+        private final AtomicInteger mWaiters = new AtomicInteger(1);
+        private final AtomicBoolean mOwnerLeft = new AtomicBoolean();
+
+        /** Adds a caller waiting for the lookup. */
+        void join() {
+            mWaiters.incrementAndGet();
+        }
+
+        /** Removes a caller that joined, once it no longer waits. */
+        void leave() {
+            mWaiters.decrementAndGet();
+        }
+
+        /** Removes the caller that queries the lookup, once it no longer waits; only once. */
+        void ownerLeave() {
+            if (mOwnerLeft.compareAndSet(false, true)) {
+                leave();
+            }
+        }
+
+        /** @return whether some caller still waits for the lookup */
+        boolean isWanted() {
+            return mWaiters.get() > 0;
+        }
+
+        void complete(ContactInfo result) {
+            mResult = result;
+            mDone.countDown();
+        }
+
+        /**
+         * Waits for the lookup to complete.
+         *
+         * @return false if the signal was cancelled first
+         */
+        boolean await(CancellationSignal signal) throws InterruptedException {
+            if (signal == null) {
+                mDone.await();
+                return true;
+            }
+            while (!mDone.await(CANCEL_POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (signal.isCanceled()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** A batch of emails queried together, completing their pending lookups. */
+    private static final class Batch implements Runnable {
+        private final ContentResolver mResolver;
+        private final List<String> mEmails;
+        private final Map<String, PendingLookup> mPending;
+        private final CancellationSignal mSignal;
+        private final BatchQuery mQuery;
+        private final int mGeneration;
+
+        Batch(ContentResolver resolver, List<String> emails, Map<String, PendingLookup> pending,
+                CancellationSignal signal, BatchQuery query) {
+            mResolver = resolver;
+            mEmails = emails;
+            mPending = pending;
+            mSignal = signal;
+            mQuery = query;
+            synchronized (sCache) {
+                mGeneration = sGeneration;
+            }
+        }
+
+        @Override
+        public void run() {
+            Map<String, ContactInfo> results = null;
+            try {
+                if (isWanted()) {
+                    results = mQuery.query(mResolver, mEmails);
+                }
+            } catch (RuntimeException e) {
+                LogUtils.w(LOG_TAG, e, "Contact lookup failed");
+            } finally {
+                // Results are cached before the lookups leave sInFlight, so that a caller
+                // always finds an email in one or the other. The generation is checked under
+                // the cache's lock so that a concurrent clearCache() cannot slip in between.
+                synchronized (sCache) {
+                    if (results != null && sGeneration == mGeneration) {
+                        for (String email : mEmails) {
+                            final ContactInfo result = results.get(email);
+                            if (result != null) {
+                                sCache.put(email, result);
+                            }
+                        }
+                    }
+                }
+                for (String email : mEmails) {
+                    final PendingLookup pending = mPending.get(email);
+                    pending.complete(results != null ? results.get(email) : null);
+                    sInFlight.remove(email, pending);
+                }
+            }
+        }
+
+        /**
+         * @return whether any caller still waits for an email of the batch. The caller that
+         * queries the batch stops waiting once its signal is cancelled, but callers that joined
+         * its lookups may still wait for them.
+         */
+        private boolean isWanted() {
+            final boolean ownerCanceled = mSignal != null && mSignal.isCanceled();
+            boolean wanted = false;
+            for (String email : mEmails) {
+                final PendingLookup pending = mPending.get(email);
+                if (ownerCanceled) {
+                    pending.ownerLeave();
+                }
+                wanted |= pending.isWanted();
+            }
+            return wanted;
+        }
+    }
+
+    private static final ConcurrentMap<String, PendingLookup> sInFlight =
+            new ConcurrentHashMap<String, PendingLookup>();
+
+    private static final LruCache<String, ContactInfo> sCache =
+            new LruCache<String, ContactInfo>(MAX_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(String email, ContactInfo result) {
+                    return (result.photoBytes != null ? result.photoBytes.length : 0)
+                            + ENTRY_OVERHEAD_BYTES;
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, String email, ContactInfo oldValue,
+                        ContactInfo newValue) {
+                    if (evicted) {
+                        sStats.evicted();
+                    }
+                }
+            };
+
+    private static final CacheStats sStats = CacheStats.get("contacts.memory");
+
+    /**
+     * Bumped when the contacts change, so that older queries do not cache stale results. Guarded
+     * by the lock of {@link #sCache}.
+     */
+    private static int sGeneration;
+
+    private static boolean sObservingContacts;
+
+    private ContactLookup() {}
+
+    /**
+     * Looks up the contact and photo bytes of each email.
+     *
+     * @return A mapping of emails to {@link ContactInfo}, as for
+     * {@link SenderInfoLoader#loadContactPhotos}: an email is missing if its lookup failed or was
+     * skipped. Null if no lookup succeeded because of failed queries.
+     */
+    public static Map<String, ContactInfo> lookup(ContentResolver resolver,
+            Collection<String> emails) {
+        return lookup(resolver, emails, null);
+    }
+
+    /**
+     * As {@link #lookup(ContentResolver, Collection)}, stopping early if {@code signal} is
+     * cancelled. The emails not looked up by then are missing from the result.
+     */
+    public static Map<String, ContactInfo> lookup(ContentResolver resolver,
+            Collection<String> emails, CancellationSignal signal) {
+        return lookup(resolver, emails, signal, PROVIDER_QUERY,
+                SenderInfoLoader.MAX_QUERY_PARAMS);
+    }
+
+    @VisibleForTesting
+    static Map<String, ContactInfo> lookup(ContentResolver resolver, Collection<String> emails,
+            CancellationSignal signal, BatchQuery query, int batchSize) {
+        if (resolver == null) {
+            return null;
+        }
+        observeContacts(resolver);
+
+        // Take cached results; claim the emails nobody else is looking up and join the lookups
+        // of the others.
+        final Map<String, ContactInfo> results = Maps.newHashMap();
+        final Map<String, PendingLookup> owned = new LinkedHashMap<String, PendingLookup>();
+        final Map<String, PendingLookup> waiting = new LinkedHashMap<String, PendingLookup>();
+        for (String email : emails) {
+            if (results.containsKey(email) || waiting.containsKey(email)) {
+                continue;
+            }
+            final ContactInfo cached = sCache.get(email);
+            if (cached != null) {
+                sStats.hit();
+                results.put(email, cached);
+                continue;
+            }
+            sStats.miss();
+            final PendingLookup pending = new PendingLookup();
+            final PendingLookup existing = sInFlight.putIfAbsent(email, pending);
+            if (existing == null) {
+                owned.put(email, pending);
+                waiting.put(email, pending);
+            } else {
+                existing.join();
+                waiting.put(email, existing);
+            }
+        }
+
+        queryInBatches(resolver, owned, signal, query, batchSize);
+
+        boolean failed = false;
+        boolean cancelled = false;
+        try {
+            for (Map.Entry<String, PendingLookup> entry : waiting.entrySet()) {
+                if (!entry.getValue().await(signal)) {
+                    LogUtils.d(LOG_TAG, "ContactLookup: cancelled");
+                    cancelled = true;
+                    break;
+                }
+                final ContactInfo result = entry.getValue().mResult;
+                if (result != null) {
+                    results.put(entry.getKey(), result);
+                } else {
+                    failed = true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelled = true;
+        }
+        if (cancelled) {
+            // stop waiting for every lookup, so that those nobody waits for any more are dropped
+            failed = true;
+            for (Map.Entry<String, PendingLookup> entry : waiting.entrySet()) {
+                if (owned.containsKey(entry.getKey())) {
+                    entry.getValue().ownerLeave();
+                } else {
+                    entry.getValue().leave();
+                }
+            }
+        }
+
+        if (results.isEmpty() && failed) {
+            return null;
+        }
+        return results;
+    }
+
+    /**
+     * Drops every cached result, e.g. because the contacts changed or memory is low.
+     */
+    public static void clearCache() {
+        synchronized (sCache) {
+            sGeneration++;
+            sCache.evictAll();
+        }
+    }
+
+    private static synchronized void observeContacts(ContentResolver resolver) {
+        if (sObservingContacts) {
+            return;
+        }
+        sObservingContacts = true;
+        // The observer does not hold on to the resolver, so this does not leak its context.
+        resolver.registerContentObserver(ContactsContract.Contacts.CONTENT_URI,
+                true /* notifyForDescendents */, new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        clearCache();
+                    }
+                });
+    }
+
+    /**
+     * Queries the emails in batches, the first on this thread and the others in parallel. Each
+     * batch completes the pending lookups of its emails when it finishes.
+     */
+    private static void queryInBatches(ContentResolver resolver,
+            Map<String, PendingLookup> pending, CancellationSignal signal, BatchQuery query,
+            int batchSize) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        final List<String> emails = new ArrayList<String>(pending.keySet());
+        final List<Batch> batches = new ArrayList<Batch>();
+        for (int start = 0; start < emails.size(); start += batchSize) {
+            batches.add(new Batch(resolver,
+                    emails.subList(start, Math.min(emails.size(), start + batchSize)), pending,
+                    signal, query));
+        }
+        if (batches.size() > 1) {
+            LogUtils.d(LOG_TAG, "ContactLookup: %d emails in %d batches", emails.size(),
+                    batches.size());
+        }
+        for (int i = 1; i < batches.size(); i++) {
+            QUERY_EXECUTOR.execute(batches.get(i));
+        }
+        batches.get(0).run();
+    }
+}
@@ -40,6 +40,7 @@ import com.google.common.collect.Maps;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -67,10 +68,13 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
      * Limit the query params to avoid hitting the maximum of 99. We choose a number smaller than
      * 99 since the contacts provider may wrap our query in its own and insert more params.
      */
-    private static final int MAX_QUERY_PARAMS = 75;
+    static final int MAX_QUERY_PARAMS = 75;
 
     private final Set<String> mSenders;
 
+    /** Cancels the load in progress, or null if there is none. */
+    private ContactLookup.CancellationSignal mCancellationSignal;
+
     public SenderInfoLoader(Context context, Set<String> senders) {
         super(context);
         mSenders = senders;
@@ -92,18 +96,40 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
             return null;
         }
 
-        return loadContactPhotos(
-                getContext().getContentResolver(), mSenders, true /* decodeBitmaps */);
+        final ContactLookup.CancellationSignal signal = new ContactLookup.CancellationSignal();
+        synchronized (this) {
+            mCancellationSignal = signal;
+        }
+        try {
+            return loadContactPhotos(getContext().getContentResolver(), mSenders,
+                    true /* decodeBitmaps */, signal);
+        } finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
     }
 
     /**
-     * Loads contact photos from the ContentProvider.
+     * Loads contact photos from the ContentProvider. Any number of emails may be given: they are
+     * looked up by {@link ContactLookup}, which caches results and joins lookups of the same
+     * emails already in flight elsewhere.
      * @param resolver {@link ContentResolver} to use in queries to the ContentProvider.
      * @param emails The email addresses of the sender images to return.
      * @param decodeBitmaps If {@code true}, decode the bitmaps and put them into
      *                      {@link ContactInfo}. Otherwise, just put the raw bytes of the photo
      *                      into the {@link ContactInfo}.
-     * @return A mapping of email to {@link ContactInfo}. How to interpret the map:
+     * @return A mapping of email to {@link ContactInfo}, or null if every query failed. How to
+     * interpret the map:
      * <ul>
      *     <li>The email is missing from the key set or maps to null - The email was skipped. Try
      *     again.</li>
@@ -115,7 +141,53 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
      */
     public static ImmutableMap<String, ContactInfo> loadContactPhotos(
             final ContentResolver resolver, final Set<String> emails, final boolean decodeBitmaps) {
+        return loadContactPhotos(resolver, emails, decodeBitmaps, null);
+    }
+
+    /**
+     * As {@link #loadContactPhotos(ContentResolver, Set, boolean)}, skipping the emails not
+     * looked up by the time {@code signal} is cancelled.
+     */
+    public static ImmutableMap<String, ContactInfo> loadContactPhotos(
+            final ContentResolver resolver, final Set<String> emails, final boolean decodeBitmaps,
+            final ContactLookup.CancellationSignal signal) {
         Trace.beginSection("load contact photos util");
+        try {
+            final Map<String, ContactInfo> results = ContactLookup.lookup(resolver, emails,
+                    signal);
+            if (results == null || !decodeBitmaps) {
+                return results != null ? ImmutableMap.copyOf(results) : null;
+            }
+
+            final ImmutableMap.Builder<String, ContactInfo> decoded = ImmutableMap.builder();
+            for (Map.Entry<String, ContactInfo> entry : results.entrySet()) {
+                final ContactInfo result = entry.getValue();
+                final byte[] photoBytes = result.photoBytes;
+                if (photoBytes == null) {
+                    decoded.put(entry.getKey(), result);
+                    continue;
+                }
+                Trace.beginSection("decode bitmap");
+                final Bitmap photo = BitmapFactory.decodeByteArray(photoBytes, 0,
+                        photoBytes.length);
+                Trace.endSection();
+                decoded.put(entry.getKey(), new ContactInfo(result.contactUri, photo));
+            }
+            return decoded.build();
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Queries the contacts provider for the contact and photo bytes of each email.
+     *
+     * @param emails at most {@link #MAX_QUERY_PARAMS} email addresses
+     * @return A mapping of every email to its {@link ContactInfo}, with null
+     * {@link ContactInfo#photoBytes} if the photo could not be loaded, or null if the query failed
+     */
+    static Map<String, ContactInfo> queryContactPhotos(final ContentResolver resolver,
+            final List<String> emails) {
         Cursor cursor = null;
 
         Trace.beginSection("build first query");
@@ -124,13 +196,12 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
         // temporary structures
         Map<Long, Pair<String, ContactInfo>> photoIdMap = Maps.newHashMap();
         ArrayList<String> photoIdsAsStrings = new ArrayList<String>();
-        ArrayList<String> emailsList = getTruncatedQueryParams(emails);
 
         // Build first query
         StringBuilder query = new StringBuilder()
                 .append(Data.MIMETYPE).append("='").append(Email.CONTENT_ITEM_TYPE)
                 .append("' AND ").append(Email.DATA).append(" IN (");
-        appendQuestionMarks(query, emailsList);
+        appendQuestionMarks(query, emails);
         query.append(')');
         Trace.endSection();
 
@@ -141,11 +212,10 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
         try {
             Trace.beginSection("query 1");
             cursor = resolver.query(Data.CONTENT_URI, DATA_COLS,
-                    query.toString(), toStringArray(emailsList), sortOrder);
+                    query.toString(), toStringArray(emails), sortOrder);
             Trace.endSection();
 
             if (cursor == null) {
-                Trace.endSection();
                 return null;
             }
 
@@ -170,22 +240,21 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
 
             // Put empty ContactInfo for all the emails that didn't map to a contact.
             // This allows us to differentiate between lookup failed,
-            // and lookup skipped (truncated above).
-            for (String email : emailsList) {
+            // and lookup skipped.
+            for (String email : emails) {
                 if (!results.containsKey(email)) {
                     results.put(email, new ContactInfo(null));
                 }
             }
 
             if (photoIdsAsStrings.isEmpty()) {
-                Trace.endSection();
-                return ImmutableMap.copyOf(results);
+                return results;
             }
 
             Trace.beginSection("build second query");
             // Build second query: photoIDs->blobs
             // based on photo batch-select code in ContactPhotoManager
-            photoIdsAsStrings = getTruncatedQueryParams(photoIdsAsStrings);
+            // There are no more photo ids than emails, so this is within MAX_QUERY_PARAMS too.
             query.setLength(0);
             query.append(Photo._ID).append(" IN (");
             appendQuestionMarks(query, photoIdsAsStrings);
@@ -198,8 +267,7 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
             Trace.endSection();
 
             if (cursor == null) {
-                Trace.endSection();
-                return ImmutableMap.copyOf(results);
+                return results;
             }
 
             Trace.beginSection("get photo blob");
@@ -215,16 +283,8 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
                 String email = prev.first;
                 ContactInfo prevResult = prev.second;
 
-                if (decodeBitmaps) {
-                    Trace.beginSection("decode bitmap");
-                    Bitmap photo = BitmapFactory.decodeByteArray(photoBytes, 0, photoBytes.length);
-                    Trace.endSection();
-                    // overwrite existing photo-less result
-                    results.put(email, new ContactInfo(prevResult.contactUri, photo));
-                } else {
-                    // overwrite existing photoBytes-less result
-                    results.put(email, new ContactInfo(prevResult.contactUri, photoBytes));
-                }
+                // overwrite existing photoBytes-less result
+                results.put(email, new ContactInfo(prevResult.contactUri, photoBytes));
             }
             Trace.endSection();
         } finally {
@@ -233,8 +293,7 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
             }
         }
 
-        Trace.endSection();
-        return ImmutableMap.copyOf(results);
+        return results;
     }
 
     private static String contactInfoSortOrder() {
@@ -247,22 +306,6 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
         return null;
     }
 
-    private static ArrayList<String> getTruncatedQueryParams(Collection<String> params) {
-        int truncatedLen = Math.min(params.size(), MAX_QUERY_PARAMS);
-        ArrayList<String> truncated = new ArrayList<String>(truncatedLen);
-
-        int copied = 0;
-        for (String param : params) {
-            truncated.add(param);
-            copied++;
-            if (copied >= truncatedLen) {
-                break;
-            }
-        }
-
-        return truncated;
-    }
-
     private static String[] toStringArray(Collection<String> items) {
         return items.toArray(new String[items.size()]);
     }
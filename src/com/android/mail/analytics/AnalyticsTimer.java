@@ -32,6 +32,7 @@ import java.util.Map;
  */
 public class AnalyticsTimer {
     public static final String OPEN_CONV_VIEW_FROM_LIST = "open_conv_from_list";
+    public static final String SWIPE_TO_CONV_CONTENT = "swipe_to_conv_content";
     public static final String COLD_START_LAUNCHER = "cold_start_to_list";
     public static final String SEARCH_TO_LIST = "search_to_list";
     public static final String COMPOSE_HTML_TO_SPAN = "compose_html_to_span";
@@ -34,8 +34,10 @@ import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.google.common.collect.ImmutableMap;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -56,6 +58,8 @@ public class ContactResolver implements Runnable {
 
     protected final ContentResolver mResolver;
     private final BitmapCache mCache;
+    /** Photos and negative lookups kept across process restarts, or null. */
+    private final SenderPhotoDiskCache mDiskCache;
     /** Insertion ordered set allows us to work from the top down. */
     private final LinkedHashSet<ContactRequestHolder> mBatch;
 
@@ -75,8 +79,18 @@ public class ContactResolver implements Runnable {
     }
 
     public ContactResolver(final ContentResolver resolver, final BitmapCache cache) {
+        this(resolver, cache, null);
+    }
+
+    /**
+     * @param diskCache if not null, photos are looked up here before querying the contacts
+     * provider, and the provider's answers are stored here
+     */
+    public ContactResolver(final ContentResolver resolver, final BitmapCache cache,
+            final SenderPhotoDiskCache diskCache) {
         mResolver = resolver;
         mCache = cache;
+        mDiskCache = diskCache;
         mBatch = new LinkedHashSet<ContactRequestHolder>();
     }
 
@@ -109,7 +123,7 @@ public class ContactResolver implements Runnable {
 
     protected ContactResolverTask getContactResolverTask(
             LinkedHashSet<ContactRequestHolder> batch) {
-        return new ContactResolverTask(batch, mResolver, mCache, this);
+        return new ContactResolverTask(batch, mResolver, mCache, mDiskCache, this);
     }
 
     public BitmapCache getCache() {
@@ -160,14 +174,22 @@ public class ContactResolver implements Runnable {
         private final Set<ContactRequestHolder> mContactRequests;
         private final ContentResolver mResolver;
         private final BitmapCache mCache;
+        private final SenderPhotoDiskCache mDiskCache;
         private final ContactResolver mCallback;
 
         public ContactResolverTask(final Set<ContactRequestHolder> contactRequests,
                 final ContentResolver resolver, final BitmapCache cache,
                 final ContactResolver callback) {
+            this(contactRequests, resolver, cache, null, callback);
+        }
+
+        public ContactResolverTask(final Set<ContactRequestHolder> contactRequests,
+                final ContentResolver resolver, final BitmapCache cache,
+                final SenderPhotoDiskCache diskCache, final ContactResolver callback) {
             mContactRequests = contactRequests;
             mResolver = resolver;
             mCache = cache;
+            mDiskCache = diskCache;
             mCallback = callback;
         }
 
@@ -175,15 +197,26 @@ public class ContactResolver implements Runnable {
         protected Void doInBackground(final Void... params) {
             Trace.beginSection("set up");
             final Set<String> emails = new HashSet<String>(mContactRequests.size());
+            final Map<String, byte[]> storedPhotos = new HashMap<String, byte[]>();
             for (ContactRequestHolder request : mContactRequests) {
                 final String email = request.getEmail();
-                emails.add(email);
+                if (emails.contains(email) || storedPhotos.containsKey(email)) {
+                    continue;
+                }
+                final byte[] stored = mDiskCache != null ? mDiskCache.get(email) : null;
+                if (stored != null) {
+                    storedPhotos.put(email, stored);
+                } else {
+                    emails.add(email);
+                }
             }
             Trace.endSection();
 
             Trace.beginSection("load contact photo bytes");
-            // Query the contacts provider for the current batch of emails.
-            final ImmutableMap<String, ContactInfo> contactInfos = loadContactPhotos(emails);
+            // Query the contacts provider for the emails of the current batch that are not on
+            // disk. When all of them are, as on a cold start, there is no query at all.
+            final ImmutableMap<String, ContactInfo> contactInfos = getContactInfos(emails,
+                    storedPhotos);
             Trace.endSection();
 
             for (ContactRequestHolder request : mContactRequests) {
@@ -241,6 +274,45 @@ public class ContactResolver implements Runnable {
             return null;
         }
 
+        /**
+         * Returns the photos for the emails from the contacts provider and the photos that were
+         * stored on disk, storing the provider's answers for next time. The result is
+         * interpreted as for {@link #loadContactPhotos(Set)}.
+         */
+        private ImmutableMap<String, ContactInfo> getContactInfos(Set<String> emails,
+                Map<String, byte[]> storedPhotos) {
+            final ImmutableMap<String, ContactInfo> loaded;
+            if (emails.isEmpty()) {
+                loaded = ImmutableMap.of();
+            } else {
+                loaded = loadContactPhotos(emails);
+                if (loaded == null) {
+                    // Query failed, which says nothing about the senders. Do not store it.
+                    return null;
+                }
+                if (mDiskCache != null) {
+                    for (String email : emails) {
+                        final ContactInfo contactInfo = loaded.get(email);
+                        if (contactInfo != null) {
+                            mDiskCache.put(email, contactInfo.photoBytes);
+                        }
+                    }
+                }
+            }
+            if (storedPhotos.isEmpty()) {
+                return loaded;
+            }
+
+            final ImmutableMap.Builder<String, ContactInfo> builder = ImmutableMap.builder();
+            builder.putAll(loaded);
+            for (Map.Entry<String, byte[]> stored : storedPhotos.entrySet()) {
+                final byte[] photo = stored.getValue();
+                builder.put(stored.getKey(), new ContactInfo(null,
+                        photo != SenderPhotoDiskCache.NO_PHOTO ? photo : null));
+            }
+            return builder.build();
+        }
+
         protected ImmutableMap<String, ContactInfo> loadContactPhotos(Set<String> emails) {
             if (mResolver == null) {
                 return null;
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.bitmap;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.provider.ContactsContract;
+
+import com.android.mail.perf.CacheStats;
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * A store of sender photos in the app's cache directory, so that a cold start can show the
+ * avatars of a conversation list without querying the contacts provider. Lookups that found no
+ * photo are stored too, as empty entries.
+ * <p>
+ * Entries are keyed by the normalized email address and hold the photo bytes as the contacts
+ * provider returns them, i.e. thumbnails of at most 96px by 96px; larger photos are not stored.
+ * An entry expires after a TTL, and every entry is invalidated whenever the contacts provider
+ * notifies of a change. Changes made while the process is not running are caught by the TTL.
+ * The store is bounded in size, dropping the least recently written entries first.
+ * <p>
+ * All methods do disk I/O and must be called from a background thread.
+ */
+public class SenderPhotoDiskCache {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    /** Returned by {@link #get(String)} for senders known to have no photo. */
+    public static final byte[] NO_PHOTO = new byte[0];
+
+    private static final String DIRECTORY_NAME = "sender_photos";
+
+    /** Touched whenever the contacts change; entries written before it are stale. */
+    private static final String INVALIDATED_MARKER = ".invalidated";
+
+    private static final long MAX_SIZE_BYTES = 2 * 1024 * 1024;
+    /** Photos larger than this are not worth a slot; provider thumbnails are far smaller. */
+    private static final int MAX_PHOTO_BYTES = 64 * 1024;
+
+    private static final long PHOTO_TTL_MS = 7 * 24 * 60 * 60 * 1000L;
+    private static final long NO_PHOTO_TTL_MS = 24 * 60 * 60 * 1000L;
+
+    private static SenderPhotoDiskCache sInstance;
+
+    private final File mDirectory;
+    private final File mInvalidatedMarker;
+    private final long mMaxSizeBytes;
+    private final CacheStats mStats = CacheStats.get("senderPhotos.disk");
+
+    /** Bytes held by entries, or -1 until the directory has been scanned. */
+    private long mSizeBytes = -1;
+    /** Entries written before this time are stale. */
+    private long mInvalidatedAt = -1;
+
+    /**
+     * Returns the process-wide store, registering for contacts changes on first use.
+     */
+    public static synchronized SenderPhotoDiskCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new SenderPhotoDiskCache(
+                    new File(appContext.getCacheDir(), DIRECTORY_NAME), MAX_SIZE_BYTES);
+            appContext.getContentResolver().registerContentObserver(
+                    ContactsContract.Contacts.CONTENT_URI, true /* notifyForDescendents */,
+                    new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            sInstance.invalidate();
+                        }
+                    });
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    SenderPhotoDiskCache(File directory, long maxSizeBytes) {
+        mDirectory = directory;
+        mInvalidatedMarker = new File(directory, INVALIDATED_MARKER);
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Returns the stored photo bytes for the sender, {@link #NO_PHOTO} if the sender is known to
+     * have no photo, or null if nothing valid is stored.
+     */
+    public synchronized byte[] get(String email) {
+        final File file = getFile(email);
+        final long written = file.lastModified();
+        if (written == 0) {
+            mStats.miss();
+            return null;
+        }
+        final long length = file.length();
+        final long ttl = length == 0 ? NO_PHOTO_TTL_MS : PHOTO_TTL_MS;
+        final long now = System.currentTimeMillis();
+        if (written <= getInvalidatedAt() || written + ttl < now || written > now) {
+            delete(file);
+            mStats.miss();
+            return null;
+        }
+        if (length == 0) {
+            mStats.hit();
+            return NO_PHOTO;
+        }
+        try {
+            final byte[] photo = readFully(file, (int) length);
+            mStats.hit();
+            return photo;
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "Unable to read cached sender photo");
+            delete(file);
+            mStats.miss();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the photo bytes for the sender; null or empty bytes record that it has no photo.
+     */
+    public synchronized void put(String email, byte[] photo) {
+        if (photo != null && photo.length > MAX_PHOTO_BYTES) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return;
+        }
+        final long sizeBefore = getSizeBytes();
+        final File file = getFile(email);
+        final File temp = new File(mDirectory, file.getName() + ".tmp");
+        final long oldLength = file.length();
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            if (photo != null) {
+                out.write(photo);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to rename " + temp);
+            }
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "Unable to cache sender photo");
+            temp.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        mSizeBytes = sizeBefore - oldLength + (photo != null ? photo.length : 0);
+        if (mSizeBytes > mMaxSizeBytes) {
+            trim();
+        }
+    }
+
+    /**
+     * Makes every stored entry stale, e.g. because the contacts changed.
+     */
+    public synchronized void invalidate() {
+        final long now = System.currentTimeMillis();
+        mInvalidatedAt = now;
+        try {
+            if (mDirectory.isDirectory()) {
+                new FileOutputStream(mInvalidatedMarker).close();
+                mInvalidatedMarker.setLastModified(now);
+            }
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "Unable to record sender photo invalidation");
+        }
+        LogUtils.d(LOG_TAG, "Sender photo cache invalidated");
+    }
+
+    private long getInvalidatedAt() {
+        if (mInvalidatedAt < 0) {
+            mInvalidatedAt = mInvalidatedMarker.lastModified();
+        }
+        return mInvalidatedAt;
+    }
+
+    private long getSizeBytes() {
+        if (mSizeBytes < 0) {
+            long size = 0;
+            final File[] files = listEntries();
+            for (File file : files) {
+                size += file.length();
+            }
+            mSizeBytes = size;
+        }
+        return mSizeBytes;
+    }
+
+    /**
+     * Deletes the least recently written entries until the store is at three quarters of its
+     * maximum size, so that trimming is not needed on every write.
+     */
+    private void trim() {
+        final File[] files = listEntries();
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        long size = getSizeBytes();
+        final long target = mMaxSizeBytes / 4 * 3;
+        for (int i = 0; i < files.length && size > target; i++) {
+            final File file = files[i];
+            final long length = file.length();
+            if (file.delete()) {
+                size -= length;
+                mStats.evicted();
+            }
+        }
+        mSizeBytes = size;
+    }
+
+    private File[] listEntries() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.startsWith(".") && !name.endsWith(".tmp")) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    private void delete(File file) {
+        final long length = file.length();
+        if (file.delete() && mSizeBytes >= 0) {
+            mSizeBytes -= length;
+        }
+    }
+
+    private File getFile(String email) {
+        return new File(mDirectory, getKey(email));
+    }
+
+    /**
+     * Returns the file name for the sender: a digest of the normalized address, which keeps the
+     * address itself out of the file system.
+     */
+    @VisibleForTesting
+    static String getKey(String email) {
+        final String normalized = email == null ? "" : email.trim().toLowerCase(Locale.US);
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final byte[] hash;
+        try {
+            hash = digest.digest(normalized.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] readFully(File file, int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < length) {
+                final int n = in.read(bytes, read, length - read);
+                if (n < 0) {
+                    throw new IOException("Truncated " + file);
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
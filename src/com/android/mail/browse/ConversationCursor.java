@@ -33,12 +33,14 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.support.v4.util.SparseArrayCompat;
 import android.text.TextUtils;
 
 import com.android.mail.content.ThreadSafeCursorWrapper;
+import com.android.mail.perf.CacheStats;
 import com.android.mail.providers.Conversation;
 import com.android.mail.providers.Folder;
 import com.android.mail.providers.FolderList;
@@ -53,9 +55,8 @@ import com.android.mail.utils.NotificationActionUtils.NotificationAction;
 import com.android.mail.utils.NotificationActionUtils.NotificationActionType;
 import com.android.mail.utils.Utils;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
@@ -67,6 +68,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * ConversationCursor is a wrapper around a conversation list cursor that provides update/delete
@@ -83,10 +88,6 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     private static final String DELETED_COLUMN = "__deleted__";
     /** An row cached during a requery is indicated by the presence of REQUERY_COLUMN in the map */
     private static final String UPDATE_TIME_COLUMN = "__updatetime__";
-    /**
-     * A sentinel value for the "index" of the deleted column; it's an int that is otherwise invalid
-     */
-    private static final int DELETED_COLUMN_INDEX = -1;
     /**
      * If a cached value within 10 seconds of a refresh(), preserve it. This time has been
      * chosen empirically (long enough for UI changes to propagate in any reasonable case)
@@ -99,8 +100,53 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
      */
     private static final int URI_COLUMN_INDEX = UIProvider.CONVERSATION_URI_COLUMN;
 
+    /**
+     * The integer columns hashed into a row's version, see {@link #getRowVersion(Cursor)}.
+     */
+    private static final int[] VERSION_COLUMNS = {
+        UIProvider.CONVERSATION_DATE_RECEIVED_MS_COLUMN,
+        UIProvider.CONVERSATION_HAS_ATTACHMENTS_COLUMN,
+        UIProvider.CONVERSATION_NUM_MESSAGES_COLUMN,
+        UIProvider.CONVERSATION_NUM_DRAFTS_COLUMN,
+        UIProvider.CONVERSATION_SENDING_STATE_COLUMN,
+        UIProvider.CONVERSATION_PRIORITY_COLUMN,
+        UIProvider.CONVERSATION_READ_COLUMN,
+        UIProvider.CONVERSATION_SEEN_COLUMN,
+        UIProvider.CONVERSATION_STARRED_COLUMN,
+        UIProvider.CONVERSATION_FLAGS_COLUMN,
+        UIProvider.CONVERSATION_PERSONAL_LEVEL_COLUMN,
+        UIProvider.CONVERSATION_IS_SPAM_COLUMN,
+        UIProvider.CONVERSATION_IS_PHISHING_COLUMN,
+        UIProvider.CONVERSATION_MUTED_COLUMN,
+        UIProvider.CONVERSATION_COLOR_COLUMN,
+        UIProvider.CONVERSATION_ORDER_KEY_COLUMN
+    };
+
     private static final boolean DEBUG_DUPLICATE_KEYS = true;
 
+    /**
+     * The worker materializing conversations ahead of the UI, for every cursor. It runs at
+     * background priority, so as not to compete with drawing.
+     */
+    private static final ThreadPoolExecutor PREFETCH_EXECUTOR = new ThreadPoolExecutor(1, 1,
+            1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        PREFETCH_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /** Rows the UI may move by before prefetching starts over from where it is. */
+    private static final int FOCUS_SLOP = 4;
+
+    /**
+     * Rows around the focus whose conversations are handed to the {@link RowPrecomputer}, well
+     * below the number of row models the list keeps.
+     */
+    private static final int PRECOMPUTE_ROWS = 48;
+
+    /** Conversations served prefetched (hits) and built on demand (misses). */
+    private static final CacheStats sPrefetchStats = CacheStats.get("conversations.prefetch");
+
     /** The resolver for the cursor instantiator's context */
     private final ContentResolver mResolver;
 
@@ -140,8 +186,6 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     private final String mName;
     /** Column names for this cursor */
     private String[] mColumnNames;
-    // Column names as above, as a Set for quick membership checking
-    private Set<String> mColumnNameSet;
     /** An observer on the underlying cursor (so we can detect changes from outside the UI) */
     private final CursorObserver mCursorObserver;
     /** Whether our observer is currently registered with the underlying cursor */
@@ -154,6 +198,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     /** The current position of the cursor */
     private int mPosition = -1;
 
+    /** Overlay hits and misses of the underlying cursors that have since been replaced */
+    private int mRetiredOverlayHits = 0;
+    private int mRetiredOverlayMisses = 0;
+
     /**
      * The number of cached deletions from this cursor (used to quickly generate an accurate count)
      */
@@ -167,17 +215,15 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
 
     private final boolean mCachingEnabled;
 
+    /** Handed to every underlying cursor; see {@link #setRowPrecomputer(RowPrecomputer)}. */
+    private RowPrecomputer mRowPrecomputer;
+
     private void setCursor(UnderlyingCursorWrapper cursor) {
         // If we have an existing underlying cursor, make sure it's closed
         if (mUnderlyingCursor != null) {
             close();
         }
         mColumnNames = cursor.getColumnNames();
-        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
-        for (String name : mColumnNames) {
-            builder.add(name);
-        }
-        mColumnNameSet = builder.build();
         mRefreshRequired = false;
         mRefreshReady = false;
         mRefreshTask = null;
@@ -208,7 +254,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             try {
                 // Create new ConversationCursor
                 LogUtils.d(LOG_TAG, "Create: initial creation");
-                setCursor(doQuery(mUseInitialConversationLimit));
+                setCursor(doQuery(mUseInitialConversationLimit, false));
             } finally {
                 // If we used a limit, queue up a query without limit
                 if (mUseInitialConversationLimit) {
@@ -255,14 +301,26 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         return mUnderlyingCursor != null ? mUnderlyingCursor.conversationIds() : null;
     }
 
-    private static class UnderlyingRowData {
-        public final String innerUri;
-        public Conversation conversation;
-
-        public UnderlyingRowData(String innerUri, Conversation conversation) {
-            this.innerUri = innerUri;
-            this.conversation = conversation;
+    /**
+     * Returns a version of the values of the current row of a cursor of
+     * {@link UIProvider#CONVERSATION_PROJECTION}. The provider has no version column of its own,
+     * so this is a hash of the columns whose values change when a conversation does: its state
+     * flags and counts, its date, its subject and snippet, its folders and its conversation
+     * info, which changes on its own, e.g. when a participant is added.
+     */
+    @VisibleForTesting
+    static long getRowVersion(Cursor cursor) {
+        long version = 0;
+        for (int column : VERSION_COLUMNS) {
+            version = 31 * version + cursor.getLong(column);
         }
+        version = 31 * version
+                + Objects.hashCode(cursor.getString(UIProvider.CONVERSATION_SUBJECT_COLUMN),
+                        cursor.getString(UIProvider.CONVERSATION_SNIPPET_COLUMN));
+        version = 31 * version
+                + Arrays.hashCode(cursor.getBlob(UIProvider.CONVERSATION_INFO_COLUMN));
+        return 31 * version
+                + Arrays.hashCode(cursor.getBlob(UIProvider.CONVERSATION_RAW_FOLDERS_COLUMN));
     }
 
     /**
@@ -273,63 +331,95 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             implements DrawIdler.IdleListener {
 
         /**
-         * An AsyncTask that will fill as much of the cache as possible until either the cache is
-         * full or the task is cancelled. If not cancelled and we're not done caching, it will
-         * schedule another iteration to run upon completion.
+         * Materializes conversations on {@link #PREFETCH_EXECUTOR} until every row has one or it
+         * is cancelled, in {@link PrefetchOrder} around the row the UI last showed, starting over
+         * from there whenever the UI moves on.
          * <p>
-         * Generally, only one task instance per {@link UnderlyingCursorWrapper} will run at a time.
-         * But if an old task is cancelled, it may continue to execute at most one iteration (due
-         * to the per-iteration cancellation-signal read), possibly concurrently with a new task.
+         * Generally, only one prefetcher per {@link UnderlyingCursorWrapper} will run at a time.
+         * But a cancelled one may still build at most one more conversation (due to the
+         * per-iteration cancellation read), possibly concurrently with a new one. The most that
+         * can happen is that one row's values are read twice.
          */
-        private class CacheLoaderTask extends AsyncTask<Void, Void, Void> {
-            private final int mStartPos;
+        private class Prefetcher implements Runnable {
+            private volatile boolean mCancelled;
 
-            CacheLoaderTask(int startPosition) {
-                mStartPos = startPosition;
+            void cancel() {
+                mCancelled = true;
             }
 
             @Override
-            public Void doInBackground(Void... param) {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                final boolean wasDone = mCachingDone;
                 try {
                     Utils.traceBeginSection("backgroundCaching");
-                    if (DEBUG) LogUtils.i(LOG_TAG, "in cache job pos=%s c=%s", mStartPos,
+                    if (DEBUG) LogUtils.i(LOG_TAG, "in cache job focus=%s c=%s", mFocusPos,
                             getWrappedCursor());
                     final int count = getCount();
-                    while (true) {
-                        // It is possible for two instances of this loop to execute at once if
-                        // an earlier task is cancelled but gets preempted. As written, this loop
-                        // safely shares mCachePos without mutexes by only reading it once and
-                        // writing it once (writing based on the previously-read value).
-                        // The most that can happen is that one row's values is read twice.
-                        final int pos = mCachePos;
-                        if (isCancelled() || pos >= count) {
+                    PrefetchOrder order = null;
+                    int focusGeneration = -1;
+                    int precomputed = 0;
+                    while (!mCancelled) {
+                        if (focusGeneration != mFocusGeneration) {
+                            focusGeneration = mFocusGeneration;
+                            order = new PrefetchOrder(count, mFocusPos, mScrollingForward);
+                            precomputed = 0;
+                        }
+                        final RowPrecomputer precomputer = mRowPrecomputer;
+                        final boolean precomputing = precomputer != null
+                                && precomputed < PRECOMPUTE_ROWS;
+                        if (mCachingDone && !precomputing) {
+                            mPrecomputedGeneration = focusGeneration;
+                            break;
+                        }
+                        final int pos = order.next();
+                        if (pos < 0) {
+                            mCachingDone = true;
+                            mPrecomputedGeneration = focusGeneration;
                             break;
                         }
 
-                        final UnderlyingRowData rowData = mRowCache.get(pos);
-                        if (rowData.conversation == null) {
+                        if (mConversations[pos] == null) {
                             // We are running in a background thread.  Set the position to the row
                             // we are interested in.
                             if (moveToPosition(pos)) {
-                                rowData.conversation = new Conversation(
+                                mConversations[pos] = new Conversation(
                                         UnderlyingCursorWrapper.this);
+                                mPrefetched[pos] = true;
+                                mPrefetchedCount.incrementAndGet();
                             }
                         }
-                        mCachePos = pos + 1;
+                        if (precomputing) {
+                            final Conversation conversation = mConversations[pos];
+                            if (conversation != null) {
+                                precomputer.precompute(conversation);
+                            }
+                            precomputed++;
+                        }
+                    }
+                    // A cursor that took over the previous one's conversations made little
+                    // garbage of its own
+                    if (!wasDone && mCachingDone && mReusedCount == 0) {
+                        System.gc();
                     }
-                    System.gc();
                 } finally {
                     Utils.traceEndSection();
                 }
-                return null;
-            }
 
-            @Override
-            protected void onPostExecute(Void result) {
-                mCacheLoaderTask = null;
-                LogUtils.i(LOG_TAG, "ConversationCursor caching complete pos=%s", mCachePos);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mPrefetcher == Prefetcher.this) {
+                            mPrefetcher = null;
+                        }
+                        if (!wasDone && mCachingDone) {
+                            LogUtils.i(LOG_TAG, "ConversationCursor caching complete"
+                                    + " prefetched=%s onDemand=%s", mPrefetchedCount,
+                                    mOnDemandCount);
+                        }
+                    }
+                });
             }
-
         }
 
         private class NewCursorUpdateObserver extends ContentObserver {
@@ -350,109 +440,148 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         // until the idler connects and says we're idle
         private int mDrawState = DrawIdler.STATE_ACTIVE;
         /**
-         * The one currently active cache task. We try to only run one at a time, but because we
-         * don't interrupt the old task when cancelling, it may still run for a bit. See
-         * {@link CacheLoaderTask#doInBackground(Void...)} for notes on thread safety.
+         * The one currently active prefetcher. We try to only run one at a time, but because we
+         * don't interrupt the old one when cancelling, it may still run for a bit. See
+         * {@link Prefetcher} for notes on thread safety.
          */
-        private CacheLoaderTask mCacheLoaderTask;
+        private Prefetcher mPrefetcher;
+        /** Set once every row has a conversation, or could not be read. */
+        private volatile boolean mCachingDone;
         /**
-         * The current row that the cache task is working on, or should work on next.
-         * <p>
-         * Not synchronized; see comments in {@link CacheLoaderTask#doInBackground(Void...)} for
-         * notes on thread safety.
+         * The row around which to prefetch, and the direction the UI last moved in. Set on the UI
+         * thread; {@link #mFocusGeneration} changes whenever they do.
          */
-        private int mCachePos;
+        private volatile int mFocusPos;
+        private volatile boolean mScrollingForward = true;
+        private volatile int mFocusGeneration;
+        /** The row the UI showed last. */
+        private int mLastUiPos;
+        /**
+         * Does work for the rows around the focus as they are materialized; may be null. The
+         * focus generation it was last done around is {@link #mPrecomputedGeneration}.
+         */
+        private volatile RowPrecomputer mRowPrecomputer;
+        private volatile int mPrecomputedGeneration = -1;
+        /** Conversations built by the prefetcher, and by the UI because they were not yet. */
+        private final AtomicInteger mPrefetchedCount = new AtomicInteger();
+        private final AtomicInteger mOnDemandCount = new AtomicInteger();
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
         private boolean mCachingEnabled;
         private final NewCursorUpdateObserver mCursorUpdateObserver;
         private boolean mUpdateObserverRegistered = false;
 
-        // Ideally these two objects could be combined into a Map from
-        // conversationId -> position, but the cached values uses the conversation
-        // uri as a key.
-        private final Map<String, Integer> mConversationUriPositionMap;
-        private final Map<Long, Integer> mConversationIdPositionMap;
-        private final List<UnderlyingRowData> mRowCache;
+        /**
+         * Position lookups by conversation id and by conversation uri (the cached values use the
+         * uri as a key). Built once, on the blocking pre-load pass, and read-only afterwards.
+         */
+        private final ConversationPositionIndex mPositionIndex;
+        /**
+         * Conversations materialized so far, by underlying position. Slots are filled lazily by
+         * the {@link Prefetcher} or on demand by {@link #cacheConversation(Conversation)}.
+         */
+        private final Conversation[] mConversations;
+        /**
+         * Whether each conversation was built from this cursor's own values, by the
+         * {@link Prefetcher} or taken over from the previous cursor. Conversations built on demand
+         * may hold locally cached values too, so they are never handed on to the next cursor.
+         */
+        private final boolean[] mPrefetched;
+        /**
+         * A version of each row's values, by underlying position, or null until a refresh needs
+         * them; see {@link #getRowVersion(Cursor)}. Rows of a refreshed cursor that match a row
+         * of the previous cursor by id and version are unchanged.
+         */
+        private volatile long[] mVersions;
+        /** The number of conversations taken over from the previous cursor. */
+        private int mReusedCount;
+        /**
+         * For a refreshed cursor, the rows unchanged since the cursor it was diffed against, until
+         * the diff is taken by {@link #takeDiff(UnderlyingCursorWrapper)}.
+         */
+        private ConversationCursorDiff mDiff;
+        private UnderlyingCursorWrapper mDiffBase;
+        /** The set view returned by {@link #conversationIds()}, built on first request. */
+        private Set<Long> mConversationIds;
+        /**
+         * Rows deleted locally (in the {@link ConversationCursor} cache) but still present here.
+         * Maps between visible and underlying positions without walking the rows in between.
+         */
+        private final DeletedPositionIndex mDeletedIndex;
+        /**
+         * Locally cached column values by row position and column index, mirroring the
+         * {@link ConversationCursor} cache for the rows that are in this cursor.
+         */
+        private final RowValueOverlay mValueOverlay;
 
         private boolean mCursorUpdated = false;
 
-        public UnderlyingCursorWrapper(Cursor result, boolean cachingEnabled) {
+        /**
+         * @param withVersions whether to compute the version of each row while pre-loading,
+         * because the cursor refreshes one it will be diffed against
+         */
+        public UnderlyingCursorWrapper(Cursor result, boolean cachingEnabled,
+                boolean withVersions) {
             super(result);
 
             mCachingEnabled = cachingEnabled;
 
             // Register the content observer immediately, as we want to make sure that we don't miss
             // any updates
-            mCursorUpdateObserver =
-                    new NewCursorUpdateObserver(new Handler(Looper.getMainLooper()));
+            mCursorUpdateObserver = new NewCursorUpdateObserver(mMainHandler);
             if (result != null) {
                 result.registerContentObserver(mCursorUpdateObserver);
                 mUpdateObserverRegistered = true;
             }
 
             final long start = SystemClock.uptimeMillis();
-            final Map<String, Integer> uriPositionMap;
-            final Map<Long, Integer> idPositionMap;
-            final UnderlyingRowData[] cache;
             final int count;
             Utils.traceBeginSection("blockingCaching");
             if (super.moveToFirst()) {
                 count = super.getCount();
-                cache = new UnderlyingRowData[count];
+                mPositionIndex = new ConversationPositionIndex(count);
+                final long[] versions = withVersions ? new long[count] : null;
                 int i = 0;
 
-                uriPositionMap = Maps.newHashMapWithExpectedSize(count);
-                idPositionMap = Maps.newHashMapWithExpectedSize(count);
-
                 do {
-                    final String innerUriString;
-                    final long convId;
-
-                    innerUriString = super.getString(URI_COLUMN_INDEX);
-                    convId = super.getLong(UIProvider.CONVERSATION_ID_COLUMN);
-
-                    if (DEBUG_DUPLICATE_KEYS) {
-                        if (uriPositionMap.containsKey(innerUriString)) {
-                            LogUtils.e(LOG_TAG, "Inserting duplicate conversation uri key: %s. " +
-                                    "Cursor position: %d, iteration: %d map position: %d",
-                                    innerUriString, getPosition(), i,
-                                    uriPositionMap.get(innerUriString));
-                        }
-                        if (idPositionMap.containsKey(convId)) {
-                            LogUtils.e(LOG_TAG, "Inserting duplicate conversation id key: %d" +
-                                    "Cursor position: %d, iteration: %d map position: %d",
-                                    convId, getPosition(), i, idPositionMap.get(convId));
-                        }
-                    }
+                    final String innerUriString = super.getString(URI_COLUMN_INDEX);
+                    final long convId = super.getLong(UIProvider.CONVERSATION_ID_COLUMN);
 
-                    uriPositionMap.put(innerUriString, i);
-                    idPositionMap.put(convId, i);
+                    if (versions != null) {
+                        versions[i] = getRowVersion(this);
+                    }
 
-                    cache[i] = new UnderlyingRowData(
-                            innerUriString,
-                            null /* conversation */);
+                    final int duplicateOf = mPositionIndex.add(convId, innerUriString);
+                    if (DEBUG_DUPLICATE_KEYS && duplicateOf >= 0) {
+                        LogUtils.e(LOG_TAG, "Inserting duplicate conversation key: id=%d uri=%s. " +
+                                "Cursor position: %d, iteration: %d index position: %d",
+                                convId, innerUriString, getPosition(), i, duplicateOf);
+                    }
                 } while (super.moveToPosition(++i));
 
-                if (uriPositionMap.size() != count || idPositionMap.size() != count) {
+                if (mPositionIndex.distinctUriCount() != count
+                        || mPositionIndex.distinctIdCount() != count) {
                     if (DEBUG_DUPLICATE_KEYS)  {
                         throw new IllegalStateException("Unexpected map sizes: cursorN=" + count
-                                + " uriN=" + uriPositionMap.size() + " idN="
-                                + idPositionMap.size());
+                                + " uriN=" + mPositionIndex.distinctUriCount() + " idN="
+                                + mPositionIndex.distinctIdCount());
                     } else {
                         LogUtils.e(LOG_TAG, "Unexpected map sizes.  Cursor size: %d, " +
                                 "uri position map size: %d, id position map size: %d", count,
-                                uriPositionMap.size(), idPositionMap.size());
+                                mPositionIndex.distinctUriCount(),
+                                mPositionIndex.distinctIdCount());
                     }
                 }
+                mVersions = versions;
             } else {
                 count = 0;
-                cache = new UnderlyingRowData[0];
-                uriPositionMap = Maps.newHashMap();
-                idPositionMap = Maps.newHashMap();
+                mPositionIndex = new ConversationPositionIndex(0);
+                mVersions = new long[0];
             }
-            mConversationUriPositionMap = Collections.unmodifiableMap(uriPositionMap);
-            mConversationIdPositionMap = Collections.unmodifiableMap(idPositionMap);
+            mConversations = new Conversation[count];
+            mPrefetched = new boolean[count];
+            mDeletedIndex = new DeletedPositionIndex(count);
+            mValueOverlay = new RowValueOverlay(count, super.getColumnCount());
 
-            mRowCache = Collections.unmodifiableList(Arrays.asList(cache));
             final long end = SystemClock.uptimeMillis();
             LogUtils.i(LOG_TAG, "*** ConversationCursor pre-loading took %sms n=%s", (end-start),
                     count);
@@ -461,33 +590,123 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
 
             // Later, when the idler signals that the activity is idle, start a task to cache
             // conversations in pieces.
-            mCachePos = 0;
         }
 
         /**
-         * Resumes caching at {@link #mCachePos}.
+         * Returns the version of each row, computing them if this cursor was loaded without.
+         * Called on the refresh thread.
          *
-         * @return true if we actually resumed, false if we're done or stopped
+         * @return the versions, or null if this cursor was closed before they were all computed
+         */
+        private long[] getVersions() {
+            long[] versions = mVersions;
+            if (versions == null) {
+                versions = new long[mConversations.length];
+                for (int pos = 0; pos < versions.length; pos++) {
+                    // the UI may close this cursor, e.g. when the folder changes
+                    if (isClosed() || !moveToPosition(pos)) {
+                        return null;
+                    }
+                    versions[pos] = getRowVersion(this);
+                }
+                mVersions = versions;
+            }
+            return versions;
+        }
+
+        /**
+         * Matches the rows of this cursor against those of the cursor it refreshes. Runs on the
+         * refresh thread, before this cursor is handed to the UI; the previous cursor's
+         * conversations are taken over later, on the UI thread, by
+         * {@link #takeOverConversations(UnderlyingCursorWrapper, ConversationCursorDiff)}.
+         */
+        public void diffAgainst(UnderlyingCursorWrapper previous) {
+            final long[] previousVersions = previous.getVersions();
+            final long[] versions = getVersions();
+            if (previousVersions == null || versions == null) {
+                return;
+            }
+            mDiff = ConversationCursorDiff.compute(previous.mPositionIndex, previousVersions,
+                    mPositionIndex, versions);
+            mDiffBase = previous;
+        }
+
+        /**
+         * Takes over the previous cursor's prefetched conversations for the rows that did not
+         * change, so that they need not be read again. Called on the UI thread, while neither
+         * cursor is prefetching.
+         */
+        public void takeOverConversations(UnderlyingCursorWrapper previous,
+                ConversationCursorDiff diff) {
+            for (int pos = 0; pos < mConversations.length; pos++) {
+                final int previousPos = diff.getUnchangedFrom(pos);
+                if (previousPos >= 0 && previous.mPrefetched[previousPos]
+                        && previous.mConversations[previousPos] != null) {
+                    mConversations[pos] = previous.mConversations[previousPos];
+                    mPrefetched[pos] = true;
+                    mReusedCount++;
+                }
+            }
+            LogUtils.d(LOG_TAG, "ConversationCursor refresh: n=%d reused=%d diff=%s",
+                    mConversations.length, mReusedCount, diff);
+        }
+
+        /**
+         * @return the rows unchanged since {@code current}, or null if this cursor was not diffed
+         * against it
+         */
+        public ConversationCursorDiff takeDiff(UnderlyingCursorWrapper current) {
+            final ConversationCursorDiff diff = mDiffBase == current ? mDiff : null;
+            // let go of the previous cursor, which is about to be closed
+            mDiff = null;
+            mDiffBase = null;
+            return diff;
+        }
+
+        /**
+         * Resumes caching around {@link #mFocusPos}.
+         *
+         * @return true if we actually resumed, false if we're done, stopped or still running
          */
         private boolean resumeCaching() {
-            if (mCacheLoaderTask != null) {
-                throw new IllegalStateException("unexpected existing task: " + mCacheLoaderTask);
+            if (mPrefetcher != null) {
+                // finishing up; the rows it skipped will be built on demand
+                return false;
             }
 
-            if (mCachingEnabled && mCachePos < getCount()) {
-                mCacheLoaderTask = new CacheLoaderTask(mCachePos);
-                mCacheLoaderTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            if (mCachingEnabled && getCount() > 0 && (!mCachingDone || needsPrecompute())) {
+                mPrefetcher = new Prefetcher();
+                PREFETCH_EXECUTOR.execute(mPrefetcher);
                 return true;
             }
             return false;
         }
 
+        /**
+         * Returns whether the rows around the current focus have yet to be precomputed.
+         */
+        private boolean needsPrecompute() {
+            return mRowPrecomputer != null && mPrecomputedGeneration != mFocusGeneration;
+        }
+
+        /**
+         * Sets what to precompute the rows around the focus with, starting over from the focus.
+         * Called on the UI thread.
+         */
+        void setRowPrecomputer(RowPrecomputer precomputer) {
+            mRowPrecomputer = precomputer;
+            mFocusGeneration++;
+            if (mDrawState == DrawIdler.STATE_IDLE) {
+                resumeCaching();
+            }
+        }
+
         private void pauseCaching() {
-            if (mCacheLoaderTask != null) {
-                LogUtils.i(LOG_TAG, "Cancelling caching startPos=%s pos=%s",
-                        mCacheLoaderTask.mStartPos, mCachePos);
-                mCacheLoaderTask.cancel(false /* interrupt */);
-                mCacheLoaderTask = null;
+            if (mPrefetcher != null) {
+                LogUtils.i(LOG_TAG, "Cancelling caching focus=%s prefetched=%s", mFocusPos,
+                        mPrefetchedCount);
+                mPrefetcher.cancel();
+                mPrefetcher = null;
             }
         }
 
@@ -497,40 +716,142 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         }
 
         public boolean contains(String uri) {
-            return mConversationUriPositionMap.containsKey(uri);
+            return mPositionIndex.contains(uri);
         }
 
-        public Set<Long> conversationIds() {
-            return mConversationIdPositionMap.keySet();
+        public synchronized Set<Long> conversationIds() {
+            if (mConversationIds == null) {
+                final long[] ids = mPositionIndex.distinctIds();
+                final Set<Long> set = Sets.newHashSetWithExpectedSize(ids.length);
+                for (long id : ids) {
+                    set.add(id);
+                }
+                mConversationIds = Collections.unmodifiableSet(set);
+            }
+            return mConversationIds;
         }
 
         public int getPosition(long conversationId) {
-            final Integer position = mConversationIdPositionMap.get(conversationId);
-            return position != null ? position.intValue() : -1;
+            return mPositionIndex.getPosition(conversationId);
         }
 
         public int getPosition(String conversationUri) {
-            final Integer position = mConversationUriPositionMap.get(conversationUri);
-            return position != null ? position.intValue() : -1;
+            return mPositionIndex.getPosition(conversationUri);
+        }
+
+        /**
+         * Record a local deletion (or undeletion) of the row with the given uri.
+         *
+         * @return true if the row is in this cursor and its deleted state changed
+         */
+        public boolean setDeleted(String conversationUri, boolean deleted) {
+            final int position = getPosition(conversationUri);
+            return deleted ? mDeletedIndex.delete(position) : mDeletedIndex.undelete(position);
+        }
+
+        public boolean isDeleted(int position) {
+            return mDeletedIndex.isDeleted(position);
+        }
+
+        /**
+         * @return the underlying position of the non-deleted row at the given visible position,
+         * or -1 if there is no such row
+         */
+        public int toUnderlyingPosition(int visiblePosition) {
+            return mDeletedIndex.toUnderlyingPosition(visiblePosition);
+        }
+
+        /**
+         * @return the visible position of the row at the given underlying position, or -1 if it
+         * has been deleted locally
+         */
+        public int toVisiblePosition(int underlyingPosition) {
+            return mDeletedIndex.toVisiblePosition(underlyingPosition);
+        }
+
+        public RowValueOverlay getValueOverlay() {
+            return mValueOverlay;
+        }
+
+        /**
+         * Mirror a locally cached column value into the overlay, if the row is in this cursor and
+         * the column is part of its projection.
+         */
+        public void cacheValue(String conversationUri, String columnName, Object value) {
+            final int position = getPosition(conversationUri);
+            if (position < 0) {
+                return;
+            }
+            final int columnIndex = getColumnIndex(columnName);
+            if (columnIndex >= 0) {
+                mValueOverlay.put(position, columnIndex, value);
+            }
+        }
+
+        /**
+         * Apply a row's worth of locally cached state (deletion and column values) carried over
+         * from the previous cursor.
+         */
+        public void restoreCachedValues(String conversationUri, ContentValues values) {
+            final int position = getPosition(conversationUri);
+            if (position < 0) {
+                return;
+            }
+            for (String key : values.keySet()) {
+                if (DELETED_COLUMN.equals(key)) {
+                    mDeletedIndex.delete(position);
+                } else {
+                    final int columnIndex = getColumnIndex(key);
+                    if (columnIndex >= 0) {
+                        mValueOverlay.put(position, columnIndex, values.get(key));
+                    }
+                }
+            }
         }
 
         public String getInnerUri() {
-            return mRowCache.get(getPosition()).innerUri;
+            return mPositionIndex.getUri(getPosition());
         }
 
         public Conversation getConversation() {
-            return mRowCache.get(getPosition()).conversation;
+            return mConversations[getPosition()];
         }
 
         public void cacheConversation(Conversation conversation) {
-            final UnderlyingRowData rowData = mRowCache.get(getPosition());
-            if (rowData.conversation == null) {
-                rowData.conversation = conversation;
+            final int pos = getPosition();
+            if (mConversations[pos] == null) {
+                mConversations[pos] = conversation;
+                mOnDemandCount.incrementAndGet();
             }
         }
 
+        public int getPrefetchedCount() {
+            return mPrefetchedCount.get();
+        }
+
+        public int getOnDemandCount() {
+            return mOnDemandCount.get();
+        }
+
         private void notifyConversationUIPositionChange() {
-            Utils.notifyCursorUIPositionChange(this, getPosition());
+            final int pos = getPosition();
+            Utils.notifyCursorUIPositionChange(this, pos);
+            setUiPosition(pos);
+        }
+
+        /**
+         * Moves the prefetch focus to the row the UI is showing, once the UI has moved far
+         * enough or turned around. Called on the UI thread.
+         */
+        private void setUiPosition(int pos) {
+            final int last = mLastUiPos;
+            mLastUiPos = pos;
+            final boolean forward = pos == last ? mScrollingForward : pos > last;
+            if (forward != mScrollingForward || Math.abs(pos - mFocusPos) >= FOCUS_SLOP) {
+                mScrollingForward = forward;
+                mFocusPos = pos;
+                mFocusGeneration++;
+            }
         }
 
         /**
@@ -551,6 +872,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         public void close() {
             stopCaching();
             disableUpdateNotifications();
+            mDiff = null;
+            mDiffBase = null;
             super.close();
         }
 
@@ -563,7 +886,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                     // begin/resume caching
                     final boolean resumed = resumeCaching();
                     if (resumed) {
-                        LogUtils.i(LOG_TAG, "Resuming caching, pos=%s idler=%s", mCachePos, idler);
+                        LogUtils.i(LOG_TAG, "Resuming caching, focus=%s idler=%s", mFocusPos,
+                                idler);
                     }
                 } else {
                     // pause caching
@@ -586,10 +910,14 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             if (DEBUG) {
                 LogUtils.i(LOG_TAG, "[Start refresh of %s: %d]", mName, hashCode());
             }
+            final UnderlyingCursorWrapper previous = mUnderlyingCursor;
             // Get new data
-            final UnderlyingCursorWrapper result = doQuery(false);
+            final UnderlyingCursorWrapper result = doQuery(false, previous != null);
             // Make sure window is full
             result.getCount();
+            if (previous != null) {
+                result.diffAgainst(previous);
+            }
             return result;
         }
 
@@ -627,7 +955,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         }
     }
 
-    private UnderlyingCursorWrapper doQuery(boolean withLimit) {
+    /**
+     * @param withVersions whether the result will be diffed against the current cursor
+     */
+    private UnderlyingCursorWrapper doQuery(boolean withLimit, boolean withVersions) {
         Uri uri = qUri;
         if (withLimit) {
             uri = uri.buildUpon().appendQueryParameter(ConversationListQueryParameters.LIMIT,
@@ -645,9 +976,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             LogUtils.i(LOG_TAG, "ConversationCursor query: %s, %dms, %d results",
                     uri, time, result.getCount());
         }
-        System.gc();
 
-        return new UnderlyingCursorWrapper(result, mCachingEnabled);
+        return new UnderlyingCursorWrapper(result, mCachingEnabled, withVersions);
     }
 
     static boolean offUiThread() {
@@ -704,11 +1034,21 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 }
             }
 
+            // Carry the surviving local changes over to the new cursor's position index and
+            // value overlay
+            for (Map.Entry<String, ContentValues> entry : mCacheMap.entrySet()) {
+                newCursorWrapper.restoreCachedValues(entry.getKey(), entry.getValue());
+            }
+
             // Swap cursor
             if (mUnderlyingCursor != null) {
+                final RowValueOverlay oldOverlay = mUnderlyingCursor.getValueOverlay();
+                mRetiredOverlayHits += oldOverlay.getHitCount();
+                mRetiredOverlayMisses += oldOverlay.getMissCount();
                 close();
             }
             mUnderlyingCursor = newCursorWrapper;
+            mUnderlyingCursor.setRowPrecomputer(mRowPrecomputer);
 
             mPosition = -1;
             mUnderlyingCursor.moveToPosition(mPosition);
@@ -777,34 +1117,21 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             return underlyingPosition;
         }
 
-        // Walk through each of the deleted items.  If the deleted item is before the underlying
-        // position, decrement the position
+        // Discount the locally deleted items before the underlying position; -1 if the requested
+        // item has itself been deleted.
         synchronized (mCacheMapLock) {
-            int updatedPosition = underlyingPosition;
-            final Iterator<Map.Entry<String, ContentValues>> iter =
-                    mCacheMap.entrySet().iterator();
-            while (iter.hasNext()) {
-                final Map.Entry<String, ContentValues> entry = iter.next();
-                final ContentValues values = entry.getValue();
-                if (values.containsKey(DELETED_COLUMN)) {
-                    // Since clients of the conversation cursor see conversation ConversationCursor
-                    // provider uris, we need to make sure that this also returns these uris
-                    final String conversationUri = entry.getKey();
-                    final int deletedItemPosition = mUnderlyingCursor.getPosition(conversationUri);
-                    if (deletedItemPosition == underlyingPosition) {
-                        // The requested items has been deleted.
-                        return -1;
-                    }
+            return mUnderlyingCursor.toVisiblePosition(underlyingPosition);
+        }
+    }
 
-                    if (deletedItemPosition >= 0 && deletedItemPosition < underlyingPosition) {
-                        // This item has been deleted, but is still in the underlying cursor, at
-                        // a position before the requested item.  Decrement the position of the
-                        // requested item.
-                        updatedPosition--;
-                    }
-                }
-            }
-            return updatedPosition;
+    /**
+     * Sets the work to do in the background for the rows around the ones the UI shows, for this
+     * and every refreshed cursor; null to do none.
+     */
+    public void setRowPrecomputer(RowPrecomputer precomputer) {
+        mRowPrecomputer = precomputer;
+        if (mUnderlyingCursor != null) {
+            mUnderlyingCursor.setRowPrecomputer(precomputer);
         }
     }
 
@@ -931,6 +1258,9 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 final boolean hasValue = map.get(columnName) != null;
                 if (state && !hasValue) {
                     mDeletedCount++;
+                    if (mUnderlyingCursor != null) {
+                        mUnderlyingCursor.setDeleted(uriString, true);
+                    }
                     if (DEBUG) {
                         LogUtils.i(LOG_TAG, "Deleted %s, incremented deleted count=%d", uriString,
                                 mDeletedCount);
@@ -938,6 +1268,9 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 } else if (!state && hasValue) {
                     mDeletedCount--;
                     map.remove(columnName);
+                    if (mUnderlyingCursor != null) {
+                        mUnderlyingCursor.setDeleted(uriString, false);
+                    }
                     if (DEBUG) {
                         LogUtils.i(LOG_TAG, "Undeleted %s, decremented deleted count=%d", uriString,
                                 mDeletedCount);
@@ -954,6 +1287,9 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             }
             putInValues(map, columnName, value);
             map.put(UPDATE_TIME_COLUMN, System.currentTimeMillis());
+            if (mUnderlyingCursor != null) {
+                mUnderlyingCursor.cacheValue(uriString, columnName, map.get(columnName));
+            }
             if (DEBUG && (!columnName.equals(DELETED_COLUMN))) {
                 LogUtils.i(LOG_TAG, "Caching value for %s: %s", uriString, columnName);
             }
@@ -961,29 +1297,40 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     }
 
     /**
-     * Get the cached value for the provided column; we special case -1 as the "deleted" column
+     * Get the cached value for the provided column of the conversation with the given uri. The
+     * cursor getters read the current row's cached values through the underlying cursor's
+     * {@link RowValueOverlay} instead.
+     * @param uri the conversation uri
      * @param columnIndex the index of the column whose cached value we want to retrieve
      * @return the cached value for this column, or null if there is none
      */
-    private Object getCachedValue(int columnIndex) {
-        final String uri = mUnderlyingCursor.getInnerUri();
-        return getCachedValue(uri, columnIndex);
-    }
-
     private Object getCachedValue(String uri, int columnIndex) {
         ContentValues uriMap = mCacheMap.get(uri);
         if (uriMap != null) {
-            String columnName;
-            if (columnIndex == DELETED_COLUMN_INDEX) {
-                columnName = DELETED_COLUMN;
-            } else {
-                columnName = mColumnNames[columnIndex];
-            }
-            return uriMap.get(columnName);
+            return uriMap.get(mColumnNames[columnIndex]);
         }
         return null;
     }
 
+    /**
+     * @return the number of column reads served from locally cached values, across every
+     * underlying cursor this cursor has held
+     */
+    public int getOverlayHitCount() {
+        final int current = mUnderlyingCursor != null
+                ? mUnderlyingCursor.getValueOverlay().getHitCount() : 0;
+        return mRetiredOverlayHits + current;
+    }
+
+    /**
+     * @return the number of column reads that fell through to the underlying cursor
+     */
+    public int getOverlayMissCount() {
+        final int current = mUnderlyingCursor != null
+                ? mUnderlyingCursor.getValueOverlay().getMissCount() : 0;
+        return mRetiredOverlayMisses + current;
+    }
+
     /**
      * When the underlying cursor changes, we want to alert the listener
      */
@@ -1069,6 +1416,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             }
             mRefreshTask = null;
             mRefreshReady = false;
+            final ConversationCursorDiff diff = mRequeryCursor.takeDiff(mUnderlyingCursor);
+            if (diff != null) {
+                mRequeryCursor.takeOverConversations(mUnderlyingCursor, diff);
+            }
             resetCursor(mRequeryCursor);
             mRequeryCursor = null;
         }
@@ -1146,7 +1497,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 }
                 return false;
             }
-            if (getCachedValue(DELETED_COLUMN_INDEX) instanceof Integer) continue;
+            if (mUnderlyingCursor.isDeleted(mUnderlyingCursor.getPosition())) continue;
             mPosition++;
             return true;
         }
@@ -1164,7 +1515,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 mPosition = -1;
                 return false;
             }
-            if (getCachedValue(DELETED_COLUMN_INDEX) instanceof Integer) continue;
+            if (mUnderlyingCursor.isDeleted(mUnderlyingCursor.getPosition())) continue;
             mPosition--;
             return true;
         }
@@ -1193,9 +1544,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             throw new IllegalStateException(
                     "moveToFirst() on disabled cursor: " + mName + "(" + qUri + ")");
         }
-        mUnderlyingCursor.moveToPosition(-1);
-        mPosition = -1;
-        return moveToNext();
+        return moveToVisiblePosition(0);
     }
 
     @Override
@@ -1221,28 +1570,25 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         } else if (pos == mPosition) {
             // Return false if we're past the end of the cursor
             return pos < getCount();
-        } else if (pos > mPosition) {
-            while (pos > mPosition) {
-                if (!moveToNext()) {
-                    return false;
-                }
-            }
-            return true;
-        } else if ((pos >= 0) && (mPosition - pos) > pos) {
-            // Optimization if it's easier to move forward to position instead of backward
-            if (DEBUG) {
-                LogUtils.i(LOG_TAG, "*** Move from %d to %d, starting from first", mPosition, pos);
-            }
-            moveToFirst();
-            return moveToPosition(pos);
-        } else {
-            while (pos < mPosition) {
-                if (!moveToPrevious()) {
-                    return false;
-                }
-            }
-            return true;
         }
+        return moveToVisiblePosition(pos);
+    }
+
+    /**
+     * Jump straight to the underlying row shown at the given (non-negative) visible position,
+     * using the deleted-row index rather than stepping over the rows in between.
+     */
+    private boolean moveToVisiblePosition(int pos) {
+        final int underlyingPosition = mUnderlyingCursor.toUnderlyingPosition(pos);
+        if (underlyingPosition < 0) {
+            // Mirror moveToNext() running off the end
+            mUnderlyingCursor.moveToPosition(mUnderlyingCursor.getCount());
+            mPosition = getCount();
+            return false;
+        }
+        mUnderlyingCursor.moveToPosition(underlyingPosition);
+        mPosition = pos;
+        return true;
     }
 
     /**
@@ -1250,8 +1596,11 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
      */
     private void recalibratePosition() {
         final int pos = mPosition;
-        moveToFirst();
-        moveToPosition(pos);
+        if (pos < 0) {
+            moveToPosition(pos);
+        } else {
+            moveToVisiblePosition(pos);
+        }
     }
 
     @Override
@@ -1270,36 +1619,41 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
      */
     @Override
     public double getDouble(int columnIndex) {
-        Object obj = getCachedValue(columnIndex);
-        if (obj != null) return (Double)obj;
+        final RowValueOverlay overlay = mUnderlyingCursor.getValueOverlay();
+        final int row = mUnderlyingCursor.getPosition();
+        if (overlay.contains(row, columnIndex)) return overlay.getDouble(row, columnIndex);
         return mUnderlyingCursor.getDouble(columnIndex);
     }
 
     @Override
     public float getFloat(int columnIndex) {
-        Object obj = getCachedValue(columnIndex);
-        if (obj != null) return (Float)obj;
+        final RowValueOverlay overlay = mUnderlyingCursor.getValueOverlay();
+        final int row = mUnderlyingCursor.getPosition();
+        if (overlay.contains(row, columnIndex)) return (float) overlay.getDouble(row, columnIndex);
         return mUnderlyingCursor.getFloat(columnIndex);
     }
 
     @Override
     public int getInt(int columnIndex) {
-        Object obj = getCachedValue(columnIndex);
-        if (obj != null) return (Integer)obj;
+        final RowValueOverlay overlay = mUnderlyingCursor.getValueOverlay();
+        final int row = mUnderlyingCursor.getPosition();
+        if (overlay.contains(row, columnIndex)) return (int) overlay.getLong(row, columnIndex);
         return mUnderlyingCursor.getInt(columnIndex);
     }
 
     @Override
     public long getLong(int columnIndex) {
-        Object obj = getCachedValue(columnIndex);
-        if (obj != null) return (Long)obj;
+        final RowValueOverlay overlay = mUnderlyingCursor.getValueOverlay();
+        final int row = mUnderlyingCursor.getPosition();
+        if (overlay.contains(row, columnIndex)) return overlay.getLong(row, columnIndex);
         return mUnderlyingCursor.getLong(columnIndex);
     }
 
     @Override
     public short getShort(int columnIndex) {
-        Object obj = getCachedValue(columnIndex);
-        if (obj != null) return (Short)obj;
+        final RowValueOverlay overlay = mUnderlyingCursor.getValueOverlay();
+        final int row = mUnderlyingCursor.getPosition();
+        if (overlay.contains(row, columnIndex)) return (short) overlay.getLong(row, columnIndex);
         return mUnderlyingCursor.getShort(columnIndex);
     }
 
@@ -1310,25 +1664,32 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         if (columnIndex == URI_COLUMN_INDEX) {
             return uriToCachingUriString(mUnderlyingCursor.getInnerUri(), null);
         }
-        Object obj = getCachedValue(columnIndex);
-        if (obj != null) return (String)obj;
+        final RowValueOverlay overlay = mUnderlyingCursor.getValueOverlay();
+        final int row = mUnderlyingCursor.getPosition();
+        if (overlay.contains(row, columnIndex)) return overlay.getString(row, columnIndex);
         return mUnderlyingCursor.getString(columnIndex);
     }
 
     @Override
     public byte[] getBlob(int columnIndex) {
-        Object obj = getCachedValue(columnIndex);
-        if (obj != null) return (byte[])obj;
+        final RowValueOverlay overlay = mUnderlyingCursor.getValueOverlay();
+        final int row = mUnderlyingCursor.getPosition();
+        if (overlay.contains(row, columnIndex)) return overlay.getBlob(row, columnIndex);
         return mUnderlyingCursor.getBlob(columnIndex);
     }
 
     public byte[] getCachedBlob(int columnIndex) {
-        return (byte[]) getCachedValue(columnIndex);
+        final RowValueOverlay overlay = mUnderlyingCursor.getValueOverlay();
+        final int row = mUnderlyingCursor.getPosition();
+        return overlay.contains(row, columnIndex) ? overlay.getBlob(row, columnIndex) : null;
     }
 
     public Conversation getConversation() {
         Conversation c = getCachedConversation();
-        if (c == null) {
+        if (c != null) {
+            sPrefetchStats.hit();
+        } else {
+            sPrefetchStats.miss();
             // not pre-cached. fall back to just-in-time construction.
             c = new Conversation(this);
             mUnderlyingCursor.cacheConversation(c);
@@ -1351,16 +1712,12 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         }
 
         // apply any cached values
-        // but skip over any cached values that aren't part of the cursor projection
-        final ContentValues values = mCacheMap.get(mUnderlyingCursor.getInnerUri());
-        if (values != null) {
+        // the overlay only holds cached values that are part of the cursor projection
+        final RowValueOverlay overlay = mUnderlyingCursor.getValueOverlay();
+        final int row = mUnderlyingCursor.getPosition();
+        if (overlay.hasValues(row)) {
             final ContentValues queryableValues = new ContentValues();
-            for (String key : values.keySet()) {
-                if (!mColumnNameSet.contains(key)) {
-                    continue;
-                }
-                putInValues(queryableValues, key, values.get(key));
-            }
+            overlay.copyRow(row, mColumnNames, queryableValues);
             if (queryableValues.size() > 0) {
                 // copy-on-write to help ensure the underlying cached Conversation is immutable
                 // of course, any callers this method should also try not to modify them
@@ -1424,6 +1781,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         public static String sUriPrefix;
         public static final String URI_SEPARATOR = "://";
         private ContentResolver mResolver;
+        /** Writes applied operations to the underlying providers, in order. */
+        private ConversationWriteQueue mWriteQueue;
 
         /**
          * Allows the implementing provider to specify the authority that should be used.
@@ -1436,6 +1795,13 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             AUTHORITY = getAuthority();
             sUriPrefix = "content://" + AUTHORITY + "/";
             mResolver = getContext().getContentResolver();
+            mWriteQueue = new ConversationWriteQueue(new ConversationWriteQueue.BatchApplier() {
+                @Override
+                public void applyBatch(String authority, ArrayList<ContentProviderOperation> ops)
+                        throws RemoteException, OperationApplicationException {
+                    mResolver.applyBatch(authority, ops);
+                }
+            });
             return true;
         }
 
@@ -1597,24 +1963,17 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
 
         public int apply(Collection<ConversationOperation> ops,
                 ConversationCursor conversationCursor) {
-            final HashMap<String, ArrayList<ContentProviderOperation>> batchMap =
-                    new HashMap<String, ArrayList<ContentProviderOperation>>();
             // Increment sequence count
             sSequence++;
 
-            // Execute locally and build CPO's for underlying provider
+            // Execute locally and queue CPO's for underlying provider
             boolean recalibrateRequired = false;
             for (ConversationOperation op: ops) {
                 Uri underlyingUri = uriFromCachingUri(op.mUri);
-                String authority = underlyingUri.getAuthority();
-                ArrayList<ContentProviderOperation> authOps = batchMap.get(authority);
-                if (authOps == null) {
-                    authOps = new ArrayList<ContentProviderOperation>();
-                    batchMap.put(authority, authOps);
-                }
                 ContentProviderOperation cpo = op.execute(underlyingUri);
                 if (cpo != null) {
-                    authOps.add(cpo);
+                    mWriteQueue.enqueue(underlyingUri.getAuthority(), underlyingUri.toString(),
+                            cpo, op.getUpdatedValues());
                 }
                 // Keep track of whether our operations require recalibrating the cursor position
                 if (op.mRecalibrateRequired) {
@@ -1631,30 +1990,21 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             conversationCursor.notifyDataChanged();
 
             // Send changes to underlying provider
-            final boolean notUiThread = offUiThread();
-            for (final String authority: batchMap.keySet()) {
-                final ArrayList<ContentProviderOperation> opList = batchMap.get(authority);
-                if (notUiThread) {
-                    try {
-                        mResolver.applyBatch(authority, opList);
-                    } catch (RemoteException e) {
-                    } catch (OperationApplicationException e) {
-                    }
-                } else {
-                    new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                mResolver.applyBatch(authority, opList);
-                            } catch (RemoteException e) {
-                            } catch (OperationApplicationException e) {
-                            }
-                        }
-                    }).start();
-                }
+            if (offUiThread()) {
+                mWriteQueue.flushAndWait();
+            } else {
+                mWriteQueue.scheduleFlush();
             }
             return sSequence;
         }
+
+        /**
+         * Runs {@code task} in the background once the operations applied so far have been
+         * written to the underlying providers.
+         */
+        void runAfterWrites(Runnable task) {
+            mWriteQueue.runAfterWritesAsync(task);
+        }
     }
 
     void setMostlyDead(String uriString, Conversation conv) {
@@ -1748,6 +2098,14 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             mMostlyDead = conv.isMostlyDead();
         }
 
+        /**
+         * Returns the values written by this operation if it is a plain update of the
+         * conversation, or null if it is anything else.
+         */
+        private ContentValues getUpdatedValues() {
+            return mType == UPDATE && !mLocalDeleteOnUpdate && !mMostlyDead ? mValues : null;
+        }
+
         private ContentProviderOperation execute(Uri underlyingUri) {
             Uri uri = underlyingUri.buildUpon()
                     .appendQueryParameter(UIProvider.SEQUENCE_QUERY_PARAMETER,
@@ -1888,6 +2246,18 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         public void onDataSetChanged();
     }
 
+    /**
+     * Work to do for the conversations the cursor materializes around the rows the UI shows, on
+     * the cursor's background thread, so that the UI finds it done when it gets to those rows
+     */
+    public interface RowPrecomputer {
+        /**
+         * Called on a background thread, for the conversation as the provider returned it; must
+         * not modify it
+         */
+        public void precompute(Conversation conversation);
+    }
+
     @Override
     public boolean isFirst() {
         throw new UnsupportedOperationException();
@@ -2176,7 +2546,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     }
 
     public void undo(final Context context, final Uri undoUri) {
-        new Thread(new Runnable() {
+        // The undo must reach the provider after the operations it undoes.
+        sProvider.runAfterWrites(new Runnable() {
             @Override
             public void run() {
                 Cursor c = context.getContentResolver().query(undoUri, UIProvider.UNDO_PROJECTION,
@@ -2185,7 +2556,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                     c.close();
                 }
             }
-        }).start();
+        });
         undoLocal();
     }
 
@@ -2364,6 +2735,16 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         sb.append(mPaused);
         sb.append(" mDeletedCount=");
         sb.append(mDeletedCount);
+        sb.append(" overlayHits=");
+        sb.append(getOverlayHitCount());
+        sb.append(" overlayMisses=");
+        sb.append(getOverlayMissCount());
+        if (mUnderlyingCursor != null) {
+            sb.append(" prefetched=");
+            sb.append(mUnderlyingCursor.getPrefetchedCount());
+            sb.append(" onDemand=");
+            sb.append(mUnderlyingCursor.getOnDemandCount());
+        }
         sb.append(" mUnderlying=");
         sb.append(mUnderlyingCursor);
         if (LogUtils.isLoggable(LOG_TAG, LogUtils.DEBUG)) {
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+/**
+ * The rows a refresh of a {@link ConversationCursor} left unchanged: the rows of the new
+ * underlying cursor matched against those of the previous one by conversation id, and compared by
+ * a version of each row's values. The conversations of those rows can be taken over from the
+ * previous cursor rather than read again.
+ * <p>
+ * Positions are underlying cursor positions, i.e. they count rows that have been deleted locally
+ * but not yet in the provider.
+ */
+final class ConversationCursorDiff {
+    /** For each new position, the previous position of the row if its values are unchanged. */
+    private final int[] mUnchangedFrom;
+    private int mUnchangedCount;
+
+    private ConversationCursorDiff(int newCount) {
+        mUnchangedFrom = new int[newCount];
+    }
+
+    /**
+     * Matches the rows of a new cursor against those of the previous one.
+     *
+     * @param oldVersions the version of each row of the previous cursor, by position
+     * @param newVersions the version of each row of the new cursor, by position
+     */
+    static ConversationCursorDiff compute(ConversationPositionIndex oldIndex, long[] oldVersions,
+            ConversationPositionIndex newIndex, long[] newVersions) {
+        final int newCount = newIndex.size();
+        final ConversationCursorDiff diff = new ConversationCursorDiff(newCount);
+
+        // A previous row is only matched once, should the provider hand out duplicate ids
+        final boolean[] matched = new boolean[oldIndex.size()];
+        for (int p = 0; p < newCount; p++) {
+            final int q = oldIndex.getPosition(newIndex.getId(p));
+            if (q >= 0 && !matched[q] && oldVersions[q] == newVersions[p]) {
+                matched[q] = true;
+                diff.mUnchangedFrom[p] = q;
+                diff.mUnchangedCount++;
+            } else {
+                diff.mUnchangedFrom[p] = -1;
+            }
+        }
+        return diff;
+    }
+
+    /** The number of rows whose values did not change, whether or not they moved. */
+    int getUnchangedCount() {
+        return mUnchangedCount;
+    }
+
+    /**
+     * @return the previous position of the row at the given new position, if its values are
+     * unchanged, or -1
+     */
+    int getUnchangedFrom(int newPosition) {
+        return mUnchangedFrom[newPosition];
+    }
+
+    @Override
+    public String toString() {
+        return "{unchanged=" + mUnchangedCount + " of " + mUnchangedFrom.length + "}";
+    }
+}
@@ -778,20 +778,9 @@ public class ConversationItemView extends View
             mHeader.sendersDisplayText = new SpannableStringBuilder(mHeader.sendersText);
             loadImages();
         } else if (mHeader.conversation.conversationInfo != null) {
-            Context context = getContext();
-            mHeader.messageInfoString = SendersView
-                    .createMessageInfo(context, mHeader.conversation, true);
-            final int maxChars = ConversationItemViewCoordinates.getSendersLength(context,
-                    mHeader.conversation.hasAttachments);
-
-            mHeader.mSenderAvatarModel.clear();
-            mHeader.displayableNames.clear();
-            mHeader.styledNames.clear();
-
-            SendersView.format(context, mHeader.conversation.conversationInfo,
-                    mHeader.messageInfoString.toString(), maxChars, mHeader.styledNames,
-                    mHeader.displayableNames, mHeader.mSenderAvatarModel,
-                    mAccount, mDisplayedFolder.shouldShowRecipients(), true);
+            // Usually formatted already, ahead of the list or on an earlier layout
+            mHeader.applySendersText(getContext(), mAccount,
+                    mDisplayedFolder.shouldShowRecipients());
 
             // If we have displayable senders, load their thumbnails
             loadImages();
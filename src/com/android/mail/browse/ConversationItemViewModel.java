@@ -28,7 +28,9 @@ import android.util.LruCache;
 import android.util.Pair;
 
 import com.android.mail.R;
+import com.android.mail.providers.Account;
 import com.android.mail.providers.Conversation;
+import com.android.mail.providers.ConversationInfo;
 import com.android.mail.providers.Folder;
 import com.android.mail.providers.ParticipantInfo;
 import com.android.mail.providers.UIProvider;
@@ -45,11 +47,19 @@ import java.util.List;
  * associated with a conversation and is cached to improve the relayout time.
  */
 public class ConversationItemViewModel {
-    private static final int MAX_CACHE_SIZE = 100;
+    /**
+     * Bounds on the number of cached models. Between them, the cache gets
+     * {@link #CACHE_HEAP_FRACTION} of the heap at roughly {@link #APPROX_MODEL_BYTES} a model.
+     */
+    private static final int MIN_CACHE_SIZE = 100;
+    private static final int MAX_CACHE_SIZE = 1000;
+    private static final int CACHE_HEAP_FRACTION = 64;
+    private static final int APPROX_MODEL_BYTES = 4 * 1024;
 
     @VisibleForTesting
     static LruCache<Pair<String, Long>, ConversationItemViewModel> sConversationHeaderMap
-        = new LruCache<Pair<String, Long>, ConversationItemViewModel>(MAX_CACHE_SIZE);
+        = new LruCache<Pair<String, Long>, ConversationItemViewModel>(
+                getCacheSize(Runtime.getRuntime().maxMemory()));
 
     /**
      * The Folder associated with the cache of models.
@@ -133,6 +143,22 @@ public class ConversationItemViewModel {
      */
     public final ArrayList<SpannableString> styledNames = new ArrayList<>();
 
+    /**
+     * The last sender text formatted for this conversation, on the UI thread or ahead of it by a
+     * {@link Precomputer}, and the one copied into the fields above.
+     */
+    private volatile SendersText mSendersText;
+    private SendersText mAppliedSendersText;
+
+    /**
+     * Returns how many models to keep for a heap of the given size.
+     */
+    @VisibleForTesting
+    static int getCacheSize(long maxMemory) {
+        final long size = maxMemory / CACHE_HEAP_FRACTION / APPROX_MODEL_BYTES;
+        return (int) Math.max(MIN_CACHE_SIZE, Math.min(MAX_CACHE_SIZE, size));
+    }
+
     /**
      * Returns the view model for a conversation. If the model doesn't exist for this conversation
      * null is returned. Note: this should only be called from the UI thread.
@@ -168,8 +194,8 @@ public class ConversationItemViewModel {
 
     /**
      * Returns the view model for a conversation. If this is the first time
-     * call, a new view model will be returned. Note: this should only be called
-     * from the UI thread.
+     * call, a new view model will be returned. Note: apart from
+     * {@link #precomputeSendersText}, this should only be called from the UI thread.
      *
      * @param account the account contains this conversation
      * @param conversationId the Id of this conversation
@@ -188,6 +214,62 @@ public class ConversationItemViewModel {
         }
     }
 
+    /**
+     * Sets {@link #messageInfoString}, {@link #styledNames}, {@link #displayableNames} and
+     * {@link #mSenderAvatarModel} for the current {@link #conversation}, formatting them only if
+     * they were not formatted for the same values before. Called on the UI thread.
+     *
+     * @param context the context of the list, whose configuration sets how long the text may be
+     */
+    void applySendersText(Context context, Account account, boolean showRecipients) {
+        final int maxChars = ConversationItemViewCoordinates.getSendersLength(context,
+                conversation.hasAttachments);
+        SendersText text = mSendersText;
+        if (text == null
+                || !text.isFormattedFrom(conversation, account, showRecipients, maxChars)) {
+            text = SendersText.format(context, conversation, account, showRecipients, maxChars);
+            mSendersText = text;
+        }
+        if (text == mAppliedSendersText) {
+            return;
+        }
+        messageInfoString = text.mMessageInfo;
+        styledNames.clear();
+        styledNames.addAll(text.mStyledNames);
+        displayableNames.clear();
+        displayableNames.addAll(text.mDisplayableNames);
+        mSenderAvatarModel.clear();
+        if (text.mAvatarEmailAddress != null) {
+            mSenderAvatarModel.populate(text.mAvatarName, text.mAvatarEmailAddress);
+        }
+        mAppliedSendersText = text;
+    }
+
+    /**
+     * Formats the sender text of a conversation into the model cache, unless it is there
+     * already. Safe to call from any thread.
+     *
+     * @param maxChars the senders length of the list's configuration, see
+     * {@link ConversationItemViewCoordinates#getSendersLength(Context, boolean)}
+     */
+    @VisibleForTesting
+    static void precomputeSendersText(Context context, Account account, boolean showRecipients,
+            int maxChars, Conversation conv) {
+        if (conv.conversationInfo == null) {
+            return;
+        }
+        // The UI thread may change the conversation info of a row while it is formatted here,
+        // so read a copy of it
+        final Conversation copy = new Conversation(conv);
+        final ConversationItemViewModel header =
+                forConversationId(account.getEmailAddress(), copy.id);
+        final SendersText text = header.mSendersText;
+        if (text == null || !text.isFormattedFrom(copy, account, showRecipients, maxChars)) {
+            header.mSendersText = SendersText.format(context, copy, account, showRecipients,
+                    maxChars);
+        }
+    }
+
     /**
      * Returns the hashcode to compare if the data in the header is valid.
      */
@@ -253,17 +335,18 @@ public class ConversationItemViewModel {
             // If all are read, get the last sender.
             String participant = "";
             String lastParticipant = "";
-            int last = conversation.conversationInfo.participantInfos != null ?
-                    conversation.conversationInfo.participantInfos.size() - 1 : -1;
+            final List<ParticipantInfo> participants =
+                    conversation.conversationInfo.getParticipantInfos();
+            int last = participants != null ? participants.size() - 1 : -1;
             if (last != -1) {
-                lastParticipant = conversation.conversationInfo.participantInfos.get(last).name;
+                lastParticipant = participants.get(last).name;
             }
             if (conversation.read) {
                 participant = TextUtils.isEmpty(lastParticipant) ?
                         SendersView.getMe(showToHeader /* useObjectMe */) : lastParticipant;
             } else {
                 ParticipantInfo firstUnread = null;
-                for (ParticipantInfo p : conversation.conversationInfo.participantInfos) {
+                for (ParticipantInfo p : participants) {
                     if (!p.readConversation) {
                         firstUnread = p;
                         break;
@@ -325,6 +408,160 @@ public class ConversationItemViewModel {
         }
     }
 
+    /**
+     * The output of {@link SendersView#createMessageInfo} and {@link SendersView#format} for one
+     * version of a conversation, along with the values it was formatted from. Immutable once
+     * built, so it can be handed from the thread that formatted it to the UI thread.
+     */
+    private static final class SendersText {
+        private final SendersInputs mInputs;
+        private final SpannableStringBuilder mMessageInfo;
+        private final List<SpannableString> mStyledNames;
+        private final List<String> mDisplayableNames;
+        private final String mAvatarName;
+        private final String mAvatarEmailAddress;
+
+        private SendersText(SendersInputs inputs, SpannableStringBuilder messageInfo,
+                List<SpannableString> styledNames, List<String> displayableNames,
+                SenderAvatarModel avatar) {
+            mInputs = inputs;
+            mMessageInfo = messageInfo;
+            mStyledNames = styledNames;
+            mDisplayableNames = displayableNames;
+            mAvatarName = avatar.getName();
+            mAvatarEmailAddress = avatar.getEmailAddress();
+        }
+
+        /**
+         * Returns whether this was formatted from the values the given ones would be formatted
+         * from.
+         */
+        boolean isFormattedFrom(Conversation conv, Account account, boolean showRecipients,
+                int maxChars) {
+            return mInputs.matches(conv, account, showRecipients, maxChars);
+        }
+
+        static SendersText format(Context context, Conversation conv, Account account,
+                boolean showRecipients, int maxChars) {
+            // Copied first, so that a change made while formatting makes the copy stale rather
+            // than the text
+            final SendersInputs inputs =
+                    new SendersInputs(conv, account, showRecipients, maxChars);
+            final SpannableStringBuilder messageInfo =
+                    SendersView.createMessageInfo(context, conv, true);
+            final ArrayList<SpannableString> styledNames = new ArrayList<>();
+            final ArrayList<String> displayableNames = new ArrayList<>();
+            final SenderAvatarModel avatar = new SenderAvatarModel();
+            SendersView.format(context, conv.conversationInfo, messageInfo.toString(), maxChars,
+                    styledNames, displayableNames, avatar, account, showRecipients, true);
+            return new SendersText(inputs, messageInfo, styledNames, displayableNames, avatar);
+        }
+    }
+
+    /**
+     * The values the sender text of a conversation is formatted from. The conversation info and
+     * its participants are copied field by field, as they are changed in place, e.g. when the
+     * conversation is marked read.
+     */
+    private static final class SendersInputs {
+        private final int mMessageCount;
+        private final int mDraftCount;
+        private final String[] mNames;
+        private final String[] mEmails;
+        private final int[] mPriorities;
+        private final boolean[] mReadConversations;
+        private final int mSendingState;
+        private final boolean mRead;
+        private final String mAccountEmailAddress;
+        private final String mAccountDisplayName;
+        private final boolean mShowRecipients;
+        private final int mMaxChars;
+
+        SendersInputs(Conversation conv, Account account, boolean showRecipients,
+                int maxChars) {
+            final ConversationInfo info = conv.conversationInfo;
+            final List<ParticipantInfo> participants = info.getParticipantInfos();
+            final int count = participants.size();
+            mNames = new String[count];
+            mEmails = new String[count];
+            mPriorities = new int[count];
+            mReadConversations = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                final ParticipantInfo participant = participants.get(i);
+                mNames[i] = participant.name;
+                mEmails[i] = participant.email;
+                mPriorities[i] = participant.priority;
+                mReadConversations[i] = participant.readConversation;
+            }
+            mMessageCount = info.messageCount;
+            mDraftCount = info.draftCount;
+            mSendingState = conv.sendingState;
+            mRead = conv.read;
+            mAccountEmailAddress = account.getEmailAddress();
+            mAccountDisplayName = account.getDisplayName();
+            mShowRecipients = showRecipients;
+            mMaxChars = maxChars;
+        }
+
+        boolean matches(Conversation conv, Account account, boolean showRecipients,
+                int maxChars) {
+            final ConversationInfo info = conv.conversationInfo;
+            if (mMaxChars != maxChars || mShowRecipients != showRecipients
+                    || mSendingState != conv.sendingState || mRead != conv.read
+                    || mMessageCount != info.messageCount || mDraftCount != info.draftCount
+                    || !TextUtils.equals(mAccountEmailAddress, account.getEmailAddress())
+                    || !TextUtils.equals(mAccountDisplayName, account.getDisplayName())) {
+                return false;
+            }
+            final List<ParticipantInfo> participants = info.getParticipantInfos();
+            if (participants.size() != mNames.length) {
+                return false;
+            }
+            for (int i = 0; i < mNames.length; i++) {
+                final ParticipantInfo participant = participants.get(i);
+                if (mPriorities[i] != participant.priority
+                        || mReadConversations[i] != participant.readConversation
+                        || !TextUtils.equals(mNames[i], participant.name)
+                        || !TextUtils.equals(mEmails[i], participant.email)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Formats the sender text of the conversations a {@link ConversationCursor} materializes
+     * around the rows the list shows, so that laying those rows out finds it ready.
+     */
+    public static final class Precomputer implements ConversationCursor.RowPrecomputer {
+        private final Context mContext;
+        private final Account mAccount;
+        private final boolean mShowRecipients;
+        private final int mSendersLength;
+        private final int mSendersWithAttachmentLength;
+
+        /**
+         * @param context the context of the list, whose configuration sets how long the text may
+         * be
+         */
+        public Precomputer(Context context, Account account, Folder folder) {
+            mContext = context.getApplicationContext();
+            mAccount = account;
+            mShowRecipients = folder != null && folder.shouldShowRecipients();
+            mSendersLength = ConversationItemViewCoordinates.getSendersLength(context, false);
+            mSendersWithAttachmentLength =
+                    ConversationItemViewCoordinates.getSendersLength(context, true);
+        }
+
+        @Override
+        public void precompute(Conversation conversation) {
+            precomputeSendersText(mContext, mAccount, mShowRecipients,
+                    conversation.hasAttachments ? mSendersWithAttachmentLength : mSendersLength,
+                    conversation);
+        }
+    }
+
     /**
      * This mutable model stores the name and email address of the sender for whom an avatar will
      * be drawn as the conversation icon.
@@ -17,6 +17,7 @@
 
 package com.android.mail.browse;
 
+import android.app.ActivityManager;
 import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
@@ -28,6 +29,8 @@ import android.os.Parcelable;
 import android.support.v4.view.ViewPager;
 import android.view.ViewGroup;
 
+import com.android.mail.R;
+import com.android.mail.analytics.AnalyticsTimer;
 import com.android.mail.preferences.MailPrefs;
 import com.android.mail.providers.Account;
 import com.android.mail.providers.Conversation;
@@ -42,6 +45,8 @@ import com.android.mail.ui.TwoPaneController;
 import com.android.mail.utils.FragmentStatePagerAdapter2;
 import com.android.mail.utils.HtmlSanitizer;
 import com.android.mail.utils.LogUtils;
+import com.android.mail.utils.Utils;
+import com.google.common.annotations.VisibleForTesting;
 
 public class ConversationPagerAdapter extends FragmentStatePagerAdapter2
         implements ViewPager.OnPageChangeListener {
@@ -121,6 +126,12 @@ public class ConversationPagerAdapter extends FragmentStatePagerAdapter2
 
     private boolean mPageChangeListenerEnabled;
 
+    /**
+     * The page last made primary. When it changes, the swipe-to-content timer starts over, before
+     * the new page is told it is visible and may log it (see ConversationViewFragment).
+     */
+    private Object mPrimaryItem;
+
     private static final String LOG_TAG = ConversationPagerController.LOG_TAG;
 
     private static final String BUNDLE_DETACHED_MODE =
@@ -280,6 +291,15 @@ public class ConversationPagerAdapter extends FragmentStatePagerAdapter2
     public void setPrimaryItem(ViewGroup container, int position, Object object) {
         LogUtils.d(LOG_TAG, "IN PagerAdapter.setPrimaryItem, pos=%d, frag=%s", position,
                 object);
+        if (object != mPrimaryItem) {
+            // a page left before its content showed logs nothing
+            final AnalyticsTimer timer = AnalyticsTimer.getInstance();
+            timer.stopTracking(AnalyticsTimer.SWIPE_TO_CONV_CONTENT);
+            if (mPrimaryItem != null && object != null && mPageChangeListenerEnabled) {
+                timer.trackStart(AnalyticsTimer.SWIPE_TO_CONV_CONTENT);
+            }
+            mPrimaryItem = object;
+        }
         super.setPrimaryItem(container, position, object);
     }
 
@@ -491,9 +511,45 @@ public class ConversationPagerAdapter extends FragmentStatePagerAdapter2
             mPager.setOnPageChangeListener(null);
         }
         mPager = pager;
+        mPrimaryItem = null;
+        AnalyticsTimer.getInstance().stopTracking(AnalyticsTimer.SWIPE_TO_CONV_CONTENT);
         if (mPager != null) {
             mPager.setOnPageChangeListener(this);
+            mPager.setOffscreenPageLimit(getPrefetchWindow());
+        }
+    }
+
+    /**
+     * Returns the number of conversations on each side of the current one to keep loaded and
+     * rendered. Off-screen conversation fragments load their messages and render them as soon as
+     * they are created, unless they are too large, so this is how far ahead swipes are
+     * prefetched. It is bounded by the memory the device gives the app.
+     */
+    private int getPrefetchWindow() {
+        if (Utils.isLowRamDevice(mContext)) {
+            return 1;
+        }
+        final int window = mContext.getResources().getInteger(
+                R.integer.conversation_prefetch_window);
+        final ActivityManager am =
+                (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) {
+            return window;
         }
+        final int pageBudgetMb = mContext.getResources().getInteger(
+                R.integer.conversation_prefetch_page_budget_mb);
+        return getPrefetchWindow(window, am.getMemoryClass(), pageBudgetMb);
+    }
+
+    /**
+     * Returns the widest window, up to {@code window}, whose prefetched conversations fit in a
+     * quarter of {@code memoryClassMb}, and never less than 1.
+     */
+    @VisibleForTesting
+    static int getPrefetchWindow(int window, int memoryClassMb, int pageBudgetMb) {
+        // a prefetched conversation is on each side of the current one
+        final int affordable = memoryClassMb / 4 / (2 * Math.max(1, pageBudgetMb));
+        return Math.max(1, Math.min(window, affordable));
     }
 
     public void setActivityController(ActivityController controller) {
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+/**
+ * A fixed-capacity index from conversation id and conversation uri to the row position in an
+ * underlying conversation cursor.
+ * <p>
+ * Rows are appended in cursor order, and both lookups are served from open-addressing tables of
+ * primitive positions, so building the index for n rows costs a handful of array allocations
+ * instead of 2n map entries and 4n boxed keys and values. The uri table stores no keys of its own;
+ * it probes by the uri's hash and compares against the uri strings that were handed to
+ * {@link #add(long, String)}, which the index keeps anyway to answer {@link #getUri(int)}.
+ * <p>
+ * Not thread-safe while being built; safe for concurrent reads once building is complete.
+ */
+final class ConversationPositionIndex {
+    /** Table slot value for "no position". Positions are stored off by one. */
+    private static final int EMPTY = 0;
+
+    private final long[] mIds;
+    private final String[] mUris;
+    private final int[] mIdTable;
+    private final int[] mUriTable;
+    private final int mMask;
+
+    private int mSize;
+    private int mDistinctIds;
+    private int mDistinctUris;
+
+    /**
+     * @param capacity the exact number of rows that will be added
+     */
+    ConversationPositionIndex(int capacity) {
+        mIds = new long[capacity];
+        mUris = new String[capacity];
+        // keep the load factor at or below 0.5 so probe sequences stay short
+        final int tableSize = tableSizeFor(capacity);
+        mIdTable = new int[tableSize];
+        mUriTable = new int[tableSize];
+        mMask = tableSize - 1;
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int size = 2;
+        while (size < capacity * 2) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * Mix the bits of a conversation id. Providers tend to hand out sequential ids, which would
+     * otherwise cluster in the low slots of the table.
+     */
+    private static int hashId(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int hashUri(String uri) {
+        final int h = uri.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Append a row at the next position.
+     *
+     * @return the position previously indexed for either key if this row duplicates an earlier
+     * id or uri (the new row replaces it in the index, as a map put would), or -1 otherwise
+     */
+    int add(long id, String uri) {
+        final int position = mSize++;
+        mIds[position] = id;
+        mUris[position] = uri;
+
+        int duplicateOf = -1;
+
+        int slot = hashId(id) & mMask;
+        while (mIdTable[slot] != EMPTY) {
+            final int existing = mIdTable[slot] - 1;
+            if (mIds[existing] == id) {
+                duplicateOf = existing;
+                break;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        if (mIdTable[slot] == EMPTY) {
+            mDistinctIds++;
+        }
+        mIdTable[slot] = position + 1;
+
+        if (uri != null) {
+            slot = hashUri(uri) & mMask;
+            while (mUriTable[slot] != EMPTY) {
+                final int existing = mUriTable[slot] - 1;
+                if (uri.equals(mUris[existing])) {
+                    duplicateOf = existing;
+                    break;
+                }
+                slot = (slot + 1) & mMask;
+            }
+            if (mUriTable[slot] == EMPTY) {
+                mDistinctUris++;
+            }
+            mUriTable[slot] = position + 1;
+        }
+
+        return duplicateOf;
+    }
+
+    /**
+     * @return the position of the row with the given conversation id, or -1 if there is none
+     */
+    int getPosition(long id) {
+        int slot = hashId(id) & mMask;
+        int entry;
+        while ((entry = mIdTable[slot]) != EMPTY) {
+            if (mIds[entry - 1] == id) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position of the row with the given conversation uri, or -1 if there is none
+     */
+    int getPosition(String uri) {
+        if (uri == null) {
+            return -1;
+        }
+        int slot = hashUri(uri) & mMask;
+        int entry;
+        while ((entry = mUriTable[slot]) != EMPTY) {
+            if (uri.equals(mUris[entry - 1])) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    boolean contains(String uri) {
+        return getPosition(uri) >= 0;
+    }
+
+    String getUri(int position) {
+        return mUris[position];
+    }
+
+    long getId(int position) {
+        return mIds[position];
+    }
+
+    /**
+     * @return the number of rows added so far
+     */
+    int size() {
+        return mSize;
+    }
+
+    int distinctIdCount() {
+        return mDistinctIds;
+    }
+
+    int distinctUriCount() {
+        return mDistinctUris;
+    }
+
+    /**
+     * @return a copy of the distinct conversation ids in the index, in no particular order
+     */
+    long[] distinctIds() {
+        final long[] result = new long[mDistinctIds];
+        int i = 0;
+        for (int entry : mIdTable) {
+            if (entry != EMPTY) {
+                result[i++] = mIds[entry - 1];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "{size=" + mSize + " ids=" + mDistinctIds + " uris=" + mDistinctUris
+                + " table=" + mIdTable.length + "}";
+    }
+}
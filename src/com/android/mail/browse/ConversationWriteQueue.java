@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.android.mail.providers.UIProvider.ConversationColumns;
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the operations of {@link ConversationCursor.ConversationProvider#apply} to the
+ * underlying providers, behind the UI, on a single thread, in the order they were applied.
+ * <ul>
+ *     <li>Writes are held for a short window, so that bulk actions arriving in quick succession
+ *     go out together. Writes applied off the UI thread are not held; their caller waits until
+ *     they have been written, as before.</li>
+ *     <li>Within the window, an update of a conversation's plain state (read, starred, seen,
+ *     viewed) supersedes the pending updates of the same columns of the same conversation, unless
+ *     another operation on the conversation came in between. Other updates are never merged,
+ *     since the providers undo them by sequence.</li>
+ *     <li>The writes to each authority go out in {@code applyBatch} calls of at most
+ *     {@link #MAX_BATCH_OPS} operations.</li>
+ * </ul>
+ * Each flush logs the number of writes, how many values were superseded and how long the oldest
+ * write waited.
+ */
+class ConversationWriteQueue {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    /** How long writes applied on the UI thread are held before they are written. */
+    private static final long WINDOW_MS = 100;
+
+    /** Operations sent to a provider in one {@code applyBatch} call at most. */
+    @VisibleForTesting
+    static final int MAX_BATCH_OPS = 100;
+
+    /** Columns whose updates are not undone, so a later update of one may replace earlier ones. */
+    private static final Set<String> COALESCABLE_COLUMNS = ImmutableSet.of(
+            ConversationColumns.READ, ConversationColumns.STARRED, ConversationColumns.SEEN,
+            ConversationColumns.VIEWED);
+
+    /** Sends a batch of operations to a provider. */
+    interface BatchApplier {
+        void applyBatch(String authority, ArrayList<ContentProviderOperation> ops)
+                throws RemoteException, OperationApplicationException;
+    }
+
+    /** An operation waiting to be written. */
+    private static final class Write {
+        final String authority;
+        final ContentProviderOperation op;
+        /** For updates that may be superseded, what remains to be written of them. */
+        final ContentValues values;
+        final long enqueuedAt = SystemClock.uptimeMillis();
+
+        Write(String authority, ContentProviderOperation op, ContentValues values) {
+            this.authority = authority;
+            this.op = op;
+            this.values = values;
+        }
+
+        /** Returns the operation to write, or null if all of it has been superseded. */
+        ContentProviderOperation build() {
+            if (values == null) {
+                return op;
+            }
+            if (values.size() == 0) {
+                return null;
+            }
+            return ContentProviderOperation.newUpdate(op.getUri()).withValues(values).build();
+        }
+    }
+
+    private final BatchApplier mApplier;
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    /** Writes not yet handed to the writer thread, in order. Guarded by this. */
+    private List<Write> mPending = Lists.newArrayList();
+    /**
+     * The latest pending update of each conversation that may still be superseded. Guarded by
+     * this.
+     */
+    private final Map<String, Write> mLatestUpdates = Maps.newHashMap();
+    /** Whether a flush of {@link #mPending} is scheduled. Guarded by this. */
+    private boolean mFlushScheduled;
+    /** Values superseded since the last flush. Guarded by this. */
+    private int mSuperseded;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    ConversationWriteQueue(BatchApplier applier) {
+        mApplier = applier;
+        mExecutor = new ScheduledThreadPoolExecutor(1);
+        mExecutor.setKeepAliveTime(1, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues an operation on a conversation.
+     *
+     * @param key identifies the conversation; operations with the same key are written in order
+     * @param values for an update, its values, or null for other operations
+     */
+    synchronized void enqueue(String authority, String key, ContentProviderOperation op,
+            ContentValues values) {
+        final boolean coalescable = values != null && values.size() > 0
+                && COALESCABLE_COLUMNS.containsAll(values.keySet());
+        final Write write = new Write(authority, op,
+                coalescable ? new ContentValues(values) : null);
+        if (coalescable) {
+            final Write earlier = mLatestUpdates.get(key);
+            if (earlier != null) {
+                for (String column : values.keySet()) {
+                    if (earlier.values.containsKey(column)) {
+                        earlier.values.remove(column);
+                        mSuperseded++;
+                    }
+                }
+            }
+            mLatestUpdates.put(key, write);
+        } else {
+            mLatestUpdates.remove(key);
+        }
+        mPending.add(write);
+    }
+
+    /**
+     * Writes the queued operations once the window has passed.
+     */
+    synchronized void scheduleFlush() {
+        if (!mFlushScheduled && !mPending.isEmpty()) {
+            mFlushScheduled = true;
+            mExecutor.schedule(mFlush, WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the queued operations now, and waits until they have been written. Must not be
+     * called on the UI thread.
+     */
+    void flushAndWait() {
+        runAfterWrites(null);
+    }
+
+    /**
+     * Writes the queued operations now, then runs {@code task} on the writer thread, and waits
+     * for both. Use this for anything that must see the writes, e.g. undoing them.
+     */
+    void runAfterWrites(final Runnable task) {
+        final Future<?> done = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                if (task != null) {
+                    task.run();
+                }
+            }
+        });
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LogUtils.w(LOG_TAG, e.getCause(), "Unable to write conversation operations");
+        }
+    }
+
+    /**
+     * As {@link #runAfterWrites(Runnable)}, without waiting. Safe to call on the UI thread.
+     */
+    void runAfterWritesAsync(final Runnable task) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                task.run();
+            }
+        });
+    }
+
+    /** Returns the number of operations waiting to be written. */
+    synchronized int getQueueDepth() {
+        return mPending.size();
+    }
+
+    /** Runs on the writer thread. */
+    private void flush() {
+        final List<Write> writes;
+        final int superseded;
+        synchronized (this) {
+            writes = mPending;
+            superseded = mSuperseded;
+            mPending = Lists.newArrayList();
+            mLatestUpdates.clear();
+            mFlushScheduled = false;
+            mSuperseded = 0;
+        }
+        if (writes.isEmpty()) {
+            return;
+        }
+
+        final long start = SystemClock.uptimeMillis();
+        final Map<String, ArrayList<ContentProviderOperation>> byAuthority =
+                new LinkedHashMap<String, ArrayList<ContentProviderOperation>>();
+        for (Write write : writes) {
+            final ContentProviderOperation op = write.build();
+            if (op == null) {
+                continue;
+            }
+            ArrayList<ContentProviderOperation> ops = byAuthority.get(write.authority);
+            if (ops == null) {
+                ops = new ArrayList<ContentProviderOperation>();
+                byAuthority.put(write.authority, ops);
+            }
+            ops.add(op);
+        }
+
+        int batches = 0;
+        for (Map.Entry<String, ArrayList<ContentProviderOperation>> entry
+                : byAuthority.entrySet()) {
+            final ArrayList<ContentProviderOperation> ops = entry.getValue();
+            for (int i = 0; i < ops.size(); i += MAX_BATCH_OPS) {
+                final ArrayList<ContentProviderOperation> batch =
+                        new ArrayList<ContentProviderOperation>(
+                                ops.subList(i, Math.min(ops.size(), i + MAX_BATCH_OPS)));
+                batches++;
+                try {
+                    mApplier.applyBatch(entry.getKey(), batch);
+                } catch (RemoteException e) {
+                    LogUtils.w(LOG_TAG, e, "Unable to write conversation operations");
+                } catch (OperationApplicationException e) {
+                    LogUtils.w(LOG_TAG, e, "Unable to write conversation operations");
+                }
+            }
+        }
+        final long end = SystemClock.uptimeMillis();
+        LogUtils.d(LOG_TAG, "conversation writes: %d queued, %d values superseded, %d batches,"
+                + " oldest waited %d ms, written in %d ms", writes.size(), superseded, batches,
+                start - writes.get(0).enqueuedAt, end - start);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+/**
+ * Tracks which rows of an underlying conversation cursor have been deleted locally, and maps
+ * between underlying positions and visible (not deleted) positions in O(log n).
+ * <p>
+ * Backed by a Fenwick tree over per-row "visible" flags, so that both the prefix count of visible
+ * rows before an underlying position and the underlying position of the k-th visible row can be
+ * answered without walking the rows in between.
+ * <p>
+ * Not thread-safe; {@link ConversationCursor} only touches it under its cache map lock.
+ */
+final class DeletedPositionIndex {
+    /** 1-based Fenwick tree of visible-row counts. */
+    private final int[] mTree;
+    private final boolean[] mDeleted;
+    private final int mSize;
+    /** Highest power of two not greater than mSize, for the descending search. */
+    private final int mTopBit;
+    private int mDeletedCount;
+
+    DeletedPositionIndex(int size) {
+        mSize = size;
+        mTree = new int[size + 1];
+        mDeleted = new boolean[size];
+        // With every row visible, each node covers exactly (i & -i) rows.
+        for (int i = 1; i <= size; i++) {
+            mTree[i] = i & -i;
+        }
+        int topBit = 1;
+        while ((topBit << 1) <= size) {
+            topBit <<= 1;
+        }
+        mTopBit = size > 0 ? topBit : 0;
+    }
+
+    private void add(int position, int delta) {
+        for (int i = position + 1; i <= mSize; i += i & -i) {
+            mTree[i] += delta;
+        }
+    }
+
+    /**
+     * Mark the row at the given underlying position as deleted.
+     *
+     * @return true if the row was previously visible
+     */
+    boolean delete(int position) {
+        if (position < 0 || position >= mSize || mDeleted[position]) {
+            return false;
+        }
+        mDeleted[position] = true;
+        mDeletedCount++;
+        add(position, -1);
+        return true;
+    }
+
+    /**
+     * Mark the row at the given underlying position as visible again.
+     *
+     * @return true if the row was previously deleted
+     */
+    boolean undelete(int position) {
+        if (position < 0 || position >= mSize || !mDeleted[position]) {
+            return false;
+        }
+        mDeleted[position] = false;
+        mDeletedCount--;
+        add(position, 1);
+        return true;
+    }
+
+    boolean isDeleted(int position) {
+        return position >= 0 && position < mSize && mDeleted[position];
+    }
+
+    /**
+     * @return the number of visible rows strictly before the given underlying position
+     */
+    int visibleBefore(int position) {
+        int sum = 0;
+        for (int i = Math.min(position, mSize); i > 0; i -= i & -i) {
+            sum += mTree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * @return the visible position of the row at the given underlying position, or -1 if that row
+     * is deleted or out of range
+     */
+    int toVisiblePosition(int underlyingPosition) {
+        if (underlyingPosition < 0 || underlyingPosition >= mSize
+                || mDeleted[underlyingPosition]) {
+            return -1;
+        }
+        return visibleBefore(underlyingPosition);
+    }
+
+    /**
+     * @return the underlying position of the row shown at the given visible position, or -1 if
+     * there are not that many visible rows
+     */
+    int toUnderlyingPosition(int visiblePosition) {
+        if (visiblePosition < 0 || visiblePosition >= getVisibleCount()) {
+            return -1;
+        }
+        // Find the largest prefix with at most visiblePosition visible rows; the row right after
+        // it is the one we want.
+        int remaining = visiblePosition;
+        int index = 0;
+        for (int bit = mTopBit; bit > 0; bit >>= 1) {
+            final int next = index + bit;
+            if (next <= mSize && mTree[next] <= remaining) {
+                index = next;
+                remaining -= mTree[next];
+            }
+        }
+        return index;
+    }
+
+    int getDeletedCount() {
+        return mDeletedCount;
+    }
+
+    int getVisibleCount() {
+        return mSize - mDeletedCount;
+    }
+
+    int size() {
+        return mSize;
+    }
+}
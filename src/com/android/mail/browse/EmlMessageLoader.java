@@ -25,6 +25,7 @@ import android.net.Uri;
 import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.internet.MimeMessage;
 import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.mail.Part;
 import com.android.mail.ui.MailAsyncTaskLoader;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
@@ -33,6 +34,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Loader that builds a ConversationMessage from an EML file Uri.
@@ -41,6 +43,37 @@ public class EmlMessageLoader extends MailAsyncTaskLoader<ConversationMessage> {
     private static final String LOG_TAG = LogTag.getLogTag();
 
     private Uri mEmlFileUri;
+    /**
+     * Whether the latest load has been canceled. Each load gets its own flag, installed on the
+     * main thread before its task is queued, so that a cancel can never be lost to a reset on the
+     * loading thread.
+     */
+    private volatile AtomicBoolean mCanceled = new AtomicBoolean();
+    /** Set while {@link #onForceLoad()} cancels the previous load and queues the next. */
+    private boolean mForcingLoad;
+
+    /**
+     * Every part is kept, since the viewer renders the text parts and saves the attachments to
+     * {@link com.android.mail.providers.EmlAttachmentProvider}, but there is no point in decoding
+     * the rest of the file once the load has been canceled.
+     */
+    private static class CancelablePartFilter implements MimeMessage.PartFilter {
+        private final AtomicBoolean mCanceled;
+
+        CancelablePartFilter(AtomicBoolean canceled) {
+            mCanceled = canceled;
+        }
+
+        @Override
+        public boolean acceptBody(Part part) {
+            return !mCanceled.get();
+        }
+
+        @Override
+        public boolean isDone() {
+            return mCanceled.get();
+        }
+    }
 
     public EmlMessageLoader(Context context, Uri emlFileUri) {
         super(context);
@@ -49,6 +82,7 @@ public class EmlMessageLoader extends MailAsyncTaskLoader<ConversationMessage> {
 
     @Override
     public ConversationMessage loadInBackground() {
+        final AtomicBoolean canceled = mCanceled;
         final Context context = getContext();
         TempDirectory.setTempDirectory(context);
         final ContentResolver resolver = context.getContentResolver();
@@ -63,8 +97,13 @@ public class EmlMessageLoader extends MailAsyncTaskLoader<ConversationMessage> {
         final MimeMessage mimeMessage;
         ConversationMessage convMessage;
         try {
-            mimeMessage = new MimeMessage(stream);
+            mimeMessage = new MimeMessage(stream, new CancelablePartFilter(canceled));
+            if (canceled.get()) {
+                // The result will be discarded anyway; skip building it.
+                return null;
+            }
             convMessage = new ConversationMessage(context, mimeMessage, mEmlFileUri);
+            LogUtils.d(LOG_TAG, "eml bodies: %s", mimeMessage.getCopyStats());
         } catch (IOException e) {
             LogUtils.e(LOG_TAG, e, "Could not read eml file");
             return null;
@@ -93,6 +132,26 @@ public class EmlMessageLoader extends MailAsyncTaskLoader<ConversationMessage> {
         return convMessage;
     }
 
+    @Override
+    protected void onForceLoad() {
+        mForcingLoad = true;
+        try {
+            super.onForceLoad();
+        } finally {
+            mForcingLoad = false;
+        }
+    }
+
+    @Override
+    public boolean cancelLoad() {
+        mCanceled.set(true);
+        if (mForcingLoad) {
+            // the load about to be queued starts out not canceled
+            mCanceled = new AtomicBoolean();
+        }
+        return super.cancelLoad();
+    }
+
     /**
      * Helper function to take care of releasing resources associated
      * with an actively loaded data set.
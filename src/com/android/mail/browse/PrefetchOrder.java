@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+/**
+ * The order in which to materialize the rows of a conversation cursor ahead of the UI: outward
+ * from the row the UI last showed, favoring the direction it is scrolling in. For every row
+ * behind the focus, {@link #AHEAD_PER_BEHIND} rows ahead of it come first; once one side runs
+ * out, the other side follows.
+ * <p>
+ * Not thread-safe.
+ */
+final class PrefetchOrder {
+    /** Rows taken in the scroll direction for every row taken against it. */
+    static final int AHEAD_PER_BEHIND = 3;
+
+    private final int mCount;
+    private final int mStep;
+    /** The next row ahead of the focus, and the next row behind it. */
+    private int mAhead;
+    private int mBehind;
+    private int mTakenAhead;
+
+    /**
+     * @param count the number of rows
+     * @param focus the row the UI last showed, which comes first
+     * @param forward whether the UI is scrolling towards higher positions
+     */
+    PrefetchOrder(int count, int focus, boolean forward) {
+        mCount = count;
+        mStep = forward ? 1 : -1;
+        final int start = Math.max(0, Math.min(count - 1, focus));
+        mAhead = start;
+        mBehind = start - mStep;
+    }
+
+    private boolean inRange(int position) {
+        return position >= 0 && position < mCount;
+    }
+
+    /**
+     * @return the next row, or -1 when every row has been returned
+     */
+    int next() {
+        final boolean ahead = inRange(mAhead);
+        final boolean behind = inRange(mBehind);
+        if (ahead && (!behind || mTakenAhead < AHEAD_PER_BEHIND)) {
+            final int position = mAhead;
+            mAhead += mStep;
+            mTakenAhead++;
+            return position;
+        }
+        if (behind) {
+            final int position = mBehind;
+            mBehind -= mStep;
+            mTakenAhead = 0;
+            return position;
+        }
+        return -1;
+    }
+}
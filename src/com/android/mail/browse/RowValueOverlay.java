@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.content.ContentValues;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Locally cached column values for the rows of an underlying conversation cursor, indexed by
+ * underlying row position and column index.
+ * <p>
+ * {@link ConversationCursor} keeps its authoritative cache keyed by conversation uri, so that it
+ * survives requeries. This is the read side of that cache: a sparse, typed copy that lets the
+ * cursor getters answer "is there a local value for this cell?" with two array loads, without
+ * hashing the row's uri or looking up the column's name, and without boxing the values.
+ * <p>
+ * An overlay is written under its own lock, as the uri-keyed cache is, and read from any thread
+ * without locking. A write replaces the row with an updated copy, so a read sees the row as it
+ * was either before or after the write. A getter following {@link #contains(int, int)} may thus
+ * find the cell cleared in between; it then returns null or 0, as if nothing were cached.
+ */
+final class RowValueOverlay {
+    private static final byte TYPE_NONE = 0;
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_STRING = 4;
+    private static final byte TYPE_BLOB = 5;
+
+    /**
+     * The cached cells of a single row; one slot per column of the cursor. Not changed once
+     * published in {@link #mRows}.
+     */
+    private static final class Row {
+        final byte[] types;
+        final long[] numbers;
+        final Object[] objects;
+        int valueCount;
+
+        Row(int columnCount) {
+            types = new byte[columnCount];
+            numbers = new long[columnCount];
+            objects = new Object[columnCount];
+        }
+
+        Row(Row other) {
+            types = other.types.clone();
+            numbers = other.numbers.clone();
+            objects = other.objects.clone();
+            valueCount = other.valueCount;
+        }
+    }
+
+    private final int mRowCount;
+    private final int mColumnCount;
+    /** Allocated on the first put, since most cursors never have local values. */
+    private volatile AtomicReferenceArray<Row> mRows;
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+
+    RowValueOverlay(int rowCount, int columnCount) {
+        mRowCount = rowCount;
+        mColumnCount = columnCount;
+    }
+
+    private Row getRow(int position) {
+        final AtomicReferenceArray<Row> rows = mRows;
+        if (rows == null || position < 0 || position >= mRowCount) {
+            return null;
+        }
+        return rows.get(position);
+    }
+
+    /**
+     * @return the row if the cell holds a value, or null
+     */
+    private Row getCell(int position, int columnIndex) {
+        final Row row = getRow(position);
+        if (row == null || columnIndex < 0 || columnIndex >= mColumnCount
+                || row.types[columnIndex] == TYPE_NONE) {
+            return null;
+        }
+        return row;
+    }
+
+    /**
+     * Cache a value for a cell. The supported types are the ones ConversationCursor accepts for
+     * local updates: Boolean (stored as an int, as in ContentValues), Integer, Long, Double,
+     * String and byte[]. A null value clears the cell.
+     *
+     * @return false if the cell is out of range
+     */
+    synchronized boolean put(int position, int columnIndex, Object value) {
+        if (position < 0 || position >= mRowCount || columnIndex < 0
+                || columnIndex >= mColumnCount) {
+            return false;
+        }
+        if (value == null) {
+            remove(position, columnIndex);
+            return true;
+        }
+        final byte type;
+        long number = 0;
+        Object object = null;
+        if (value instanceof Boolean) {
+            type = TYPE_INT;
+            number = ((Boolean) value) ? 1 : 0;
+        } else if (value instanceof Integer) {
+            type = TYPE_INT;
+            number = (Integer) value;
+        } else if (value instanceof Long) {
+            type = TYPE_LONG;
+            number = (Long) value;
+        } else if (value instanceof Double) {
+            type = TYPE_DOUBLE;
+            number = Double.doubleToRawLongBits((Double) value);
+        } else if (value instanceof String) {
+            type = TYPE_STRING;
+            object = value;
+        } else if (value instanceof byte[]) {
+            type = TYPE_BLOB;
+            object = value;
+        } else {
+            throw new IllegalArgumentException("Value class not compatible with cache: "
+                    + value.getClass().getName());
+        }
+
+        if (mRows == null) {
+            mRows = new AtomicReferenceArray<Row>(mRowCount);
+        }
+        final Row current = mRows.get(position);
+        final Row row = current != null ? new Row(current) : new Row(mColumnCount);
+        if (row.types[columnIndex] == TYPE_NONE) {
+            row.valueCount++;
+        }
+        row.types[columnIndex] = type;
+        row.numbers[columnIndex] = number;
+        row.objects[columnIndex] = object;
+        mRows.set(position, row);
+        return true;
+    }
+
+    synchronized void remove(int position, int columnIndex) {
+        final Row current = getCell(position, columnIndex);
+        if (current == null) {
+            return;
+        }
+        if (current.valueCount == 1) {
+            mRows.set(position, null);
+            return;
+        }
+        final Row row = new Row(current);
+        row.types[columnIndex] = TYPE_NONE;
+        row.objects[columnIndex] = null;
+        row.valueCount--;
+        mRows.set(position, row);
+    }
+
+    /**
+     * @return whether a local value is cached for the cell. Counts as an overlay hit or miss.
+     */
+    boolean contains(int position, int columnIndex) {
+        if (getCell(position, columnIndex) != null) {
+            mHits.incrementAndGet();
+            return true;
+        }
+        mMisses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return whether any local values are cached for the row
+     */
+    boolean hasValues(int position) {
+        return getRow(position) != null;
+    }
+
+    long getLong(int position, int columnIndex) {
+        final Row row = getCell(position, columnIndex);
+        if (row == null) {
+            return 0;
+        }
+        switch (row.types[columnIndex]) {
+            case TYPE_DOUBLE:
+                return (long) Double.longBitsToDouble(row.numbers[columnIndex]);
+            case TYPE_STRING:
+                return Long.parseLong((String) row.objects[columnIndex]);
+            default:
+                return row.numbers[columnIndex];
+        }
+    }
+
+    double getDouble(int position, int columnIndex) {
+        final Row row = getCell(position, columnIndex);
+        if (row == null) {
+            return 0;
+        }
+        switch (row.types[columnIndex]) {
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(row.numbers[columnIndex]);
+            case TYPE_STRING:
+                return Double.parseDouble((String) row.objects[columnIndex]);
+            default:
+                return row.numbers[columnIndex];
+        }
+    }
+
+    String getString(int position, int columnIndex) {
+        final Row row = getCell(position, columnIndex);
+        if (row == null) {
+            return null;
+        }
+        switch (row.types[columnIndex]) {
+            case TYPE_STRING:
+                return (String) row.objects[columnIndex];
+            case TYPE_DOUBLE:
+                return String.valueOf(Double.longBitsToDouble(row.numbers[columnIndex]));
+            case TYPE_BLOB:
+                return null;
+            default:
+                return String.valueOf(row.numbers[columnIndex]);
+        }
+    }
+
+    byte[] getBlob(int position, int columnIndex) {
+        final Row row = getCell(position, columnIndex);
+        return row != null && row.types[columnIndex] == TYPE_BLOB
+                ? (byte[]) row.objects[columnIndex] : null;
+    }
+
+    /**
+     * Copy the cached values of a row into a ContentValues, keyed by column name, with the same
+     * value classes a ContentValues-backed cache would have held.
+     *
+     * @return the number of values copied
+     */
+    int copyRow(int position, String[] columnNames, ContentValues dest) {
+        final Row row = getRow(position);
+        if (row == null) {
+            return 0;
+        }
+        int copied = 0;
+        for (int i = 0; i < mColumnCount; i++) {
+            switch (row.types[i]) {
+                case TYPE_INT:
+                    dest.put(columnNames[i], (int) row.numbers[i]);
+                    break;
+                case TYPE_LONG:
+                    dest.put(columnNames[i], row.numbers[i]);
+                    break;
+                case TYPE_DOUBLE:
+                    dest.put(columnNames[i], Double.longBitsToDouble(row.numbers[i]));
+                    break;
+                case TYPE_STRING:
+                    dest.put(columnNames[i], (String) row.objects[i]);
+                    break;
+                case TYPE_BLOB:
+                    dest.put(columnNames[i], (byte[]) row.objects[i]);
+                    break;
+                default:
+                    continue;
+            }
+            copied++;
+        }
+        return copied;
+    }
+
+    int getHitCount() {
+        return mHits.get();
+    }
+
+    int getMissCount() {
+        return mMisses.get();
+    }
+}
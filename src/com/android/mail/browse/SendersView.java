@@ -151,7 +151,7 @@ public class SendersView {
             boolean hasSenders = false;
             // This covers the case where the sender is "me" and this is a draft
             // message, which means this will only run once most of the time.
-            for (ParticipantInfo p : conversationInfo.participantInfos) {
+            for (ParticipantInfo p : conversationInfo.getParticipantInfos()) {
                 if (!TextUtils.isEmpty(p.name)) {
                     hasSenders = true;
                     break;
@@ -288,7 +288,7 @@ public class SendersView {
         try {
             priorityToLength.clear();
             int senderLength;
-            for (ParticipantInfo info : conversationInfo.participantInfos) {
+            for (ParticipantInfo info : conversationInfo.getParticipantInfos()) {
                 final String senderName = info.name;
                 senderLength = !TextUtils.isEmpty(senderName) ? senderName.length() : 0;
                 priorityToLength.put(info.priority, senderLength);
@@ -320,8 +320,9 @@ public class SendersView {
         final List<String> senderEmails = Lists.newArrayListWithExpectedSize(MAX_SENDER_COUNT);
         String firstSenderEmail = null;
         String firstSenderName = null;
-        for (int i = 0; i < conversationInfo.participantInfos.size(); i++) {
-            final ParticipantInfo currentParticipant = conversationInfo.participantInfos.get(i);
+        final List<ParticipantInfo> participants = conversationInfo.getParticipantInfos();
+        for (int i = 0; i < participants.size(); i++) {
+            final ParticipantInfo currentParticipant = participants.get(i);
             final String currentEmail = currentParticipant.email;
 
             final String currentName = currentParticipant.name;
@@ -416,8 +417,8 @@ public class SendersView {
         // if all messages in the thread were read, we must search for an appropriate avatar
         if (shouldSelectAvatar && senderAvatarModel.isNotPopulated()) {
             // search for the last sender that is not the current account
-            for (int i = conversationInfo.participantInfos.size() - 1; i >= 0; i--) {
-                final ParticipantInfo participant = conversationInfo.participantInfos.get(i);
+            for (int i = participants.size() - 1; i >= 0; i--) {
+                final ParticipantInfo participant = participants.get(i);
                 // empty name implies it is the current account and should not be chosen
                 if (!TextUtils.isEmpty(participant.name)) {
                     // use the participant name in place of unusable email addresses
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.mail.perf;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss and eviction counters for an in-memory cache. Counters are registered by name so
+ * that the stats of every cache in the process can be dumped together:
+ *
+ * <pre>
+ * CacheStats stats = CacheStats.get("myCache");
+ * ...
+ * if (cached != null) {
+ *   stats.hit();
+ * } else {
+ *   stats.miss();
+ * }
+ * ...
+ * CacheStats.dumpAll(prefix, writer);
+ * </pre>
+ */
+public final class CacheStats {
+    private static final ConcurrentMap<String, CacheStats> sStats =
+            new ConcurrentHashMap<String, CacheStats>();
+
+    private final String mName;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    private CacheStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Returns the counters registered under {@code name}, creating them if needed.
+     */
+    public static CacheStats get(String name) {
+        CacheStats stats = sStats.get(name);
+        if (stats == null) {
+            final CacheStats created = new CacheStats(name);
+            stats = sStats.putIfAbsent(name, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Writes the counters of every registered cache, one line each, as part of a dumpsys dump.
+     */
+    public static void dumpAll(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Cache stats:");
+        for (CacheStats stats : sStats.values()) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.println(stats);
+        }
+    }
+
+    public void hit() {
+        mHits.incrementAndGet();
+    }
+
+    public void miss() {
+        mMisses.incrementAndGet();
+    }
+
+    public void evicted() {
+        mEvictions.incrementAndGet();
+    }
+
+    public long getHits() {
+        return mHits.get();
+    }
+
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    public long getEvictions() {
+        return mEvictions.get();
+    }
+
+    /**
+     * Returns the fraction of lookups that were hits, or 0 if there were none.
+     */
+    public float getHitRate() {
+        final long hits = mHits.get();
+        final long lookups = hits + mMisses.get();
+        return lookups == 0 ? 0f : (float) hits / lookups;
+    }
+
+    public void reset() {
+        mHits.set(0);
+        mMisses.set(0);
+        mEvictions.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: hits=%d misses=%d evictions=%d hitRate=%.2f", mName,
+                getHits(), getMisses(), getEvictions(), getHitRate());
+    }
+}
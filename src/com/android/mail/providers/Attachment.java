@@ -25,7 +25,9 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
 
+import com.android.emailcommon.internet.BinaryTempFileBody;
 import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Part;
 import com.android.mail.browse.MessageAttachmentBar;
@@ -264,11 +266,21 @@ public class Attachment implements Parcelable {
 
             // save the file in the cache
             try {
-                final InputStream in = part.getBody().getInputStream();
+                final Body body = part.getBody();
                 final OutputStream out = resolver.openOutputStream(uri, "rwt");
-                size = IOUtils.copy(in, out);
+                if (body instanceof BinaryTempFileBody) {
+                    // Lets large attachments go from the temp file to the cache file directly.
+                    final long copied = ((BinaryTempFileBody) body).copyTo(out);
+                    if (copied > Integer.MAX_VALUE) {
+                        throw new IOException("Attachment too large: " + copied + " bytes");
+                    }
+                    size = (int) copied;
+                } else {
+                    final InputStream in = body.getInputStream();
+                    size = IOUtils.copy(in, out);
+                    in.close();
+                }
                 downloadedSize = size;
-                in.close();
                 out.close();
             } catch (FileNotFoundException e) {
                 LogUtils.e(LOG_TAG, e, "Error in writing attachment to cache");
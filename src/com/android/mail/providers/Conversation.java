@@ -337,9 +337,10 @@ public class Conversation implements Parcelable {
         accountUri = other.accountUri;
         position = other.position;
         localDeleteOnUpdate = other.localDeleteOnUpdate;
-        // although ConversationInfo is mutable (see ConversationInfo.markRead), applyCachedValues
-        // will overwrite this if cached changes exist anyway, so a shallow copy is OK
-        conversationInfo = other.conversationInfo;
+        // ConversationInfo is mutable (see ConversationInfo.markRead and applyCachedValues), so
+        // the copy gets its own, which a thread formatting the original can keep reading
+        conversationInfo = other.conversationInfo != null
+                ? new ConversationInfo(other.conversationInfo) : null;
         conversationBaseUri = other.conversationBaseUri;
         isRemote = other.isRemote;
         orderKey = other.orderKey;
@@ -648,7 +649,7 @@ public class Conversation implements Parcelable {
      * @return <strong>Immutable</strong> list of {@link Folder}s.
      */
     public List<Folder> getRawFolders() {
-        return rawFolders.folders;
+        return rawFolders.getFolders();
     }
 
     public void setRawFolders(FolderList folders) {
@@ -726,8 +727,8 @@ public class Conversation implements Parcelable {
      * Get the snippet for this conversation.
      */
     public String getSnippet() {
-        return !TextUtils.isEmpty(conversationInfo.firstSnippet) ?
-                conversationInfo.firstSnippet : "";
+        final String snippet = conversationInfo.getFirstSnippet();
+        return !TextUtils.isEmpty(snippet) ? snippet : "";
     }
 
     /**
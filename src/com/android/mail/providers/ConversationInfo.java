@@ -19,18 +19,31 @@ package com.android.mail.providers;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 
 import java.util.ArrayList;
 
+/**
+ * The message counts, snippets and participants of a conversation.
+ * <p>
+ * An instance read from a blob of {@link UIProvider#CONVERSATION_INFO_COLUMN} decodes only the
+ * message counts up front. It keeps the blob and decodes the snippets and participants the first
+ * time any of them is needed, as most rows of a conversation list are never shown.
+ * <p>
+ * Changes and reads of the participants hold the lock of the instance, as a conversation list
+ * formats rows on a background thread while the UI thread may change them.
+ */
 public class ConversationInfo implements Parcelable {
 
-    public final ArrayList<ParticipantInfo> participantInfos;
+    private final ArrayList<ParticipantInfo> participantInfos;
     public int messageCount;
     public int draftCount;
-    public String firstSnippet;
-    public String firstUnreadSnippet;
-    public String lastSnippet;
+    private String firstSnippet;
+    private String firstUnreadSnippet;
+    private String lastSnippet;
+    /** The blob the rest of this is to be decoded from, or null once it has been. */
+    private byte[] mBlob;
 
     public ConversationInfo() {
         participantInfos = new ArrayList<ParticipantInfo>();
@@ -51,6 +64,30 @@ public class ConversationInfo implements Parcelable {
         set(messageCount, draft, first, firstUnread, last);
     }
 
+    /**
+     * Copies the given ConversationInfo, including its participants, so that changing either one
+     * does not change the other.
+     */
+    public ConversationInfo(ConversationInfo other) {
+        synchronized (other) {
+            messageCount = other.messageCount;
+            draftCount = other.draftCount;
+            participantInfos = new ArrayList<ParticipantInfo>(other.participantInfos.size());
+            if (other.mBlob != null) {
+                // the blob is never changed, so the copy can decode it by itself
+                mBlob = other.mBlob;
+                return;
+            }
+            firstSnippet = other.firstSnippet;
+            firstUnreadSnippet = other.firstUnreadSnippet;
+            lastSnippet = other.lastSnippet;
+            for (ParticipantInfo info : other.participantInfos) {
+                participantInfos.add(new ParticipantInfo(info.name, info.email, info.priority,
+                        info.readConversation));
+            }
+        }
+    }
+
     private ConversationInfo(Parcel in) {
         messageCount = in.readInt();
         draftCount = in.readInt();
@@ -60,18 +97,111 @@ public class ConversationInfo implements Parcelable {
         participantInfos = in.createTypedArrayList(ParticipantInfo.CREATOR);
     }
 
+    private ConversationInfo(byte[] blob) {
+        final Parcel p = obtainParcel(blob);
+        try {
+            messageCount = p.readInt();
+            draftCount = p.readInt();
+        } finally {
+            p.recycle();
+        }
+        participantInfos = new ArrayList<ParticipantInfo>(messageCount);
+        mBlob = blob;
+    }
+
+    /**
+     * Returns a parcel from the platform's pool, holding the given blob and ready to be read.
+     */
+    private static Parcel obtainParcel(byte[] blob) {
+        final Parcel p = Parcel.obtain();
+        p.unmarshall(blob, 0, blob.length);
+        p.setDataPosition(0);
+        return p;
+    }
+
+    /**
+     * Decodes the snippets and participants from the blob this was read from, if that has not
+     * happened yet.
+     */
+    private synchronized void decode() {
+        if (mBlob == null) {
+            return;
+        }
+        final Parcel p = obtainParcel(mBlob);
+        try {
+            // the counts have been read already
+            p.readInt();
+            p.readInt();
+            firstSnippet = p.readString();
+            firstUnreadSnippet = p.readString();
+            lastSnippet = p.readString();
+            p.readTypedList(participantInfos, ParticipantInfo.CREATOR);
+        } finally {
+            p.recycle();
+        }
+        mBlob = null;
+    }
+
+    /**
+     * @return whether the snippets and participants have yet to be decoded
+     */
+    @VisibleForTesting
+    synchronized boolean isDecoded() {
+        return mBlob == null;
+    }
+
+    public ArrayList<ParticipantInfo> getParticipantInfos() {
+        decode();
+        return participantInfos;
+    }
+
+    public String getFirstSnippet() {
+        decode();
+        return firstSnippet;
+    }
+
+    public String getFirstUnreadSnippet() {
+        decode();
+        return firstUnreadSnippet;
+    }
+
+    public String getLastSnippet() {
+        decode();
+        return lastSnippet;
+    }
+
     /**
      * Sets all public fields to match the passed in ConversationInfo (does not copy objects)
      * @param orig ConversationInfo to copy
      */
     public void overwriteWith(ConversationInfo orig) {
-        participantInfos.clear();
-        participantInfos.addAll(orig.participantInfos);
-        messageCount = orig.messageCount;
-        draftCount = orig.draftCount;
-        firstSnippet = orig.firstSnippet;
-        firstUnreadSnippet = orig.firstUnreadSnippet;
-        lastSnippet = orig.lastSnippet;
+        final ArrayList<ParticipantInfo> participants;
+        final int count;
+        final int draft;
+        final String first;
+        final String firstUnread;
+        final String last;
+        // read first rather than lock both, so that two instances overwriting each other on
+        // different threads cannot deadlock
+        synchronized (orig) {
+            orig.decode();
+            participants = new ArrayList<ParticipantInfo>(orig.participantInfos);
+            count = orig.messageCount;
+            draft = orig.draftCount;
+            first = orig.firstSnippet;
+            firstUnread = orig.firstUnreadSnippet;
+            last = orig.lastSnippet;
+        }
+        synchronized (this) {
+            decode();
+            participantInfos.clear();
+            participantInfos.addAll(participants);
+            messageCount = count;
+            draftCount = draft;
+            firstSnippet = first;
+            firstUnreadSnippet = firstUnread;
+            lastSnippet = last;
+        }
     }
 
     @Override
@@ -80,7 +210,8 @@ public class ConversationInfo implements Parcelable {
     }
 
     @Override
-    public void writeToParcel(Parcel dest, int flags) {
+    public synchronized void writeToParcel(Parcel dest, int flags) {
+        decode();
         dest.writeInt(messageCount);
         dest.writeInt(draftCount);
         dest.writeString(firstSnippet);
@@ -93,12 +224,7 @@ public class ConversationInfo implements Parcelable {
         if (blob == null) {
             return null;
         }
-        final Parcel p = Parcel.obtain();
-        p.unmarshall(blob, 0, blob.length);
-        p.setDataPosition(0);
-        final ConversationInfo result = CREATOR.createFromParcel(p);
-        p.recycle();
-        return result;
+        return new ConversationInfo(blob);
     }
 
     public byte[] toBlob() {
@@ -109,7 +235,9 @@ public class ConversationInfo implements Parcelable {
         return result;
     }
 
-    public void set(int count, int draft, String first, String firstUnread, String last) {
+    public synchronized void set(int count, int draft, String first, String firstUnread,
+            String last) {
+        decode();
         participantInfos.clear();
         messageCount = count;
         draftCount = draft;
@@ -118,7 +246,8 @@ public class ConversationInfo implements Parcelable {
         lastSnippet = last;
     }
 
-    public void reset() {
+    public synchronized void reset() {
+        decode();
         participantInfos.clear();
         messageCount = 0;
         draftCount = 0;
@@ -127,11 +256,13 @@ public class ConversationInfo implements Parcelable {
         lastSnippet = null;
     }
 
-    public void addParticipant(ParticipantInfo info) {
+    public synchronized void addParticipant(ParticipantInfo info) {
+        decode();
         participantInfos.add(info);
     }
 
-    public boolean markRead(boolean read) {
+    public synchronized boolean markRead(boolean read) {
+        decode();
         boolean changed = false;
         for (ParticipantInfo pi : participantInfos) {
             changed |= pi.markRead(read);
@@ -148,7 +279,8 @@ public class ConversationInfo implements Parcelable {
     }
 
     @Override
-    public int hashCode() {
+    public synchronized int hashCode() {
+        decode();
         return Objects.hashCode(messageCount, draftCount, participantInfos, firstSnippet,
                 lastSnippet, firstUnreadSnippet);
     }
@@ -168,7 +300,8 @@ public class ConversationInfo implements Parcelable {
     };
 
     @Override
-    public String toString() {
+    public synchronized String toString() {
+        decode();
         StringBuilder builder = new StringBuilder();
         builder.append("[ConversationInfo object: messageCount = ");
         builder.append(messageCount);
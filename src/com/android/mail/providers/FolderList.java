@@ -3,6 +3,7 @@ package com.android.mail.providers;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 
 import java.util.Collection;
@@ -12,12 +13,17 @@ import java.util.List;
 /**
  * Simple class to encapsulate an immutable list of {@link Folder} objects, and handle serialization
  * and de-serialization.
+ * <p>
+ * An instance read from a blob keeps the blob and decodes the folders the first time they are
+ * needed, as the folders of most rows of a conversation list are never shown.
  */
 public class FolderList implements Parcelable {
 
     private static final FolderList EMPTY = new FolderList(Collections.<Folder> emptyList());
 
-    public final ImmutableList<Folder> folders;
+    private ImmutableList<Folder> folders;
+    /** The blob the folders are to be decoded from, or null once they have been. */
+    private byte[] mBlob;
 
     // Private to reinforce the copyOf() API, which makes it more clear that creating a FolderList
     // has copy overhead.
@@ -33,6 +39,33 @@ public class FolderList implements Parcelable {
         folders = ImmutableList.copyOf(in.createTypedArrayList(Folder.CREATOR));
     }
 
+    private FolderList(byte[] blob) {
+        mBlob = blob;
+    }
+
+    /**
+     * @return the <strong>immutable</strong> list of folders
+     */
+    public synchronized ImmutableList<Folder> getFolders() {
+        if (mBlob != null) {
+            final Parcel p = Parcel.obtain();
+            p.unmarshall(mBlob, 0, mBlob.length);
+            p.setDataPosition(0);
+            folders = ImmutableList.copyOf(p.createTypedArrayList(Folder.CREATOR));
+            p.recycle();
+            mBlob = null;
+        }
+        return folders;
+    }
+
+    /**
+     * @return whether the folders have yet to be decoded
+     */
+    @VisibleForTesting
+    synchronized boolean isDecoded() {
+        return mBlob == null;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -40,10 +73,16 @@ public class FolderList implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeTypedList(folders);
+        dest.writeTypedList(getFolders());
     }
 
     public byte[] toBlob() {
+        synchronized (this) {
+            // the list is immutable, so a blob not yet decoded is still what it holds
+            if (mBlob != null) {
+                return mBlob.clone();
+            }
+        }
         final Parcel p = Parcel.obtain();
         writeToParcel(p, 0);
         final byte[] result = p.marshall();
@@ -70,13 +109,7 @@ public class FolderList implements Parcelable {
         if (blob == null) {
             return EMPTY;
         }
-
-        final Parcel p = Parcel.obtain();
-        p.unmarshall(blob, 0, blob.length);
-        p.setDataPosition(0);
-        final FolderList result = CREATOR.createFromParcel(p);
-        p.recycle();
-        return result;
+        return new FolderList(blob);
     }
 
     public static FolderList copyOf(Collection<Folder> in) {
@@ -85,12 +118,12 @@ public class FolderList implements Parcelable {
 
     @Override
     public boolean equals(Object o) {
-        return folders.equals(o);
+        return getFolders().equals(o);
     }
 
     @Override
     public int hashCode() {
-        return folders.hashCode();
+        return getFolders().hashCode();
     }
 
     public static final Creator<FolderList> CREATOR = new Creator<FolderList>() {
@@ -43,6 +43,7 @@ import com.android.mail.bitmap.ContactResolver;
 import com.android.mail.browse.ConversationCursor;
 import com.android.mail.browse.ConversationItemView;
 import com.android.mail.browse.ConversationItemViewCoordinates.CoordinatesCache;
+import com.android.mail.browse.ConversationItemViewModel;
 import com.android.mail.browse.SwipeableConversationItemView;
 import com.android.mail.providers.Account;
 import com.android.mail.providers.AccountObserver;
@@ -225,6 +226,7 @@ public class AnimatedAdapter extends SimpleCursorAdapter {
         }
 
         mAccount = newAccount;
+        updateRowPrecomputer();
         mImportanceMarkersEnabled = mAccount.settings.importanceMarkersEnabled;
         mShowChevronsEnabled = mAccount.settings.showChevronsEnabled;
         mSwipeEnabled = mAccount.supportsCapability(UIProvider.AccountCapabilities.UNDO);
@@ -903,6 +905,20 @@ public class AnimatedAdapter extends SimpleCursorAdapter {
 
     public void setFolder(Folder folder) {
         mFolder = folder;
+        updateRowPrecomputer();
+    }
+
+    /**
+     * Has the cursor format the sender text of the rows around the visible ones in the
+     * background, for the current account and folder.
+     */
+    private void updateRowPrecomputer() {
+        final ConversationCursor cursor = getConversationCursor();
+        if (cursor == null) {
+            return;
+        }
+        cursor.setRowPrecomputer(mAccount != null
+                ? new ConversationItemViewModel.Precomputer(mContext, mAccount, mFolder) : null);
     }
 
     public void clearLeaveBehind(long itemId) {
@@ -1109,6 +1125,10 @@ public class AnimatedAdapter extends SimpleCursorAdapter {
     @Override
     public Cursor swapCursor(final Cursor c) {
         final Cursor oldCursor = super.swapCursor(c);
+        if (oldCursor != c && oldCursor instanceof ConversationCursor) {
+            ((ConversationCursor) oldCursor).setRowPrecomputer(null);
+        }
+        updateRowPrecomputer();
         updateSpecialViews();
 
         return oldCursor;
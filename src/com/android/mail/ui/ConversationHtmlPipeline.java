@@ -0,0 +1,230 @@
+/**
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.ui;
+
+import android.os.SystemClock;
+
+import com.android.mail.ui.HtmlConversationTemplates.PreparedBody;
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.android.mail.utils.Utils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds conversation HTML in two stages. Message bodies are prepared for the document (see
+ * {@link HtmlConversationTemplates#prepareMessageBody(HtmlMessage, boolean)}) on a pool of
+ * background threads, while the UI thread goes on to measure the overlays whose heights the
+ * document needs. The document is then assembled in order on the UI thread by {@link #flush()},
+ * which prepares the bodies no thread has started on itself rather than wait for them. Whatever
+ * is still queued when a render fails must be dropped with {@link #clear()}.
+ * <p>
+ * Each stage is marked with a trace section, and {@link #flush()} logs how long each took.
+ */
+class ConversationHtmlPipeline {
+
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    /** Threads preparing message bodies; the UI thread is busy measuring meanwhile. */
+    private static final int PREPARE_THREADS =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 3));
+
+    private static final ThreadPoolExecutor PREPARE_EXECUTOR = new ThreadPoolExecutor(
+            PREPARE_THREADS, PREPARE_THREADS, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        PREPARE_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /** Something to append to the document once everything before it has been appended. */
+    private abstract static class Step {
+        abstract void append(HtmlConversationTemplates templates) throws InterruptedException;
+
+        /** Lets go of the step without appending it. */
+        void cancel() {}
+    }
+
+    private final class MessageStep extends Step {
+        private final HtmlMessage mMessage;
+        private final Future<PreparedBody> mBody;
+        private final boolean mExpanded;
+        private final boolean mSafeForImages;
+        private final int mHeaderHeight;
+        private final int mFooterHeight;
+
+        MessageStep(HtmlMessage message, Future<PreparedBody> body, boolean expanded,
+                boolean safeForImages, int headerHeight, int footerHeight) {
+            mMessage = message;
+            mBody = body;
+            mExpanded = expanded;
+            mSafeForImages = safeForImages;
+            mHeaderHeight = headerHeight;
+            mFooterHeight = footerHeight;
+        }
+
+        @Override
+        void append(HtmlConversationTemplates templates) throws InterruptedException {
+            PreparedBody body;
+            if (mBody.cancel(false)) {
+                // no thread has got to it yet; doing it here beats waiting for one to
+                mStolenCount++;
+                body = HtmlConversationTemplates.prepareMessageBody(mMessage, mSafeForImages);
+            } else {
+                final long waitStart = SystemClock.uptimeMillis();
+                try {
+                    body = mBody.get();
+                } catch (ExecutionException e) {
+                    LogUtils.w(LOG_TAG, e.getCause(),
+                            "Unable to prepare message body in background");
+                    body = HtmlConversationTemplates.prepareMessageBody(mMessage, mSafeForImages);
+                } finally {
+                    mWaitMs += SystemClock.uptimeMillis() - waitStart;
+                }
+            }
+            templates.appendMessageHtml(mMessage, body, mExpanded, mSafeForImages,
+                    mHeaderHeight, mFooterHeight);
+        }
+
+        @Override
+        void cancel() {
+            mBody.cancel(false);
+        }
+    }
+
+    private static final class SuperCollapsedStep extends Step {
+        private final int mFirstCollapsed;
+        private final int mBlockHeight;
+
+        SuperCollapsedStep(int firstCollapsed, int blockHeight) {
+            mFirstCollapsed = firstCollapsed;
+            mBlockHeight = blockHeight;
+        }
+
+        @Override
+        void append(HtmlConversationTemplates templates) {
+            templates.appendSuperCollapsedHtml(mFirstCollapsed, mBlockHeight);
+        }
+    }
+
+    private final HtmlConversationTemplates mTemplates;
+    private final ExecutorService mExecutor;
+    private final List<Step> mSteps = Lists.newArrayList();
+
+    /** Time spent preparing bodies since the last flush, summed over the background threads. */
+    private final AtomicLong mPrepareMs = new AtomicLong();
+    /** Time the UI thread spent waiting for prepared bodies in the last flush. */
+    private long mWaitMs;
+    /** Bodies the UI thread prepared itself in the last flush, as no thread had started them. */
+    private int mStolenCount;
+
+    ConversationHtmlPipeline(HtmlConversationTemplates templates) {
+        this(templates, PREPARE_EXECUTOR);
+    }
+
+    @VisibleForTesting
+    ConversationHtmlPipeline(HtmlConversationTemplates templates, ExecutorService executor) {
+        mTemplates = templates;
+        mExecutor = executor;
+    }
+
+    /**
+     * Starts preparing the body of a message in the background. Call this before measuring the
+     * message's overlays, so that the two overlap.
+     */
+    Future<PreparedBody> prepareBody(final HtmlMessage message, final boolean safeForImages) {
+        return mExecutor.submit(new Callable<PreparedBody>() {
+            @Override
+            public PreparedBody call() {
+                Utils.traceBeginSection("prepare message body");
+                final long start = SystemClock.uptimeMillis();
+                try {
+                    return HtmlConversationTemplates.prepareMessageBody(message, safeForImages);
+                } finally {
+                    mPrepareMs.addAndGet(SystemClock.uptimeMillis() - start);
+                    Utils.traceEndSection();
+                }
+            }
+        });
+    }
+
+    /**
+     * Appends the message to the document on the next {@link #flush()}, with the body from
+     * {@link #prepareBody(HtmlMessage, boolean)}.
+     */
+    void appendMessageHtml(HtmlMessage message, Future<PreparedBody> body, boolean expanded,
+            boolean safeForImages, int headerHeight, int footerHeight) {
+        mSteps.add(new MessageStep(message, body, expanded, safeForImages, headerHeight,
+                footerHeight));
+    }
+
+    /**
+     * Appends a super-collapsed block to the document on the next {@link #flush()}.
+     */
+    void appendSuperCollapsedHtml(int firstCollapsed, int blockHeight) {
+        mSteps.add(new SuperCollapsedStep(firstCollapsed, blockHeight));
+    }
+
+    /**
+     * Appends everything queued so far to the templates, in order, waiting for message bodies
+     * that are still being prepared.
+     */
+    void flush() {
+        Utils.traceBeginSection("assemble conversation html");
+        final long start = SystemClock.uptimeMillis();
+        final int steps = mSteps.size();
+        mWaitMs = 0;
+        mStolenCount = 0;
+        try {
+            for (int i = 0; i < steps; i++) {
+                mSteps.get(i).append(mTemplates);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while assembling conversation", e);
+        } finally {
+            clear();
+            Utils.traceEndSection();
+        }
+        LogUtils.d(LOG_TAG, "conversation html: %d steps, bodies prepared in %d ms (background),"
+                + " %d prepared on the UI thread, waited %d ms, assembled in %d ms", steps,
+                mPrepareMs.getAndSet(0), mStolenCount, mWaitMs,
+                SystemClock.uptimeMillis() - start - mWaitMs);
+    }
+
+    /**
+     * Drops everything queued and not yet flushed, cancelling the bodies not yet prepared. Call
+     * this when rendering fails, so that the steps do not end up in the next document.
+     */
+    void clear() {
+        for (int i = 0, size = mSteps.size(); i < size; i++) {
+            mSteps.get(i).cancel();
+        }
+        mSteps.clear();
+    }
+}
@@ -97,6 +97,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * The conversation view UI component.
@@ -161,6 +162,12 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
 
     protected HtmlConversationTemplates mTemplates;
 
+    /**
+     * Prepares message bodies in the background while their overlays are measured, and appends
+     * them to {@link #mTemplates} in order once flushed.
+     */
+    private ConversationHtmlPipeline mHtmlPipeline;
+
     private final MailJsBridge mJsBridge = new MailJsBridge();
 
     protected ConversationViewAdapter mAdapter;
@@ -178,6 +185,14 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
      */
     private String mTempBodiesHtml;
 
+    /**
+     * The messages the WebView document and the overlay adapter were last brought up to date
+     * with, in cursor order, or null before the first render. A new message cursor is diffed
+     * against these to update only the messages that changed, rather than re-rendering the whole
+     * conversation.
+     */
+    private List<ConversationMessage> mRenderedMessages;
+
     private int  mMaxAutoLoadMessages;
 
     protected int mSideMarginPx;
@@ -202,6 +217,12 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
 
     private long mWebViewLoadStartMs;
 
+    /**
+     * Has the rendered conversation been revealed yet? If so before the fragment becomes visible,
+     * the conversation was prefetched by the pager.
+     */
+    private boolean mContentRevealed;
+
     private final Map<String, String> mMessageTransforms = Maps.newHashMap();
 
     private final DataSetObserver mLoadedObserver = new DataSetObserver() {
@@ -296,6 +317,7 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
 
         Context context = getContext();
         mTemplates = new HtmlConversationTemplates(context);
+        mHtmlPipeline = new ConversationHtmlPipeline(mTemplates);
 
         final FormattedDateBuilder dateBuilder = new FormattedDateBuilder(context);
 
@@ -559,6 +581,13 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         if (!userVisible) {
             mProgressController.dismissLoadingStatus();
         } else if (mViewsCreated) {
+            if (mContentRevealed) {
+                // the pager prefetched this conversation, so its content shows right away
+                AnalyticsTimer.getInstance().logDuration(AnalyticsTimer.SWIPE_TO_CONV_CONTENT,
+                        true /* isDestructive */, "swipe_conversation", "prefetched",
+                        getCurrentFolderTypeDesc());
+            }
+
             String loadTag = null;
             final boolean isInitialLoading;
             if (mActivity != null) {
@@ -664,7 +693,13 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         if (isUserVisible()) {
             AnalyticsTimer.getInstance().logDuration(AnalyticsTimer.OPEN_CONV_VIEW_FROM_LIST,
                     true /* isDestructive */, "open_conversation", "from_list", null);
+            if (!mContentRevealed) {
+                AnalyticsTimer.getInstance().logDuration(AnalyticsTimer.SWIPE_TO_CONV_CONTENT,
+                        true /* isDestructive */, "swipe_conversation", "rendered_on_swipe",
+                        getCurrentFolderTypeDesc());
+            }
         }
+        mContentRevealed = true;
     }
 
     private boolean isLoadWaiting() {
@@ -701,6 +736,42 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         mWebView.loadDataWithBaseURL(mBaseUri, convHtml, "text/html", "utf-8", null);
         mWebViewLoadedData = true;
         mWebViewLoadStartMs = SystemClock.uptimeMillis();
+        mRenderedMessages = getMessages(messageCursor);
+    }
+
+    private static List<ConversationMessage> getMessages(MessageCursor messageCursor) {
+        final List<ConversationMessage> messages =
+                new ArrayList<ConversationMessage>(messageCursor.getCount());
+        int pos = -1;
+        while (messageCursor.moveToPosition(++pos)) {
+            messages.add(messageCursor.getMessage());
+        }
+        return messages;
+    }
+
+    /**
+     * Compares the cursor to the rendered messages by message id and state (see
+     * {@link ConversationMessage#getStateHashCode()}).
+     *
+     * @return the number of rendered messages if they are the first messages of the cursor, in
+     * the same order and state, so that the remaining messages can simply be appended to the
+     * document; -1 otherwise
+     */
+    private int getRenderedPrefixLength(MessageCursor messageCursor) {
+        if (mRenderedMessages == null || !mWebViewLoadedData
+                || mRenderedMessages.size() > messageCursor.getCount()) {
+            return -1;
+        }
+        for (int pos = 0, count = mRenderedMessages.size(); pos < count; pos++) {
+            messageCursor.moveToPosition(pos);
+            final ConversationMessage newMsg = messageCursor.getMessage();
+            final ConversationMessage renderedMsg = mRenderedMessages.get(pos);
+            if (newMsg.id != renderedMsg.id
+                    || newMsg.getStateHashCode() != renderedMsg.getStateHashCode()) {
+                return -1;
+            }
+        }
+        return mRenderedMessages.size();
     }
 
     protected String getSdCardFilePath() {
@@ -714,6 +785,16 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
      */
     protected String renderMessageBodies(MessageCursor messageCursor,
             boolean enableContentReadySignal) {
+        try {
+            return renderConversation(messageCursor, enableContentReadySignal);
+        } finally {
+            // drop whatever a failed render left queued, so it does not end up in the next one
+            mHtmlPipeline.clear();
+        }
+    }
+
+    private String renderConversation(MessageCursor messageCursor,
+            boolean enableContentReadySignal) {
         int pos = -1;
 
         LogUtils.d(LOG_TAG, "IN renderMessageBodies, fragment=%s", this);
@@ -774,13 +855,8 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
                     expandedState = savedExpanded;
                 }
             } else {
-                // new messages that are not expanded default to being eligible for super-collapse
-                if (msg.starred || !msg.read || messageCursor.isLast()) {
-                    expandedState = ExpansionState.EXPANDED;
-                } else if (messageCursor.isFirst()) {
-                    expandedState = ExpansionState.COLLAPSED;
-                } else {
-                    expandedState = ExpansionState.SUPER_COLLAPSED;
+                expandedState = getInitialExpansionState(msg, messageCursor);
+                if (ExpansionState.isSuperCollapsed(expandedState)) {
                     hasDraft |= msg.isDraft();
                 }
             }
@@ -835,6 +911,8 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
 
         mWebView.getSettings().setBlockNetworkImage(!allowNetworkImages);
 
+        mHtmlPipeline.flush();
+
         final boolean applyTransforms = shouldApplyTransforms();
 
         // If the conversation has specified a base uri, use it here, otherwise use mBaseUri
@@ -845,6 +923,22 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
                 applyTransforms);
     }
 
+    /**
+     * Returns the expansion state of a message the view has no state for yet, with the cursor at
+     * the message's position.
+     */
+    private static int getInitialExpansionState(ConversationMessage msg,
+            MessageCursor messageCursor) {
+        // new messages that are not expanded default to being eligible for super-collapse
+        if (msg.starred || !msg.read || messageCursor.isLast()) {
+            return ExpansionState.EXPANDED;
+        } else if (messageCursor.isFirst()) {
+            return ExpansionState.COLLAPSED;
+        } else {
+            return ExpansionState.SUPER_COLLAPSED;
+        }
+    }
+
     private MessageHeaderItem getLastMessageHeaderItem() {
         int pos = mAdapter.getCount();
         while (--pos >= 0) {
@@ -860,11 +954,18 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
     private void renderSuperCollapsedBlock(int start, int end, boolean hasDraft) {
         final int blockPos = mAdapter.addSuperCollapsedBlock(start, end, hasDraft);
         final int blockPx = measureOverlayHeight(blockPos);
-        mTemplates.appendSuperCollapsedHtml(start, mWebView.screenPxToWebPx(blockPx));
+        mHtmlPipeline.appendSuperCollapsedHtml(start, mWebView.screenPxToWebPx(blockPx));
     }
 
+    /**
+     * Adds the message's overlays to the adapter and queues its HTML in {@link #mHtmlPipeline}.
+     * The body is prepared in the background while the overlays are measured here.
+     */
     private void renderMessage(ConversationMessage msg, boolean expanded, boolean safeForImages) {
+        final Future<HtmlConversationTemplates.PreparedBody> body =
+                mHtmlPipeline.prepareBody(msg, safeForImages);
 
+        Utils.traceBeginSection("measure message overlays");
         final int headerPos = mAdapter.addMessageHeader(msg, expanded,
                 mViewState.getShouldShowImages(msg));
         final MessageHeaderItem headerItem = (MessageHeaderItem) mAdapter.getItem(headerPos);
@@ -876,8 +977,9 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         // a host view for measurement.
         final int headerPx = measureOverlayHeight(headerPos);
         final int footerPx = measureOverlayHeight(footerPos);
+        Utils.traceEndSection();
 
-        mTemplates.appendMessageHtml(msg, expanded, safeForImages,
+        mHtmlPipeline.appendMessageHtml(msg, body, expanded, safeForImages,
                 mWebView.screenPxToWebPx(headerPx), mWebView.screenPxToWebPx(footerPx));
         timerMark("rendered message");
     }
@@ -894,36 +996,45 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         // In devices with non-integral density multiplier, screen pixels translate to non-integral
         // web pixels. Keep track of the error that occurs when we cast all heights to int
         float error = 0f;
-        boolean first = true;
-        for (int i = blockToReplace.getStart(), end = blockToReplace.getEnd(); i <= end; i++) {
-            cursor.moveToPosition(i);
-            final ConversationMessage msg = cursor.getMessage();
-
-            final MessageHeaderItem header = ConversationViewAdapter.newMessageHeaderItem(
-                    mAdapter, mAdapter.getDateBuilder(), msg, false /* expanded */,
-                    alwaysShowImages || mViewState.getShouldShowImages(msg));
-            final MessageFooterItem footer = mAdapter.newMessageFooterItem(mAdapter, header);
-
-            final int headerPx = measureOverlayHeight(header);
-            final int footerPx = measureOverlayHeight(footer);
-            error += mWebView.screenPxToWebPxError(headerPx)
-                    + mWebView.screenPxToWebPxError(footerPx);
-
-            // When the error becomes greater than 1 pixel, make the next header 1 pixel taller
-            int correction = 0;
-            if (error >= 1) {
-                correction = 1;
-                error -= 1;
-            }
+        try {
+            for (int i = blockToReplace.getStart(), end = blockToReplace.getEnd(); i <= end;
+                    i++) {
+                cursor.moveToPosition(i);
+                final ConversationMessage msg = cursor.getMessage();
+                final boolean safeForImages = alwaysShowImages || msg.alwaysShowImages;
+
+                // prepare the body in the background while the overlays are measured
+                final Future<HtmlConversationTemplates.PreparedBody> body =
+                        mHtmlPipeline.prepareBody(msg, safeForImages);
+
+                final MessageHeaderItem header = ConversationViewAdapter.newMessageHeaderItem(
+                        mAdapter, mAdapter.getDateBuilder(), msg, false /* expanded */,
+                        alwaysShowImages || mViewState.getShouldShowImages(msg));
+                final MessageFooterItem footer = mAdapter.newMessageFooterItem(mAdapter, header);
+
+                final int headerPx = measureOverlayHeight(header);
+                final int footerPx = measureOverlayHeight(footer);
+                error += mWebView.screenPxToWebPxError(headerPx)
+                        + mWebView.screenPxToWebPxError(footerPx);
+
+                // When the error becomes greater than 1 pixel, make the next header 1 pixel taller
+                int correction = 0;
+                if (error >= 1) {
+                    correction = 1;
+                    error -= 1;
+                }
 
-            mTemplates.appendMessageHtml(msg, false /* expanded */,
-                    alwaysShowImages || msg.alwaysShowImages,
-                    mWebView.screenPxToWebPx(headerPx) + correction,
-                    mWebView.screenPxToWebPx(footerPx));
-            replacements.add(header);
-            replacements.add(footer);
+                mHtmlPipeline.appendMessageHtml(msg, body, false /* expanded */, safeForImages,
+                        mWebView.screenPxToWebPx(headerPx) + correction,
+                        mWebView.screenPxToWebPx(footerPx));
+                replacements.add(header);
+                replacements.add(footer);
 
-            mViewState.setExpansionState(msg, ExpansionState.COLLAPSED);
+                mViewState.setExpansionState(msg, ExpansionState.COLLAPSED);
+            }
+            mHtmlPipeline.flush();
+        } finally {
+            mHtmlPipeline.clear();
         }
 
         mAdapter.replaceSuperCollapsedBlock(blockToReplace, replacements);
@@ -1096,8 +1207,24 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
     private void onNewMessageBarClick() {
         mNewMessageBar.hide(true, true);
 
-        renderConversation(getMessageCursor()); // mCursor is already up-to-date
-                                                // per onLoadFinished()
+        final MessageCursor cursor = getMessageCursor(); // mCursor is already up-to-date
+                                                         // per onLoadFinished()
+        if (cursor == null || !mViewsCreated) {
+            return;
+        }
+        // the held messages usually just follow the rendered ones
+        final int renderedCount = getRenderedPrefixLength(cursor);
+        if (renderedCount == cursor.getCount()) {
+            LogUtils.i(LOG_TAG, "CONV RENDER: no held messages to show (%s)", this);
+            return;
+        } else if (renderedCount >= 0) {
+            LogUtils.i(LOG_TAG, "CONV RENDER: appending %d held message(s) (%s)",
+                    cursor.getCount() - renderedCount, this);
+            processInPlaceUpdates(cursor, mRenderedMessages);
+            appendNewMessages(cursor, renderedCount, false /* fromSelf */);
+        } else {
+            renderConversation(cursor);
+        }
     }
 
     private static OverlayPosition[] parsePositions(final int[] topArray, final int[] bottomArray) {
@@ -1564,11 +1691,13 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
                 return;
             }
 
-            final int oldState = oldCursor.getStateHashCode();
-            final boolean changed = newCursor.getStateHashCode() != oldState;
+            final boolean changed =
+                    newCursor.getStateHashCode() != oldCursor.getStateHashCode();
 
             if (!changed) {
-                final boolean processedInPlace = processInPlaceUpdates(newCursor, oldCursor);
+                final boolean processedInPlace = processInPlaceUpdates(newCursor,
+                        mRenderedMessages != null ? mRenderedMessages : getMessages(oldCursor));
+                mRenderedMessages = getMessages(newCursor);
                 if (processedInPlace) {
                     LogUtils.i(LOG_TAG, "CONV RENDER: processed update(s) in place (%s)", this);
                 } else {
@@ -1576,15 +1705,16 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
                             + ", ignoring this conversation update (%s)", this);
                 }
                 return;
-            } else if (info.countFromSelf == 1) {
+            } else if (info.countFromSelf > 0) {
                 // Special-case the very common case of a new cursor that is the same as the old
-                // one, except that there is a new message from yourself. This happens upon send.
-                final boolean sameExceptNewLast = newCursor.getStateHashCode(1) == oldState;
-                if (sameExceptNewLast) {
-                    LogUtils.i(LOG_TAG, "CONV RENDER: update is a single new message from self"
-                            + " (%s)", this);
-                    newCursor.moveToLast();
-                    processNewOutgoingMessage(newCursor.getMessage());
+                // one, except that there are new messages from yourself at the end. This happens
+                // upon send. Only the new messages are rendered, and appended to the document.
+                final int renderedCount = getRenderedPrefixLength(newCursor);
+                if (renderedCount >= 0 && renderedCount < newCursor.getCount()) {
+                    LogUtils.i(LOG_TAG, "CONV RENDER: update is %d new message(s) from self"
+                            + " (%s)", newCursor.getCount() - renderedCount, this);
+                    processInPlaceUpdates(newCursor, mRenderedMessages);
+                    appendNewMessages(newCursor, renderedCount, true /* fromSelf */);
                     return;
                 }
             }
@@ -1642,7 +1772,12 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         return info;
     }
 
-    private boolean processInPlaceUpdates(MessageCursor newCursor, MessageCursor oldCursor) {
+    /**
+     * Updates the overlays and bodies of the messages that changed in place, comparing the new
+     * cursor to the previous messages position by position.
+     */
+    private boolean processInPlaceUpdates(MessageCursor newCursor,
+            List<ConversationMessage> oldMessages) {
         final Set<String> idsOfChangedBodies = Sets.newHashSet();
         final List<Integer> changedOverlayPositions = Lists.newArrayList();
 
@@ -1650,12 +1785,12 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
 
         int pos = 0;
         while (true) {
-            if (!newCursor.moveToPosition(pos) || !oldCursor.moveToPosition(pos)) {
+            if (!newCursor.moveToPosition(pos) || pos >= oldMessages.size()) {
                 break;
             }
 
             final ConversationMessage newMsg = newCursor.getMessage();
-            final ConversationMessage oldMsg = oldCursor.getMessage();
+            final ConversationMessage oldMsg = oldMessages.get(pos);
 
             // We are going to update the data in the adapter whenever any input fields change.
             // This ensures that the Message object that ComposeActivity uses will be correctly
@@ -1697,9 +1832,19 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         return changed;
     }
 
-    private void processNewOutgoingMessage(ConversationMessage msg) {
+    /**
+     * Renders the messages from <code>firstNewPos</code> to the end of the cursor and appends them
+     * to the document, leaving the messages before them as they are.
+     *
+     * @param fromSelf true if the new messages were sent by the user, in which case they are
+     * expanded and treated as unread for "mark unread". Otherwise they are expanded or collapsed
+     * as a full render would; messages it would super-collapse are collapsed, as a
+     * super-collapsed block cannot be appended.
+     */
+    private void appendNewMessages(MessageCursor messageCursor, int firstNewPos,
+            boolean fromSelf) {
         // Temporarily remove the ConversationFooterItem and its view.
-        // It will get re-added right after the new message is added.
+        // It will get re-added right after the new messages are added.
         final ConversationFooterItem footerItem = mAdapter.removeFooterItem();
         // if no footer, just skip the work for it. The rest should be fine to do.
         if (footerItem != null) {
@@ -1709,10 +1854,33 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         }
 
         mTemplates.reset();
-        // this method will add some items to mAdapter, but we deliberately want to avoid notifying
-        // adapter listeners (i.e. ConversationContainer) until onWebContentGeometryChange is next
-        // called, to prevent N+1 headers rendering with N message bodies.
-        renderMessage(msg, true /* expanded */, msg.alwaysShowImages);
+        final boolean alwaysShowImages = shouldAlwaysShowImages();
+        try {
+            int pos = firstNewPos - 1;
+            while (messageCursor.moveToPosition(++pos)) {
+                final ConversationMessage msg = messageCursor.getMessage();
+                final boolean safeForImages = fromSelf ? msg.alwaysShowImages
+                        : alwaysShowImages || msg.alwaysShowImages;
+                if (safeForImages) {
+                    mWebView.getSettings().setBlockNetworkImage(false);
+                }
+                // this method will add some items to mAdapter, but we deliberately want to avoid
+                // notifying adapter listeners (i.e. ConversationContainer) until
+                // onWebContentGeometryChange is next called, to prevent N+1 headers rendering with
+                // N message bodies.
+                final boolean expanded = fromSelf || ExpansionState.isExpanded(
+                        getInitialExpansionState(msg, messageCursor));
+                renderMessage(msg, expanded, safeForImages);
+
+                mViewState.setExpansionState(msg,
+                        expanded ? ExpansionState.EXPANDED : ExpansionState.COLLAPSED);
+                // FIXME: should the provider set this as initial state?
+                mViewState.setReadState(msg, !fromSelf && msg.read);
+            }
+            mHtmlPipeline.flush();
+        } finally {
+            mHtmlPipeline.clear();
+        }
         mTempBodiesHtml = mTemplates.emit();
 
         if (footerItem != null) {
@@ -1721,9 +1889,7 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
             mAdapter.addItem(footerItem);
         }
 
-        mViewState.setExpansionState(msg, ExpansionState.EXPANDED);
-        // FIXME: should the provider set this as initial state?
-        mViewState.setReadState(msg, false /* read */);
+        mRenderedMessages = getMessages(messageCursor);
 
         // From now until the updated spacer geometry is returned, the adapter items are mismatched
         // with the existing spacers. Do not let them layout.
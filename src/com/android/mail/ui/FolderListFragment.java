@@ -45,6 +45,7 @@ import com.android.mail.R;
 import com.android.mail.analytics.Analytics;
 import com.android.mail.bitmap.AccountAvatarDrawable;
 import com.android.mail.bitmap.ContactResolver;
+import com.android.mail.bitmap.SenderPhotoDiskCache;
 import com.android.mail.browse.MergedAdapter;
 import com.android.mail.content.ObjectCursor;
 import com.android.mail.content.ObjectCursorLoader;
@@ -324,7 +325,7 @@ public class FolderListFragment extends ListFragment implements
                 AVATAR_IMAGES_PREVIEWS_CACHE_NON_POOLED_FRACTION,
                 AVATAR_IMAGES_PREVIEWS_CACHE_NULL_CAPACITY);
         mContactResolver = new ContactResolver(getActivity().getContentResolver(),
-                mImagesCache);
+                mImagesCache, SenderPhotoDiskCache.getInstance(getActivity()));
 
         if (mMiniDrawerEnabled) {
             setupMiniDrawerAccountsAdapter();
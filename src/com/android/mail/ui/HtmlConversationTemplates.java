@@ -27,7 +27,9 @@ import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.Utils;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -70,17 +72,25 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
             "(<\\s*img\\s+(?:[^>]*\\s+)?)src(\\s*=[\\s'\"]*http)", Pattern.CASE_INSENSITIVE
                     | Pattern.MULTILINE);
     /**
-     * The text replacement for {@link #sAbsoluteImgUrlPattern}. The "src" attribute is set to
-     * something inert and not left unset to minimize interactions with existing JS.
+     * What replaces the "src" matched by {@link #sAbsoluteImgUrlPattern}, between its groups. The
+     * "src" attribute is set to something inert and not left unset to minimize interactions with
+     * existing JS.
      */
-    private static final String IMG_URL_REPLACEMENT = "$1src='data:' blocked-src$2";
+    private static final String BLOCKED_IMG_SRC = "src='data:' blocked-src";
+
+    /** The position of the message body among the arguments of the message template. */
+    private static final int MESSAGE_BODY_ARG_INDEX = 5;
+
+    private static final int[] NO_SRCS = new int[0];
 
     private static final String LEFT_TO_RIGHT_TRIANGLE = "\u25B6 ";
     private static final String RIGHT_TO_LEFT_TRIANGLE = "\u25C0 ";
 
     private static boolean sLoadedTemplates;
     private static String sSuperCollapsed;
-    private static String sMessage;
+    /** The message template up to the body, which is copied in between without formatting. */
+    private static String sMessageUpper;
+    private static String sMessageLower;
     private static String sConversationUpper;
     private static String sConversationLower;
 
@@ -92,7 +102,10 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
         if (!sLoadedTemplates) {
             sLoadedTemplates = true;
             sSuperCollapsed = readTemplate(R.raw.template_super_collapsed);
-            sMessage = readTemplate(R.raw.template_message);
+            final String message = readTemplate(R.raw.template_message);
+            final int bodyArg = findFormatArg(message, MESSAGE_BODY_ARG_INDEX);
+            sMessageUpper = message.substring(0, bodyArg);
+            sMessageLower = message.substring(bodyArg + 2);
             sConversationUpper = readTemplate(R.raw.template_conversation_upper);
             sConversationLower = readTemplate(R.raw.template_conversation_lower);
         }
@@ -106,9 +119,72 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
         append(sSuperCollapsed, firstCollapsed, blockHeight);
     }
 
+    /**
+     * Returns the position of the <code>index</code>th "%s" in <code>template</code>.
+     */
+    private static int findFormatArg(String template, int index) {
+        int pos = template.indexOf('%');
+        while (pos >= 0 && pos + 1 < template.length()) {
+            final char conversion = template.charAt(pos + 1);
+            if (conversion == 's' && index-- == 0) {
+                return pos;
+            }
+            pos = template.indexOf('%', pos + 2);
+        }
+        throw new IllegalStateException("Message template has no body argument");
+    }
+
     @VisibleForTesting
     static String replaceAbsoluteImgUrls(final String html) {
-        return sAbsoluteImgUrlPattern.matcher(html).replaceAll(IMG_URL_REPLACEMENT);
+        final StringBuilder sb = new StringBuilder(html.length());
+        appendBlockingImgSrcs(sb, html, findAbsoluteImgSrcs(html));
+        return sb.toString();
+    }
+
+    /**
+     * Returns where the src attributes of img tags pointing at absolute URLs are in
+     * <code>html</code>, as pairs of offsets: where "src" starts and where it ends.
+     */
+    private static int[] findAbsoluteImgSrcs(String html) {
+        final Matcher m = sAbsoluteImgUrlPattern.matcher(html);
+        int[] srcs = NO_SRCS;
+        int count = 0;
+        while (m.find()) {
+            if (count == srcs.length) {
+                srcs = Arrays.copyOf(srcs, Math.max(8, count * 2));
+            }
+            srcs[count++] = m.end(1);
+            srcs[count++] = m.start(2);
+        }
+        return count == srcs.length ? srcs : Arrays.copyOf(srcs, count);
+    }
+
+    /**
+     * Appends <code>html</code> to <code>out</code>, with the src attributes found by
+     * {@link #findAbsoluteImgSrcs(String)} replaced by {@link #BLOCKED_IMG_SRC}.
+     */
+    private static void appendBlockingImgSrcs(StringBuilder out, String html, int[] srcs) {
+        int copied = 0;
+        for (int i = 0; i < srcs.length; i += 2) {
+            out.append(html, copied, srcs[i]).append(BLOCKED_IMG_SRC);
+            copied = srcs[i + 1];
+        }
+        out.append(html, copied, html.length());
+    }
+
+    /**
+     * A message body as it goes into the document: its html, and the src attributes in it to
+     * replace on the way in. Holds no copy of the html, so that the body is only ever copied into
+     * the document.
+     */
+    static final class PreparedBody {
+        private final String mHtml;
+        private final int[] mBlockedSrcs;
+
+        private PreparedBody(String html, int[] blockedSrcs) {
+            mHtml = html;
+            mBlockedSrcs = blockedSrcs;
+        }
     }
 
     /**
@@ -129,13 +205,43 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
 
     public void appendMessageHtml(HtmlMessage message, boolean isExpanded,
             boolean safeForImages, int headerHeight, int footerHeight) {
+        final String body = wrapMessageBody(message.getBodyAsHtml());
+
+        // Bodies can be large, so copy the body into the document once, rather than building a
+        // replaced copy of it and passing that through the formatter.
+        appendMessageUpper(message, isExpanded, safeForImages, headerHeight);
+        if (shouldBlockImages(message, safeForImages)) {
+            appendBlockingImgSrcs(mBuilder, body, findAbsoluteImgSrcs(body));
+        } else {
+            mBuilder.append(body);
+        }
+        appendMessageLower(isExpanded, footerHeight);
+    }
 
-        final String bodyDisplay = isExpanded ? "block" : "none";
-        final String expandedClass = isExpanded ? "expanded" : "";
-        final String showImagesClass = safeForImages ? "mail-show-images" : "";
+    /**
+     * Like {@link #appendMessageHtml(HtmlMessage, boolean, boolean, int, int)}, with a body
+     * returned by {@link #prepareMessageBody(HtmlMessage, boolean)} for the same message and
+     * <code>safeForImages</code>.
+     */
+    void appendMessageHtml(HtmlMessage message, PreparedBody body, boolean isExpanded,
+            boolean safeForImages, int headerHeight, int footerHeight) {
+        appendMessageUpper(message, isExpanded, safeForImages, headerHeight);
+        appendBlockingImgSrcs(mBuilder, body.mHtml, body.mBlockedSrcs);
+        appendMessageLower(isExpanded, footerHeight);
+    }
 
-        String body = message.getBodyAsHtml();
+    /**
+     * Gets the body of the message and finds the img src attributes in it that the document must
+     * block. This involves no template state, so it may be called on any thread, e.g. to prepare
+     * bodies in the background.
+     */
+    static PreparedBody prepareMessageBody(HtmlMessage message, boolean safeForImages) {
+        final String body = wrapMessageBody(message.getBodyAsHtml());
+        return new PreparedBody(body,
+                shouldBlockImages(message, safeForImages) ? findAbsoluteImgSrcs(body) : NO_SRCS);
+    }
 
+    private static boolean shouldBlockImages(HtmlMessage message, boolean safeForImages) {
         /* Work around a WebView bug (5522414) in setBlockNetworkImage that causes img onload event
          * handlers to fire before an image is loaded.
          * WebView will report bad dimensions when revealing inline images with absolute URLs, but
@@ -150,17 +256,28 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
          * URLs) and any false negatives that the regex misses. This maintains overall security
          * level by not relying solely on the regex.
          */
-        if (!safeForImages && message.embedsExternalResources()) {
-            body = replaceAbsoluteImgUrls(body);
-        }
+        return !safeForImages && message.embedsExternalResources();
+    }
+
+    private void appendMessageUpper(HtmlMessage message, boolean isExpanded,
+            boolean safeForImages, int headerHeight) {
+        final String bodyDisplay = isExpanded ? "block" : "none";
+        final String expandedClass = isExpanded ? "expanded" : "";
+        final String showImagesClass = safeForImages ? "mail-show-images" : "";
 
-        append(sMessage,
+        append(sMessageUpper,
                 getMessageDomId(message),
                 expandedClass,
                 headerHeight,
                 showImagesClass,
-                bodyDisplay,
-                wrapMessageBody(body),
+                bodyDisplay
+        );
+    }
+
+    private void appendMessageLower(boolean isExpanded, int footerHeight) {
+        final String bodyDisplay = isExpanded ? "block" : "none";
+
+        append(sMessageLower,
                 bodyDisplay,
                 footerHeight
         );
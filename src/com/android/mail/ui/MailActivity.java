@@ -42,6 +42,7 @@ import com.android.mail.R;
 import com.android.mail.analytics.Analytics;
 import com.android.mail.analytics.AnalyticsTimer;
 import com.android.mail.bitmap.ContactResolver;
+import com.android.mail.bitmap.SenderPhotoDiskCache;
 import com.android.mail.compose.ComposeActivity;
 import com.android.mail.providers.Account;
 import com.android.mail.providers.Folder;
@@ -463,7 +464,8 @@ public class MailActivity extends AbstractMailActivity implements ControllableAc
 
     @Override
     public ContactResolver getContactResolver(ContentResolver resolver, BitmapCache bitmapCache) {
-        return new ContactResolver(resolver, bitmapCache);
+        return new ContactResolver(resolver, bitmapCache,
+                SenderPhotoDiskCache.getInstance(this));
     }
 
     @Override
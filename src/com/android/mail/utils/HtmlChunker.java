@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Splits an HTML document into chunks that {@link HtmlSanitizer} can sanitize independently and
+ * concatenate into exactly the output of sanitizing the whole document.
+ * <p>
+ * A chunk may only end where the sanitizer holds no state: between two top-level block elements,
+ * with nothing open but the document's <code>&lt;html&gt;</code> and <code>&lt;body&gt;</code>.
+ * Elements are tracked by their explicit start and end tags only, so any markup whose structure
+ * or tokenization is open to interpretation (unclosed or misnested elements, unusual comments,
+ * odd attribute quoting, elements whose content is not parsed as HTML) ends the search for
+ * split points, and the rest of the document becomes the last chunk.
+ */
+final class HtmlChunker {
+
+    /** A part of the document, and how to undo the context it is sanitized in. */
+    static final class Chunk {
+        /** The chunk's markup. */
+        final String html;
+
+        /**
+         * True if the chunk starts inside the document's body. It must be sanitized after an
+         * extra <code>&lt;body&gt;</code> tag, and the <code>&lt;div&gt;</code> that tag becomes
+         * removed from the front of the output.
+         */
+        final boolean startsInBody;
+
+        /**
+         * True if the chunk ends inside the document's body. The sanitizer closes the body at the
+         * end of the chunk, and that <code>&lt;/div&gt;</code> must be removed from the end of
+         * the output.
+         */
+        final boolean endsInBody;
+
+        Chunk(String html, boolean startsInBody, boolean endsInBody) {
+            this.html = html;
+            this.startsInBody = startsInBody;
+            this.endsInBody = endsInBody;
+        }
+    }
+
+    /** A chunk may end before one of these elements, when it is at the top level. */
+    private static final Set<String> SPLIT_BEFORE = ImmutableSet.of(
+            "blockquote", "center", "div", "dl", "h1", "h2", "h3", "h4", "h5", "h6", "hr", "ol",
+            "p", "pre", "table", "ul");
+
+    /**
+     * Other elements that may appear at the top level. Anything else there, e.g. a table row or
+     * list item without its container, may be given an implied parent by the sanitizer.
+     */
+    private static final Set<String> TOP_LEVEL = ImmutableSet.of(
+            "a", "abbr", "b", "big", "br", "em", "font", "i", "img", "link", "meta", "s",
+            "script", "small", "span", "strike", "strong", "style", "sub", "sup", "title", "u",
+            "wbr");
+
+    /** Elements that never have content or an end tag. */
+    private static final Set<String> VOID = ImmutableSet.of(
+            "area", "base", "basefont", "br", "col", "embed", "frame", "hr", "img", "input",
+            "isindex", "keygen", "link", "meta", "param", "source", "track", "wbr");
+
+    /** Elements whose content is text, up to the element's end tag. */
+    private static final Set<String> RAW_TEXT = ImmutableSet.of(
+            "script", "style", "textarea", "title");
+
+    /** Elements whose content is tokenized differently by different parsers. */
+    private static final Set<String> UNSUPPORTED = ImmutableSet.of(
+            "iframe", "listing", "noembed", "noframes", "noscript", "plaintext", "xmp");
+
+    private HtmlChunker() {}
+
+    /**
+     * Splits {@code html} into chunks of at least {@code minChunkChars} chars where possible.
+     * The concatenated {@link Chunk#html} of the result is {@code html}.
+     */
+    static List<Chunk> split(String html, int minChunkChars) {
+        final List<Chunk> chunks = new ArrayList<Chunk>();
+        final List<String> open = new ArrayList<String>();
+        final int length = html.length();
+        int chunkStart = 0;
+        boolean chunkStartsInBody = false;
+        int pos = 0;
+
+        while (pos < length) {
+            final int lt = html.indexOf('<', pos);
+            if (lt < 0 || lt + 1 >= length) {
+                break;
+            }
+            final char next = html.charAt(lt + 1);
+            if (next == '!' || next == '?') {
+                pos = skipMarkupDeclaration(html, lt);
+                if (pos < 0) {
+                    break;
+                }
+                continue;
+            }
+
+            final boolean isEndTag = next == '/';
+            final int nameStart = isEndTag ? lt + 2 : lt + 1;
+            if (nameStart >= length || !isAsciiLetter(html.charAt(nameStart))) {
+                if (isEndTag) {
+                    // "</" not followed by a name is dropped rather than treated as text
+                    break;
+                }
+                // a '<' that does not start a tag is text
+                pos = lt + 1;
+                continue;
+            }
+            int nameEnd = nameStart + 1;
+            while (nameEnd < length && isAsciiLetterOrDigit(html.charAt(nameEnd))) {
+                nameEnd++;
+            }
+            final int tagEnd = findTagEnd(html, nameEnd);
+            if (tagEnd < 0) {
+                break;
+            }
+            final String name = html.substring(nameStart, nameEnd).toLowerCase(Locale.US);
+
+            if (isEndTag) {
+                if (open.isEmpty() || !open.get(open.size() - 1).equals(name)) {
+                    break;
+                }
+                open.remove(open.size() - 1);
+                pos = tagEnd;
+                continue;
+            }
+
+            if (UNSUPPORTED.contains(name)) {
+                break;
+            }
+            if (isTopLevel(open)) {
+                if (SPLIT_BEFORE.contains(name)) {
+                    if (lt > chunkStart && lt - chunkStart >= minChunkChars) {
+                        final boolean inBody = open.contains("body");
+                        chunks.add(new Chunk(html.substring(chunkStart, lt), chunkStartsInBody,
+                                inBody));
+                        chunkStart = lt;
+                        chunkStartsInBody = inBody;
+                    }
+                } else if (!TOP_LEVEL.contains(name) && !isDocumentElement(open, name)) {
+                    break;
+                }
+            }
+
+            pos = tagEnd;
+            if (VOID.contains(name)) {
+                continue;
+            }
+            if (html.charAt(tagEnd - 2) == '/') {
+                // a self-closing non-void element is not closed by every parser
+                break;
+            }
+            open.add(name);
+            if (RAW_TEXT.contains(name)) {
+                pos = findRawTextEnd(html, tagEnd, name);
+                if (pos < 0) {
+                    break;
+                }
+            }
+        }
+
+        chunks.add(new Chunk(html.substring(chunkStart), chunkStartsInBody, false));
+        return chunks;
+    }
+
+    /**
+     * Returns true if nothing but the document's <code>&lt;html&gt;</code> and
+     * <code>&lt;body&gt;</code> is open.
+     */
+    private static boolean isTopLevel(List<String> open) {
+        int i = 0;
+        if (i < open.size() && open.get(i).equals("html")) {
+            i++;
+        }
+        if (i < open.size() && open.get(i).equals("body")) {
+            i++;
+        }
+        return i == open.size();
+    }
+
+    /** Returns true if {@code name} starts the html, head or body of the document. */
+    private static boolean isDocumentElement(List<String> open, String name) {
+        if (name.equals("html")) {
+            return open.isEmpty();
+        }
+        if (name.equals("head") || name.equals("body")) {
+            return open.isEmpty() || (open.size() == 1 && open.get(0).equals("html"));
+        }
+        return false;
+    }
+
+    /**
+     * Skips a comment, doctype or processing instruction starting at {@code lt}.
+     *
+     * @return the position after it, or -1 if it is malformed or unusual
+     */
+    private static int skipMarkupDeclaration(String html, int lt) {
+        if (html.startsWith("<!--", lt)) {
+            if (html.startsWith("<!-->", lt) || html.startsWith("<!--->", lt)) {
+                return -1;
+            }
+            final int end = html.indexOf("-->", lt + 4);
+            if (end < 0) {
+                return -1;
+            }
+            final int bang = html.indexOf("--!>", lt + 4);
+            if (bang >= 0 && bang < end) {
+                return -1;
+            }
+            return end + 3;
+        }
+        if (html.startsWith("<![CDATA[", lt)) {
+            return -1;
+        }
+        final int end = html.indexOf('>', lt + 2);
+        if (end < 0) {
+            return -1;
+        }
+        final int nestedLt = html.indexOf('<', lt + 2);
+        if (nestedLt >= 0 && nestedLt < end) {
+            return -1;
+        }
+        return end + 1;
+    }
+
+    /**
+     * Finds the end of the tag whose name ends at {@code pos}.
+     *
+     * @return the position after the closing '>', or -1 if the attributes are not plainly
+     *      formed
+     */
+    private static int findTagEnd(String html, int pos) {
+        final int length = html.length();
+        if (pos < length && !isTagSpace(html.charAt(pos)) && html.charAt(pos) != '/'
+                && html.charAt(pos) != '>') {
+            // names with other characters, e.g. "o:p", are read differently by different parsers
+            return -1;
+        }
+        char lastNonSpace = 0;
+        while (pos < length) {
+            final char c = html.charAt(pos);
+            if (c == '>') {
+                return pos + 1;
+            }
+            if (c == '<' || c == '`') {
+                return -1;
+            }
+            if (c == '"' || c == '\'') {
+                if (lastNonSpace != '=') {
+                    return -1;
+                }
+                final int close = html.indexOf(c, pos + 1);
+                if (close < 0 || close + 1 >= length) {
+                    return -1;
+                }
+                final char after = html.charAt(close + 1);
+                if (!isTagSpace(after) && after != '/' && after != '>') {
+                    return -1;
+                }
+                lastNonSpace = c;
+                pos = close + 1;
+                continue;
+            }
+            if (!isTagSpace(c)) {
+                lastNonSpace = c;
+            }
+            pos++;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the end tag of the raw text element {@code name} whose content starts at {@code pos}.
+     *
+     * @return the position of the end tag, or -1 if there is none or the content looks like markup
+     *      to some parsers
+     */
+    private static int findRawTextEnd(String html, int pos, String name) {
+        final boolean textMayHoldMarkup = !name.equals("script") && !name.equals("style");
+        final int length = html.length();
+        final int comment = html.indexOf("<!--", pos);
+        for (int lt = html.indexOf("</", pos); lt >= 0; lt = html.indexOf("</", lt + 2)) {
+            final int nameEnd = lt + 2 + name.length();
+            if (nameEnd < length && html.regionMatches(true, lt + 2, name, 0, name.length())) {
+                final char after = html.charAt(nameEnd);
+                if (isTagSpace(after) || after == '/' || after == '>') {
+                    if (textMayHoldMarkup && html.lastIndexOf('<', lt - 1) >= pos) {
+                        return -1;
+                    }
+                    if (comment >= 0 && comment < lt) {
+                        // "<!--" can hide the end tag of a script from some parsers
+                        return -1;
+                    }
+                    return lt;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isTagSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c) {
+        return isAsciiLetter(c) || (c >= '0' && c <= '9');
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.util.LruCache;
+
+import com.android.mail.perf.CacheStats;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A process-wide cache of the results of converting message bodies: sanitized HTML and plain
+ * text renditions. The same body is typically converted several times (when a conversation is
+ * re-rendered, when a notification is rebuilt, when a reply quotes it), and each conversion
+ * parses the whole body.
+ * <p>
+ * Entries are keyed by a SHA-256 digest of the input, the kind of conversion and the version of
+ * the policy that produced them, so the input strings themselves are not retained. The cache is
+ * bounded by the approximate number of bytes held by the cached values. Hits and misses for each
+ * kind are counted in a {@link CacheStats} named after it.
+ * <p>
+ * Typical use:
+ * <pre>
+ * final HtmlContentCache.Key key = HtmlContentCache.newKey(Kind.PLAIN_TEXT, html);
+ * String text = HtmlContentCache.getInstance().get(key);
+ * if (text == null) {
+ *     text = convert(html);
+ *     HtmlContentCache.getInstance().put(key, text);
+ * }
+ * </pre>
+ */
+public final class HtmlContentCache {
+
+    /** The kinds of conversion whose results are cached. */
+    public enum Kind {
+        /** {@link HtmlSanitizer#sanitizeHtml} output. */
+        SANITIZED_HTML("html.sanitized", HtmlSanitizer.VERSION),
+        /** {@link Utils#convertHtmlToPlainText(String)} output. */
+        PLAIN_TEXT("html.plainText", 1),
+        /** {@link NotificationUtils#getMessageBodyWithoutElidedText(String)} output. */
+        PLAIN_TEXT_WITHOUT_ELIDED("html.plainTextWithoutElided", 1);
+
+        final CacheStats stats;
+
+        /**
+         * Bump this whenever the conversion changes its output, so that results of the old
+         * version are never returned.
+         */
+        final int version;
+
+        private Kind(String statsName, int version) {
+            this.stats = CacheStats.get(statsName);
+            this.version = version;
+        }
+    }
+
+    /**
+     * Identifies the result of one kind of conversion of one input.
+     */
+    public static final class Key {
+        private final Kind mKind;
+        private final int mVersion;
+        private final byte[] mDigest;
+        private final int mHashCode;
+
+        private Key(Kind kind, byte[] digest) {
+            mKind = kind;
+            mVersion = kind.version;
+            mDigest = digest;
+            mHashCode = 31 * (31 * kind.hashCode() + mVersion) + Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mKind == other.mKind && mVersion == other.mVersion
+                    && Arrays.equals(mDigest, other.mDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    /** Bytes of cached values held at most, counting two bytes per char. */
+    private static final int MAX_SIZE_BYTES = 2 * 1024 * 1024;
+
+    /** Values larger than this fraction of the cache are not worth evicting the rest for. */
+    private static final int MAX_ENTRY_FRACTION = 4;
+
+    /** Rough per-entry cost of the key, the digest and the cache's bookkeeping. */
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    /** Number of chars digested at a time. */
+    private static final int DIGEST_CHUNK_CHARS = 2048;
+
+    private static HtmlContentCache sInstance;
+
+    private final int mMaxEntryBytes;
+    private final LruCache<Key, String> mCache;
+
+    public static synchronized HtmlContentCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new HtmlContentCache(MAX_SIZE_BYTES);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    HtmlContentCache(int maxSizeBytes) {
+        mMaxEntryBytes = maxSizeBytes / MAX_ENTRY_FRACTION;
+        mCache = new LruCache<Key, String>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(Key key, String value) {
+                return weigh(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Key key, String oldValue,
+                    String newValue) {
+                if (evicted) {
+                    key.mKind.stats.evicted();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the key for the result of converting {@code input} with the given kind of
+     * conversion. Computing it reads all of {@code input}.
+     */
+    public static Key newKey(Kind kind, String input) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final int length = input.length();
+        final byte[] buffer = new byte[2 * Math.min(length, DIGEST_CHUNK_CHARS)];
+        for (int start = 0; start < length; start += DIGEST_CHUNK_CHARS) {
+            final int end = Math.min(length, start + DIGEST_CHUNK_CHARS);
+            int b = 0;
+            for (int i = start; i < end; i++) {
+                final char c = input.charAt(i);
+                buffer[b++] = (byte) (c >> 8);
+                buffer[b++] = (byte) c;
+            }
+            digest.update(buffer, 0, b);
+        }
+        return new Key(kind, digest.digest());
+    }
+
+    /**
+     * Returns the cached result for {@code key}, or null if there is none.
+     */
+    public String get(Key key) {
+        final String value = mCache.get(key);
+        if (value != null) {
+            key.mKind.stats.hit();
+        } else {
+            key.mKind.stats.miss();
+        }
+        return value;
+    }
+
+    /**
+     * Caches the result for {@code key}. Null values and values too large to be worth keeping
+     * are ignored.
+     */
+    public void put(Key key, String value) {
+        if (value != null && weigh(value) <= mMaxEntryBytes) {
+            mCache.put(key, value);
+        }
+    }
+
+    /**
+     * Drops every cached result, e.g. when the system is low on memory.
+     */
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    @VisibleForTesting
+    int sizeBytes() {
+        return mCache.size();
+    }
+
+    private static int weigh(String value) {
+        return 2 * value.length() + ENTRY_OVERHEAD_BYTES;
+    }
+}
@@ -19,6 +19,7 @@ import android.os.Looper;
 import android.util.Log;
 
 import com.android.mail.perf.Timer;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 
@@ -31,7 +32,14 @@ import org.owasp.html.HtmlPolicyBuilder;
 import org.owasp.html.HtmlStreamRenderer;
 import org.owasp.html.PolicyFactory;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This sanitizer is meant to strip all scripts and any malicious HTML from untrusted emails. It
@@ -57,6 +65,31 @@ public final class HtmlSanitizer {
 
     private static final String LOG_TAG = LogTag.getLogTag();
 
+    /** Bodies at least this long are split into chunks that are sanitized concurrently. */
+    private static final int CHUNKED_SANITIZE_THRESHOLD = 256 * 1024;
+
+    /** Chunks shorter than this are not worth handing to another thread. */
+    private static final int MIN_CHUNK_CHARS = 32 * 1024;
+
+    private static final int CHUNK_THREADS =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final ThreadPoolExecutor CHUNK_EXECUTOR = new ThreadPoolExecutor(
+            CHUNK_THREADS, CHUNK_THREADS, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        CHUNK_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /** Gives a chunk from within the document's body the same context as in the document. */
+    private static final String BODY_START_TAG = "<body>";
+
+    /** What the sanitizer turns {@link #BODY_START_TAG} into. */
+    private static final String SANITIZED_BODY_START_TAG = "<div>";
+
+    /** What the sanitizer closes a body left open at the end of its input with. */
+    private static final String SANITIZED_BODY_END_TAG = "</div>";
+
     /**
      * The following CSS properties do not appear in the default whitelist from OWASP, but they
      * improve the fidelity of the HTML display without unacceptable risk.
@@ -370,20 +403,164 @@ public final class HtmlSanitizer {
      *      <code>rawHtml</code> was <code>null</code>
      */
     public static String sanitizeHtml(final String rawHtml) {
-        if (Looper.getMainLooper() == Looper.myLooper()) {
-            throw new IllegalStateException("sanitizing email should not occur on the main thread");
-        }
+        checkNotMainThread();
 
         if (rawHtml == null) {
             return null;
         }
 
+        // the same body is often sanitized repeatedly, e.g. each time an .eml file is viewed
+        final HtmlContentCache cache = HtmlContentCache.getInstance();
+        final HtmlContentCache.Key key =
+                HtmlContentCache.newKey(HtmlContentCache.Kind.SANITIZED_HTML, rawHtml);
+        final String cachedHtml = cache.get(key);
+        if (cachedHtml != null) {
+            return cachedHtml;
+        }
+
         // create the builder into which the sanitized email will be written
         final StringBuilder htmlBuilder = new StringBuilder(rawHtml.length());
+        sanitize(rawHtml, htmlBuilder);
+
+        // return the resulting HTML from the builder
+        final String sanitizedHtml = htmlBuilder.toString();
+        cache.put(key, sanitizedHtml);
+        return sanitizedHtml;
+    }
+
+    private static void checkNotMainThread() {
+        if (Looper.getMainLooper() == Looper.myLooper()) {
+            throw new IllegalStateException("sanitizing email should not occur on the main thread");
+        }
+    }
+
+    /**
+     * Sanitizes the <code>rawHtml</code> into <code>out</code>, in chunks if it is large.
+     */
+    private static void sanitize(final String rawHtml, final StringBuilder out) {
+        // run the html through the sanitizer
+        Timer.startTiming("sanitizingHTMLEmail");
+        try {
+            if (rawHtml.length() >= CHUNKED_SANITIZE_THRESHOLD) {
+                sanitizeInChunks(rawHtml,
+                        Math.max(MIN_CHUNK_CHARS, rawHtml.length() / (2 * CHUNK_THREADS)), out);
+            } else {
+                sanitizeSerially(rawHtml, out);
+            }
+        } finally {
+            Timer.stopTiming("sanitizingHTMLEmail");
+        }
+    }
+
+    /**
+     * Splits the <code>rawHtml</code> into chunks of at least <code>minChunkChars</code> where
+     * that can be done without changing the result (see {@link HtmlChunker}), and sanitizes them
+     * concurrently.
+     *
+     * @return exactly what sanitizing <code>rawHtml</code> as a whole returns
+     */
+    @VisibleForTesting
+    static String sanitizeHtmlInChunks(final String rawHtml, int minChunkChars) {
+        final StringBuilder htmlBuilder = new StringBuilder(rawHtml.length());
+        sanitizeInChunks(rawHtml, minChunkChars, htmlBuilder);
+        return htmlBuilder.toString();
+    }
+
+    /**
+     * Appends each chunk to <code>out</code> as soon as it and the chunks before it are
+     * sanitized, so that the sanitized chunks are not all held at once.
+     */
+    private static void sanitizeInChunks(final String rawHtml, int minChunkChars,
+            final StringBuilder out) {
+        final List<HtmlChunker.Chunk> chunks = HtmlChunker.split(rawHtml, minChunkChars);
+        if (chunks.size() == 1) {
+            sanitizeSerially(rawHtml, out);
+            return;
+        }
+
+        final List<Future<String>> results = new ArrayList<Future<String>>(chunks.size());
+        for (final HtmlChunker.Chunk chunk : chunks) {
+            results.add(CHUNK_EXECUTOR.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    // a chunk from within the body is sanitized within a body of its own
+                    return sanitizeSerially(
+                            chunk.startsInBody ? BODY_START_TAG + chunk.html : chunk.html);
+                }
+            }));
+        }
+
+        // what is written before a bad chunk is found is taken back
+        final int start = out.length();
+        try {
+            for (int i = 0; i < chunks.size(); i++) {
+                final HtmlChunker.Chunk chunk = chunks.get(i);
+                final String html = getChunkResult(results.get(i));
+                if (chunk.startsInBody && !html.startsWith(SANITIZED_BODY_START_TAG)
+                        || chunk.endsInBody && !html.endsWith(SANITIZED_BODY_END_TAG)) {
+                    sanitizeAfterChunkMismatch(rawHtml, results, out, start);
+                    return;
+                }
+                final int htmlStart = chunk.startsInBody ? SANITIZED_BODY_START_TAG.length() : 0;
+                final int htmlEnd = html.length()
+                        - (chunk.endsInBody ? SANITIZED_BODY_END_TAG.length() : 0);
+                out.append(html, htmlStart, Math.max(htmlStart, htmlEnd));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sanitizeAfterChunkMismatch(rawHtml, results, out, start);
+        }
+    }
+
+    /**
+     * Waits for the sanitized form of a chunk, rethrowing anything the sanitizer threw.
+     */
+    private static String getChunkResult(Future<String> result) throws InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Abandons the chunks, drops what was written of them from <code>start</code> on, and
+     * sanitizes the whole <code>rawHtml</code> instead. This should not happen, but guarantees
+     * the chunked result never differs from the serial one.
+     */
+    private static void sanitizeAfterChunkMismatch(String rawHtml, List<Future<String>> results,
+            StringBuilder out, int start) {
+        for (Future<String> result : results) {
+            result.cancel(true);
+        }
+        out.setLength(start);
+        Log.w(LOG_TAG, "Chunked sanitizing abandoned, sanitizing the html as a whole");
+        sanitizeSerially(rawHtml, out);
+    }
+
+    /**
+     * Runs the html through the sanitizer on the calling thread.
+     */
+    private static String sanitizeSerially(final String rawHtml) {
+        final StringBuilder htmlBuilder = new StringBuilder(rawHtml.length());
+        sanitizeSerially(rawHtml, htmlBuilder);
+        return htmlBuilder.toString();
+    }
 
-        // create the renderer that will write the sanitized HTML to the builder
+    /**
+     * Runs the html through the sanitizer on the calling thread, writing to <code>out</code>.
+     */
+    private static void sanitizeSerially(final String rawHtml, final StringBuilder out) {
+        // create the renderer that will write the sanitized HTML to the output
         final HtmlStreamRenderer renderer = HtmlStreamRenderer.create(
-                htmlBuilder,
+                out,
                 Handler.PROPAGATE,
                 // log errors resulting from exceptionally bizarre inputs
                 new Handler<String>() {
@@ -398,14 +575,6 @@ public final class HtmlSanitizer {
         final org.owasp.html.HtmlSanitizer.Policy policy = POLICY_DEFINITION.apply(renderer);
 
         // run the html through the sanitizer
-        Timer.startTiming("sanitizingHTMLEmail");
-        try {
-            org.owasp.html.HtmlSanitizer.sanitize(rawHtml, policy);
-        } finally {
-            Timer.stopTiming("sanitizingHTMLEmail");
-        }
-
-        // return the resulting HTML from the builder
-        return htmlBuilder.toString();
+        org.owasp.html.HtmlSanitizer.sanitize(rawHtml, policy);
     }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.android.mail.providers.Account;
+import com.android.mail.providers.Folder;
+import com.android.mail.providers.MailAppProvider;
+import com.android.mail.providers.UIProvider;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the accounts and folders of the cached notification entries when the notification
+ * map is rebuilt, e.g. after boot. Entries typically share accounts, and several entries of an
+ * account are folders of the same folder list, so querying each entry's account and folder costs
+ * many more provider calls than needed.
+ * <ul>
+ *     <li>When several accounts are referenced, every account is loaded with one query of the
+ *     account list.</li>
+ *     <li>When several folders of an account are referenced, they are loaded with one query of the
+ *     account's full folder list. The accounts' folders are loaded in parallel.</li>
+ *     <li>Anything not found in a list is queried directly, as a single entry always is.</li>
+ * </ul>
+ * Everything loaded is kept for the life of the resolver, which is one rebuild.
+ */
+final class NotificationEntryResolver {
+    private static final String LOG_TAG = NotificationUtils.LOG_TAG;
+
+    /** Threads loading the folders of accounts other than the first. */
+    private static final int LOAD_THREADS = 2;
+
+    private static final ThreadPoolExecutor LOAD_EXECUTOR = new ThreadPoolExecutor(
+            LOAD_THREADS, LOAD_THREADS, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        LOAD_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final ContentResolver mResolver;
+    /** The uri listing every account, or null when there is no account list to query. */
+    private final Uri mAccountsUri;
+    /** Loaded accounts by uri, with null for accounts that do not exist. */
+    private final Map<Uri, Account> mAccounts = Maps.newHashMap();
+    /** Loaded folders by uri, with null for folders that do not exist. */
+    private final Map<Uri, Folder> mFolders = Maps.newHashMap();
+
+    NotificationEntryResolver(ContentResolver resolver) {
+        this(resolver, MailAppProvider.getInstance() != null
+                ? MailAppProvider.getAccountsUri() : null);
+    }
+
+    @VisibleForTesting
+    NotificationEntryResolver(ContentResolver resolver, Uri accountsUri) {
+        mResolver = resolver;
+        mAccountsUri = accountsUri;
+    }
+
+    /**
+     * Returns the accounts with the given uris, leaving out accounts that do not exist.
+     */
+    Map<Uri, Account> getAccounts(Collection<Uri> accountUris) {
+        final List<Uri> missing = Lists.newArrayList();
+        for (Uri uri : accountUris) {
+            if (!mAccounts.containsKey(uri)) {
+                missing.add(uri);
+            }
+        }
+        if (missing.size() > 1 && mAccountsUri != null) {
+            final Cursor cursor = mResolver.query(mAccountsUri, UIProvider.ACCOUNTS_PROJECTION,
+                    null, null, null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        final Account account = Account.builder().buildFrom(cursor);
+                        if (missing.remove(account.uri)) {
+                            mAccounts.put(account.uri, account);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+        for (Uri uri : missing) {
+            mAccounts.put(uri, queryAccount(uri));
+        }
+
+        final Map<Uri, Account> accounts = Maps.newHashMap();
+        for (Uri uri : accountUris) {
+            final Account account = mAccounts.get(uri);
+            if (account != null) {
+                accounts.put(uri, account);
+            }
+        }
+        return accounts;
+    }
+
+    /**
+     * Returns the folders with the given uris, leaving out folders that do not exist. The
+     * folders of each account are loaded in parallel with those of the others.
+     *
+     * @param folderUris the uris of the folders wanted, by the account they belong to
+     */
+    Map<Uri, Folder> getFolders(Map<Account, Set<Uri>> folderUris) {
+        final List<Future<Map<Uri, Folder>>> others = Lists.newArrayList();
+        Account firstAccount = null;
+        Set<Uri> firstMissing = null;
+        for (Map.Entry<Account, Set<Uri>> entry : folderUris.entrySet()) {
+            final Account account = entry.getKey();
+            final Set<Uri> missing = Sets.newHashSet();
+            for (Uri uri : entry.getValue()) {
+                if (!mFolders.containsKey(uri)) {
+                    missing.add(uri);
+                }
+            }
+            if (missing.isEmpty()) {
+                continue;
+            }
+            if (firstAccount == null) {
+                firstAccount = account;
+                firstMissing = missing;
+                continue;
+            }
+            others.add(LOAD_EXECUTOR.submit(new Callable<Map<Uri, Folder>>() {
+                @Override
+                public Map<Uri, Folder> call() {
+                    return loadFolders(account, missing);
+                }
+            }));
+        }
+
+        if (firstAccount != null) {
+            mFolders.putAll(loadFolders(firstAccount, firstMissing));
+        }
+        try {
+            for (Future<Map<Uri, Folder>> loaded : others) {
+                mFolders.putAll(loaded.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading folders", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+
+        final Map<Uri, Folder> folders = Maps.newHashMap();
+        for (Set<Uri> uris : folderUris.values()) {
+            for (Uri uri : uris) {
+                final Folder folder = mFolders.get(uri);
+                if (folder != null) {
+                    folders.put(uri, folder);
+                }
+            }
+        }
+        return folders;
+    }
+
+    /**
+     * Loads the folders of one account, with null for folders that do not exist. Runs on any
+     * thread, so it leaves the resolver's own maps alone.
+     */
+    private Map<Uri, Folder> loadFolders(Account account, Set<Uri> folderUris) {
+        final Map<Uri, Folder> folders = Maps.newHashMap();
+        if (folderUris.size() > 1 && account.fullFolderListUri != null) {
+            final Cursor cursor = mResolver.query(account.fullFolderListUri,
+                    UIProvider.FOLDERS_PROJECTION, null, null, null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        final Folder folder = new Folder(cursor);
+                        final Uri uri = folder.folderUri.fullUri;
+                        if (folderUris.contains(uri)) {
+                            folders.put(uri, folder);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+        for (Uri uri : folderUris) {
+            if (!folders.containsKey(uri)) {
+                folders.put(uri, queryFolder(uri));
+            }
+        }
+        LogUtils.d(LOG_TAG, "NotificationEntryResolver: loaded %d folders of %s",
+                folderUris.size(), LogUtils.sanitizeName(LOG_TAG, account.getEmailAddress()));
+        return folders;
+    }
+
+    private Account queryAccount(Uri accountUri) {
+        final Cursor cursor = mResolver.query(accountUri, UIProvider.ACCOUNTS_PROJECTION,
+                null, null, null);
+        if (cursor == null) {
+            throw new IllegalStateException("Unable to locate account for uri: " +
+                    LogUtils.contentUriToString(accountUri));
+        }
+        try {
+            return cursor.moveToFirst() ? Account.builder().buildFrom(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Folder queryFolder(Uri folderUri) {
+        final Cursor cursor = mResolver.query(folderUri, UIProvider.FOLDERS_PROJECTION,
+                null, null, null);
+        if (cursor == null) {
+            throw new IllegalStateException("Unable to locate folder for uri: " +
+                    LogUtils.contentUriToString(folderUri));
+        }
+        try {
+            return cursor.moveToFirst() ? new Folder(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
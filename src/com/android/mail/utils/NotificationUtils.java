@@ -17,7 +17,6 @@ package com.android.mail.utils;
 
 import android.app.Notification;
 import android.app.PendingIntent;
-import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -30,7 +29,6 @@ import android.net.MailTo;
 import android.net.Uri;
 import android.os.Looper;
 import android.provider.ContactsContract;
-import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.support.v4.text.BidiFormatter;
@@ -44,6 +42,8 @@ import android.util.Pair;
 import android.util.SparseArray;
 
 import com.android.emailcommon.mail.Address;
+import com.android.mail.ContactInfo;
+import com.android.mail.ContactLookup;
 import com.android.mail.EmailAddress;
 import com.android.mail.MailIntentService;
 import com.android.mail.R;
@@ -70,6 +70,7 @@ import com.google.android.mail.common.html.parser.HtmlTree;
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Closeables;
 
@@ -217,63 +218,59 @@ public class NotificationUtils {
         }
 
         /**
-         * Populates the notification map with previously cached data.
+         * Populates the notification map with previously cached data. The accounts and folders
+         * of all entries are resolved together, see {@link NotificationEntryResolver}.
          */
         public synchronized void loadNotificationMap(final Context context) {
             final MailPrefs mailPrefs = MailPrefs.get(context);
             final Set<String> notificationSet = mailPrefs.getActiveNotificationSet();
-            if (notificationSet != null) {
-                for (String notificationEntry : notificationSet) {
-                    // Get the parts of the string that make the notification entry
-                    final String[] notificationParts =
-                            TextUtils.split(notificationEntry, NOTIFICATION_PART_SEPARATOR);
-                    if (notificationParts.length == NUM_NOTIFICATION_PARTS) {
-                        final Uri accountUri = Uri.parse(notificationParts[0]);
-                        final Cursor accountCursor = context.getContentResolver().query(
-                                accountUri, UIProvider.ACCOUNTS_PROJECTION, null, null, null);
-
-                        if (accountCursor == null) {
-                            throw new IllegalStateException("Unable to locate account for uri: " +
-                                    LogUtils.contentUriToString(accountUri));
-                        }
-
-                        final Account account;
-                        try {
-                            if (accountCursor.moveToFirst()) {
-                                account = Account.builder().buildFrom(accountCursor);
-                            } else {
-                                continue;
-                            }
-                        } finally {
-                            accountCursor.close();
-                        }
-
-                        final Uri folderUri = Uri.parse(notificationParts[1]);
-                        final Cursor folderCursor = context.getContentResolver().query(
-                                folderUri, UIProvider.FOLDERS_PROJECTION, null, null, null);
+            if (notificationSet == null) {
+                return;
+            }
 
-                        if (folderCursor == null) {
-                            throw new IllegalStateException("Unable to locate folder for uri: " +
-                                    LogUtils.contentUriToString(folderUri));
-                        }
+            // Get the parts of the strings that make the notification entries
+            final List<String[]> entries = Lists.newArrayList();
+            final Set<Uri> accountUris = Sets.newHashSet();
+            for (String notificationEntry : notificationSet) {
+                final String[] notificationParts =
+                        TextUtils.split(notificationEntry, NOTIFICATION_PART_SEPARATOR);
+                if (notificationParts.length == NUM_NOTIFICATION_PARTS) {
+                    entries.add(notificationParts);
+                    accountUris.add(Uri.parse(notificationParts[0]));
+                }
+            }
+            if (entries.isEmpty()) {
+                return;
+            }
 
-                        final Folder folder;
-                        try {
-                            if (folderCursor.moveToFirst()) {
-                                folder = new Folder(folderCursor);
-                            } else {
-                                continue;
-                            }
-                        } finally {
-                            folderCursor.close();
-                        }
+            final NotificationEntryResolver resolver =
+                    new NotificationEntryResolver(context.getContentResolver());
+            final Map<Uri, Account> accounts = resolver.getAccounts(accountUris);
+            final Map<Account, Set<Uri>> folderUris = Maps.newHashMap();
+            for (String[] notificationParts : entries) {
+                final Account account = accounts.get(Uri.parse(notificationParts[0]));
+                if (account == null) {
+                    continue;
+                }
+                Set<Uri> uris = folderUris.get(account);
+                if (uris == null) {
+                    uris = Sets.newHashSet();
+                    folderUris.put(account, uris);
+                }
+                uris.add(Uri.parse(notificationParts[1]));
+            }
+            final Map<Uri, Folder> folders = resolver.getFolders(folderUris);
 
-                        final NotificationKey key = new NotificationKey(account, folder);
-                        final Integer unreadValue = Integer.valueOf(notificationParts[2]);
-                        final Integer unseenValue = Integer.valueOf(notificationParts[3]);
-                        put(key, unreadValue, unseenValue);
-                    }
+            for (String[] notificationParts : entries) {
+                final Account account = accounts.get(Uri.parse(notificationParts[0]));
+                final Folder folder = folders.get(Uri.parse(notificationParts[1]));
+                if (account == null || folder == null) {
+                    continue;
                 }
+                final NotificationKey key = new NotificationKey(account, folder);
+                final Integer unreadValue = Integer.valueOf(notificationParts[2]);
+                final Integer unseenValue = Integer.valueOf(notificationParts[3]);
+                put(key, unreadValue, unseenValue);
             }
         }
 
@@ -1738,31 +1735,18 @@ public class NotificationUtils {
     }
 
     private static ArrayList<Long> findContacts(Context context, Collection<String> addresses) {
-        ArrayList<String> whereArgs = new ArrayList<String>();
-        StringBuilder whereBuilder = new StringBuilder();
-        String[] questionMarks = new String[addresses.size()];
-
-        whereArgs.addAll(addresses);
-        Arrays.fill(questionMarks, "?");
-        whereBuilder.append(Email.DATA1 + " IN (").
-                append(TextUtils.join(",", questionMarks)).
-                append(")");
-
-        ContentResolver resolver = context.getContentResolver();
-        Cursor c = resolver.query(Email.CONTENT_URI,
-                new String[] {Email.CONTACT_ID}, whereBuilder.toString(),
-                whereArgs.toArray(new String[0]), null);
+        // Shares the lookup, and any in-flight query, with the sender images of the app's UI.
+        final Map<String, ContactInfo> contacts =
+                ContactLookup.lookup(context.getContentResolver(), addresses);
 
         ArrayList<Long> contactIds = new ArrayList<Long>();
-        if (c == null) {
+        if (contacts == null) {
             return contactIds;
         }
-        try {
-            while (c.moveToNext()) {
-                contactIds.add(c.getLong(0));
+        for (ContactInfo info : contacts.values()) {
+            if (info.contactUri != null) {
+                contactIds.add(ContentUris.parseId(info.contactUri));
             }
-        } finally {
-            c.close();
         }
         return contactIds;
     }
@@ -1816,11 +1800,18 @@ public class NotificationUtils {
         if (TextUtils.isEmpty(html)) {
             return "";
         }
-        // Get the html "tree" for this message body
-        final HtmlTree htmlTree = com.android.mail.utils.Utils.getHtmlTree(html);
-        htmlTree.setConverterFactory(MESSAGE_CONVERTER_FACTORY);
-
-        return htmlTree.getPlainText();
+        final HtmlContentCache cache = HtmlContentCache.getInstance();
+        final HtmlContentCache.Key key = HtmlContentCache.newKey(
+                HtmlContentCache.Kind.PLAIN_TEXT_WITHOUT_ELIDED, html);
+        String plainText = cache.get(key);
+        if (plainText == null) {
+            // Get the html "tree" for this message body
+            final HtmlTree htmlTree = com.android.mail.utils.Utils.getHtmlTree(html);
+            htmlTree.setConverterFactory(MESSAGE_CONVERTER_FACTORY);
+            plainText = htmlTree.getPlainText();
+            cache.put(key, plainText);
+        }
+        return plainText;
     }
 
     public static void markSeen(final Context context, final Folder folder) {
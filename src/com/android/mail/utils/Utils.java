@@ -51,6 +51,7 @@ import android.webkit.WebSettings;
 import android.webkit.WebView;
 
 import com.android.emailcommon.mail.Address;
+import com.android.mail.ContactLookup;
 import com.android.mail.R;
 import com.android.mail.browse.ConversationCursor;
 import com.android.mail.compose.ComposeActivity;
@@ -267,7 +268,10 @@ public class Utils {
         }
 
         @Override
-        public void onLowMemory() {}
+        public void onLowMemory() {
+            HtmlContentCache.getInstance().clear();
+            ContactLookup.clearCache();
+        }
     }
 
     public static void getStaticResources(Context context) {
@@ -340,7 +344,16 @@ public class Utils {
         if (TextUtils.isEmpty(htmlText)) {
             return "";
         }
-        return getHtmlTree(htmlText, new HtmlParser(), new HtmlTreeBuilder()).getPlainText();
+        final HtmlContentCache cache = HtmlContentCache.getInstance();
+        final HtmlContentCache.Key key =
+                HtmlContentCache.newKey(HtmlContentCache.Kind.PLAIN_TEXT, htmlText);
+        String plainText = cache.get(key);
+        if (plainText == null) {
+            plainText = getHtmlTree(htmlText, new HtmlParser(), new HtmlTreeBuilder())
+                    .getPlainText();
+            cache.put(key, plainText);
+        }
+        return plainText;
     }
 
     public static String convertHtmlToPlainText(String htmlText, HtmlParser parser,
@@ -27,7 +27,6 @@ import com.google.common.io.ByteStreams;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.regex.Matcher;
@@ -58,7 +57,13 @@ public class HtmlParser {
   private String html;
 
   // The entire array of nodes
-  private List<HtmlDocument.Node> nodes;
+  private ArrayList<HtmlDocument.Node> nodes;
+
+  // Index of the first of the Text nodes at the end of nodes, or -1
+  private int textRunStart;
+
+  // Rough number of html characters per node, for sizing the node list
+  private static final int EXPECTED_CHARS_PER_NODE = 32;
 
   // Turn on for debug information.
   private static boolean DEBUG = false;
@@ -186,9 +191,11 @@ public class HtmlParser {
    */
   public HtmlDocument parse(String html) {
     this.html = html;
-    // Use a LinkedList because we don't know the number of nodes ahead of
-    // time. This will be compacted into an ArrayList in coalesceTextNodes().
-    nodes = Lists.newLinkedList();
+    // Adjacent Text nodes are coalesced as they are added, so the list only
+    // grows at its end.
+    nodes = new ArrayList<HtmlDocument.Node>(
+        Math.max(16, html.length() / EXPECTED_CHARS_PER_NODE));
+    textRunStart = -1;
     state = State.IN_TEXT;
 
     clipped = false;
@@ -232,7 +239,7 @@ public class HtmlParser {
       clipped = pos >= clipLength;
     }
 
-    nodes = coalesceTextNodes(nodes);
+    flushTextRun();
 
     HtmlDocument doc = new HtmlDocument(nodes);
     nodes = null;
@@ -252,54 +259,77 @@ public class HtmlParser {
       List<HtmlDocument.Node> nodes) {
     List<HtmlDocument.Node> out =
         new ArrayList<HtmlDocument.Node>(nodes.size());
-    LinkedList<HtmlDocument.Text> textNodes = Lists.newLinkedList();
+    int runStart = -1;
 
     for (HtmlDocument.Node node : nodes) {
       if (node instanceof HtmlDocument.Text) {
-        textNodes.add((HtmlDocument.Text) node);
+        if (runStart < 0) {
+          runStart = out.size();
+        }
       } else {
-        mergeTextNodes(textNodes, out);
-        out.add(node);
+        mergeTextNodes(out, runStart);
+        runStart = -1;
       }
+      out.add(node);
     }
-    mergeTextNodes(textNodes, out);
+    mergeTextNodes(out, runStart);
     return out;
   }
 
   /**
-   * Flushes any Text nodes in {@code textNodes} into a single Text node
-   * in {@code output}. {@code textNodes} is guaranteed to be empty when
-   * the function returns.
-   * @param textNodes Text nodes.
-   * @param output Destination to which results are added.
+   * Adds a node to the document being parsed, coalescing adjacent Text nodes
+   * (see {@link #coalesceTextNodes}).
    */
-  private static void mergeTextNodes(LinkedList<HtmlDocument.Text> textNodes,
-                                     List<HtmlDocument.Node> output) {
-    if (!textNodes.isEmpty()) {
-      if (textNodes.size() == 1) {
-        output.add(textNodes.removeFirst());
-      } else {
-        int combinedTextLen = 0;
-        int combinedInputLen = 0;
-        for (HtmlDocument.Text text : textNodes) {
-          combinedTextLen += text.getText().length();
-          if (text.getOriginalHTML() != null) {
-            combinedInputLen += text.getOriginalHTML().length();
-          }
-        }
-        StringBuilder combinedText = new StringBuilder(combinedTextLen);
-        StringBuilder combinedInput = new StringBuilder(combinedInputLen);
-        while (!textNodes.isEmpty()) {
-          HtmlDocument.Text text = textNodes.removeFirst();
-          combinedText.append(text.getText());
-          if (text.getOriginalHTML() != null) {
-            combinedInput.append(text.getOriginalHTML());
-          }
-        }
-        String originalInput = combinedInputLen > 0 ? combinedInput.toString() : null;
-        output.add(HtmlDocument.createText(combinedText.toString(), originalInput));
+  private void addNode(HtmlDocument.Node node) {
+    if (node instanceof HtmlDocument.Text) {
+      if (textRunStart < 0) {
+        textRunStart = nodes.size();
+      }
+    } else {
+      flushTextRun();
+    }
+    nodes.add(node);
+  }
+
+  /** Merges the Text nodes at the end of the document being parsed. */
+  private void flushTextRun() {
+    mergeTextNodes(nodes, textRunStart);
+    textRunStart = -1;
+  }
+
+  /**
+   * Replaces the Text nodes at the end of {@code nodes}, from
+   * {@code runStart} on, with a single Text node.
+   * @param nodes Nodes, ending with Text nodes from {@code runStart} on.
+   * @param runStart Index of the first Text node, or -1 if there is none.
+   */
+  private static void mergeTextNodes(List<HtmlDocument.Node> nodes,
+                                     int runStart) {
+    if (runStart < 0 || nodes.size() - runStart < 2) {
+      return;
+    }
+    List<HtmlDocument.Node> textNodes = nodes.subList(runStart, nodes.size());
+    int combinedTextLen = 0;
+    int combinedInputLen = 0;
+    for (HtmlDocument.Node node : textNodes) {
+      HtmlDocument.Text text = (HtmlDocument.Text) node;
+      combinedTextLen += text.getText().length();
+      if (text.getOriginalHTML() != null) {
+        combinedInputLen += text.getOriginalHTML().length();
+      }
+    }
+    StringBuilder combinedText = new StringBuilder(combinedTextLen);
+    StringBuilder combinedInput = new StringBuilder(combinedInputLen);
+    for (HtmlDocument.Node node : textNodes) {
+      HtmlDocument.Text text = (HtmlDocument.Text) node;
+      combinedText.append(text.getText());
+      if (text.getOriginalHTML() != null) {
+        combinedInput.append(text.getOriginalHTML());
       }
     }
+    String originalInput = combinedInputLen > 0 ? combinedInput.toString() : null;
+    textNodes.clear();
+    nodes.add(HtmlDocument.createText(combinedText.toString(), originalInput));
   }
 
   //------------------------------------------------------------------------
@@ -374,7 +404,7 @@ public class HtmlParser {
         }
 
         HtmlDocument.Text textnode = HtmlDocument.createEscapedText(htmlTail, originalHtml);
-        nodes.add(textnode);
+        addNode(textnode);
       }
     }
     return pos;
@@ -670,7 +700,7 @@ public class HtmlParser {
       if (!isEndTag) {
         // This is not really a tag, treat the '<' as text.
         HtmlDocument.Text text = HtmlDocument.createText("<", preserveAll ? "<" : null);
-        nodes.add(text);
+        addNode(text);
         state = State.IN_TEXT;
         return nameStart;
       }
@@ -764,7 +794,7 @@ public class HtmlParser {
         originalContent =
             CharMatcher.is('<').replaceFrom(html.substring(start, end), "&lt;");
       }
-      nodes.add(HtmlDocument.createEscapedText(textNodeContent, originalContent));
+      addNode(HtmlDocument.createEscapedText(textNodeContent, originalContent));
       return end;
     }
 
@@ -858,7 +888,7 @@ public class HtmlParser {
               beforeAttrs, afterAttrs)
           : HtmlDocument.createTag(element, attributes,
               beforeAttrs, afterAttrs);
-      nodes.add(tag);
+      addNode(tag);
     } else if (preserveValidHtml) {
       // This is the beginning of the tag up through the tag name. It should not
       // be possible for this to contain characters needing escaping, but we add
@@ -889,13 +919,13 @@ public class HtmlParser {
               beforeAttrs.toString(), afterAttrs)
           : HtmlDocument.createTag(element, attributes,
               beforeAttrs.toString(), afterAttrs);
-      nodes.add(tag);
+      addNode(tag);
     } else {
       // Normalize.
       HtmlDocument.Tag tag = (isSingleTag)
           ? HtmlDocument.createSelfTerminatingTag(element, attributes)
           : HtmlDocument.createTag(element, attributes);
-      nodes.add(tag);
+      addNode(tag);
     }
   }
 
@@ -918,7 +948,7 @@ public class HtmlParser {
       // Preserve all: keep actual content even if it's malformed.
       X.assertTrue(startPos < endPos);
       String content = html.substring(startPos, endPos);
-      nodes.add(HtmlDocument.createEndTag(element, content));
+      addNode(HtmlDocument.createEndTag(element, content));
     } else if (preserveValidHtml) {
       // Preserve valid: terminate the tag.
 
@@ -943,10 +973,10 @@ public class HtmlParser {
       // Strip everything but leading whitespace.
       validContent.append(endOfTag.replaceAll("\\S+.*>", ">"));
 
-      nodes.add(HtmlDocument.createEndTag(element, validContent.toString()));
+      addNode(HtmlDocument.createEndTag(element, validContent.toString()));
     } else {
       // Normalize: ignore the original content.
-      nodes.add(HtmlDocument.createEndTag(element));
+      addNode(HtmlDocument.createEndTag(element));
     }
   }
 
@@ -1075,7 +1105,7 @@ public class HtmlParser {
     }
 
     if (preserveAll) {
-      nodes.add(HtmlDocument.createHtmlComment(html.substring(start, pos)));
+      addNode(HtmlDocument.createHtmlComment(html.substring(start, pos)));
     }
 
     return pos;
@@ -1106,7 +1136,7 @@ public class HtmlParser {
     if (pos > start) {
       HtmlDocument.CDATA cdata =
         HtmlDocument.createCDATA(html.substring(start, pos));
-      nodes.add(cdata);
+      addNode(cdata);
     }
 
     state = State.IN_TAG;
@@ -26,9 +26,9 @@ import com.google.common.collect.ImmutableSet;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EmptyStackException;
 import java.util.List;
 import java.util.Set;
-import java.util.Stack;
 import java.util.logging.Logger;
 
 /**
@@ -101,9 +101,12 @@ public class HtmlTree {
   /** Contains html nodes */
   private final List<HtmlDocument.Node> nodes = new ArrayList<HtmlDocument.Node>();
 
+  /** Kind of each node: one of TEXT, TAG or END_TAG */
+  private byte[] kinds = new byte[INITIAL_CAPACITY];
+
   /** Keeps track of beginning and end of each node */
-  private final Stack<Integer> begins = new Stack<Integer>();
-  private final Stack<Integer> ends = new Stack<Integer>();
+  private int[] begins = new int[INITIAL_CAPACITY];
+  private int[] ends = new int[INITIAL_CAPACITY];
 
   /** Plain text (lazy creation) */
   private String plainText;
@@ -119,6 +122,13 @@ public class HtmlTree {
 
   private ConverterFactory converterFactory = DEFAULT_CONVERTER_FACTORY;
 
+  /** Node kinds */
+  private static final byte TEXT = 0;
+  private static final byte TAG = 1;
+  private static final byte END_TAG = 2;
+
+  private static final int INITIAL_CAPACITY = 64;
+
   // For debugging only
   private static final boolean DEBUG = false;
 
@@ -163,7 +173,7 @@ public class HtmlTree {
    */
   public int findOpenTag(int endTagNodeNum) {
     X.assertTrue(endTagNodeNum >= 0 && endTagNodeNum < nodes.size());
-    return begins.get(endTagNodeNum);
+    return begins[endTagNodeNum];
   }
 
   /**
@@ -172,7 +182,7 @@ public class HtmlTree {
    */
   public int findEndTag(int openTagNodeNum) {
     X.assertTrue(openTagNodeNum >= 0 && openTagNodeNum < nodes.size());
-    return ends.get(openTagNodeNum);
+    return ends[openTagNodeNum];
   }
 
   /**
@@ -181,8 +191,8 @@ public class HtmlTree {
    */
   public int findPairedTag(int tagNodeNum) {
     X.assertTrue(tagNodeNum >= 0 && tagNodeNum < nodes.size());
-    int openNodeNum = begins.get(tagNodeNum);
-    int endNodeNum = ends.get(tagNodeNum);
+    int openNodeNum = begins[tagNodeNum];
+    int endNodeNum = ends[tagNodeNum];
     return tagNodeNum == openNodeNum ? endNodeNum : openNodeNum;
   }
 
@@ -229,9 +239,9 @@ public class HtmlTree {
         // We can only wrap if the last outputted node is an element that
         // breaks the flow. Otherwise, we risk the possibility of inserting
         // spaces where they shouldn't be.
-        if ((node instanceof HtmlDocument.Tag &&
+        if ((kinds[n] == TAG &&
               ((HtmlDocument.Tag) node).getElement().breaksFlow()) ||
-            (node instanceof HtmlDocument.EndTag &&
+            (kinds[n] == END_TAG &&
               ((HtmlDocument.EndTag) node).getElement().breaksFlow())) {
           // Check to see if there is a newline in the most recent node's html.
           int recentNewLine = sb.substring(lastWrapIndex + 1).lastIndexOf('\n');
@@ -273,13 +283,12 @@ public class HtmlTree {
       HtmlDocument.Node node = nodes.get(n);
       node.toHTML(sb);
 
-      if (node instanceof HtmlDocument.Tag) {
+      if (kinds[n] == TAG) {
         if (HTML4.TEXTAREA_ELEMENT.equals(
             ((HtmlDocument.Tag) node).getElement())) {
           stack++;
         }
-      }
-      if (node instanceof HtmlDocument.EndTag) {
+      } else if (kinds[n] == END_TAG) {
         if (HTML4.TEXTAREA_ELEMENT.equals(
             ((HtmlDocument.EndTag) node).getElement())) {
           if (stack == 0) {
@@ -328,17 +337,16 @@ public class HtmlTree {
     int maxHeight = 0;
 
     for (int i = 0; i < nodes.size(); i++) {
-      HtmlDocument.Node node = nodes.get(i);
-      if (node instanceof HtmlDocument.Tag) {
+      if (kinds[i] == TAG) {
         currentHeight++;
         if (currentHeight > maxHeight) {
           maxHeight = currentHeight;
         }
-        if (((HtmlDocument.Tag) node).getElement().isEmpty()) {
+        if (((HtmlDocument.Tag) nodes.get(i)).getElement().isEmpty()) {
           // Empty tags have no closing pair, so decrease counter here.
           currentHeight--;
         }
-      } else if (node instanceof HtmlDocument.EndTag) {
+      } else if (kinds[i] == END_TAG) {
         currentHeight--;
       }
     }
@@ -395,8 +403,8 @@ public class HtmlTree {
     for (int n = startNode; n < endNode;) {
 
       // The node n spans [nBegin, nEnd]
-      int nBegin = begins.get(n);
-      int nEnd = ends.get(n);
+      int nBegin = begins[n];
+      int nEnd = ends[n];
 
       if (blockStart == -1) {
         // Check if this is a valid start node
@@ -570,7 +578,7 @@ public class HtmlTree {
 
     for (int i = 0; i < numNodes; i++) {
       textPositions[i] = converter.getPlainTextLength();
-      converter.addNode(nodes.get(i), i, ends.get(i));
+      converter.addNode(nodes.get(i), i, ends[i]);
     }
 
     // Add a last entry, so that textPositions_[nodes_.size()] is valid.
@@ -618,7 +626,7 @@ public class HtmlTree {
         Converter<Spanned> converter = (Converter<Spanned>) converterFactory.createInstance();
 
         for (int i = 0; i < numNodes; i++) {
-            converter.addNode(nodes.get(i), i, ends.get(i));
+            converter.addNode(nodes.get(i), i, ends[i]);
         }
 
         constructedSpan = converter.getObject();
@@ -733,23 +741,43 @@ public class HtmlTree {
      * follow the last newline if the quote depth is non-zero.
      */
     final void appendNormalText(String text) {
-      if (text.length() == 0) {
+      int start = 0;
+      int end = text.length();
+      if (end == 0) {
         return;
       }
       boolean startsWithSpace = isHtmlWhiteSpace(text.charAt(0));
-      boolean endsWithSpace = isHtmlWhiteSpace(text.charAt(text.length() - 1));
+      boolean endsWithSpace = isHtmlWhiteSpace(text.charAt(end - 1));
 
       // Strip beginning and ending whitespace.
-      text = CharMatcher.anyOf(HTML_SPACE_EQUIVALENTS).trimFrom(text);
-
-      // Collapse whitespace within the text.
-      text = CharMatcher.anyOf(HTML_SPACE_EQUIVALENTS).collapseFrom(text, ' ');
+      while (start < end && isHtmlWhiteSpace(text.charAt(start))) {
+        start++;
+      }
+      while (end > start && isHtmlWhiteSpace(text.charAt(end - 1))) {
+        end--;
+      }
 
       if (startsWithSpace) {
         setSeparator(Separator.Space);
       }
 
-      appendTextDirect(text);
+      if (start < end) {
+        flushSeparator();
+        maybeAddQuoteMarks(true);
+        // Collapse whitespace within the text as it is appended.
+        int segmentStart = start;
+        for (int i = start; i < end; i++) {
+          if (isHtmlWhiteSpace(text.charAt(i))) {
+            sb.append(text, segmentStart, i).append(' ');
+            while (isHtmlWhiteSpace(text.charAt(i + 1))) {
+              i++;
+            }
+            segmentStart = i + 1;
+          }
+        }
+        sb.append(text, segmentStart, end);
+        endingNewLines = 0;
+      }
 
       if (endsWithSpace) {
         setSeparator(Separator.Space);
@@ -976,19 +1004,22 @@ public class HtmlTree {
   // The following methods are used to build the html tree.
   //------------------------------------------------------------------------
   /** For building the html tree */
-  private Stack<Integer> stack;
+  private int[] stack;
+  private int depth;
   private int parent;
 
   /** Starts the build process */
   void start() {
-    stack = new Stack<Integer>();
+    stack = new int[16];
+    depth = 0;
     parent = -1;
   }
 
   /** Finishes the build process */
   void finish() {
-    X.assertTrue(stack.size() == 0);
+    X.assertTrue(depth == 0);
     X.assertTrue(parent == -1);
+    stack = null;
   }
 
   /**
@@ -997,9 +1028,12 @@ public class HtmlTree {
    */
   void addStartTag(HtmlDocument.Tag t) {
     int nodenum = nodes.size();
-    addNode(t, nodenum, -1);
+    addNode(t, TAG, nodenum, -1);
 
-    stack.add(parent);
+    if (depth == stack.length) {
+      stack = Arrays.copyOf(stack, depth * 2);
+    }
+    stack[depth++] = parent;
     parent = nodenum;
   }
 
@@ -1008,19 +1042,22 @@ public class HtmlTree {
    */
   void addEndTag(HtmlDocument.EndTag t) {
     int nodenum = nodes.size();
-    addNode(t, parent, nodenum);
+    addNode(t, END_TAG, parent, nodenum);
 
     if (parent != -1) {
-      ends.set(parent, nodenum);
+      ends[parent] = nodenum;
     }
 
-    parent = stack.pop();
+    if (depth == 0) {
+      throw new EmptyStackException();
+    }
+    parent = stack[--depth];
   }
 
   /** Adds a singular tag that does not have a corresponding end tag */
   void addSingularTag(HtmlDocument.Tag t) {
     int nodenum = nodes.size();
-    addNode(t, nodenum, nodenum);
+    addNode(t, TAG, nodenum, nodenum);
   }
 
   /**
@@ -1029,14 +1066,22 @@ public class HtmlTree {
    */
   void addText(HtmlDocument.Text t) {
     int nodenum = nodes.size();
-    addNode(t, nodenum, nodenum);
+    addNode(t, TEXT, nodenum, nodenum);
   }
 
   /** Adds a node */
-  private void addNode(HtmlDocument.Node n, int begin, int end) {
+  private void addNode(HtmlDocument.Node n, byte kind, int begin, int end) {
+    int nodenum = nodes.size();
+    if (nodenum == kinds.length) {
+      int capacity = nodenum * 2;
+      kinds = Arrays.copyOf(kinds, capacity);
+      begins = Arrays.copyOf(begins, capacity);
+      ends = Arrays.copyOf(ends, capacity);
+    }
     nodes.add(n);
-    begins.add(begin);
-    ends.add(end);
+    kinds[nodenum] = kind;
+    begins[nodenum] = begin;
+    ends[nodenum] = end;
   }
 
   /** For debugging */
@@ -21,7 +21,6 @@ package org.apache.james.mime4j;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PushbackInputStream;
 
 /**
  * InputStream which converts <code>\r</code>
@@ -39,8 +38,9 @@ public class EOLConvertingInputStream extends InputStream {
     /** Converts single '\r' and '\n' to '\r\n' */
     public static final int CONVERT_BOTH = 3;
 
-    private PushbackInputStream in = null;
-    private int previous = 0;
+    private static final int BUFFER_SIZE = 4096;
+
+    private InputStream in = null;
     private int flags = CONVERT_BOTH;
     private int size = 0;
     private int pos = 0;
@@ -48,6 +48,16 @@ public class EOLConvertingInputStream extends InputStream {
     private int tenPctSize;
     private Callback callback;
 
+    /** Raw bytes read from the underlying stream but not yet converted */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPos = 0;
+    private int bufferLimit = 0;
+    /** A '\n' completing a '\r\n' that did not fit the caller's buffer */
+    private boolean pendingLf = false;
+    /** The last raw byte was a '\r' */
+    private boolean previousCr = false;
+    private final byte[] single = new byte[1];
+
     public interface Callback {
         public void report(int bytesRead);
     }
@@ -61,7 +71,7 @@ public class EOLConvertingInputStream extends InputStream {
      */
     public EOLConvertingInputStream(InputStream _in) {
         super();
-        in = new PushbackInputStream(_in, 2);
+        in = _in;
     }
 
     /**
@@ -89,51 +99,93 @@ public class EOLConvertingInputStream extends InputStream {
         in.close();
     }
     
-    private int readByte() throws IOException {
-        int b = in.read();
-        if (b != -1) {
-            if (callback != null && pos++ == nextTenPctPos) {
-                nextTenPctPos += tenPctSize;
-                if (callback != null) {
-                    callback.report(pos);
-                }
-            }
+    /**
+     * Reads the next chunk of raw bytes.
+     *
+     * @return <code>false</code> at end of file.
+     */
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n == -1) {
+            pos = size;
+            return false;
         }
-        return b;
-    }
-
-    private void unreadByte(int c) throws IOException {
-        in.unread(c);
-        pos--;
+        bufferPos = 0;
+        bufferLimit = n;
+        pos += n;
+        if (callback != null && pos > nextTenPctPos) {
+            callback.report(pos);
+            nextTenPctPos = tenPctSize > 0
+                    ? pos - pos % tenPctSize + tenPctSize : Integer.MAX_VALUE;
+        }
+        return true;
     }
 
     /**
      * @see java.io.InputStream#read()
      */
     public int read() throws IOException {
-        int b = readByte();
-        
-        if (b == -1) {
-            pos = size;
-            return -1;
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    /**
+     * Converts as many raw bytes as fit in <code>len</code>, reading from
+     * the underlying stream only when nothing has been converted yet.
+     * 
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = off;
+        int end = off + len;
+        if (pendingLf) {
+            pendingLf = false;
+            b[n++] = '\n';
         }
-        
-        if ((flags & CONVERT_CR) != 0 && b == '\r') {
-            int c = readByte();
-            if (c != -1) {
-                unreadByte(c);
+        while (n < end) {
+            if (bufferPos == bufferLimit) {
+                if (n > off || !fill()) {
+                    break;
+                }
+            }
+            byte c = buffer[bufferPos++];
+            if (c == '\r') {
+                previousCr = true;
+                b[n++] = '\r';
+                if ((flags & CONVERT_CR) == 0) {
+                    continue;
+                }
+            } else if (c == '\n') {
+                boolean afterCr = previousCr;
+                previousCr = false;
+                if (afterCr) {
+                    if ((flags & CONVERT_CR) == 0) {
+                        b[n++] = '\n';
+                    }
+                    /*
+                     * Otherwise the '\n' was output along with the '\r'.
+                     */
+                    continue;
+                }
+                if ((flags & CONVERT_LF) == 0) {
+                    b[n++] = '\n';
+                    continue;
+                }
+                b[n++] = '\r';
+            } else {
+                previousCr = false;
+                b[n++] = c;
+                continue;
             }
-            if (c != '\n') {
-                unreadByte('\n');
+            if (n < end) {
+                b[n++] = '\n';
+            } else {
+                pendingLf = true;
             }
-        } else if ((flags & CONVERT_LF) != 0 && b == '\n' && previous != '\r') {
-            b = '\r';
-            unreadByte('\n');
         }
-        
-        previous = b;
-        
-        return b;
+        return n == off ? -1 : n - off;
     }
 
 }
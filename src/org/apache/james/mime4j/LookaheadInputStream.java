@@ -0,0 +1,183 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mime4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffering <code>InputStream</code> whose buffer can be inspected in place.
+ * {@link MimeBoundaryInputStream} scans this buffer for boundaries instead of
+ * reading its parent a byte at a time. All the boundary streams of a
+ * multipart, as well as whoever reads its preamble and epilogue, must share a
+ * single instance so that bytes read ahead of one body part are not lost to
+ * the next one.
+ *
+ * Like {@link RootInputStream} this stream can be truncated, after which it
+ * will appear to have reached end of file, buffered bytes included.
+ */
+class LookaheadInputStream extends InputStream {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final InputStream is;
+    private byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    /**
+     * Creates a new <code>LookaheadInputStream</code>.
+     *
+     * @param is the stream to read from.
+     */
+    public LookaheadInputStream(InputStream is) {
+        this.is = is;
+    }
+
+    /**
+     * Reads from the underlying stream until at least <code>min</code> bytes
+     * are buffered or end of file has been reached. Compacts or grows the
+     * buffer as needed, so {@link #buffer()} and {@link #position()} must be
+     * fetched again afterwards.
+     *
+     * @param min the number of bytes wanted.
+     * @return the number of buffered bytes.
+     * @throws IOException on I/O errors.
+     */
+    int fill(int min) throws IOException {
+        while (limit - pos < min && !eof) {
+            if (buffer.length - pos < min) {
+                byte[] grown = new byte[Math.max(buffer.length * 2, min)];
+                System.arraycopy(buffer, pos, grown, 0, limit - pos);
+                buffer = grown;
+                limit -= pos;
+                pos = 0;
+            } else if (pos > 0) {
+                System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            int n = is.read(buffer, limit, buffer.length - limit);
+            if (n == -1) {
+                eof = true;
+            } else {
+                limit += n;
+            }
+        }
+        return limit - pos;
+    }
+
+    /**
+     * @return the buffer, valid from {@link #position()} to {@link #limit()}.
+     */
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int position() {
+        return pos;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    /**
+     * @return <code>true</code> if the underlying stream has reached end of
+     *         file, so nothing beyond {@link #limit()} will ever be buffered.
+     */
+    boolean isParentEOF() {
+        return eof;
+    }
+
+    /**
+     * Consumes buffered bytes.
+     *
+     * @param n the number of bytes to consume, at most the number buffered.
+     */
+    void skipBuffered(int n) {
+        pos += n;
+    }
+
+    /**
+     * Discards the buffered bytes and stops reading from the underlying
+     * stream.
+     */
+    public void truncate() {
+        pos = limit;
+        eof = true;
+    }
+
+    /**
+     * @see java.io.InputStream#read()
+     */
+    public int read() throws IOException {
+        if (pos == limit && fill(1) == 0) {
+            return -1;
+        }
+        return buffer[pos++] & 0xFF;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = pos < limit ? limit - pos : fill(1);
+        if (n == 0) {
+            return -1;
+        }
+        n = Math.min(n, len);
+        System.arraycopy(buffer, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * @see java.io.InputStream#skip(long)
+     */
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        int available = pos < limit ? limit - pos : fill(1);
+        int skipped = (int) Math.min(available, n);
+        pos += skipped;
+        return skipped;
+    }
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+    public int available() throws IOException {
+        return limit - pos + (eof ? 0 : is.available());
+    }
+
+    /**
+     * Closes the underlying stream.
+     *
+     * @throws IOException on I/O errors.
+     */
+    public void close() throws IOException {
+        is.close();
+    }
+}
@@ -21,7 +21,6 @@ package org.apache.james.mime4j;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PushbackInputStream;
 
 /**
  * Stream that constrains itself to a single MIME body part.
@@ -29,44 +28,65 @@ import java.io.PushbackInputStream;
  * can be used to determine if a final boundary has been seen or not.
  * If {@link #parentEOF()} is <code>true</code> an unexpected end of stream
  * has been detected in the parent stream.
- * 
+ * <p>
+ * The boundary is searched for in bulk, with a Boyer-Moore-Horspool scan of
+ * the parent's {@link LookaheadInputStream} buffer, so the bytes of a part
+ * can be handed out a buffer at a time rather than one at a time.
  * 
  * 
  * @version $Id: MimeBoundaryInputStream.java,v 1.2 2004/11/29 13:15:42 ntherning Exp $
  */
 public class MimeBoundaryInputStream extends InputStream {
     
-    private PushbackInputStream s = null;
-    private byte[] boundary = null;
+    private LookaheadInputStream s = null;
+    /** <code>\r\n--boundary</code>, the delimiter ending the part. */
+    private byte[] delimiter = null;
+    /** Horspool shift for each byte value, for the last delimiter byte. */
+    private int[] shift = null;
     private boolean first = true;
     private boolean eof = false;
     private boolean parenteof = false;
     private boolean moreParts = true;
+    /** Number of buffered bytes known to belong to this part. */
+    private int safe = 0;
 
     /**
      * Creates a new MimeBoundaryInputStream.
+     * <p>
+     * Bytes past the end of the part may be read ahead from the underlying
+     * stream. Unless it is a {@link LookaheadInputStream} they are lost to
+     * subsequent readers, so consecutive parts should be read from the same
+     * <code>LookaheadInputStream</code>, as {@link MimeStreamParser} does.
+     * 
      * @param s The underlying stream.
      * @param boundary Boundary string (not including leading hyphens).
      */
     public MimeBoundaryInputStream(InputStream s, String boundary) 
             throws IOException {
         
-        this.s = new PushbackInputStream(s, boundary.length() + 4);
+        this.s = s instanceof LookaheadInputStream
+                ? (LookaheadInputStream) s : new LookaheadInputStream(s);
+
+        boundary = "\r\n--" + boundary;
+        this.delimiter = new byte[boundary.length()];
+        for (int i = 0; i < this.delimiter.length; i++) {
+            this.delimiter[i] = (byte) boundary.charAt(i);
+        }
 
-        boundary = "--" + boundary;
-        this.boundary = new byte[boundary.length()];
-        for (int i = 0; i < this.boundary.length; i++) {
-            this.boundary[i] = (byte) boundary.charAt(i);
+        int last = delimiter.length - 1;
+        this.shift = new int[256];
+        for (int i = 0; i < shift.length; i++) {
+            shift[i] = delimiter.length;
+        }
+        for (int i = 0; i < last; i++) {
+            shift[delimiter[i] & 0xFF] = last - i;
         }
         
         /*
-         * By reading one byte we will update moreParts to be as expected
+         * By scanning ahead we will update moreParts to be as expected
          * before any bytes have been read.
          */
-        int b = read();
-        if (b != -1) {
-            this.s.unread(b);
-        }
+        scan();
     }
 
     /**
@@ -106,7 +126,10 @@ public class MimeBoundaryInputStream extends InputStream {
      * @throws IOException on I/O errors.
      */
     public void consume() throws IOException {
-        while (read() != -1) {
+        int n;
+        while ((n = scan()) != -1) {
+            s.skipBuffered(n);
+            safe = 0;
         }
     }
     
@@ -114,71 +137,188 @@ public class MimeBoundaryInputStream extends InputStream {
      * @see java.io.InputStream#read()
      */
     public int read() throws IOException {
+        if (scan() == -1) {
+            return -1;
+        }
+        int b = s.buffer()[s.position()] & 0xFF;
+        s.skipBuffered(1);
+        safe--;
+        return b;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = scan();
+        if (n == -1) {
+            return -1;
+        }
+        n = Math.min(n, len);
+        System.arraycopy(s.buffer(), s.position(), b, off, n);
+        s.skipBuffered(n);
+        safe -= n;
+        return n;
+    }
+
+    /**
+     * @see java.io.InputStream#skip(long)
+     */
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        int skipped = scan();
+        if (skipped == -1) {
+            return 0;
+        }
+        skipped = (int) Math.min(skipped, n);
+        s.skipBuffered(skipped);
+        safe -= skipped;
+        return skipped;
+    }
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+    public int available() throws IOException {
+        return eof ? 0 : safe;
+    }
+
+    /**
+     * Finds out how many of the bytes at the head of the parent's buffer
+     * belong to this part, consuming the boundary if it is next.
+     * 
+     * @return the number of bytes that can be read, at least 1, or -1 at the
+     *         end of the part.
+     */
+    private int scan() throws IOException {
         if (eof) {
             return -1;
         }
+        if (safe > 0) {
+            /*
+             * Truncating the parent discards what it had buffered.
+             */
+            safe = Math.min(safe, s.limit() - s.position());
+            if (safe > 0) {
+                return safe;
+            }
+        }
         
         if (first) {
+            /*
+             * At the very start the boundary need not be preceded by CRLF.
+             */
             first = false;
-            if (matchBoundary()) {
+            int length = delimiter.length - 2;
+            if (s.fill(length) >= length 
+                    && matches(s.buffer(), s.position() - 2, 2)) {
+                s.skipBuffered(length);
+                consumeBoundaryLine();
                 return -1;
             }
         }
         
-        int b1 = s.read();
-        int b2 = s.read();
-        
-        if (b1 == '\r' && b2 == '\n') {
-            if (matchBoundary()) {
-                return -1;
-            }
+        int available = s.fill(delimiter.length);
+        if (available == 0) {
+            parenteof = true;
+            eof = true;
+            return -1;
         }
         
-        if (b2 != -1) {
-            s.unread(b2);
+        byte[] buffer = s.buffer();
+        int start = s.position();
+        int found = indexOfDelimiter(buffer, start, start + available);
+        if (found == start) {
+            s.skipBuffered(delimiter.length);
+            consumeBoundaryLine();
+            return -1;
         }
-
-        parenteof = b1 == -1;
-        eof = parenteof;
         
-        return b1;
+        if (found != -1) {
+            safe = found - start;
+        } else if (s.isParentEOF()) {
+            safe = available;
+        } else {
+            /*
+             * The tail of the buffer may be the start of a delimiter.
+             */
+            safe = available - (delimiter.length - 1);
+        }
+        return safe;
     }
     
-    private boolean matchBoundary() throws IOException {
-        
-        for (int i = 0; i < boundary.length; i++) {
-            int b = s.read();
-            if (b != boundary[i]) {
-                if (b != -1) {
-                    s.unread(b);
-                }
-                for (int j = i - 1; j >= 0; j--) {
-                    s.unread(boundary[j]);
-                }
+    /**
+     * Compares the delimiter, from index <code>from</code>, to the buffer.
+     * 
+     * @param offset the buffer offset the whole delimiter would start at.
+     */
+    private boolean matches(byte[] buffer, int offset, int from) {
+        for (int i = from; i < delimiter.length; i++) {
+            if (buffer[offset + i] != delimiter[i]) {
                 return false;
             }
         }
+        return true;
+    }
+    
+    private int indexOfDelimiter(byte[] buffer, int start, int end) {
+        int last = delimiter.length - 1;
+        byte lastByte = delimiter[last];
+        for (int i = start; i + last < end; ) {
+            byte b = buffer[i + last];
+            if (b == lastByte && matches(buffer, i, 0)) {
+                return i;
+            }
+            i += shift[b & 0xFF];
+        }
+        return -1;
+    }
+    
+    /**
+     * Consumes the remainder of the boundary line, which has just been
+     * matched, up to and including the terminating CRLF.
+     */
+    private void consumeBoundaryLine() throws IOException {
+        int available = s.fill(2);
+        byte[] buffer = s.buffer();
+        int pos = s.position();
         
         /*
          * We have a match. Is it an end boundary?
          */
-        int prev = s.read();
-        int curr = s.read();
-        moreParts = !(prev == '-' && curr == '-');
-        do {
-            if (curr == '\n' && prev == '\r') {
+        moreParts = !(available >= 2 
+                && buffer[pos] == '-' && buffer[pos + 1] == '-');
+        
+        while (true) {
+            available = s.fill(2);
+            if (available < 2) {
+                s.skipBuffered(available);
+                moreParts = false;
+                parenteof = true;
                 break;
             }
-            prev = curr;
-        } while ((curr = s.read()) != -1);
-        
-        if (curr == -1) {
-            moreParts = false;
-            parenteof = true;
+            buffer = s.buffer();
+            pos = s.position();
+            int end = pos + available - 1;
+            int i = pos;
+            while (i < end && !(buffer[i] == '\r' && buffer[i + 1] == '\n')) {
+                i++;
+            }
+            if (i < end) {
+                s.skipBuffered(i + 2 - pos);
+                break;
+            }
+            /*
+             * Keep the last byte, it may be the CR of the CRLF.
+             */
+            s.skipBuffered(available - 1);
         }
         
         eof = true;
-        
-        return true;
     }
 }
@@ -19,13 +19,8 @@
 
 package org.apache.james.mime4j;
 
-import org.apache.james.mime4j.decoder.Base64InputStream;
-import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
-
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.BitSet;
-import java.util.LinkedList;
 
 /**
  * <p>
@@ -43,30 +38,16 @@ import java.util.LinkedList;
  * <strong>NOTE:</strong> All lines must end with CRLF
  * (<code>\r\n</code>). If you are unsure of the line endings in your stream
  * you should wrap it in a {@link org.apache.james.mime4j.EOLConvertingInputStream} instance.
+ * <p>
+ * The events are produced by a {@link MimeTokenStream}, which callers that
+ * want to stop early or skip bodies can use directly.
  *
  *
  * @version $Id: MimeStreamParser.java,v 1.8 2005/02/11 10:12:02 ntherning Exp $
  */
 public class MimeStreamParser {
-    private static final Log log = LogFactory.getLog(MimeStreamParser.class);
-
-    private static BitSet fieldChars = null;
-
-    private RootInputStream rootStream = null;
-    private LinkedList<BodyDescriptor> bodyDescriptors = new LinkedList<BodyDescriptor>();
+    private MimeTokenStream tokens = new MimeTokenStream();
     private ContentHandler handler = null;
-    private boolean raw = false;
-    private boolean prematureEof = false;
-
-    static {
-        fieldChars = new BitSet();
-        for (int i = 0x21; i <= 0x39; i++) {
-            fieldChars.set(i);
-        }
-        for (int i = 0x3b; i <= 0x7e; i++) {
-            fieldChars.set(i);
-        }
-    }
 
     /**
      * Creates a new <code>MimeStreamParser</code> instance.
@@ -81,8 +62,53 @@ public class MimeStreamParser {
      * @throws IOException on I/O errors.
      */
     public void parse(InputStream is) throws IOException {
-        rootStream = new RootInputStream(is);
-        parseMessage(rootStream);
+        tokens.parse(is);
+        int state;
+        while ((state = tokens.next()) != MimeTokenStream.T_END_OF_STREAM) {
+            switch (state) {
+                case MimeTokenStream.T_START_MESSAGE:
+                    handler.startMessage();
+                    break;
+                case MimeTokenStream.T_END_MESSAGE:
+                    handler.endMessage();
+                    break;
+                case MimeTokenStream.T_RAW_ENTITY:
+                    handler.raw(tokens.getInputStream());
+                    break;
+                case MimeTokenStream.T_START_HEADER:
+                    handler.startHeader();
+                    break;
+                case MimeTokenStream.T_FIELD:
+                    handler.field(tokens.getField());
+                    break;
+                case MimeTokenStream.T_END_HEADER:
+                    handler.endHeader();
+                    break;
+                case MimeTokenStream.T_START_MULTIPART:
+                    handler.startMultipart(tokens.getBodyDescriptor());
+                    break;
+                case MimeTokenStream.T_END_MULTIPART:
+                    handler.endMultipart();
+                    break;
+                case MimeTokenStream.T_PREAMBLE:
+                    handler.preamble(tokens.getInputStream());
+                    break;
+                case MimeTokenStream.T_EPILOGUE:
+                    handler.epilogue(tokens.getInputStream());
+                    break;
+                case MimeTokenStream.T_START_BODYPART:
+                    handler.startBodyPart();
+                    break;
+                case MimeTokenStream.T_END_BODYPART:
+                    handler.endBodyPart();
+                    break;
+                case MimeTokenStream.T_BODY:
+                    handler.body(tokens.getBodyDescriptor(), tokens.getInputStream());
+                    break;
+                default:
+                    throw new IllegalStateException("Invalid state " + state);
+            }
+        }
     }
 
     /**
@@ -93,7 +119,7 @@ public class MimeStreamParser {
      * @see #setRaw(boolean)
      */
     public boolean isRaw() {
-        return raw;
+        return tokens.isRaw();
     }
 
     /**
@@ -107,7 +133,7 @@ public class MimeStreamParser {
      *        disables it.
      */
     public void setRaw(boolean raw) {
-        this.raw = raw;
+        tokens.setRaw(raw);
     }
 
     /**
@@ -123,192 +149,11 @@ public class MimeStreamParser {
      * {@link ContentHandler#startMessage()}, etc.
      */
     public void stop() {
-        rootStream.truncate();
-    }
-
-    /**
-     * Parses an entity which consists of a header followed by a body containing
-     * arbitrary data, body parts or an embedded message.
-     *
-     * @param is the stream to parse.
-     * @throws IOException on I/O errors.
-     */
-    private void parseEntity(InputStream is) throws IOException {
-        BodyDescriptor bd = parseHeader(is);
-
-        if (bd.isMultipart()) {
-            bodyDescriptors.addFirst(bd);
-
-            handler.startMultipart(bd);
-
-            MimeBoundaryInputStream tempIs =
-                new MimeBoundaryInputStream(is, bd.getBoundary());
-            handler.preamble(new CloseShieldInputStream(tempIs));
-            tempIs.consume();
-
-            while (tempIs.hasMoreParts()) {
-                tempIs = new MimeBoundaryInputStream(is, bd.getBoundary());
-                parseBodyPart(tempIs);
-                tempIs.consume();
-                if (tempIs.parentEOF()) {
-                    prematureEof = true;
-//                    if (log.isWarnEnabled()) {
-//                        log.warn("Line " + rootStream.getLineNumber()
-//                                + ": Body part ended prematurely. "
-//                                + "Higher level boundary detected or "
-//                                + "EOF reached.");
-//                    }
-                    break;
-                }
-            }
-
-            handler.epilogue(new CloseShieldInputStream(is));
-
-            handler.endMultipart();
-
-            bodyDescriptors.removeFirst();
-
-        } else if (bd.isMessage()) {
-            if (bd.isBase64Encoded()) {
-                log.warn("base64 encoded message/rfc822 detected");
-                is = new EOLConvertingInputStream(
-                        new Base64InputStream(is));
-            } else if (bd.isQuotedPrintableEncoded()) {
-                log.warn("quoted-printable encoded message/rfc822 detected");
-                is = new EOLConvertingInputStream(
-                        new QuotedPrintableInputStream(is));
-            }
-            bodyDescriptors.addFirst(bd);
-            parseMessage(is);
-            bodyDescriptors.removeFirst();
-        } else {
-            handler.body(bd, new CloseShieldInputStream(is));
-        }
-
-        /*
-         * Make sure the stream has been consumed.
-         */
-        while (is.read() != -1) {
-        }
-    }
-
-    private void parseMessage(InputStream is) throws IOException {
-        if (raw) {
-            handler.raw(new CloseShieldInputStream(is));
-        } else {
-            handler.startMessage();
-            parseEntity(is);
-            handler.endMessage();
-        }
+        tokens.stop();
     }
 
     public boolean getPrematureEof() {
-        return prematureEof;
-    }
-
-    private void parseBodyPart(InputStream is) throws IOException {
-        if (raw) {
-            handler.raw(new CloseShieldInputStream(is));
-        } else {
-            handler.startBodyPart();
-            parseEntity(is);
-            handler.endBodyPart();
-        }
-    }
-
-    /**
-     * Parses a header.
-     *
-     * @param is the stream to parse.
-     * @return a <code>BodyDescriptor</code> describing the body following
-     *         the header.
-     */
-    private BodyDescriptor parseHeader(InputStream is) throws IOException {
-        BodyDescriptor bd = new BodyDescriptor(bodyDescriptors.isEmpty()
-                        ? null : (BodyDescriptor) bodyDescriptors.getFirst());
-
-        handler.startHeader();
-
-        int lineNumber = rootStream.getLineNumber();
-
-        StringBuffer sb = new StringBuffer();
-        int curr = 0;
-        int prev = 0;
-        while ((curr = is.read()) != -1) {
-            if (curr == '\n' && (prev == '\n' || prev == 0)) {
-                /*
-                 * [\r]\n[\r]\n or an immediate \r\n have been seen.
-                 */
-                sb.deleteCharAt(sb.length() - 1);
-                break;
-            }
-            sb.append((char) curr);
-            prev = curr == '\r' ? prev : curr;
-        }
-
-//        if (curr == -1 && log.isWarnEnabled()) {
-//            log.warn("Line " + rootStream.getLineNumber()
-//                    + ": Unexpected end of headers detected. "
-//                    + "Boundary detected in header or EOF reached.");
-//        }
-
-        int start = 0;
-        int pos = 0;
-        int startLineNumber = lineNumber;
-        while (pos < sb.length()) {
-            while (pos < sb.length() && sb.charAt(pos) != '\r') {
-                pos++;
-            }
-            if (pos < sb.length() - 1 && sb.charAt(pos + 1) != '\n') {
-                pos++;
-                continue;
-            }
-
-            if (pos >= sb.length() - 2 || fieldChars.get(sb.charAt(pos + 2))) {
-
-                /*
-                 * field should be the complete field data excluding the
-                 * trailing \r\n.
-                 */
-                String field = sb.substring(start, pos);
-                start = pos + 2;
-
-                /*
-                 * Check for a valid field.
-                 */
-                int index = field.indexOf(':');
-                boolean valid = false;
-                if (index != -1 && fieldChars.get(field.charAt(0))) {
-                    valid = true;
-                    String fieldName = field.substring(0, index).trim();
-                    for (int i = 0; i < fieldName.length(); i++) {
-                        if (!fieldChars.get(fieldName.charAt(i))) {
-                            valid = false;
-                            break;
-                        }
-                    }
-
-                    if (valid) {
-                        handler.field(field);
-                        bd.addField(fieldName, field.substring(index + 1));
-                    }
-                }
-
-                if (!valid && log.isWarnEnabled()) {
-                    log.warn("Line " + startLineNumber
-                            + ": Ignoring invalid field: '" + field.trim() + "'");
-                }
-
-                startLineNumber = lineNumber;
-            }
-
-            pos += 2;
-            lineNumber++;
-        }
-
-        handler.endHeader();
-
-        return bd;
+        return tokens.getPrematureEof();
     }
 
     /**
@@ -0,0 +1,529 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mime4j;
+
+import org.apache.james.mime4j.decoder.Base64InputStream;
+import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedList;
+
+/**
+ * <p>
+ * Pull parser for MIME (or RFC822) message streams. Where
+ * {@link MimeStreamParser} drives a <code>ContentHandler</code> to the end of
+ * the stream, this class hands out the same parsing events one at a time, so
+ * the caller decides how far to go and which bodies to read.
+ * </p>
+ * <p>
+ * Typical usage:<br/>
+ * <pre>
+ *      MimeTokenStream stream = new MimeTokenStream();
+ *      stream.parse(new EOLConvertingInputStream(in));
+ *      for (int state = stream.next(); state != MimeTokenStream.T_END_OF_STREAM;
+ *              state = stream.next()) {
+ *          switch (state) {
+ *              case MimeTokenStream.T_FIELD:
+ *                  ... stream.getField() ...
+ *                  break;
+ *              case MimeTokenStream.T_END_HEADER:
+ *                  if (!wanted(stream.getBodyDescriptor())) {
+ *                      stream.skipBody();
+ *                  }
+ *                  break;
+ *              case MimeTokenStream.T_BODY:
+ *                  ... stream.getInputStream() ...
+ *                  break;
+ *          }
+ *      }
+ * </pre>
+ * The streams returned by {@link #getInputStream()} are only valid until the
+ * next call to {@link #next()}; whatever has not been read from them by then
+ * is skipped without being decoded.
+ * </p>
+ * <strong>NOTE:</strong> All lines must end with CRLF
+ * (<code>\r\n</code>). If you are unsure of the line endings in your stream
+ * you should wrap it in a {@link org.apache.james.mime4j.EOLConvertingInputStream} instance.
+ */
+public class MimeTokenStream {
+    private static final Log log = LogFactory.getLog(MimeTokenStream.class);
+
+    /** There are no more events; the whole stream has been parsed. */
+    public static final int T_END_OF_STREAM = -1;
+    /** A top level message or an embedded rfc822 message starts. */
+    public static final int T_START_MESSAGE = 0;
+    /** A message ends. */
+    public static final int T_END_MESSAGE = 1;
+    /** An entity in raw mode; see {@link #getInputStream()}. */
+    public static final int T_RAW_ENTITY = 2;
+    /** A header starts. */
+    public static final int T_START_HEADER = 3;
+    /** A header field; see {@link #getField()}. */
+    public static final int T_FIELD = 4;
+    /** A header ends; see {@link #getBodyDescriptor()} and {@link #skipBody()}. */
+    public static final int T_END_HEADER = 5;
+    /** A <code>multipart/*</code> body starts. */
+    public static final int T_START_MULTIPART = 6;
+    /** A <code>multipart/*</code> body ends. */
+    public static final int T_END_MULTIPART = 7;
+    /** The preamble of a multipart body; see {@link #getInputStream()}. */
+    public static final int T_PREAMBLE = 8;
+    /** The epilogue of a multipart body; see {@link #getInputStream()}. */
+    public static final int T_EPILOGUE = 9;
+    /** A body part of a multipart body starts. */
+    public static final int T_START_BODYPART = 10;
+    /** A body part ends. */
+    public static final int T_END_BODYPART = 11;
+    /** The body of a leaf entity, still transfer encoded; see {@link #getInputStream()}. */
+    public static final int T_BODY = 12;
+
+    /*
+     * Where an entity is at; each state names what the next call to next()
+     * does for it.
+     */
+    private static final int S_START = 0;
+    private static final int S_START_HEADER = 1;
+    private static final int S_READ_HEADER = 2;
+    private static final int S_FIELDS = 3;
+    private static final int S_BODY = 4;
+    private static final int S_PREAMBLE = 5;
+    private static final int S_PREAMBLE_DONE = 6;
+    private static final int S_NEXT_PART = 7;
+    private static final int S_PART_DONE = 8;
+    private static final int S_EPILOGUE = 9;
+    private static final int S_END_MULTIPART = 10;
+    private static final int S_MESSAGE_DONE = 11;
+    private static final int S_DRAIN = 12;
+    private static final int S_END = 13;
+
+    private static BitSet fieldChars = null;
+
+    static {
+        fieldChars = new BitSet();
+        for (int i = 0x21; i <= 0x39; i++) {
+            fieldChars.set(i);
+        }
+        for (int i = 0x3b; i <= 0x7e; i++) {
+            fieldChars.set(i);
+        }
+    }
+
+    /**
+     * A message or body part being parsed.
+     */
+    private static class Entity {
+        final boolean message;
+        InputStream is;
+        int state = S_START;
+        BodyDescriptor bd = null;
+        ArrayList<String> fields = null;
+        int fieldIndex = 0;
+        /** The boundary stream of the current preamble or body part of a multipart. */
+        MimeBoundaryInputStream part = null;
+
+        Entity(InputStream is, boolean message) {
+            this.is = is;
+            this.message = message;
+        }
+    }
+
+    private RootInputStream rootStream = null;
+    private LinkedList<Entity> entities = new LinkedList<Entity>();
+    private LinkedList<BodyDescriptor> bodyDescriptors = new LinkedList<BodyDescriptor>();
+    private LinkedList<LookaheadInputStream> lookaheadStreams =
+            new LinkedList<LookaheadInputStream>();
+    private boolean raw = false;
+    private boolean prematureEof = false;
+
+    private int state = T_END_OF_STREAM;
+    private String field = null;
+    private BodyDescriptor bodyDescriptor = null;
+    private InputStream currentStream = null;
+
+    /**
+     * Creates a new <code>MimeTokenStream</code> instance.
+     */
+    public MimeTokenStream() {
+    }
+
+    /**
+     * Starts parsing a stream of bytes containing a MIME message. Events are
+     * then obtained by calling {@link #next()}.
+     *
+     * @param is the stream to parse.
+     */
+    public void parse(InputStream is) {
+        rootStream = new RootInputStream(is);
+        entities.clear();
+        bodyDescriptors.clear();
+        lookaheadStreams.clear();
+        prematureEof = false;
+        state = T_END_OF_STREAM;
+        field = null;
+        bodyDescriptor = null;
+        currentStream = null;
+        entities.addFirst(new Entity(rootStream, true));
+    }
+
+    /**
+     * Determines if this parser is currently in raw mode.
+     *
+     * @return <code>true</code> if in raw mode, <code>false</code>
+     *         otherwise.
+     * @see #setRaw(boolean)
+     */
+    public boolean isRaw() {
+        return raw;
+    }
+
+    /**
+     * Enables or disables raw mode. In raw mode all future entities
+     * (messages or body parts) in the stream will be reported as a single
+     * {@link #T_RAW_ENTITY} event, whose stream contains the entire unparsed
+     * entity contents including header fields and whatever is in the body.
+     *
+     * @param raw <code>true</code> enables raw mode, <code>false</code>
+     *        disables it.
+     */
+    public void setRaw(boolean raw) {
+        this.raw = raw;
+    }
+
+    /**
+     * Finishes the parsing and stops reading lines.
+     * NOTE: No more lines will be parsed but {@link #next()} will still
+     * return the end events matching the start events already returned.
+     */
+    public void stop() {
+        rootStream.truncate();
+        /*
+         * Bytes already read ahead of the current body parts must not be
+         * parsed either.
+         */
+        for (LookaheadInputStream lookahead : lookaheadStreams) {
+            lookahead.truncate();
+        }
+    }
+
+    /**
+     * Skips the body of the entity whose header has just ended, including
+     * any body parts or embedded message it contains. The next call to
+     * {@link #next()} will return the matching {@link #T_END_MESSAGE} or
+     * {@link #T_END_BODYPART}.
+     *
+     * @throws IllegalStateException if the current event is not
+     *         {@link #T_END_HEADER}.
+     */
+    public void skipBody() {
+        if (state != T_END_HEADER) {
+            throw new IllegalStateException("Expected T_END_HEADER, was " + state);
+        }
+        entities.getFirst().state = S_DRAIN;
+    }
+
+    public boolean getPrematureEof() {
+        return prematureEof;
+    }
+
+    /**
+     * @return the current event, as last returned by {@link #next()}.
+     */
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * @return the complete header field, excluding the trailing CRLF, when
+     *         the current event is {@link #T_FIELD}; otherwise
+     *         <code>null</code>.
+     */
+    public String getField() {
+        return state == T_FIELD ? field : null;
+    }
+
+    /**
+     * @return the <code>BodyDescriptor</code> of the current entity, once
+     *         its header has been parsed.
+     */
+    public BodyDescriptor getBodyDescriptor() {
+        return bodyDescriptor;
+    }
+
+    /**
+     * @return the contents of the current {@link #T_BODY},
+     *         {@link #T_PREAMBLE}, {@link #T_EPILOGUE} or
+     *         {@link #T_RAW_ENTITY}; otherwise <code>null</code>. Closing
+     *         the stream does not close the underlying stream.
+     */
+    public InputStream getInputStream() {
+        return currentStream;
+    }
+
+    /**
+     * Advances to the next parsing event.
+     *
+     * @return the new event, {@link #T_END_OF_STREAM} once the whole stream
+     *         has been parsed.
+     * @throws IOException on I/O errors.
+     */
+    public int next() throws IOException {
+        field = null;
+        currentStream = null;
+        state = advance();
+        return state;
+    }
+
+    private int advance() throws IOException {
+        while (!entities.isEmpty()) {
+            final Entity e = entities.getFirst();
+            switch (e.state) {
+                case S_START:
+                    if (raw) {
+                        currentStream = new CloseShieldInputStream(e.is);
+                        e.state = S_END;
+                        return T_RAW_ENTITY;
+                    }
+                    e.state = S_START_HEADER;
+                    return e.message ? T_START_MESSAGE : T_START_BODYPART;
+
+                case S_START_HEADER:
+                    e.state = S_READ_HEADER;
+                    return T_START_HEADER;
+
+                case S_READ_HEADER:
+                    parseHeader(e);
+                    bodyDescriptor = e.bd;
+                    e.state = S_FIELDS;
+                    // fall through
+                case S_FIELDS:
+                    if (e.fieldIndex < e.fields.size()) {
+                        field = e.fields.get(e.fieldIndex++);
+                        return T_FIELD;
+                    }
+                    e.fields = null;
+                    e.state = S_BODY;
+                    return T_END_HEADER;
+
+                case S_BODY:
+                    bodyDescriptor = e.bd;
+                    if (e.bd.isMultipart()) {
+                        bodyDescriptors.addFirst(e.bd);
+                        e.state = S_PREAMBLE;
+                        return T_START_MULTIPART;
+                    } else if (e.bd.isMessage()) {
+                        InputStream is = e.is;
+                        if (e.bd.isBase64Encoded()) {
+                            log.warn("base64 encoded message/rfc822 detected");
+                            is = new EOLConvertingInputStream(
+                                    new Base64InputStream(is));
+                        } else if (e.bd.isQuotedPrintableEncoded()) {
+                            log.warn("quoted-printable encoded message/rfc822 detected");
+                            is = new EOLConvertingInputStream(
+                                    new QuotedPrintableInputStream(is));
+                        }
+                        e.is = is;
+                        bodyDescriptors.addFirst(e.bd);
+                        e.state = S_MESSAGE_DONE;
+                        entities.addFirst(new Entity(is, true));
+                        break;
+                    }
+                    currentStream = new CloseShieldInputStream(e.is);
+                    e.state = S_DRAIN;
+                    return T_BODY;
+
+                case S_PREAMBLE:
+                    /*
+                     * The boundary streams read ahead of the part they
+                     * return, so the preamble, the parts and the epilogue
+                     * must all be read through the same buffer.
+                     */
+                    LookaheadInputStream lookahead = new LookaheadInputStream(e.is);
+                    lookaheadStreams.addFirst(lookahead);
+                    e.is = lookahead;
+                    e.part = new MimeBoundaryInputStream(lookahead, e.bd.getBoundary());
+                    currentStream = new CloseShieldInputStream(e.part);
+                    e.state = S_PREAMBLE_DONE;
+                    return T_PREAMBLE;
+
+                case S_PREAMBLE_DONE:
+                    e.part.consume();
+                    e.state = S_NEXT_PART;
+                    break;
+
+                case S_NEXT_PART:
+                    if (!e.part.hasMoreParts()) {
+                        e.state = S_EPILOGUE;
+                        break;
+                    }
+                    e.part = new MimeBoundaryInputStream(e.is, e.bd.getBoundary());
+                    e.state = S_PART_DONE;
+                    entities.addFirst(new Entity(e.part, false));
+                    break;
+
+                case S_PART_DONE:
+                    e.part.consume();
+                    if (e.part.parentEOF()) {
+                        prematureEof = true;
+//                        if (log.isWarnEnabled()) {
+//                            log.warn("Line " + rootStream.getLineNumber()
+//                                    + ": Body part ended prematurely. "
+//                                    + "Higher level boundary detected or "
+//                                    + "EOF reached.");
+//                        }
+                        e.state = S_EPILOGUE;
+                    } else {
+                        e.state = S_NEXT_PART;
+                    }
+                    break;
+
+                case S_EPILOGUE:
+                    e.part = null;
+                    bodyDescriptor = e.bd;
+                    currentStream = new CloseShieldInputStream(e.is);
+                    e.state = S_END_MULTIPART;
+                    return T_EPILOGUE;
+
+                case S_END_MULTIPART:
+                    bodyDescriptor = e.bd;
+                    lookaheadStreams.removeFirst();
+                    bodyDescriptors.removeFirst();
+                    e.state = S_DRAIN;
+                    return T_END_MULTIPART;
+
+                case S_MESSAGE_DONE:
+                    bodyDescriptors.removeFirst();
+                    e.state = S_DRAIN;
+                    break;
+
+                case S_DRAIN:
+                    /*
+                     * Make sure the stream has been consumed.
+                     */
+                    while (e.is.skip(Long.MAX_VALUE) > 0 || e.is.read() != -1) {
+                    }
+                    e.state = S_END;
+                    bodyDescriptor = e.bd;
+                    return e.message ? T_END_MESSAGE : T_END_BODYPART;
+
+                case S_END:
+                    entities.removeFirst();
+                    break;
+
+                default:
+                    throw new IllegalStateException("Invalid state " + e.state);
+            }
+        }
+        return T_END_OF_STREAM;
+    }
+
+    /**
+     * Parses a header into the fields of the entity and its
+     * <code>BodyDescriptor</code>.
+     */
+    private void parseHeader(Entity e) throws IOException {
+        BodyDescriptor bd = new BodyDescriptor(bodyDescriptors.isEmpty()
+                        ? null : (BodyDescriptor) bodyDescriptors.getFirst());
+        ArrayList<String> fields = new ArrayList<String>();
+        e.bd = bd;
+        e.fields = fields;
+        e.fieldIndex = 0;
+
+        InputStream is = e.is;
+        int lineNumber = rootStream.getLineNumber();
+
+        StringBuffer sb = new StringBuffer();
+        int curr = 0;
+        int prev = 0;
+        while ((curr = is.read()) != -1) {
+            if (curr == '\n' && (prev == '\n' || prev == 0)) {
+                /*
+                 * [\r]\n[\r]\n or an immediate \r\n have been seen.
+                 */
+                sb.deleteCharAt(sb.length() - 1);
+                break;
+            }
+            sb.append((char) curr);
+            prev = curr == '\r' ? prev : curr;
+        }
+
+//        if (curr == -1 && log.isWarnEnabled()) {
+//            log.warn("Line " + rootStream.getLineNumber()
+//                    + ": Unexpected end of headers detected. "
+//                    + "Boundary detected in header or EOF reached.");
+//        }
+
+        int start = 0;
+        int pos = 0;
+        int startLineNumber = lineNumber;
+        while (pos < sb.length()) {
+            while (pos < sb.length() && sb.charAt(pos) != '\r') {
+                pos++;
+            }
+            if (pos < sb.length() - 1 && sb.charAt(pos + 1) != '\n') {
+                pos++;
+                continue;
+            }
+
+            if (pos >= sb.length() - 2 || fieldChars.get(sb.charAt(pos + 2))) {
+
+                /*
+                 * field should be the complete field data excluding the
+                 * trailing \r\n.
+                 */
+                String field = sb.substring(start, pos);
+                start = pos + 2;
+
+                /*
+                 * Check for a valid field.
+                 */
+                int index = field.indexOf(':');
+                boolean valid = false;
+                if (index != -1 && fieldChars.get(field.charAt(0))) {
+                    valid = true;
+                    String fieldName = field.substring(0, index).trim();
+                    for (int i = 0; i < fieldName.length(); i++) {
+                        if (!fieldChars.get(fieldName.charAt(i))) {
+                            valid = false;
+                            break;
+                        }
+                    }
+
+                    if (valid) {
+                        fields.add(field);
+                        bd.addField(fieldName, field.substring(index + 1));
+                    }
+                }
+
+                if (!valid && log.isWarnEnabled()) {
+                    log.warn("Line " + startLineNumber
+                            + ": Ignoring invalid field: '" + field.trim() + "'");
+                }
+
+                startLineNumber = lineNumber;
+            }
+
+            pos += 2;
+            lineNumber++;
+        }
+    }
+}
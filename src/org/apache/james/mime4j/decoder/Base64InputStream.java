@@ -28,16 +28,29 @@ import java.io.InputStream;
 
 /**
  * Performs Base-64 decoding on an underlying stream.
- * 
+ * <p>
+ * Android: reads the encoded data in chunks and decodes it in a tight loop, straight into the
+ * caller's array where possible, rather than one {@code read()} call on the underlying stream
+ * per encoded character.
  * 
  * @version $Id: Base64InputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
  */
 public class Base64InputStream extends InputStream {
+    private static final int ENCODED_BUFFER_SIZE = 4096;
+    /** Three decoded bytes for every four encoded characters. */
+    private static final int DECODED_BUFFER_SIZE = ENCODED_BUFFER_SIZE / 4 * 3;
+
     private final InputStream s;
+    private final byte[] encodedBuffer = new byte[ENCODED_BUFFER_SIZE];
+    private int encodedIndex = 0;
+    private int encodedCount = 0;
+    /** Decoded bytes that were not asked for yet, for reads too small to decode into directly. */
+    private final byte[] outputBuffer = new byte[DECODED_BUFFER_SIZE];
     private int outCount = 0;
     private int outIndex = 0;
-    private final int[] outputBuffer = new int[3];
-    private final byte[] inputBuffer = new byte[4];
+    /** The sextets of the quantum in progress, which may span chunks of encoded input. */
+    private int quantum = 0;
+    private int quantumCount = 0;
     private boolean done = false;
 
     public Base64InputStream(InputStream s) {
@@ -63,72 +76,111 @@ public class Base64InputStream extends InputStream {
             }
         }
 
-        return outputBuffer[outIndex++];
+        return outputBuffer[outIndex++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (outIndex < outCount) {
+            final int n = Math.min(len, outCount - outIndex);
+            System.arraycopy(outputBuffer, outIndex, b, off, n);
+            outIndex += n;
+            return n;
+        }
+        if (len >= 3) {
+            return decode(b, off, len);
+        }
+        fillBuffer();
+        if (outIndex == outCount) {
+            return -1;
+        }
+        final int n = Math.min(len, outCount - outIndex);
+        System.arraycopy(outputBuffer, outIndex, b, off, n);
+        outIndex += n;
+        return n;
     }
 
     /**
      * Retrieve data from the underlying stream, decode it,
-     * and put the results in the byteq.
+     * and put the results in the output buffer.
      * @throws IOException
      */
     private void fillBuffer() throws IOException {
-        outCount = 0;
         outIndex = 0;
-        int inCount = 0;
+        outCount = Math.max(decode(outputBuffer, 0, outputBuffer.length), 0);
+    }
 
-        int i;
-        // "done" is needed for the two successive '=' at the end
-        while (!done) {
-            switch (i = s.read()) {
-                case -1:
-                    // No more input - just return, let outputBuffer drain out, and be done
-                    return;
-                case '=':
+    /**
+     * Decode as much input as fits in {@code dst}, reading from the underlying stream only until
+     * at least one byte has been decoded.
+     *
+     * @param len room in {@code dst}; at least 3, the size of one decoded quantum
+     * @return the number of bytes decoded, or -1 at the end of the data
+     */
+    private int decode(byte[] dst, int off, int len) throws IOException {
+        final int end = off + len;
+        int out = off;
+        while (!done && end - out >= 3) {
+            if (encodedIndex == encodedCount) {
+                if (out > off) {
+                    // Don't block for more input when we already have something to return
+                    break;
+                }
+                final int n = s.read(encodedBuffer, 0, encodedBuffer.length);
+                if (n < 0) {
+                    // No more input; an incomplete quantum without padding is dropped
+                    done = true;
+                    break;
+                }
+                encodedIndex = 0;
+                encodedCount = n;
+                continue;
+            }
+
+            final byte[] in = encodedBuffer;
+            final int limit = encodedCount;
+            int pos = encodedIndex;
+            int q = quantum;
+            int qc = quantumCount;
+            while (pos < limit && end - out >= 3) {
+                final int c = in[pos++] & 0xFF;
+                if (c == '=') {
                     // once we meet the first '=', avoid reading the second '='
                     done = true;
-                    decodeAndEnqueue(inCount);
-                    return;
-                default:
-                    byte sX = TRANSLATION[i];
-                    if (sX < 0) continue;
-                    inputBuffer[inCount++] = sX;
-                    if (inCount == 4) {
-                        decodeAndEnqueue(inCount);
-                        return;
+                    if (qc == 2) {
+                        dst[out++] = (byte) (q >> 4);
+                    } else if (qc == 3) {
+                        dst[out++] = (byte) (q >> 10);
+                        dst[out++] = (byte) (q >> 2);
                     }
+                    qc = 0;
                     break;
+                }
+                final int sX = TRANSLATION[c];
+                if (sX < 0) continue;
+                q = (q << 6) | sX;
+                if (++qc == 4) {
+                    dst[out++] = (byte) (q >> 16);
+                    dst[out++] = (byte) (q >> 8);
+                    dst[out++] = (byte) q;
+                    q = 0;
+                    qc = 0;
+                }
             }
+            encodedIndex = pos;
+            quantum = q;
+            quantumCount = qc;
         }
+        return (out == off && done) ? -1 : out - off;
     }
 
-    private void decodeAndEnqueue(int len) {
-        int accum = 0;
-        accum |= inputBuffer[0] << 18;
-        accum |= inputBuffer[1] << 12;
-        accum |= inputBuffer[2] << 6;
-        accum |= inputBuffer[3];
-
-        // There's a bit of duplicated code here because we want to have straight-through operation
-        // for the most common case of len==4
-        if (len == 4) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outputBuffer[2] = (accum) & 0xFF;
-            outCount = 3;
-            return;
-        } else if (len == 3) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outCount = 2;
-            return;
-        } else {    // len == 2
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outCount = 1;
-            return;
-        }
-    }
-
-    private static byte[] TRANSLATION = {
+    private static final byte[] TRANSLATION = {
         -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x00 */
         -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x10 */
         -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 62, -1, -1, -1, 63, /* 0x20 */
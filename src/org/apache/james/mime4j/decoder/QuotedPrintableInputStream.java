@@ -29,18 +29,33 @@ import org.apache.james.mime4j.LogFactory;
 
 /**
  * Performs Quoted-Printable decoding on an underlying stream.
- * 
+ * <p>
+ * Android: reads the encoded data in chunks and runs the decoder over each chunk in a loop,
+ * rather than pushing every byte through a pair of {@link ByteQueue}s.
  * 
  * 
  * @version $Id: QuotedPrintableInputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
  */
 public class QuotedPrintableInputStream extends InputStream {
     private static Log log = LogFactory.getLog(QuotedPrintableInputStream.class);
-    
+
+    private static final int ENCODED_BUFFER_SIZE = 4096;
+
     private InputStream stream;
-    ByteQueue byteq = new ByteQueue();
-    ByteQueue pushbackq = new ByteQueue();
+    private final byte[] encoded = new byte[ENCODED_BUFFER_SIZE];
+    /** Decoded output; every encoded byte decodes to at most three bytes (malformed escapes). */
+    private byte[] decoded = new byte[ENCODED_BUFFER_SIZE * 3];
+    private int decodedIndex = 0;
+    private int decodedCount = 0;
+    /**
+     * A run of blanks that has not been decoded yet. This is necessary to detect and filter out
+     * "transport padding" whitespace, i.e., all whitespace that appears immediately before a CRLF.
+     */
+    private byte[] blanks = new byte[16];
+    private int blankCount = 0;
     private byte state = 0;
+    private byte msdChar = 0;  // first digit of escaped num
+    private boolean eof = false;
 
     public QuotedPrintableInputStream(InputStream stream) {
         this.stream = stream;
@@ -56,151 +71,172 @@ public class QuotedPrintableInputStream extends InputStream {
     }
 
     public int read() throws IOException {
-        fillBuffer();
-        if (byteq.count() == 0)
+        if (decodedIndex == decodedCount && !fillBuffer()) {
+            return -1;
+        }
+        return decoded[decodedIndex++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (decodedIndex == decodedCount && !fillBuffer()) {
             return -1;
-        else {
-            byte val = byteq.dequeue();
-            if (val >= 0)
-                return val;
-            else
-                return val & 0xFF;
         }
+        final int n = Math.min(len, decodedCount - decodedIndex);
+        System.arraycopy(decoded, decodedIndex, b, off, n);
+        decodedIndex += n;
+        return n;
     }
 
     /**
-     * Pulls bytes out of the underlying stream and places them in the
-     * pushback queue.  This is necessary (vs. reading from the
-     * underlying stream directly) to detect and filter out "transport
-     * padding" whitespace, i.e., all whitespace that appears immediately
-     * before a CRLF.
+     * Reads chunks from the underlying stream and decodes them until one or more bytes are in
+     * the decoded buffer.
      *
+     * @return false at the end of the data
      * @throws IOException Underlying stream threw IOException.
      */
-    private void populatePushbackQueue() throws IOException {
-        //Debug.verify(pushbackq.count() == 0, "PopulatePushbackQueue called when pushback queue was not empty!");
-
-        if (pushbackq.count() != 0)
-            return;
+    private boolean fillBuffer() throws IOException {
+        decodedIndex = 0;
+        decodedCount = 0;
+        while (decodedCount == 0) {
+            if (eof) {
+                return false;
+            }
+            final int n = stream.read(encoded, 0, encoded.length);
+            if (n < 0) {
+                // stream is done
+                eof = true;
+                blankCount = 0;  // discard any whitespace preceding EOF
+                return false;
+            }
+            final int maxDecoded = 3 * (blankCount + n);
+            if (decoded.length < maxDecoded) {
+                decoded = new byte[maxDecoded];
+            }
+            decodeChunk(n);
+        }
+        return true;
+    }
 
-        while (true) {
-            int i = stream.read();
-            switch (i) {
-                case -1:
-                    // stream is done
-                    pushbackq.clear();  // discard any whitespace preceding EOF
-                    return;
+    private void decodeChunk(int n) {
+        final byte[] in = encoded;
+        for (int i = 0; i < n; i++) {
+            final byte b = in[i];
+            switch (b) {
                 case ' ':
                 case '\t':
-                    pushbackq.enqueue((byte)i);
-                    break;
+                    if (blankCount == blanks.length) {
+                        final byte[] grown = new byte[blanks.length * 2];
+                        System.arraycopy(blanks, 0, grown, 0, blankCount);
+                        blanks = grown;
+                    }
+                    blanks[blankCount++] = b;
+                    continue;
                 case '\r':
                 case '\n':
-                    pushbackq.clear();  // discard any whitespace preceding EOL
-                    pushbackq.enqueue((byte)i);
-                    return;
+                    blankCount = 0;  // discard any whitespace preceding EOL
+                    break;
                 default:
-                    pushbackq.enqueue((byte)i);
-                    return;
+                    for (int j = 0; j < blankCount; j++) {
+                        decodeByte(blanks[j]);
+                    }
+                    blankCount = 0;
+                    break;
             }
+            decodeByte(b);
         }
     }
 
+    private void emit(byte b) {
+        decoded[decodedCount++] = b;
+    }
+
     /**
-     * Causes the pushback queue to get populated if it is empty, then
-     * consumes and decodes bytes out of it until one or more bytes are
-     * in the byte queue.  This decoding step performs the actual QP
-     * decoding.
-     *
-     * @throws IOException Underlying stream threw IOException.
+     * Runs one encoded byte through the decoder's state machine. This decoding step performs the
+     * actual QP decoding.
      */
-    private void fillBuffer() throws IOException {
-        byte msdChar = 0;  // first digit of escaped num
-        while (byteq.count() == 0) {
-            if (pushbackq.count() == 0) {
-                populatePushbackQueue();
-                if (pushbackq.count() == 0)
-                    return;
-            }
-
-            byte b = (byte)pushbackq.dequeue();
-
-            switch (state) {
-                case 0:  // start state, no bytes pending
-                    if (b != '=') {
-                        byteq.enqueue(b);
-                        break;  // state remains 0
-                    } else {
-                        state = 1;
-                        break;
+    private void decodeByte(byte b) {
+        switch (state) {
+            case 0:  // start state, no bytes pending
+                if (b != '=') {
+                    emit(b);
+                    break;  // state remains 0
+                } else {
+                    state = 1;
+                    break;
+                }
+            case 1:  // encountered "=" so far
+                if (b == '\r') {
+                    state = 2;
+                    break;
+                } else if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
+                    state = 3;
+                    msdChar = b;  // save until next digit encountered
+                    break;
+                } else if (b == '=') {
+                    /*
+                     * Special case when == is encountered.
+                     * Emit one = and stay in this state.
+                     */
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; got ==");
                     }
-                case 1:  // encountered "=" so far
-                    if (b == '\r') {
-                        state = 2;
-                        break;
-                    } else if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
-                        state = 3;
-                        msdChar = b;  // save until next digit encountered
-                        break;
-                    } else if (b == '=') {
-                        /*
-                         * Special case when == is encountered.
-                         * Emit one = and stay in this state.
-                         */
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; got ==");
-                        }
-                        byteq.enqueue((byte)'=');
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected \\r or "
-                                    + "[0-9A-Z], got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(b);
-                        break;
+                    emit((byte)'=');
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected \\r or "
+                                + "[0-9A-Z], got " + b);
                     }
-                case 2:  // encountered "=\r" so far
-                    if (b == '\n') {
-                        state = 0;
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected " 
-                                    + (int)'\n' + ", got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue((byte)'\r');
-                        byteq.enqueue(b);
-                        break;
+                    state = 0;
+                    emit((byte)'=');
+                    emit(b);
+                    break;
+                }
+            case 2:  // encountered "=\r" so far
+                if (b == '\n') {
+                    state = 0;
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected "
+                                + (int)'\n' + ", got " + b);
                     }
-                case 3:  // encountered =<digit> so far; expecting another <digit> to complete the octet
-                    if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
-                        byte msd = asciiCharToNumericValue(msdChar);
-                        byte low = asciiCharToNumericValue(b);
-                        state = 0;
-                        byteq.enqueue((byte)((msd << 4) | low));
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected "
-                                     + "[0-9A-Z], got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(msdChar);
-                        byteq.enqueue(b);
-                        break;
+                    state = 0;
+                    emit((byte)'=');
+                    emit((byte)'\r');
+                    emit(b);
+                    break;
+                }
+            case 3:  // encountered =<digit> so far; expecting another <digit> to complete the octet
+                if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
+                    byte msd = asciiCharToNumericValue(msdChar);
+                    byte low = asciiCharToNumericValue(b);
+                    state = 0;
+                    emit((byte)((msd << 4) | low));
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected "
+                                 + "[0-9A-Z], got " + b);
                     }
-                default:  // should never happen
-                    log.error("Illegal state: " + state);
                     state = 0;
-                    byteq.enqueue(b);
+                    emit((byte)'=');
+                    emit(msdChar);
+                    emit(b);
                     break;
-            }
+                }
+            default:  // should never happen
+                log.error("Illegal state: " + state);
+                state = 0;
+                emit(b);
+                break;
         }
     }
 
@@ -19,6 +19,7 @@
 
 package org.apache.james.mime4j.message;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -28,6 +29,7 @@ import org.apache.commons.io.IOUtils;
 import org.apache.james.mime4j.Log;
 import org.apache.james.mime4j.LogFactory;
 //END android-changed
+import org.apache.james.mime4j.util.MappedFileInputStream;
 import org.apache.james.mime4j.util.TempFile;
 import org.apache.james.mime4j.util.TempPath;
 import org.apache.james.mime4j.util.TempStorage;
@@ -83,9 +85,22 @@ class TempFileBinaryBody extends AbstractBody implements BinaryBody {
     }
     
     /**
+     * Copies the file with a channel transfer when it is on disk, so it is
+     * not copied through the heap when <code>out</code> is a file.
+     * 
      * @see org.apache.james.mime4j.message.Body#writeTo(java.io.OutputStream)
      */
     public void writeTo(OutputStream out) throws IOException {
-	IOUtils.copy(getInputStream(),out);
+        String path = tempFile.getAbsolutePath();
+        if (!tempFile.isInMemory() && path != null) {
+            MappedFileInputStream.transferTo(new File(path), out);
+            return;
+        }
+        InputStream in = getInputStream();
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
     }
 }
@@ -0,0 +1,218 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mime4j.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <code>InputStream</code> reading a file through a read-only memory-mapped
+ * view, so bytes go straight from the page cache to the caller's buffer
+ * instead of through a <code>read()</code> system call per buffer.
+ * <p>
+ * The file is closed as soon as it has been mapped; the mapping stays valid
+ * as long as it is reachable, even if the file is deleted. Closing the stream
+ * drops its reference to the mapping, which is then released when it is
+ * garbage collected.
+ * 
+ * @version $Id$
+ */
+public class MappedFileInputStream extends InputStream {
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+    
+    private ByteBuffer buffer = null;
+    private int mark = 0;
+
+    /**
+     * Maps the whole of the given file.
+     * 
+     * @param file the file, at most <code>Integer.MAX_VALUE</code> bytes long.
+     * @throws IOException if the file cannot be opened or mapped.
+     */
+    public MappedFileInputStream(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + file);
+            }
+            buffer = size == 0 ? ByteBuffer.allocate(0) 
+                    : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Opens a file for reading, through a mapped view if it is small enough
+     * to be mapped in one piece.
+     * 
+     * @param file the file.
+     * @return the stream.
+     * @throws IOException if the file cannot be opened.
+     */
+    public static InputStream open(File file) throws IOException {
+        if (file.length() <= Integer.MAX_VALUE) {
+            return new MappedFileInputStream(file);
+        }
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+    
+    /**
+     * Copies the contents of a file to a stream. When the stream is a
+     * <code>FileOutputStream</code> the bytes are moved between the two
+     * channels with {@link FileChannel#transferTo}, without being copied
+     * through the Java heap.
+     * 
+     * @param file the file to copy.
+     * @param out the stream to copy to; it is not closed.
+     * @return the number of bytes copied.
+     * @throws IOException on I/O errors.
+     */
+    public static long transferTo(File file, OutputStream out) 
+            throws IOException {
+        
+        if (out instanceof FileOutputStream) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel from = in.getChannel();
+                FileChannel to = ((FileOutputStream) out).getChannel();
+                long size = from.size();
+                long position = 0;
+                while (position < size) {
+                    long n = from.transferTo(position, size - position, to);
+                    if (n <= 0) {
+                        break;
+                    }
+                    position += n;
+                }
+                return position;
+            } finally {
+                in.close();
+            }
+        }
+        
+        InputStream in = open(file);
+        try {
+            byte[] b = new byte[COPY_BUFFER_SIZE];
+            long count = 0;
+            int n;
+            while ((n = in.read(b, 0, b.length)) != -1) {
+                out.write(b, 0, n);
+                count += n;
+            }
+            return count;
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * @see java.io.InputStream#read()
+     */
+    public int read() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Stream closed");
+        }
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (buffer == null) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        len = Math.min(len, buffer.remaining());
+        buffer.get(b, off, len);
+        return len;
+    }
+
+    /**
+     * @see java.io.InputStream#skip(long)
+     */
+    public long skip(long n) throws IOException {
+        if (buffer == null) {
+            throw new IOException("Stream closed");
+        }
+        if (n <= 0) {
+            return 0;
+        }
+        int skipped = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+    public int available() throws IOException {
+        return buffer == null ? 0 : buffer.remaining();
+    }
+
+    /**
+     * @see java.io.InputStream#markSupported()
+     */
+    public boolean markSupported() {
+        return true;
+    }
+
+    /**
+     * @see java.io.InputStream#mark(int)
+     */
+    public void mark(int readlimit) {
+        if (buffer != null) {
+            mark = buffer.position();
+        }
+    }
+
+    /**
+     * @see java.io.InputStream#reset()
+     */
+    public void reset() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Stream closed");
+        }
+        buffer.position(mark);
+    }
+
+    /**
+     * Drops the mapping, leaving it to be released when it is garbage
+     * collected. Reading from the stream afterwards fails.
+     */
+    public void close() {
+        buffer = null;
+    }
+}
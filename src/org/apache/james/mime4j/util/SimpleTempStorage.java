@@ -19,10 +19,8 @@
 
 package org.apache.james.mime4j.util;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -193,10 +191,12 @@ public class SimpleTempStorage extends TempStorage {
         }
 
         /**
+         * Reads the file through a memory-mapped view.
+         * 
          * @see org.apache.james.mime4j.util.TempFile#getInputStream()
          */
         public InputStream getInputStream() throws IOException {
-            return new BufferedInputStream(new FileInputStream(file));
+            return MappedFileInputStream.open(file);
         }
 
         /**
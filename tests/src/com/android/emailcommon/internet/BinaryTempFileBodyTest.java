@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.mail.MessagingException;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+@SmallTest
+public class BinaryTempFileBodyTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    private static byte[] randomBytes(int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    /** Writes in uneven pieces, including single bytes, as decoding streams do. */
+    private static BinaryTempFileBody write(byte[] bytes, BodyCopyStats stats)
+            throws IOException {
+        final BinaryTempFileBody body = new BinaryTempFileBody(stats);
+        final OutputStream out = body.getOutputStream();
+        final Random random = new Random(0);
+        int off = 0;
+        while (off < bytes.length) {
+            if (random.nextInt(4) == 0) {
+                out.write(bytes[off++]);
+            } else {
+                final int n = Math.min(bytes.length - off, random.nextInt(10000));
+                out.write(bytes, off, n);
+                off += n;
+            }
+        }
+        out.close();
+        return body;
+    }
+
+    private static byte[] read(BinaryTempFileBody body) throws IOException, MessagingException {
+        final InputStream in = body.getInputStream();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtils.copy(in, out);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static int countTempFiles() {
+        int count = 0;
+        for (File file : TempDirectory.getTempDirectory().listFiles()) {
+            if (file.getName().startsWith("body")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void assertDisposed(BinaryTempFileBody body) {
+        try {
+            body.getInputStream();
+            fail("expected MessagingException");
+        } catch (MessagingException expected) {
+        }
+    }
+
+    public void testSmallBodyStaysInMemory() throws Exception {
+        final int tempFiles = countTempFiles();
+        final BodyCopyStats stats = new BodyCopyStats();
+        for (int length : new int[] { 0, 1, 1000, BinaryTempFileBody.SPILL_THRESHOLD }) {
+            final byte[] bytes = randomBytes(length);
+            final BinaryTempFileBody body = write(bytes, stats);
+            assertEquals(tempFiles, countTempFiles());
+            assertTrue(Arrays.equals(bytes, read(body)));
+            assertDisposed(body);
+        }
+        final long total = 1001 + BinaryTempFileBody.SPILL_THRESHOLD;
+        assertEquals(total, stats.getBufferedBytes());
+        assertEquals(0, stats.getSpilledBytes());
+        assertEquals(total, stats.getCopiedBytes());
+    }
+
+    public void testLargeBodySpillsToFile() throws Exception {
+        final int tempFiles = countTempFiles();
+        final BodyCopyStats stats = new BodyCopyStats();
+        final byte[] bytes = randomBytes(BinaryTempFileBody.SPILL_THRESHOLD * 3 + 17);
+        final BinaryTempFileBody body = write(bytes, stats);
+        assertEquals(tempFiles + 1, countTempFiles());
+        assertEquals(0, stats.getBufferedBytes());
+        assertEquals(bytes.length, stats.getSpilledBytes());
+
+        assertTrue(Arrays.equals(bytes, read(body)));
+        assertEquals(bytes.length, stats.getCopiedBytes());
+        assertEquals(tempFiles, countTempFiles());
+        assertDisposed(body);
+    }
+
+    public void testCopyToFileTransfers() throws Exception {
+        final byte[] bytes = randomBytes(BinaryTempFileBody.SPILL_THRESHOLD * 2);
+        final File target = File.createTempFile("copy", null, TempDirectory.getTempDirectory());
+        try {
+            final BodyCopyStats stats = new BodyCopyStats();
+            final BinaryTempFileBody body = write(bytes, stats);
+            final FileOutputStream out = new FileOutputStream(target);
+            assertEquals(bytes.length, body.copyTo(out));
+            out.close();
+            assertEquals(bytes.length, stats.getTransferredBytes());
+            assertEquals(0, stats.getCopiedBytes());
+            assertDisposed(body);
+
+            final FileInputStream in = new FileInputStream(target);
+            final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            IOUtils.copy(in, copy);
+            in.close();
+            assertTrue(Arrays.equals(bytes, copy.toByteArray()));
+        } finally {
+            target.delete();
+        }
+    }
+
+    public void testCopyToStream() throws Exception {
+        final BodyCopyStats stats = new BodyCopyStats();
+        for (int length : new int[] { 100, BinaryTempFileBody.SPILL_THRESHOLD + 1 }) {
+            final byte[] bytes = randomBytes(length);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(length, write(bytes, stats).copyTo(out));
+            assertTrue(Arrays.equals(bytes, out.toByteArray()));
+        }
+        assertEquals(101 + BinaryTempFileBody.SPILL_THRESHOLD, stats.getCopiedBytes());
+    }
+
+    public void testSuppliedFile() throws Exception {
+        final byte[] bytes = randomBytes(5000);
+        final File file = File.createTempFile("body", null, TempDirectory.getTempDirectory());
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+
+        final BinaryTempFileBody body = new BinaryTempFileBody();
+        body.setFile(file.getAbsolutePath());
+        assertTrue(Arrays.equals(bytes, read(body)));
+        assertFalse(file.exists());
+    }
+
+    public void testReaderKeepsItsContentWhenReplaced() throws Exception {
+        final byte[] bytes = randomBytes(50000);
+        final BinaryTempFileBody body = write(bytes, null);
+        final InputStream in = body.getInputStream();
+
+        // would reuse the chunks the reader is on if they had gone back to the pool
+        final byte[] replacement = randomBytes(50001);
+        final OutputStream out = body.getOutputStream();
+        out.write(replacement);
+        out.close();
+        write(randomBytes(60000), null);
+
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        IOUtils.copy(in, copy);
+        in.close();
+        assertTrue(Arrays.equals(bytes, copy.toByteArray()));
+        assertTrue(Arrays.equals(replacement, read(body)));
+    }
+
+    public void testClosedReaderFails() throws Exception {
+        for (int length : new int[] { 100, BinaryTempFileBody.SPILL_THRESHOLD + 1 }) {
+            final InputStream in = write(randomBytes(length), null).getInputStream();
+            in.close();
+            try {
+                in.read();
+                fail("expected IOException");
+            } catch (IOException expected) {
+            }
+        }
+    }
+}
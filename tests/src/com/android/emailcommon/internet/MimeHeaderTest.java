@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.mail.MessagingException;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+@SmallTest
+public class MimeHeaderTest extends TestCase {
+
+    /** Counts its calls, so tests can tell memoized values from re-parsed ones. */
+    private static class CountingParser implements MimeHeader.HeaderParser<String> {
+        int calls;
+
+        @Override
+        public String parse(String value) {
+            calls++;
+            return value == null ? null : value.toUpperCase();
+        }
+    }
+
+    public void testLookupsIgnoreCase() throws MessagingException {
+        final MimeHeader header = new MimeHeader();
+        for (int i = 0; i < 200; i++) {
+            header.addHeader("Received", "hop " + i);
+        }
+        header.addHeader("Subject", "hello");
+        header.addHeader("received", "hop 200");
+
+        assertEquals("hello", header.getFirstHeader("SUBJECT"));
+        assertEquals("hop 0", header.getFirstHeader("Received"));
+        final String[] received = header.getHeader("RECEIVED");
+        assertEquals(201, received.length);
+        assertEquals("hop 200", received[200]);
+        assertNull(header.getHeader("Date"));
+        assertNull(header.getFirstHeader("Date"));
+    }
+
+    public void testSetAndRemoveAfterLookup() throws MessagingException {
+        final MimeHeader header = new MimeHeader();
+        header.addHeader("To", "a");
+        header.addHeader("To", "b");
+        assertTrue(Arrays.equals(new String[] { "a", "b" }, header.getHeader("to")));
+
+        header.setHeader("TO", "c");
+        assertTrue(Arrays.equals(new String[] { "c" }, header.getHeader("To")));
+        header.addHeader("Cc", "d");
+        assertEquals("d", header.getFirstHeader("cc"));
+
+        header.removeHeader("to");
+        assertNull(header.getHeader("To"));
+        assertEquals("Cc: d\r\n", header.writeToString());
+
+        header.clear();
+        assertNull(header.getFirstHeader("Cc"));
+    }
+
+    public void testParsedValuesAreMemoized() throws MessagingException {
+        final MimeHeader header = new MimeHeader();
+        final CountingParser parser = new CountingParser();
+        header.addHeader("Subject", "first");
+
+        assertEquals("FIRST", header.getParsedHeader("Subject", parser));
+        assertEquals("FIRST", header.getParsedHeader("subject", parser));
+        assertEquals(1, parser.calls);
+
+        header.setHeader("Subject", "second");
+        assertEquals("SECOND", header.getParsedHeader("Subject", parser));
+        assertEquals(2, parser.calls);
+
+        header.removeHeader("Subject");
+        assertNull(header.getParsedHeader("Subject", parser));
+        assertNull(header.getParsedHeader("Subject", parser));
+        assertEquals(3, parser.calls);
+
+        header.addHeader("Subject", "third");
+        assertEquals("THIRD", header.getParsedHeader("Subject", parser));
+        assertEquals(4, parser.calls);
+    }
+
+    public void testCachedParsedValue() throws MessagingException {
+        final MimeHeader header = new MimeHeader();
+        final CountingParser parser = new CountingParser();
+        header.setHeader("Subject", "raw");
+        header.cacheParsedHeader("Subject", parser, "typed");
+        assertEquals("typed", header.getParsedHeader("Subject", parser));
+        assertEquals(0, parser.calls);
+
+        // Other parsers of the same header are unaffected.
+        final CountingParser other = new CountingParser();
+        assertEquals("RAW", header.getParsedHeader("Subject", other));
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.SpannableStringBuilder;
+import android.text.style.BackgroundColorSpan;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Random;
+
+public class TextUtilitiesTest extends TestCase {
+    private static final String LOG_TAG = "TextUtilitiesTest";
+    private static final String START = "<span style=\"background-color: "
+            + TextUtilities.HIGHLIGHT_COLOR_STRING + "\">";
+    private static final String END = "</span>";
+
+    private static String highlight(String text) {
+        return START + text + END;
+    }
+
+    @SmallTest
+    public void testHighlightHtml() {
+        assertEquals("", TextUtilities.highlightTermsInHtml(null, "term"));
+        assertEquals("no match", TextUtilities.highlightTermsInHtml("no match", "term"));
+        assertEquals("no terms", TextUtilities.highlightTermsInHtml("no terms", null));
+        assertEquals("a " + highlight("Term") + " and a " + highlight("TERM"),
+                TextUtilities.highlightTermsInHtml("a Term and a TERM", "term"));
+        assertEquals("<b>" + highlight("one") + "</b> and " + highlight("two"),
+                TextUtilities.highlightTermsInHtml("<b>one</b> and two", "two one"));
+    }
+
+    @SmallTest
+    public void testHighlightSkipsTags() {
+        assertEquals("<a href=\"term\">" + highlight("term") + "</a>",
+                TextUtilities.highlightTermsInHtml("<a href=\"term\">term</a>", "term"));
+        // Terms don't match across tags
+        assertEquals("te<b>rm</b>", TextUtilities.highlightTermsInHtml("te<b>rm</b>", "term"));
+        // Nor inside the content of scripts and styles
+        assertEquals("<script>term</script>" + highlight("term"),
+                TextUtilities.highlightTermsInHtml("<script>term</script>term", "term"));
+        assertEquals("<STYLE>.term {}</STYLE> " + highlight("term"),
+                TextUtilities.highlightTermsInHtml("<STYLE>.term {}</STYLE> term", "term"));
+        // A comparison isn't a tag
+        assertEquals("1 < " + highlight("2"), TextUtilities.highlightTermsInHtml("1 < 2", "2"));
+    }
+
+    @SmallTest
+    public void testOverlappingTermsAreMerged() {
+        assertEquals(highlight("abcd"), TextUtilities.highlightTermsInHtml("abcd", "b abcd"));
+        assertEquals(highlight("abcde") + " x",
+                TextUtilities.highlightTermsInHtml("abcde x", "abc cde"));
+        assertEquals(highlight("aaab"), TextUtilities.highlightTermsInHtml("aaab", "aab a"));
+        assertEquals("x" + highlight("aab"), TextUtilities.highlightTermsInHtml("xaab", "aab"));
+        assertEquals(highlight("abab") + " " + highlight("ab"),
+                TextUtilities.highlightTermsInHtml("abab ab", "ab"));
+    }
+
+    @SmallTest
+    public void testHighlightNonAscii() {
+        assertEquals("Gr" + highlight("\u00dcSSE"),
+                TextUtilities.highlightTermsInHtml("Gr\u00dcSSE", "\u00fcsse"));
+    }
+
+    @SmallTest
+    public void testHighlightText() {
+        final CharSequence result =
+                TextUtilities.highlightTermsInText("Find the term, then the other TERM", "term");
+        assertEquals("Find the term, then the other TERM", result.toString());
+        final SpannableStringBuilder spanned = (SpannableStringBuilder) result;
+        final BackgroundColorSpan[] spans =
+                spanned.getSpans(0, spanned.length(), BackgroundColorSpan.class);
+        assertEquals(2, spans.length);
+        assertEquals(9, spanned.getSpanStart(spans[0]));
+        assertEquals(13, spanned.getSpanEnd(spans[0]));
+        assertEquals(30, spanned.getSpanStart(spans[1]));
+        assertEquals(34, spanned.getSpanEnd(spans[1]));
+    }
+
+    /** Renders the highlight spans of plain text as brackets. */
+    private static String describeSpans(CharSequence text) {
+        final SpannableStringBuilder spanned = (SpannableStringBuilder) text;
+        final BackgroundColorSpan[] spans =
+                spanned.getSpans(0, spanned.length(), BackgroundColorSpan.class);
+        final StringBuilder sb = new StringBuilder(text);
+        for (int i = spans.length - 1; i >= 0; i--) {
+            sb.insert(spanned.getSpanEnd(spans[i]), ']');
+            sb.insert(spanned.getSpanStart(spans[i]), '[');
+        }
+        return sb.toString();
+    }
+
+    @SmallTest
+    public void testMatchesLegacyForSingleTerms() throws IOException {
+        final String body = messageText(new Random(2), 200);
+        for (String query : new String[] { "meeting", "the", "Q3", "x" }) {
+            assertEquals(query,
+                    describeSpans(LegacyTermHighlighter.highlightTerms(body, query, false)),
+                    describeSpans(TextUtilities.highlightTerms(body, query, false)));
+        }
+    }
+
+    private static final String[] WORDS = { "the", "meeting", "is", "moved", "to", "Thursday",
+            "please", "review", "attached", "Q3", "numbers", "before", "we", "meet", "thanks",
+            "and", "regards", "forecast", "budget", "team", "schedule", "update" };
+
+    private static String messageText(Random random, int words) {
+        final StringBuilder sb = new StringBuilder();
+        for (int w = 0; w < words; w++) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(10) == 0
+                    ? ".\n" : " ");
+        }
+        return sb.toString();
+    }
+
+    /** An HTML message body the way mail clients write them, with quoted replies and styles. */
+    private static String messageBody(Random random, int paragraphs) {
+        final StringBuilder sb = new StringBuilder("<html><head><style>p { margin: 0 }"
+                + " .meeting { color: red }</style></head><body>");
+        for (int p = 0; p < paragraphs; p++) {
+            final boolean quote = random.nextBoolean();
+            sb.append(quote ? "<div class=\"gmail_quote\">" : "<p>");
+            for (int w = 40 + random.nextInt(80); w > 0; w--) {
+                final String word = WORDS[random.nextInt(WORDS.length)];
+                if (random.nextInt(20) == 0) {
+                    sb.append("<b>").append(word).append("</b> ");
+                } else if (random.nextInt(30) == 0) {
+                    sb.append("<a href=\"http://example.com/").append(word).append("\">")
+                            .append(word).append("</a> ");
+                } else {
+                    sb.append(word).append(' ');
+                }
+            }
+            sb.append(quote ? "</div>\n" : "</p>\n");
+        }
+        return sb.append("</body></html>").toString();
+    }
+
+    private static long timeHighlights(String[] bodies, String query, boolean legacy)
+            throws IOException {
+        final long start = System.nanoTime();
+        for (String body : bodies) {
+            if (legacy) {
+                LegacyTermHighlighter.highlightTerms(body, query, true);
+            } else {
+                TextUtilities.highlightTerms(body, query, true);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    @LargeTest
+    public void testBenchmark() throws IOException {
+        final Random random = new Random(1);
+        final String[] bodies = new String[50];
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = messageBody(random, 50 + random.nextInt(200));
+        }
+        for (String query : new String[] { "meeting", "budget forecast Q3",
+                "the team schedule update review numbers" }) {
+            // warm up
+            timeHighlights(bodies, query, true);
+            timeHighlights(bodies, query, false);
+            final long legacy = timeHighlights(bodies, query, true);
+            final long current = timeHighlights(bodies, query, false);
+            Log.i(LOG_TAG, String.format("\"%s\": legacy %.1f ms, automaton %.1f ms (%.1fx)",
+                    query, legacy / 1e6, current / 1e6, (double) legacy / current));
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.mail;
+
+import android.content.ContentResolver;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+@SmallTest
+public class ContactLookupTest extends AndroidTestCase {
+
+    private final ContentResolver mResolver = new MockContentResolver();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ContactLookup.clearCache();
+    }
+
+    /** Answers every email with a contact-less result, failing batches holding the email. */
+    private static class FakeQuery implements ContactLookup.BatchQuery {
+        final List<List<String>> batches = Collections.synchronizedList(
+                Lists.<List<String>>newArrayList());
+        final String mFailFor;
+
+        FakeQuery(String failFor) {
+            mFailFor = failFor;
+        }
+
+        @Override
+        public Map<String, ContactInfo> query(ContentResolver resolver, List<String> emails) {
+            batches.add(Lists.newArrayList(emails));
+            if (emails.contains(mFailFor)) {
+                return null;
+            }
+            final Map<String, ContactInfo> results = Maps.newHashMap();
+            for (String email : emails) {
+                results.put(email, new ContactInfo(null));
+            }
+            return results;
+        }
+    }
+
+    private static List<String> emails(int count) {
+        final List<String> emails = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            emails.add("sender" + i + "@example.com");
+        }
+        return emails;
+    }
+
+    public void testLooksUpEveryEmailInBatches() {
+        final FakeQuery query = new FakeQuery(null);
+        final List<String> emails = emails(7);
+
+        final Map<String, ContactInfo> results = ContactLookup.lookup(mResolver, emails, null, query, 3);
+
+        assertEquals(3, query.batches.size());
+        for (List<String> batch : query.batches) {
+            assertTrue(batch.size() <= 3);
+        }
+        assertEquals(7, results.size());
+        assertTrue(results.keySet().containsAll(emails));
+    }
+
+    public void testFailedBatchLeavesItsEmailsOut() {
+        final List<String> emails = emails(6);
+        final FakeQuery query = new FakeQuery(emails.get(4));
+
+        final Map<String, ContactInfo> results = ContactLookup.lookup(mResolver, emails, null, query, 3);
+
+        assertEquals(3, results.size());
+        assertTrue(results.keySet().containsAll(emails.subList(0, 3)));
+    }
+
+    public void testReturnsNullIfEveryQueryFailed() {
+        final List<String> emails = emails(2);
+        final FakeQuery query = new FakeQuery(emails.get(0));
+
+        assertNull(ContactLookup.lookup(mResolver, emails, null, query, 3));
+    }
+
+    public void testJoinsLookupInFlight() throws Exception {
+        final List<String> emails = emails(2);
+        final CountDownLatch queryStarted = new CountDownLatch(1);
+        final CountDownLatch releaseQuery = new CountDownLatch(1);
+        final AtomicInteger queries = new AtomicInteger();
+        final ContactLookup.BatchQuery blockingQuery = new FakeQuery(null) {
+            @Override
+            public Map<String, ContactInfo> query(ContentResolver resolver, List<String> batch) {
+                queries.incrementAndGet();
+                queryStarted.countDown();
+                try {
+                    releaseQuery.await();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                return super.query(resolver, batch);
+            }
+        };
+
+        final AtomicReference<Map<String, ContactInfo>> first =
+                new AtomicReference<Map<String, ContactInfo>>();
+        final Thread firstLookup = new Thread() {
+            @Override
+            public void run() {
+                first.set(ContactLookup.lookup(mResolver, emails, null, blockingQuery, 3));
+            }
+        };
+        firstLookup.start();
+        assertTrue(queryStarted.await(5, TimeUnit.SECONDS));
+
+        final AtomicReference<Map<String, ContactInfo>> second =
+                new AtomicReference<Map<String, ContactInfo>>();
+        final Thread secondLookup = new Thread() {
+            @Override
+            public void run() {
+                second.set(ContactLookup.lookup(mResolver, emails, null, blockingQuery, 3));
+            }
+        };
+        secondLookup.start();
+        // release the query only once the second lookup is waiting for it
+        while (secondLookup.getState() != Thread.State.WAITING && secondLookup.isAlive()) {
+            Thread.sleep(10);
+        }
+        releaseQuery.countDown();
+        firstLookup.join(5000);
+        secondLookup.join(5000);
+
+        assertEquals(2, first.get().size());
+        assertEquals(2, second.get().size());
+        assertEquals(1, queries.get());
+    }
+
+    public void testServesRepeatedLookupsFromCache() {
+        final FakeQuery query = new FakeQuery(null);
+        final List<String> emails = emails(2);
+
+        ContactLookup.lookup(mResolver, emails, null, query, 3);
+        final Map<String, ContactInfo> results =
+                ContactLookup.lookup(mResolver, emails, null, query, 3);
+
+        assertEquals(1, query.batches.size());
+        assertEquals(2, results.size());
+
+        ContactLookup.clearCache();
+        ContactLookup.lookup(mResolver, emails, null, query, 3);
+        assertEquals(2, query.batches.size());
+    }
+
+    public void testCancelledLookupDoesNotQuery() {
+        final FakeQuery query = new FakeQuery(null);
+        final ContactLookup.CancellationSignal signal = new ContactLookup.CancellationSignal();
+        signal.cancel();
+
+        assertNull(ContactLookup.lookup(mResolver, emails(4), signal, query, 3));
+        assertTrue(query.batches.isEmpty());
+    }
+
+    public void testCancelledCallerStopsWaiting() throws Exception {
+        final List<String> emails = emails(1);
+        final CountDownLatch queryStarted = new CountDownLatch(1);
+        final CountDownLatch releaseQuery = new CountDownLatch(1);
+        final ContactLookup.BatchQuery blockingQuery = new FakeQuery(null) {
+            @Override
+            public Map<String, ContactInfo> query(ContentResolver resolver, List<String> batch) {
+                queryStarted.countDown();
+                try {
+                    releaseQuery.await();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                return super.query(resolver, batch);
+            }
+        };
+        final Thread owner = new Thread() {
+            @Override
+            public void run() {
+                ContactLookup.lookup(mResolver, emails, null, blockingQuery, 3);
+            }
+        };
+        owner.start();
+        assertTrue(queryStarted.await(5, TimeUnit.SECONDS));
+
+        try {
+            final ContactLookup.CancellationSignal signal =
+                    new ContactLookup.CancellationSignal();
+            signal.cancel();
+            assertNull(ContactLookup.lookup(mResolver, emails, signal, blockingQuery, 3));
+        } finally {
+            releaseQuery.countDown();
+            owner.join(5000);
+        }
+    }
+
+    /**
+     * Verifies that a batch whose owner has cancelled is still queried for another caller waiting
+     * for one of its emails.
+     */
+    public void testCancelledOwnerStillQueriesForOtherWaiters() throws Exception {
+        final List<String> busy = Lists.newArrayList("busy0@example.com", "busy1@example.com",
+                "busy2@example.com");
+        final List<String> emails = emails(2);
+        final CountDownLatch busyStarted = new CountDownLatch(3);
+        final CountDownLatch ownerStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> queried = Collections.synchronizedList(Lists.<String>newArrayList());
+        final ContactLookup.BatchQuery blockingQuery = new FakeQuery(null) {
+            @Override
+            public Map<String, ContactInfo> query(ContentResolver resolver, List<String> batch) {
+                queried.addAll(batch);
+                if (batch.contains(emails.get(1))) {
+                    // the batch the other caller waits for; nothing holds it up
+                    return super.query(resolver, batch);
+                }
+                if (batch.contains(emails.get(0))) {
+                    ownerStarted.countDown();
+                } else {
+                    busyStarted.countDown();
+                }
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                return super.query(resolver, batch);
+            }
+        };
+
+        // Keep the calling thread and every query thread of a first lookup busy, so that the
+        // second batch of the owner below waits in the queue
+        final Thread busyLookup = new Thread() {
+            @Override
+            public void run() {
+                ContactLookup.lookup(mResolver, busy, null, blockingQuery, 1);
+            }
+        };
+        busyLookup.start();
+        assertTrue(busyStarted.await(5, TimeUnit.SECONDS));
+
+        final ContactLookup.CancellationSignal signal = new ContactLookup.CancellationSignal();
+        final Thread owner = new Thread() {
+            @Override
+            public void run() {
+                ContactLookup.lookup(mResolver, emails, signal, blockingQuery, 1);
+            }
+        };
+        owner.start();
+        assertTrue(ownerStarted.await(5, TimeUnit.SECONDS));
+
+        final AtomicReference<Map<String, ContactInfo>> other =
+                new AtomicReference<Map<String, ContactInfo>>();
+        final Thread otherLookup = new Thread() {
+            @Override
+            public void run() {
+                other.set(ContactLookup.lookup(mResolver, emails.subList(1, 2), null,
+                        blockingQuery, 1));
+            }
+        };
+        otherLookup.start();
+        // cancel the owner only once the other lookup is waiting for the queued batch
+        while (otherLookup.getState() != Thread.State.WAITING && otherLookup.isAlive()) {
+            Thread.sleep(10);
+        }
+        signal.cancel();
+        release.countDown();
+        otherLookup.join(5000);
+        owner.join(5000);
+        busyLookup.join(5000);
+
+        assertTrue(queried.contains(emails.get(1)));
+        assertNotNull(other.get());
+        assertTrue(other.get().containsKey(emails.get(1)));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.bitmap;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+@SmallTest
+public class SenderPhotoDiskCacheTest extends TestCase {
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(System.getProperty("java.io.tmpdir"),
+                "SenderPhotoDiskCacheTest" + System.nanoTime());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private static byte[] photo(int length, int fill) {
+        final byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) fill);
+        return bytes;
+    }
+
+    private void age(String email, long ms) {
+        final File file = new File(mDirectory, SenderPhotoDiskCache.getKey(email));
+        assertTrue(file.setLastModified(System.currentTimeMillis() - ms));
+    }
+
+    public void testPhotosAndNegativeLookups() {
+        final SenderPhotoDiskCache cache = new SenderPhotoDiskCache(mDirectory, 1024 * 1024);
+        assertNull(cache.get("a@example.com"));
+
+        cache.put("a@example.com", photo(100, 1));
+        cache.put("b@example.com", null);
+
+        assertTrue(Arrays.equals(photo(100, 1), cache.get("a@example.com")));
+        assertSame(SenderPhotoDiskCache.NO_PHOTO, cache.get("b@example.com"));
+
+        // Addresses are normalized.
+        assertTrue(Arrays.equals(photo(100, 1), cache.get(" A@Example.COM ")));
+
+        // Entries survive the process, i.e. a new instance over the same directory.
+        final SenderPhotoDiskCache reopened = new SenderPhotoDiskCache(mDirectory, 1024 * 1024);
+        assertTrue(Arrays.equals(photo(100, 1), reopened.get("a@example.com")));
+    }
+
+    public void testEntriesExpire() {
+        final SenderPhotoDiskCache cache = new SenderPhotoDiskCache(mDirectory, 1024 * 1024);
+        cache.put("a@example.com", photo(10, 1));
+        cache.put("b@example.com", null);
+        final long day = 24 * 60 * 60 * 1000L;
+        age("a@example.com", 2 * day);
+        age("b@example.com", 2 * day);
+
+        // Negative lookups expire sooner than photos.
+        assertNotNull(cache.get("a@example.com"));
+        assertNull(cache.get("b@example.com"));
+
+        age("a@example.com", 8 * day);
+        assertNull(cache.get("a@example.com"));
+    }
+
+    public void testInvalidate() throws InterruptedException {
+        final SenderPhotoDiskCache cache = new SenderPhotoDiskCache(mDirectory, 1024 * 1024);
+        cache.put("a@example.com", photo(10, 1));
+        age("a@example.com", 1000);
+        cache.invalidate();
+        assertNull(cache.get("a@example.com"));
+
+        // Also after a restart.
+        cache.put("b@example.com", photo(10, 2));
+        age("b@example.com", 1000);
+        cache.invalidate();
+        assertNull(new SenderPhotoDiskCache(mDirectory, 1024 * 1024).get("b@example.com"));
+    }
+
+    public void testSizeIsBounded() {
+        final SenderPhotoDiskCache cache = new SenderPhotoDiskCache(mDirectory, 1000);
+        for (int i = 0; i < 5; i++) {
+            cache.put(i + "@example.com", photo(300, i));
+            age(i + "@example.com", (10 - i) * 1000);
+        }
+
+        long size = 0;
+        for (File file : mDirectory.listFiles()) {
+            size += file.length();
+        }
+        assertTrue(size <= 1000);
+        // The most recently written entry is kept, the oldest are dropped.
+        assertNotNull(cache.get("4@example.com"));
+        assertNull(cache.get("0@example.com"));
+    }
+}
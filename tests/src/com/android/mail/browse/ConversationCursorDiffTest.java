@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.providers.ConversationInfo;
+import com.android.mail.providers.ParticipantInfo;
+import com.android.mail.providers.UIProvider;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ConversationCursorDiffTest extends TestCase {
+    private static final String URI_PREFIX = "content://com.android.mail.mockprovider/conv/";
+
+    private static ConversationPositionIndex index(long... ids) {
+        final ConversationPositionIndex index = new ConversationPositionIndex(ids.length);
+        for (long id : ids) {
+            index.add(id, URI_PREFIX + id);
+        }
+        return index;
+    }
+
+    /** Versions equal to the ids, so that rows are unchanged unless a test says otherwise. */
+    private static long[] versions(long... ids) {
+        return ids.clone();
+    }
+
+    private static ConversationCursorDiff diff(long[] oldIds, long[] newIds) {
+        return ConversationCursorDiff.compute(index(oldIds), versions(oldIds), index(newIds),
+                versions(newIds));
+    }
+
+    public void testSameRows() {
+        final long[] ids = {1, 2, 3};
+        final ConversationCursorDiff diff = diff(ids, ids);
+
+        assertEquals(3, diff.getUnchangedCount());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(i, diff.getUnchangedFrom(i));
+        }
+    }
+
+    public void testNewRowAtTop() {
+        final ConversationCursorDiff diff = diff(new long[] {1, 2, 3}, new long[] {9, 1, 2, 3});
+
+        assertEquals(3, diff.getUnchangedCount());
+        assertEquals(-1, diff.getUnchangedFrom(0));
+        assertEquals(0, diff.getUnchangedFrom(1));
+        assertEquals(2, diff.getUnchangedFrom(3));
+    }
+
+    public void testRemovedRows() {
+        final ConversationCursorDiff diff = diff(new long[] {1, 2, 3, 4, 5},
+                new long[] {1, 4});
+
+        assertEquals(2, diff.getUnchangedCount());
+        assertEquals(0, diff.getUnchangedFrom(0));
+        assertEquals(3, diff.getUnchangedFrom(1));
+    }
+
+    public void testMovedRowsAreUnchanged() {
+        final ConversationCursorDiff diff = diff(new long[] {1, 2, 3, 4, 5},
+                new long[] {4, 5, 1, 2, 3});
+
+        assertEquals(5, diff.getUnchangedCount());
+        assertEquals(3, diff.getUnchangedFrom(0));
+        assertEquals(0, diff.getUnchangedFrom(2));
+    }
+
+    public void testChangedRow() {
+        final long[] ids = {1, 2, 3};
+        final long[] newVersions = versions(ids);
+        newVersions[1] = 42;
+        final ConversationCursorDiff diff = ConversationCursorDiff.compute(index(ids),
+                versions(ids), index(ids), newVersions);
+
+        assertEquals(-1, diff.getUnchangedFrom(1));
+        assertEquals(2, diff.getUnchangedCount());
+    }
+
+    /**
+     * Verifies that a row whose snippet, subject or conversation info is all that changed gets a
+     * new version, so that its conversation is not taken over from the previous cursor.
+     */
+    public void testVersionCoversStringsAndInfo() {
+        final ConversationInfo info = new ConversationInfo(1, 0, "snippet", "snippet", "snippet");
+        info.addParticipant(new ParticipantInfo("A", "a@example.com", 0, false));
+        final byte[] blob = info.toBlob();
+        info.addParticipant(new ParticipantInfo("B", "b@example.com", 0, false));
+        final byte[] changedBlob = info.toBlob();
+
+        final MatrixCursor previous = new MatrixCursor(UIProvider.CONVERSATION_PROJECTION);
+        final MatrixCursor current = new MatrixCursor(UIProvider.CONVERSATION_PROJECTION);
+        previous.addRow(row(1, "subject", "snippet", blob));
+        current.addRow(row(1, "subject", "snippet", blob));
+        previous.addRow(row(2, "subject", "snippet", blob));
+        current.addRow(row(2, "subject", "edited snippet", blob));
+        previous.addRow(row(3, "subject", "snippet", blob));
+        current.addRow(row(3, "edited subject", "snippet", blob));
+        previous.addRow(row(4, "subject", "snippet", blob));
+        current.addRow(row(4, "subject", "snippet", changedBlob));
+
+        final long[] ids = {1, 2, 3, 4};
+        final ConversationCursorDiff diff = ConversationCursorDiff.compute(index(ids),
+                versions(previous), index(ids), versions(current));
+
+        assertEquals(0, diff.getUnchangedFrom(0));
+        for (int pos = 1; pos < ids.length; pos++) {
+            assertEquals(-1, diff.getUnchangedFrom(pos));
+        }
+        assertEquals(1, diff.getUnchangedCount());
+    }
+
+    public void testEmptyCursors() {
+        assertEquals(0, diff(new long[0], new long[0]).getUnchangedCount());
+
+        final ConversationCursorDiff diff = diff(new long[0], new long[] {1, 2});
+        assertEquals(0, diff.getUnchangedCount());
+        assertEquals(-1, diff.getUnchangedFrom(1));
+    }
+    private static Object[] row(long id, String subject, String snippet, byte[] info) {
+        final Object[] row = new Object[UIProvider.CONVERSATION_PROJECTION.length];
+        row[UIProvider.CONVERSATION_ID_COLUMN] = id;
+        row[UIProvider.CONVERSATION_URI_COLUMN] = URI_PREFIX + id;
+        row[UIProvider.CONVERSATION_SUBJECT_COLUMN] = subject;
+        row[UIProvider.CONVERSATION_SNIPPET_COLUMN] = snippet;
+        row[UIProvider.CONVERSATION_INFO_COLUMN] = info;
+        return row;
+    }
+
+    private static long[] versions(Cursor cursor) {
+        final long[] versions = new long[cursor.getCount()];
+        for (int pos = 0; cursor.moveToPosition(pos); pos++) {
+            versions[pos] = ConversationCursor.getRowVersion(cursor);
+        }
+        return versions;
+    }
+}
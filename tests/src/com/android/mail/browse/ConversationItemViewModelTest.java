@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ConversationItemViewModelTest extends TestCase {
+    private static final long MB = 1024 * 1024;
+
+    public void testCacheSizeScalesWithHeap() {
+        assertEquals(256, ConversationItemViewModel.getCacheSize(64 * MB));
+        assertEquals(512, ConversationItemViewModel.getCacheSize(128 * MB));
+    }
+
+    public void testCacheSizeIsBounded() {
+        assertEquals(100, ConversationItemViewModel.getCacheSize(16 * MB));
+        assertEquals(1000, ConversationItemViewModel.getCacheSize(512 * MB));
+    }
+}
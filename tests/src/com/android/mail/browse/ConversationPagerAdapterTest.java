@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ConversationPagerAdapterTest extends TestCase {
+    private static final int WINDOW = 2;
+    private static final int PAGE_BUDGET_MB = 4;
+
+    public void testPrefetchWindowWidensWithMemoryClass() {
+        assertEquals(1, ConversationPagerAdapter.getPrefetchWindow(WINDOW, 32, PAGE_BUDGET_MB));
+        assertEquals(1, ConversationPagerAdapter.getPrefetchWindow(WINDOW, 48, PAGE_BUDGET_MB));
+        assertEquals(2, ConversationPagerAdapter.getPrefetchWindow(WINDOW, 64, PAGE_BUDGET_MB));
+        assertEquals(2, ConversationPagerAdapter.getPrefetchWindow(WINDOW, 192, PAGE_BUDGET_MB));
+    }
+
+    public void testPrefetchWindowIsClampedToConfiguredWindow() {
+        assertEquals(3, ConversationPagerAdapter.getPrefetchWindow(3, 256, PAGE_BUDGET_MB));
+        assertEquals(5, ConversationPagerAdapter.getPrefetchWindow(5, 512, PAGE_BUDGET_MB));
+        assertEquals(5, ConversationPagerAdapter.getPrefetchWindow(5, 1024, PAGE_BUDGET_MB));
+    }
+
+    public void testPrefetchWindowIsAtLeastOne() {
+        assertEquals(1, ConversationPagerAdapter.getPrefetchWindow(WINDOW, 0, PAGE_BUDGET_MB));
+        assertEquals(1, ConversationPagerAdapter.getPrefetchWindow(0, 192, PAGE_BUDGET_MB));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.os.Debug;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.google.common.collect.Maps;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+public class ConversationPositionIndexTest extends TestCase {
+    private static final String LOG_TAG = "ConvPosIndexTest";
+
+    private static final String URI_PREFIX = "content://com.android.mail.mockprovider/conv/";
+
+    private static ConversationPositionIndex buildIndex(int count) {
+        final ConversationPositionIndex index = new ConversationPositionIndex(count);
+        for (int i = 0; i < count; i++) {
+            assertEquals(-1, index.add(1000 + i, URI_PREFIX + i));
+        }
+        return index;
+    }
+
+    @SmallTest
+    public void testLookups() {
+        final ConversationPositionIndex index = buildIndex(100);
+        assertEquals(100, index.size());
+        assertEquals(100, index.distinctIdCount());
+        assertEquals(100, index.distinctUriCount());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, index.getPosition(1000L + i));
+            assertEquals(i, index.getPosition(URI_PREFIX + i));
+            assertEquals(URI_PREFIX + i, index.getUri(i));
+            assertEquals(1000L + i, index.getId(i));
+        }
+        assertEquals(-1, index.getPosition(999L));
+        assertEquals(-1, index.getPosition(URI_PREFIX + "missing"));
+        assertEquals(-1, index.getPosition((String) null));
+        assertFalse(index.contains(URI_PREFIX + 100));
+        assertEquals(100, index.distinctIds().length);
+    }
+
+    @SmallTest
+    public void testEmpty() {
+        final ConversationPositionIndex index = new ConversationPositionIndex(0);
+        assertEquals(0, index.size());
+        assertEquals(-1, index.getPosition(0L));
+        assertEquals(-1, index.getPosition(URI_PREFIX));
+        assertEquals(0, index.distinctIds().length);
+    }
+
+    @SmallTest
+    public void testDuplicates() {
+        final ConversationPositionIndex index = new ConversationPositionIndex(3);
+        assertEquals(-1, index.add(1, URI_PREFIX + 1));
+        assertEquals(-1, index.add(2, URI_PREFIX + 2));
+        // a later duplicate replaces the earlier row, as a map put would
+        assertEquals(0, index.add(1, URI_PREFIX + 3));
+        assertEquals(2, index.distinctIdCount());
+        assertEquals(3, index.distinctUriCount());
+        assertEquals(2, index.getPosition(1L));
+        assertEquals(0, index.getPosition(URI_PREFIX + 1));
+    }
+
+    /**
+     * Reports the pre-load cost of indexing 10k rows, against the boxed id and uri maps that
+     * {@link ConversationCursor} used to build on the same pass.
+     */
+    @LargeTest
+    public void testPreloadBenchmark() {
+        final int rows = 10000;
+        final String[] uris = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            uris[i] = URI_PREFIX + i;
+        }
+
+        // warm up both paths
+        buildMaps(uris);
+        buildIndex(uris);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            buildMaps(uris);
+            final long mapNanos = System.nanoTime() - start;
+            final int mapAllocs = Debug.getThreadAllocCount();
+            final int mapBytes = Debug.getThreadAllocSize();
+
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            start = System.nanoTime();
+            buildIndex(uris);
+            final long indexNanos = System.nanoTime() - start;
+            final int indexAllocs = Debug.getThreadAllocCount();
+            final int indexBytes = Debug.getThreadAllocSize();
+
+            Log.i(LOG_TAG, String.format("pre-load per %d rows: maps %dus %d objects %d bytes;"
+                    + " index %dus %d objects %d bytes", rows, mapNanos / 1000, mapAllocs,
+                    mapBytes, indexNanos / 1000, indexAllocs, indexBytes));
+            assertTrue(indexAllocs < mapAllocs);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private static void buildIndex(String[] uris) {
+        final ConversationPositionIndex index = new ConversationPositionIndex(uris.length);
+        for (int i = 0; i < uris.length; i++) {
+            index.add(i, uris[i]);
+        }
+    }
+
+    private static void buildMaps(String[] uris) {
+        final Map<String, Integer> uriPositionMap = Maps.newHashMapWithExpectedSize(uris.length);
+        final Map<Long, Integer> idPositionMap = Maps.newHashMapWithExpectedSize(uris.length);
+        for (int i = 0; i < uris.length; i++) {
+            uriPositionMap.put(uris[i], i);
+            idPositionMap.put((long) i, i);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.mail.browse;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.providers.UIProvider.ConversationColumns;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+public class ConversationWriteQueueTest extends TestCase {
+    private static final String AUTHORITY = "com.android.mail.test";
+
+    private final List<ArrayList<ContentProviderOperation>> mBatches = Lists.newArrayList();
+    private ConversationWriteQueue mQueue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new ConversationWriteQueue(new ConversationWriteQueue.BatchApplier() {
+            @Override
+            public void applyBatch(String authority, ArrayList<ContentProviderOperation> ops) {
+                assertEquals(AUTHORITY, authority);
+                mBatches.add(ops);
+            }
+        });
+    }
+
+    private static Uri conversationUri(int id) {
+        return Uri.parse("content://" + AUTHORITY + "/conversation/" + id);
+    }
+
+    private void enqueueUpdate(int id, String column, int value) {
+        final ContentValues values = new ContentValues();
+        values.put(column, value);
+        final Uri uri = conversationUri(id);
+        mQueue.enqueue(AUTHORITY, uri.toString(),
+                ContentProviderOperation.newUpdate(uri).withValues(values).build(), values);
+    }
+
+    private void enqueueDelete(int id) {
+        final Uri uri = conversationUri(id);
+        mQueue.enqueue(AUTHORITY, uri.toString(), ContentProviderOperation.newDelete(uri).build(),
+                null);
+    }
+
+    private List<ContentProviderOperation> writtenOps() {
+        final List<ContentProviderOperation> ops = Lists.newArrayList();
+        for (List<ContentProviderOperation> batch : mBatches) {
+            ops.addAll(batch);
+        }
+        return ops;
+    }
+
+    public void testLaterUpdateSupersedesEarlierOfSameColumn() {
+        enqueueUpdate(1, ConversationColumns.READ, 1);
+        enqueueUpdate(2, ConversationColumns.READ, 1);
+        enqueueUpdate(1, ConversationColumns.READ, 0);
+        assertEquals(3, mQueue.getQueueDepth());
+
+        mQueue.flushAndWait();
+
+        final List<ContentProviderOperation> ops = writtenOps();
+        assertEquals(2, ops.size());
+        assertEquals(conversationUri(2), ops.get(0).getUri());
+        assertEquals(conversationUri(1), ops.get(1).getUri());
+        assertEquals(0, mQueue.getQueueDepth());
+    }
+
+    public void testUpdatesOfOtherColumnsAreKept() {
+        enqueueUpdate(1, ConversationColumns.READ, 1);
+        enqueueUpdate(1, ConversationColumns.STARRED, 1);
+
+        mQueue.flushAndWait();
+
+        assertEquals(2, writtenOps().size());
+    }
+
+    public void testOtherOperationKeepsOrder() {
+        enqueueUpdate(1, ConversationColumns.READ, 1);
+        enqueueDelete(1);
+        enqueueUpdate(1, ConversationColumns.READ, 0);
+
+        mQueue.flushAndWait();
+
+        assertEquals(3, writtenOps().size());
+    }
+
+    public void testBatchesAreBounded() {
+        final int count = 2 * ConversationWriteQueue.MAX_BATCH_OPS + 1;
+        for (int i = 0; i < count; i++) {
+            enqueueDelete(i);
+        }
+
+        mQueue.flushAndWait();
+
+        assertEquals(3, mBatches.size());
+        final List<ContentProviderOperation> ops = writtenOps();
+        assertEquals(count, ops.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(conversationUri(i), ops.get(i).getUri());
+        }
+    }
+
+    public void testRunsTaskAfterWrites() {
+        enqueueDelete(1);
+        final List<Integer> writtenBeforeTask = Lists.newArrayList();
+
+        mQueue.runAfterWrites(new Runnable() {
+            @Override
+            public void run() {
+                writtenBeforeTask.add(writtenOps().size());
+            }
+        });
+
+        assertEquals(1, (int) writtenBeforeTask.get(0));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@SmallTest
+public class DeletedPositionIndexTest extends TestCase {
+
+    public void testNoDeletions() {
+        final DeletedPositionIndex index = new DeletedPositionIndex(5);
+        assertEquals(5, index.getVisibleCount());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, index.toUnderlyingPosition(i));
+            assertEquals(i, index.toVisiblePosition(i));
+        }
+        assertEquals(-1, index.toUnderlyingPosition(5));
+        assertEquals(-1, index.toUnderlyingPosition(-1));
+    }
+
+    public void testDeleteAndUndelete() {
+        final DeletedPositionIndex index = new DeletedPositionIndex(5);
+        assertTrue(index.delete(0));
+        assertTrue(index.delete(2));
+        assertFalse(index.delete(2));
+        assertFalse(index.delete(7));
+        assertEquals(2, index.getDeletedCount());
+
+        assertEquals(1, index.toUnderlyingPosition(0));
+        assertEquals(3, index.toUnderlyingPosition(1));
+        assertEquals(4, index.toUnderlyingPosition(2));
+        assertEquals(-1, index.toUnderlyingPosition(3));
+        assertEquals(-1, index.toVisiblePosition(2));
+        assertEquals(2, index.toVisiblePosition(4));
+
+        assertTrue(index.undelete(0));
+        assertFalse(index.undelete(0));
+        assertEquals(0, index.toUnderlyingPosition(0));
+        assertEquals(3, index.toVisiblePosition(4));
+    }
+
+    public void testEmpty() {
+        final DeletedPositionIndex index = new DeletedPositionIndex(0);
+        assertEquals(0, index.getVisibleCount());
+        assertEquals(-1, index.toUnderlyingPosition(0));
+        assertEquals(-1, index.toVisiblePosition(0));
+        assertFalse(index.delete(0));
+    }
+
+    public void testMatchesLinearScan() {
+        final Random random = new Random(42);
+        final int size = 257;
+        final DeletedPositionIndex index = new DeletedPositionIndex(size);
+        final boolean[] deleted = new boolean[size];
+
+        for (int step = 0; step < 500; step++) {
+            final int position = random.nextInt(size);
+            final boolean delete = random.nextBoolean();
+            if (delete) {
+                index.delete(position);
+            } else {
+                index.undelete(position);
+            }
+            deleted[position] = delete;
+
+            final List<Integer> visible = new ArrayList<Integer>();
+            for (int i = 0; i < size; i++) {
+                if (!deleted[i]) {
+                    visible.add(i);
+                }
+            }
+            assertEquals(visible.size(), index.getVisibleCount());
+            for (int v = 0; v < visible.size(); v++) {
+                assertEquals(visible.get(v).intValue(), index.toUnderlyingPosition(v));
+                assertEquals(v, index.toVisiblePosition(visible.get(v)));
+            }
+        }
+    }
+}
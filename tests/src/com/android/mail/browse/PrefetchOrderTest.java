@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+@SmallTest
+public class PrefetchOrderTest extends TestCase {
+
+    private static List<Integer> order(int count, int focus, boolean forward) {
+        final PrefetchOrder order = new PrefetchOrder(count, focus, forward);
+        final List<Integer> positions = Lists.newArrayList();
+        int pos;
+        while ((pos = order.next()) >= 0) {
+            positions.add(pos);
+        }
+        return positions;
+    }
+
+    public void testFromTheTop() {
+        assertEquals(ImmutableList.of(0, 1, 2, 3), order(4, 0, true));
+    }
+
+    public void testFavorsScrollDirection() {
+        assertEquals(ImmutableList.of(5, 6, 7, 4, 8, 9, 3, 2, 1, 0), order(10, 5, true));
+        assertEquals(ImmutableList.of(5, 4, 3, 6, 2, 1, 0, 7, 8, 9), order(10, 5, false));
+    }
+
+    public void testFocusOutOfRange() {
+        assertEquals(ImmutableList.of(2, 1, 0), order(3, 7, false));
+        assertTrue(order(0, 0, true).isEmpty());
+    }
+}
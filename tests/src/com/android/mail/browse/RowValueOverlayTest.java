@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.content.ContentValues;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+@SmallTest
+public class RowValueOverlayTest extends TestCase {
+    private static final String[] COLUMNS = { "read", "subject", "info", "flags" };
+
+    public void testTypedValues() {
+        final RowValueOverlay overlay = new RowValueOverlay(10, COLUMNS.length);
+        final byte[] blob = new byte[] { 1, 2, 3 };
+        assertTrue(overlay.put(3, 0, Boolean.TRUE));
+        assertTrue(overlay.put(3, 1, "subject"));
+        assertTrue(overlay.put(3, 2, blob));
+        assertTrue(overlay.put(3, 3, 42));
+
+        assertTrue(overlay.contains(3, 0));
+        assertEquals(1, overlay.getLong(3, 0));
+        assertTrue(overlay.contains(3, 1));
+        assertEquals("subject", overlay.getString(3, 1));
+        assertTrue(overlay.contains(3, 2));
+        assertTrue(Arrays.equals(blob, overlay.getBlob(3, 2)));
+        assertTrue(overlay.contains(3, 3));
+        assertEquals(42, overlay.getLong(3, 3));
+        assertEquals(4, overlay.getHitCount());
+
+        assertFalse(overlay.contains(2, 0));
+        assertFalse(overlay.hasValues(2));
+        assertEquals(1, overlay.getMissCount());
+    }
+
+    public void testOutOfRange() {
+        final RowValueOverlay overlay = new RowValueOverlay(2, COLUMNS.length);
+        assertFalse(overlay.put(2, 0, 1));
+        assertFalse(overlay.put(0, COLUMNS.length, 1));
+        assertFalse(overlay.contains(-1, 0));
+    }
+
+    public void testRemove() {
+        final RowValueOverlay overlay = new RowValueOverlay(2, COLUMNS.length);
+        overlay.put(1, 0, 1);
+        overlay.put(1, 3, 2);
+        overlay.remove(1, 0);
+        assertFalse(overlay.contains(1, 0));
+        assertTrue(overlay.hasValues(1));
+        overlay.put(1, 3, null);
+        assertFalse(overlay.hasValues(1));
+    }
+
+    public void testCopyRow() {
+        final RowValueOverlay overlay = new RowValueOverlay(1, COLUMNS.length);
+        overlay.put(0, 0, Boolean.FALSE);
+        overlay.put(0, 1, "s");
+        final ContentValues values = new ContentValues();
+        assertEquals(2, overlay.copyRow(0, COLUMNS, values));
+        assertEquals(Integer.valueOf(0), values.getAsInteger("read"));
+        assertEquals("s", values.getAsString("subject"));
+        assertFalse(values.containsKey("info"));
+    }
+
+    public void testClearedCellReadsAsEmpty() {
+        final RowValueOverlay overlay = new RowValueOverlay(1, COLUMNS.length);
+        overlay.put(0, 0, 7);
+        overlay.put(0, 1, "s");
+        assertTrue(overlay.contains(0, 1));
+        // cleared by another thread between the check and the read
+        overlay.remove(0, 1);
+        assertNull(overlay.getString(0, 1));
+        assertEquals(7, overlay.getLong(0, 0));
+        overlay.remove(0, 0);
+        assertEquals(0, overlay.getLong(0, 0));
+        assertNull(overlay.getBlob(0, 2));
+    }
+
+    public void testConcurrentReadsAndWrites() throws Exception {
+        final RowValueOverlay overlay = new RowValueOverlay(4, COLUMNS.length);
+        final int reads = 10000;
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < reads; i++) {
+                    overlay.put(i % 4, 1, "s" + i);
+                    overlay.remove(i % 4, 1);
+                }
+            }
+        };
+        writer.start();
+        for (int i = 0; i < reads; i++) {
+            if (overlay.contains(i % 4, 1)) {
+                final String value = overlay.getString(i % 4, 1);
+                assertTrue(value == null || value.startsWith("s"));
+            }
+        }
+        writer.join();
+        assertEquals(reads, overlay.getHitCount() + overlay.getMissCount());
+        assertFalse(overlay.hasValues(0));
+    }
+
+    public void testUnsupportedType() {
+        final RowValueOverlay overlay = new RowValueOverlay(1, COLUMNS.length);
+        try {
+            overlay.put(0, 0, new Object());
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertFalse(overlay.hasValues(0));
+    }
+}
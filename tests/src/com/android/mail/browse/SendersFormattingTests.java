@@ -101,8 +101,9 @@ public class SendersFormattingTests extends AndroidTestCase {
         final byte[] serialized = before.toBlob();
 
         final ConversationInfo after = ConversationInfo.fromBlob(serialized);
-        assertEquals(1, after.participantInfos.size());
-        assertEquals(before.participantInfos.get(0).name, after.participantInfos.get(0).name);
+        assertEquals(1, after.getParticipantInfos().size());
+        assertEquals(before.getParticipantInfos().get(0).name,
+                after.getParticipantInfos().get(0).name);
     }
 
     public void testConversationSnippetsBadInput() {
@@ -112,16 +113,16 @@ public class SendersFormattingTests extends AndroidTestCase {
 
         final ConversationInfo before = new ConversationInfo(42, 49, first, firstUnread, last);
         before.addParticipant(new ParticipantInfo("Foo Bar", "foo@bar.com", 0, false));
-        assertEquals(first, before.firstSnippet);
-        assertEquals(firstUnread, before.firstUnreadSnippet);
-        assertEquals(last, before.lastSnippet);
+        assertEquals(first, before.getFirstSnippet());
+        assertEquals(firstUnread, before.getFirstUnreadSnippet());
+        assertEquals(last, before.getLastSnippet());
 
         final byte[] serialized = before.toBlob();
 
         final ConversationInfo after = ConversationInfo.fromBlob(serialized);
-        assertEquals(before.firstSnippet, after.firstSnippet);
-        assertEquals(before.firstUnreadSnippet, after.firstUnreadSnippet);
-        assertEquals(before.lastSnippet, after.lastSnippet);
+        assertEquals(before.getFirstSnippet(), after.getFirstSnippet());
+        assertEquals(before.getFirstUnreadSnippet(), after.getFirstUnreadSnippet());
+        assertEquals(before.getLastSnippet(), after.getLastSnippet());
     }
 
     public void testSenderAvatarIsSenderOfFirstUnreadMessage() {
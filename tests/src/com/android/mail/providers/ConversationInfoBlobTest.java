@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.providers;
+
+import android.net.Uri;
+import android.os.Debug;
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ConversationInfoBlobTest extends TestCase {
+    private static final String LOG_TAG = "ConvInfoBlobTest";
+
+    private static ConversationInfo createConversationInfo() {
+        final ConversationInfo info = new ConversationInfo(3, 1, "first", "first unread", "last");
+        info.addParticipant(new ParticipantInfo("A", "a@example.com", 0, true));
+        info.addParticipant(new ParticipantInfo("B", "b@example.com", 1, false));
+        info.addParticipant(new ParticipantInfo(null, "c@example.com", 0, false));
+        return info;
+    }
+
+    @SmallTest
+    public void testDecodesCountsFirst() {
+        final ConversationInfo before = createConversationInfo();
+
+        final ConversationInfo after = ConversationInfo.fromBlob(before.toBlob());
+
+        assertFalse(after.isDecoded());
+        assertEquals(3, after.messageCount);
+        assertEquals(1, after.draftCount);
+        assertFalse(after.isDecoded());
+
+        assertEquals(3, after.getParticipantInfos().size());
+        assertTrue(after.isDecoded());
+        assertEquals("b@example.com", after.getParticipantInfos().get(1).email);
+        assertEquals("first", after.getFirstSnippet());
+        assertEquals("first unread", after.getFirstUnreadSnippet());
+        assertEquals("last", after.getLastSnippet());
+        assertEquals(before.hashCode(), after.hashCode());
+    }
+
+    @SmallTest
+    public void testChangesApplyToDecodedValues() {
+        final ConversationInfo info = ConversationInfo.fromBlob(
+                createConversationInfo().toBlob());
+
+        assertTrue(info.markRead(true));
+
+        assertEquals("last", info.getFirstSnippet());
+        for (ParticipantInfo participant : info.getParticipantInfos()) {
+            assertTrue(participant.readConversation);
+        }
+        final ConversationInfo reread = ConversationInfo.fromBlob(info.toBlob());
+        assertEquals("last", reread.getFirstSnippet());
+        assertEquals(3, reread.getParticipantInfos().size());
+    }
+
+    @SmallTest
+    public void testCopyIsIndependent() {
+        final ConversationInfo info = createConversationInfo();
+        final ConversationInfo undecoded = ConversationInfo.fromBlob(info.toBlob());
+        final int hashCode = info.hashCode();
+
+        final ConversationInfo copy = new ConversationInfo(info);
+        final ConversationInfo undecodedCopy = new ConversationInfo(undecoded);
+        assertFalse(undecodedCopy.isDecoded());
+        info.markRead(true);
+        info.addParticipant(new ParticipantInfo("D", "d@example.com", 0, true));
+        undecoded.overwriteWith(info);
+
+        assertEquals(hashCode, copy.hashCode());
+        assertEquals(hashCode, undecodedCopy.hashCode());
+        assertEquals(3, copy.getParticipantInfos().size());
+        assertFalse(copy.getParticipantInfos().get(1).readConversation);
+        assertEquals("first", undecodedCopy.getFirstSnippet());
+    }
+
+    @SmallTest
+    public void testNullBlob() {
+        assertNull(ConversationInfo.fromBlob(null));
+        assertTrue(FolderList.fromBlob(null).getFolders().isEmpty());
+    }
+
+    @SmallTest
+    public void testFolderListDecodesOnFirstUse() {
+        final byte[] blob = FolderList.copyOf(Collections.<Folder>emptyList()).toBlob();
+
+        final FolderList folders = FolderList.fromBlob(blob);
+
+        assertFalse(folders.isDecoded());
+        assertTrue(Arrays.equals(blob, folders.toBlob()));
+        assertFalse(folders.isDecoded());
+        assertTrue(folders.getFolders().isEmpty());
+        assertTrue(folders.isDecoded());
+    }
+
+    /**
+     * Reports the cost of reading the conversation info of 10k rows that are never shown, against
+     * decoding all of it as {@link ConversationInfo#fromBlob(byte[])} used to.
+     */
+    @LargeTest
+    public void testFromBlobBenchmark() {
+        final int rows = 10000;
+        final byte[] blob = createConversationInfo().toBlob();
+
+        // warm up both paths
+        decodeEagerly(blob, rows);
+        decodeLazily(blob, rows);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            decodeEagerly(blob, rows);
+            final long eagerNanos = System.nanoTime() - start;
+            final int eagerAllocs = Debug.getThreadAllocCount();
+            final int eagerBytes = Debug.getThreadAllocSize();
+
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            start = System.nanoTime();
+            decodeLazily(blob, rows);
+            final long lazyNanos = System.nanoTime() - start;
+            final int lazyAllocs = Debug.getThreadAllocCount();
+            final int lazyBytes = Debug.getThreadAllocSize();
+
+            Log.i(LOG_TAG, String.format("conversation info per row: parcel %dns %d objects"
+                    + " %d bytes; blob view %dns %d objects %d bytes", eagerNanos / rows,
+                    eagerAllocs / rows, eagerBytes / rows, lazyNanos / rows, lazyAllocs / rows,
+                    lazyBytes / rows));
+            assertTrue(lazyAllocs < eagerAllocs);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /**
+     * Reports the cost of reading the folder list of 10k rows that are never shown, against
+     * decoding all of it as {@link FolderList#fromBlob(byte[])} used to.
+     */
+    @LargeTest
+    public void testFolderListFromBlobBenchmark() {
+        final int rows = 10000;
+        final byte[] blob = createFolderList().toBlob();
+
+        // warm up both paths
+        decodeFoldersEagerly(blob, rows);
+        decodeFoldersLazily(blob, rows);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            decodeFoldersEagerly(blob, rows);
+            final long eagerNanos = System.nanoTime() - start;
+            final int eagerAllocs = Debug.getThreadAllocCount();
+            final int eagerBytes = Debug.getThreadAllocSize();
+
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            start = System.nanoTime();
+            decodeFoldersLazily(blob, rows);
+            final long lazyNanos = System.nanoTime() - start;
+            final int lazyAllocs = Debug.getThreadAllocCount();
+            final int lazyBytes = Debug.getThreadAllocSize();
+
+            Log.i(LOG_TAG, String.format("folder list per row: parcel %dns %d objects"
+                    + " %d bytes; blob view %dns %d objects %d bytes", eagerNanos / rows,
+                    eagerAllocs / rows, eagerBytes / rows, lazyNanos / rows, lazyAllocs / rows,
+                    lazyBytes / rows));
+            assertTrue(lazyAllocs < eagerAllocs);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private static FolderList createFolderList() {
+        final List<Folder> folders = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            folders.add(new Folder.Builder()
+                    .setId(i)
+                    .setUri(Uri.parse("content://mail/folder/" + i))
+                    .setName("folder " + i)
+                    .setBgColor("#ff0000")
+                    .setFgColor("#ffffff")
+                    .build());
+        }
+        return FolderList.copyOf(folders);
+    }
+
+    private static void decodeEagerly(byte[] blob, int rows) {
+        for (int i = 0; i < rows; i++) {
+            final Parcel p = Parcel.obtain();
+            p.unmarshall(blob, 0, blob.length);
+            p.setDataPosition(0);
+            ConversationInfo.CREATOR.createFromParcel(p);
+            p.recycle();
+        }
+    }
+
+    private static void decodeLazily(byte[] blob, int rows) {
+        for (int i = 0; i < rows; i++) {
+            ConversationInfo.fromBlob(blob);
+        }
+    }
+
+    private static void decodeFoldersEagerly(byte[] blob, int rows) {
+        for (int i = 0; i < rows; i++) {
+            final Parcel p = Parcel.obtain();
+            p.unmarshall(blob, 0, blob.length);
+            p.setDataPosition(0);
+            FolderList.CREATOR.createFromParcel(p);
+            p.recycle();
+        }
+    }
+
+    private static void decodeFoldersLazily(byte[] blob, int rows) {
+        for (int i = 0; i < rows; i++) {
+            FolderList.fromBlob(blob);
+        }
+    }
+}
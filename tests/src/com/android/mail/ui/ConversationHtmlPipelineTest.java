@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.ui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class ConversationHtmlPipelineTest extends AndroidTestCase {
+    private static final int HEADER_HEIGHT = 40;
+    private static final int FOOTER_HEIGHT = 20;
+    private static final int BLOCK_HEIGHT = 30;
+
+    private ExecutorService mExecutor;
+    /** Keeps {@link #mExecutor}'s only thread busy until counted down. */
+    private CountDownLatch mBlocker;
+    /** The ids of the messages whose bodies were got, in order. */
+    private List<Long> mPrepared;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newSingleThreadExecutor();
+        mBlocker = new CountDownLatch(1);
+        mPrepared = Collections.synchronizedList(Lists.<Long>newArrayList());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBlocker.countDown();
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        super.tearDown();
+    }
+
+    /**
+     * Verifies that a flush appends everything in the order it was queued, and gives the same
+     * document as appending it all on one thread.
+     */
+    public void testFlushMatchesSerialAppend() throws Exception {
+        final List<TestMessage> messages = createMessages(4);
+
+        final HtmlConversationTemplates templates = startConversation();
+        final ConversationHtmlPipeline pipeline = new ConversationHtmlPipeline(templates,
+                mExecutor);
+        queue(pipeline, messages.get(0), true);
+        pipeline.appendSuperCollapsedHtml(1, BLOCK_HEIGHT);
+        for (TestMessage message : messages.subList(1, messages.size())) {
+            queue(pipeline, message, message.getId() % 2 == 0);
+        }
+        pipeline.flush();
+
+        final HtmlConversationTemplates serial = startConversation();
+        append(serial, 0, true);
+        serial.appendSuperCollapsedHtml(1, BLOCK_HEIGHT);
+        for (int id = 1; id < messages.size(); id++) {
+            append(serial, id, id % 2 == 0);
+        }
+        assertEquals(serial.emit(), templates.emit());
+    }
+
+    /**
+     * Verifies that a flush prepares the bodies no thread has started on itself, in order,
+     * rather than wait for them.
+     */
+    public void testFlushStealsUnstartedBodies() throws Exception {
+        blockExecutor();
+        final List<TestMessage> messages = createMessages(3);
+
+        final HtmlConversationTemplates templates = startConversation();
+        final ConversationHtmlPipeline pipeline = new ConversationHtmlPipeline(templates,
+                mExecutor);
+        for (TestMessage message : messages) {
+            queue(pipeline, message, true);
+        }
+        pipeline.flush();
+
+        for (TestMessage message : messages) {
+            assertEquals(ImmutableList.of(Thread.currentThread()), message.getPreparingThreads());
+        }
+        assertEquals(ImmutableList.of(0L, 1L, 2L), getPrepared());
+
+        // the stolen bodies are not prepared again once the executor is free
+        mBlocker.countDown();
+        drainExecutor();
+        for (TestMessage message : messages) {
+            assertEquals(1, message.getPreparingThreads().size());
+        }
+
+        final HtmlConversationTemplates serial = startConversation();
+        for (int id = 0; id < messages.size(); id++) {
+            append(serial, id, true);
+        }
+        assertEquals(serial.emit(), templates.emit());
+    }
+
+    /**
+     * Verifies that a flush uses the bodies already prepared in the background.
+     */
+    public void testFlushUsesPreparedBodies() throws Exception {
+        final List<TestMessage> messages = createMessages(3);
+
+        final HtmlConversationTemplates templates = startConversation();
+        final ConversationHtmlPipeline pipeline = new ConversationHtmlPipeline(templates,
+                mExecutor);
+        for (TestMessage message : messages) {
+            queue(pipeline, message, true);
+        }
+        drainExecutor();
+        pipeline.flush();
+
+        for (TestMessage message : messages) {
+            final List<Thread> threads = message.getPreparingThreads();
+            assertEquals(1, threads.size());
+            assertNotSame(Thread.currentThread(), threads.get(0));
+        }
+    }
+
+    /**
+     * Verifies that a body that fails to be prepared in the background is prepared again by the
+     * flush.
+     */
+    public void testFlushRetriesFailedBodies() throws Exception {
+        final TestMessage message = new TestMessage(0, mPrepared);
+        message.failOn(Thread.currentThread());
+
+        final HtmlConversationTemplates templates = startConversation();
+        final ConversationHtmlPipeline pipeline = new ConversationHtmlPipeline(templates,
+                mExecutor);
+        queue(pipeline, message, true);
+        drainExecutor();
+        pipeline.flush();
+
+        final List<Thread> threads = message.getPreparingThreads();
+        assertEquals(2, threads.size());
+        assertEquals(Thread.currentThread(), threads.get(1));
+        final HtmlConversationTemplates serial = startConversation();
+        append(serial, 0, true);
+        assertEquals(serial.emit(), templates.emit());
+    }
+
+    /**
+     * Verifies that clearing drops everything queued, so that none of it is prepared or ends up
+     * in the next flush.
+     */
+    public void testClearDropsQueuedSteps() throws Exception {
+        blockExecutor();
+        final List<TestMessage> messages = createMessages(2);
+
+        final HtmlConversationTemplates templates = startConversation();
+        final ConversationHtmlPipeline pipeline = new ConversationHtmlPipeline(templates,
+                mExecutor);
+        for (TestMessage message : messages) {
+            queue(pipeline, message, true);
+        }
+        pipeline.appendSuperCollapsedHtml(2, BLOCK_HEIGHT);
+        pipeline.clear();
+
+        final TestMessage next = new TestMessage(5, mPrepared);
+        queue(pipeline, next, true);
+        pipeline.flush();
+
+        mBlocker.countDown();
+        drainExecutor();
+        assertEquals(ImmutableList.of(5L), getPrepared());
+        final HtmlConversationTemplates serial = startConversation();
+        append(serial, 5, true);
+        assertEquals(serial.emit(), templates.emit());
+    }
+
+    private HtmlConversationTemplates startConversation() {
+        final HtmlConversationTemplates templates = new HtmlConversationTemplates(getContext());
+        templates.startConversation(320, 0, 0);
+        return templates;
+    }
+
+    private static void queue(ConversationHtmlPipeline pipeline, TestMessage message,
+            boolean expanded) {
+        pipeline.appendMessageHtml(message, pipeline.prepareBody(message, false), expanded,
+                false /* safeForImages */, HEADER_HEIGHT, FOOTER_HEIGHT);
+    }
+
+    /**
+     * Appends the message with the given id directly, with a message of its own so that the
+     * messages under test do not record it.
+     */
+    private static void append(HtmlConversationTemplates templates, long id, boolean expanded) {
+        templates.appendMessageHtml(new TestMessage(id, Lists.<Long>newArrayList()), expanded,
+                false /* safeForImages */, HEADER_HEIGHT, FOOTER_HEIGHT);
+    }
+
+    private List<TestMessage> createMessages(int count) {
+        final List<TestMessage> messages = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            messages.add(new TestMessage(i, mPrepared));
+        }
+        return messages;
+    }
+
+    private List<Long> getPrepared() {
+        synchronized (mPrepared) {
+            return ImmutableList.copyOf(mPrepared);
+        }
+    }
+
+    private void blockExecutor() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mBlocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /** Waits for everything submitted to {@link #mExecutor} so far to have run. */
+    private void drainExecutor() throws Exception {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {}
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A message whose body names the message and has an absolute image url, and that records
+     * the threads that get its body.
+     */
+    private static class TestMessage implements HtmlMessage {
+        private final long mId;
+        private final List<Long> mPrepared;
+        private final List<Thread> mPreparingThreads =
+                Collections.synchronizedList(Lists.<Thread>newArrayList());
+        private volatile Thread mOnlyThread;
+
+        /**
+         * @param prepared where to add the id of the message each time its body is got
+         */
+        TestMessage(long id, List<Long> prepared) {
+            mId = id;
+            mPrepared = prepared;
+        }
+
+        /** Makes getting the body fail on any thread but the given one. */
+        void failOn(Thread onlyThread) {
+            mOnlyThread = onlyThread;
+        }
+
+        List<Thread> getPreparingThreads() {
+            synchronized (mPreparingThreads) {
+                return ImmutableList.copyOf(mPreparingThreads);
+            }
+        }
+
+        @Override
+        public String getBodyAsHtml() {
+            final Thread thread = Thread.currentThread();
+            mPreparingThreads.add(thread);
+            mPrepared.add(mId);
+            if (mOnlyThread != null && thread != mOnlyThread) {
+                throw new IllegalStateException("body unavailable on " + thread);
+            }
+            return "<p>message " + mId + "</p><img src=\"http://example.com/" + mId + ".png\">";
+        }
+
+        @Override
+        public boolean embedsExternalResources() {
+            return true;
+        }
+
+        @Override
+        public long getId() {
+            return mId;
+        }
+    }
+}
@@ -531,8 +531,29 @@ public class AdvancedHtmlSanitizerTest extends AndroidTestCase {
                 "<div style=\"font-style:italic\"></div>");
     }
 
+    /**
+     * A document long enough to be sanitized in chunks, each written out as soon as it is ready,
+     * must come out exactly as it does sanitized as a whole.
+     */
+    public void testChunkedOutputMatchesSerial() {
+        final StringBuilder sb = new StringBuilder("<html><head><title>t</title></head><body>");
+        for (int i = 0; sb.length() < 300 * 1024; i++) {
+            sb.append("<div style=\"color:red\" onclick=\"x()\">block ").append(i)
+                    .append(" <a href=\"http://example.com/").append(i).append("\">link</a>")
+                    .append("<script>alert(").append(i).append(")</script></div>\n");
+        }
+        sb.append("</body></html>");
+        final String document = sb.toString();
+        assertTrue(HtmlChunker.split(document, 32 * 1024).size() > 1);
+
+        final String serial = HtmlSanitizer.sanitizeHtmlInChunks(document, document.length());
+        assertEquals(serial, HtmlSanitizer.sanitizeHtml(document));
+        assertEquals(serial, HtmlSanitizer.sanitizeHtmlInChunks(document, 1));
+    }
+
     private void sanitize(String dirtyHTML, String expectedHTML) {
         final String cleansedHTML = HtmlSanitizer.sanitizeHtml(dirtyHTML);
         assertEquals(expectedHTML, cleansedHTML);
+        HtmlSanitizerAsserts.assertSameInChunks(dirtyHTML);
     }
 }
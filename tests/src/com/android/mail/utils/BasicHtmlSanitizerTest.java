@@ -1074,5 +1074,6 @@ public class BasicHtmlSanitizerTest extends AndroidTestCase {
     private void sanitize(String dirtyHTML, String expectedHTML) {
         final String cleansedHTML = HtmlSanitizer.sanitizeHtml(dirtyHTML);
         assertEquals(expectedHTML, cleansedHTML);
+        HtmlSanitizerAsserts.assertSameInChunks(dirtyHTML);
     }
 }
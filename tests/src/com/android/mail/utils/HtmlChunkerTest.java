@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+@SmallTest
+public class HtmlChunkerTest extends TestCase {
+
+    /**
+     * Describes the chunks as "[html]", marked with '^' if they start in the body and '$' if they
+     * end there.
+     */
+    private static String split(String html) {
+        final List<HtmlChunker.Chunk> chunks = HtmlChunker.split(html, 1);
+        final StringBuilder sb = new StringBuilder();
+        final StringBuilder joined = new StringBuilder();
+        for (HtmlChunker.Chunk chunk : chunks) {
+            sb.append('[').append(chunk.startsInBody ? "^" : "").append(chunk.html)
+                    .append(chunk.endsInBody ? "$" : "").append(']');
+            joined.append(chunk.html);
+        }
+        assertEquals(html, joined.toString());
+        return sb.toString();
+    }
+
+    public void testTopLevelBlocks() {
+        assertEquals("[a][<div>b</div>][<p>c</p>d][<table><tr><td>e</td></tr></table>]",
+                split("a<div>b</div><p>c</p>d<table><tr><td>e</td></tr></table>"));
+        assertEquals("[<div><div>a</div><div>b</div></div>]",
+                split("<div><div>a</div><div>b</div></div>"));
+        assertEquals("[<DIV class='x' title=\"a>b\">a</DIV>][<Div>b</dIV>]",
+                split("<DIV class='x' title=\"a>b\">a</DIV><Div>b</dIV>"));
+    }
+
+    public void testDocument() {
+        assertEquals("[<!DOCTYPE html><html><head><title>t</title><style>p{}</style></head>"
+                + "<body bgcolor=\"#fff\"><br><img src=\"x\"/><!-- c -->$]"
+                + "[^<table></table>$][^<div>a</div>$][^<p>b</p>\n</body></html>]",
+                split("<!DOCTYPE html><html><head><title>t</title><style>p{}</style></head>"
+                        + "<body bgcolor=\"#fff\"><br><img src=\"x\"/><!-- c --><table></table>"
+                        + "<div>a</div><p>b</p>\n</body></html>"));
+    }
+
+    public void testRawText() {
+        assertEquals("[<div>a</div><script>document.write('<div>')</script>][<div>b</div>]",
+                split("<div>a</div><script>document.write('<div>')</script><div>b</div>"));
+        assertEquals("[<div>a</div><title>x<div></title><div>b</div>]",
+                split("<div>a</div><title>x<div></title><div>b</div>"));
+        assertEquals("[<div>a</div><script><!--</script>--></script><div>b</div>]",
+                split("<div>a</div><script><!--</script>--></script><div>b</div>"));
+    }
+
+    public void testStopsAtAmbiguousMarkup() {
+        // Everything from the first ambiguous markup on is left in one chunk.
+        final String[] ambiguous = {
+                "<b>unclosed", "<span/>", "<o:p></o:p>", "<td>cell</td>", "<li>item</li>",
+                "<iframe></iframe>", "<span a\"b=\"c\">x</span>", "<span a=\"b\"c>x</span>",
+                "<!-->", "<!-- a --!> b -->", "<![CDATA[x]]>", "<!x<y>", "<b><i>x</b></i>",
+                "</ x>", "<span a=`b`>x</span>", "<b x=\"unterminated>"
+        };
+        for (String markup : ambiguous) {
+            assertEquals(markup,
+                    "[<div>a</div>][<div>b</div>" + markup + "<div>c</div><div>d</div>]",
+                    split("<div>a</div><div>b</div>" + markup + "<div>c</div><div>d</div>"));
+        }
+    }
+
+    public void testMinimumChunkLength() {
+        final String html = "<div>aaaa</div><div>bbbb</div><div>cccc</div>";
+        final List<HtmlChunker.Chunk> chunks = HtmlChunker.split(html, 30);
+        assertEquals(2, chunks.size());
+        assertEquals("<div>aaaa</div><div>bbbb</div>", chunks.get(0).html);
+        assertEquals(1, HtmlChunker.split(html, html.length()).size());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.perf.CacheStats;
+import com.android.mail.utils.HtmlContentCache.Kind;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class HtmlContentCacheTest extends TestCase {
+
+    private static String repeat(char c, int count) {
+        final StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    public void testKeys() {
+        final String html = "<p>" + repeat('x', 5000) + "</p>";
+        assertEquals(HtmlContentCache.newKey(Kind.PLAIN_TEXT, html),
+                HtmlContentCache.newKey(Kind.PLAIN_TEXT, new String(html)));
+        assertEquals(HtmlContentCache.newKey(Kind.PLAIN_TEXT, html).hashCode(),
+                HtmlContentCache.newKey(Kind.PLAIN_TEXT, new String(html)).hashCode());
+        assertFalse(HtmlContentCache.newKey(Kind.PLAIN_TEXT, html).equals(
+                HtmlContentCache.newKey(Kind.SANITIZED_HTML, html)));
+        assertFalse(HtmlContentCache.newKey(Kind.PLAIN_TEXT, html).equals(
+                HtmlContentCache.newKey(Kind.PLAIN_TEXT, html + " ")));
+        // Chars differing only in their high byte must not collide.
+        assertFalse(HtmlContentCache.newKey(Kind.PLAIN_TEXT, "\u0141").equals(
+                HtmlContentCache.newKey(Kind.PLAIN_TEXT, "A")));
+    }
+
+    public void testHitsAndMisses() {
+        final HtmlContentCache cache = new HtmlContentCache(64 * 1024);
+        final CacheStats stats = CacheStats.get("html.plainText");
+        final long hits = stats.getHits();
+        final long misses = stats.getMisses();
+
+        final HtmlContentCache.Key key = HtmlContentCache.newKey(Kind.PLAIN_TEXT, "<b>hi</b>");
+        assertNull(cache.get(key));
+        cache.put(key, "hi");
+        assertEquals("hi", cache.get(HtmlContentCache.newKey(Kind.PLAIN_TEXT, "<b>hi</b>")));
+        assertNull(cache.get(HtmlContentCache.newKey(Kind.PLAIN_TEXT_WITHOUT_ELIDED,
+                "<b>hi</b>")));
+
+        assertEquals(hits + 1, stats.getHits());
+        assertEquals(misses + 1, stats.getMisses());
+
+        cache.clear();
+        assertNull(cache.get(key));
+    }
+
+    public void testBoundedByValueSize() {
+        final HtmlContentCache cache = new HtmlContentCache(10000);
+        final CacheStats stats = CacheStats.get("html.sanitized");
+        final long evictions = stats.getEvictions();
+        final String value = repeat('v', 1000);
+
+        for (int i = 0; i < 5; i++) {
+            cache.put(HtmlContentCache.newKey(Kind.SANITIZED_HTML, "body " + i), value);
+        }
+        assertTrue(cache.sizeBytes() <= 10000);
+        assertNull(cache.get(HtmlContentCache.newKey(Kind.SANITIZED_HTML, "body 0")));
+        assertNotNull(cache.get(HtmlContentCache.newKey(Kind.SANITIZED_HTML, "body 4")));
+        assertTrue(stats.getEvictions() > evictions);
+
+        // A value that would push out most of the cache is not kept.
+        final HtmlContentCache.Key big = HtmlContentCache.newKey(Kind.SANITIZED_HTML, "big");
+        cache.put(big, repeat('b', 2000));
+        assertNull(cache.get(big));
+        assertNotNull(cache.get(HtmlContentCache.newKey(Kind.SANITIZED_HTML, "body 4")));
+    }
+}
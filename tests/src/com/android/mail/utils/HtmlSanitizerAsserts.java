@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import junit.framework.Assert;
+
+/**
+ * Assertions shared by the {@link HtmlSanitizer} tests.
+ */
+final class HtmlSanitizerAsserts {
+    private HtmlSanitizerAsserts() {}
+
+    /**
+     * Sanitizing in chunks must not change the result, whether the html is on its own or among
+     * other blocks of a document.
+     */
+    static void assertSameInChunks(String dirtyHTML) {
+        final String[] documents = {
+                dirtyHTML,
+                "<div>before</div>" + dirtyHTML + "<div>after</div>",
+                "<html><head><title>t</title></head><body><p>before</p>" + dirtyHTML
+                        + "<p>after</p></body></html>"
+        };
+        for (String document : documents) {
+            Assert.assertEquals(HtmlSanitizer.sanitizeHtml(document),
+                    HtmlSanitizer.sanitizeHtmlInChunks(document, 1));
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.providers.Account;
+import com.android.mail.providers.Folder;
+import com.android.mail.providers.UIProvider;
+import com.android.mail.providers.protos.mock.MockUiProvider;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@SmallTest
+public class NotificationEntryResolverTest extends AndroidTestCase {
+    private static final Uri ACCOUNTS_URI =
+            Uri.parse("content://" + MockUiProvider.AUTHORITY + "/accounts");
+
+    private CountingProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        MockUiProvider.initializeMockProvider();
+        mProvider = new CountingProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(MockUiProvider.AUTHORITY, mProvider);
+    }
+
+    /**
+     * Verifies that the accounts of several entries are loaded with one query of the account list.
+     */
+    public void testBatchesAccounts() {
+        final NotificationEntryResolver resolver =
+                new NotificationEntryResolver(mResolver, ACCOUNTS_URI);
+        final List<Uri> accountUris = ImmutableList.of(accountUri(0), accountUri(1),
+                accountUri(2));
+
+        final Map<Uri, Account> accounts = resolver.getAccounts(accountUris);
+
+        assertEquals(3, accounts.size());
+        for (Uri uri : accountUris) {
+            assertEquals(uri, accounts.get(uri).uri);
+        }
+        assertEquals(ImmutableList.of(ACCOUNTS_URI), mProvider.getQueries());
+
+        // Everything loaded is kept, so asking again costs nothing
+        assertEquals(accounts, resolver.getAccounts(accountUris));
+        assertEquals(1, mProvider.getQueries().size());
+    }
+
+    /**
+     * Verifies that the folders of each account are loaded with one query of its folder list,
+     * for all of the accounts at once.
+     */
+    public void testBatchesFoldersAcrossAccounts() {
+        final NotificationEntryResolver resolver =
+                new NotificationEntryResolver(mResolver, ACCOUNTS_URI);
+        final Map<Uri, Account> accounts =
+                resolver.getAccounts(ImmutableList.of(accountUri(0), accountUri(1)));
+        mProvider.clearQueries();
+
+        // Even accounts list folders 0 and 1, odd accounts list folders 2 and 3
+        final Map<Account, Set<Uri>> folderUris = Maps.newHashMap();
+        final Account first = accounts.get(accountUri(0));
+        final Account second = accounts.get(accountUri(1));
+        folderUris.put(first, ImmutableSet.of(folderUri(0, 0), folderUri(0, 1)));
+        folderUris.put(second, ImmutableSet.of(folderUri(1, 2), folderUri(1, 3)));
+
+        final Map<Uri, Folder> folders = resolver.getFolders(folderUris);
+
+        assertEquals(4, folders.size());
+        for (Set<Uri> uris : folderUris.values()) {
+            for (Uri uri : uris) {
+                assertEquals(uri, folders.get(uri).folderUri.fullUri);
+            }
+        }
+        assertEquals(ImmutableSet.of(first.fullFolderListUri, second.fullFolderListUri),
+                ImmutableSet.copyOf(mProvider.getQueries()));
+        assertEquals(2, mProvider.getQueries().size());
+    }
+
+    /**
+     * Verifies that entries whose account or folder no longer exists are left out.
+     */
+    public void testLeavesOutMissingEntries() {
+        mProvider.delete(accountUri(7));
+        mProvider.delete(folderUri(0, 5));
+        final NotificationEntryResolver resolver =
+                new NotificationEntryResolver(mResolver, ACCOUNTS_URI);
+
+        final Map<Uri, Account> accounts =
+                resolver.getAccounts(ImmutableList.of(accountUri(0), accountUri(7)));
+        assertEquals(ImmutableSet.of(accountUri(0)), accounts.keySet());
+
+        final Map<Account, Set<Uri>> folderUris = Maps.newHashMap();
+        folderUris.put(accounts.get(accountUri(0)),
+                ImmutableSet.of(folderUri(0, 0), folderUri(0, 5)));
+        final Map<Uri, Folder> folders = resolver.getFolders(folderUris);
+        assertEquals(ImmutableSet.of(folderUri(0, 0)), folders.keySet());
+    }
+
+    /**
+     * Verifies that an entry no provider answers for fails the way the per-entry queries did.
+     */
+    public void testUnresolvableEntry() {
+        final NotificationEntryResolver resolver =
+                new NotificationEntryResolver(mResolver, ACCOUNTS_URI);
+        try {
+            resolver.getAccounts(ImmutableList.of(accountUri(0), accountUri(7)));
+            fail("An account without a cursor should not resolve");
+        } catch (IllegalStateException expected) {
+        }
+
+        final Account account =
+                resolver.getAccounts(ImmutableList.of(accountUri(0))).get(accountUri(0));
+        final Map<Account, Set<Uri>> folderUris = Maps.newHashMap();
+        folderUris.put(account, ImmutableSet.of(folderUri(0, 5)));
+        try {
+            resolver.getFolders(folderUris);
+            fail("A folder without a cursor should not resolve");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * Verifies that the batched queries, and the direct queries they fall back on, resolve the
+     * same accounts and folders as querying each entry's account and folder did.
+     */
+    public void testMatchesPerEntryQueries() {
+        // Folder 2 of an even account exists but is not in the account's folder list
+        final List<Uri> accountUris = ImmutableList.of(accountUri(0), accountUri(1));
+        final List<Uri> expectedFolderUris = ImmutableList.of(folderUri(0, 0), folderUri(0, 1),
+                folderUri(0, 2), folderUri(1, 2), folderUri(1, 3));
+
+        final Map<Uri, Account> expectedAccounts = Maps.newHashMap();
+        for (Uri uri : accountUris) {
+            expectedAccounts.put(uri, queryAccount(uri));
+        }
+        final Map<Uri, Folder> expectedFolders = Maps.newHashMap();
+        for (Uri uri : expectedFolderUris) {
+            expectedFolders.put(uri, queryFolder(uri));
+        }
+
+        // With and without an account list to query
+        for (Uri accountsUri : Lists.newArrayList(ACCOUNTS_URI, null)) {
+            final NotificationEntryResolver resolver =
+                    new NotificationEntryResolver(mResolver, accountsUri);
+            final Map<Uri, Account> accounts = resolver.getAccounts(accountUris);
+            assertEquals(expectedAccounts, accounts);
+
+            final Map<Account, Set<Uri>> folderUris = Maps.newHashMap();
+            for (Uri uri : expectedFolderUris) {
+                final Account account = accounts.get(accountUri(uri));
+                Set<Uri> uris = folderUris.get(account);
+                if (uris == null) {
+                    uris = Sets.newHashSet();
+                    folderUris.put(account, uris);
+                }
+                uris.add(uri);
+            }
+            final Map<Uri, Folder> folders = resolver.getFolders(folderUris);
+            assertEquals(expectedFolders.keySet(), folders.keySet());
+            for (Uri uri : expectedFolderUris) {
+                final Folder expected = expectedFolders.get(uri);
+                final Folder folder = folders.get(uri);
+                assertEquals(expected, folder);
+                assertEquals(expected.name, folder.name);
+                assertEquals(expected.unreadCount, folder.unreadCount);
+                assertEquals(expected.totalCount, folder.totalCount);
+            }
+        }
+    }
+
+    /**
+     * Loads an account the way each cached notification entry used to.
+     */
+    private Account queryAccount(Uri accountUri) {
+        final Cursor cursor = mResolver.query(accountUri, UIProvider.ACCOUNTS_PROJECTION,
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? Account.builder().buildFrom(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Loads a folder the way each cached notification entry used to.
+     */
+    private Folder queryFolder(Uri folderUri) {
+        final Cursor cursor = mResolver.query(folderUri, UIProvider.FOLDERS_PROJECTION,
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? new Folder(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Uri accountUri(int accountId) {
+        return Uri.parse(MockUiProvider.getMockAccountUri(accountId));
+    }
+
+    private static Uri accountUri(Uri folderUri) {
+        final List<String> segments = folderUri.getPathSegments();
+        return accountUri(Integer.parseInt(segments.get(1)));
+    }
+
+    private static Uri folderUri(int accountId, int folderId) {
+        return Uri.parse(MockUiProvider.getMockAccountUri(accountId) + "/folder/" + folderId);
+    }
+
+    /**
+     * Answers queries from {@link MockUiProvider}, recording each uri queried. Deleted uris
+     * return an empty cursor, like a provider whose row is gone.
+     */
+    private static class CountingProvider extends MockContentProvider {
+        private final MockUiProvider mDelegate = new MockUiProvider();
+        private final List<Uri> mQueries = Collections.synchronizedList(Lists.<Uri>newArrayList());
+        private final Set<Uri> mDeleted = Sets.newHashSet();
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueries.add(uri);
+            if (mDeleted.contains(uri)) {
+                return new MatrixCursor(projection);
+            }
+            return mDelegate.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        void delete(Uri uri) {
+            mDeleted.add(uri);
+        }
+
+        List<Uri> getQueries() {
+            synchronized (mQueries) {
+                return ImmutableList.copyOf(mQueries);
+            }
+        }
+
+        void clearQueries() {
+            mQueries.clear();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mail.common.html.parser;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class HtmlTreeTest extends TestCase {
+    private static final String LOG_TAG = "HtmlTreeTest";
+
+    private static HtmlTree parse(String html) {
+        final HtmlTreeBuilder builder = new HtmlTreeBuilder();
+        new HtmlParser().parse(html).accept(builder);
+        return builder.getTree();
+    }
+
+    @SmallTest
+    public void testAdjacentTextIsCoalesced() {
+        // The comment is dropped, leaving two adjacent text nodes.
+        final List<HtmlDocument.Node> nodes =
+                new HtmlParser().parse("one<!-- gone -->two<b>three</b>").getNodes();
+        assertEquals(4, nodes.size());
+        assertEquals("onetwo", ((HtmlDocument.Text) nodes.get(0)).getText());
+        assertTrue(nodes.get(1) instanceof HtmlDocument.Tag);
+        assertEquals("three", ((HtmlDocument.Text) nodes.get(2)).getText());
+        assertTrue(nodes.get(3) instanceof HtmlDocument.EndTag);
+    }
+
+    @SmallTest
+    public void testCoalesceTextNodes() {
+        final List<HtmlDocument.Node> nodes = new ArrayList<HtmlDocument.Node>();
+        nodes.add(HtmlDocument.createText("a", "a"));
+        nodes.add(HtmlDocument.createText("b", null));
+        nodes.add(HtmlDocument.createTag(HTML4.BR_ELEMENT, null));
+        nodes.add(HtmlDocument.createText("c", null));
+        final List<HtmlDocument.Node> out = HtmlParser.coalesceTextNodes(nodes);
+        assertEquals(3, out.size());
+        assertEquals("ab", ((HtmlDocument.Text) out.get(0)).getText());
+        assertEquals("a", ((HtmlDocument.Text) out.get(0)).getOriginalHTML());
+        assertSame(nodes.get(2), out.get(1));
+        assertSame(nodes.get(3), out.get(2));
+    }
+
+    @SmallTest
+    public void testTagPairs() {
+        // div p "a" /p br "b" /div
+        final HtmlTree tree = parse("<div><p>a</p><br>b</div>");
+        assertEquals(7, tree.getNumNodes());
+        assertEquals(6, tree.findEndTag(0));
+        assertEquals(0, tree.findOpenTag(6));
+        assertEquals(3, tree.findEndTag(1));
+        assertEquals(1, tree.findOpenTag(3));
+        assertEquals(4, tree.findEndTag(4));
+        assertEquals(2, tree.getTreeHeight());
+        assertEquals("<div><p>a</p><br>b</div>", tree.getHtml());
+    }
+
+    @SmallTest
+    public void testPlainTextWhitespace() {
+        assertEquals("a b c d", parse(" a \n\t b<b> c  </b>d ").getPlainText());
+        assertEquals("x\n\ny z", parse("x<p>  </p>y \r\n z").getPlainText());
+        assertEquals("q\n>\n> one two\n\nr",
+                parse("q<blockquote>\n one\n\ntwo \n</blockquote>r").getPlainText());
+    }
+
+    /** A newsletter-like document of roughly {@code length} characters. */
+    private static String newsletter(int length) {
+        final Random random = new Random(1);
+        final String[] words = { "sale", "today", "&amp;", "news", "weekly", "offer", "&nbsp;" };
+        final StringBuilder sb = new StringBuilder("<html><body><table width=\"100%\">");
+        while (sb.length() < length) {
+            sb.append("<tr><td style=\"padding:4px\"><a href=\"http://example.com/")
+                    .append(random.nextInt(1000)).append("\"><img src=\"a.png\" alt=\"\"></a>");
+            sb.append("<p><span style=\"color:#333\">");
+            for (int i = 0; i < 20; i++) {
+                sb.append(words[random.nextInt(words.length)]).append(i % 7 == 0 ? "\n  " : " ");
+            }
+            sb.append("</span><b>bold</b><br>\n</p></td></tr>\n");
+        }
+        sb.append("</table></body></html>");
+        return sb.toString();
+    }
+
+    @LargeTest
+    public void testBenchmark() {
+        final String html = newsletter(500 * 1024);
+        for (int i = 0; i < 3; i++) {
+            parse(html).getPlainText();
+        }
+        final int iterations = 10;
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            parse(html).getPlainText();
+        }
+        final long elapsed = System.nanoTime() - start;
+        Log.i(LOG_TAG, String.format("parse+getPlainText: %.1f MB/s",
+                (html.length() * (double) iterations / (1024.0 * 1024.0)) / (elapsed / 1e9)));
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the buffered {@link MimeBoundaryInputStream} against the per-byte implementation it
+ * replaced, and benchmarks the two.
+ */
+public class MimeBoundaryInputStreamTest extends TestCase {
+    private static final String LOG_TAG = "MimeBoundaryInputStreamTest";
+    private static final String BOUNDARY = "----=_Part_1_2084117162.1398266932";
+
+    /** Hands out at most a few bytes per read, to exercise boundaries split across reads. */
+    private static class TricklingInputStream extends FilterInputStream {
+        private final Random mRandom;
+
+        TricklingInputStream(InputStream in, long seed) {
+            super(in);
+            mRandom = new Random(seed);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1 + mRandom.nextInt(7)));
+        }
+    }
+
+    /** The parts, flags and leftover bytes seen when splitting a stream into parts. */
+    private static class Split {
+        final List<String> parts = new ArrayList<String>();
+        final StringBuilder flags = new StringBuilder();
+        String rest;
+    }
+
+    /** Multipart-ish text, including near-miss boundaries, bare CRs and truncated endings. */
+    private static String corpus(Random random, int length) {
+        final String[] pieces = {
+                "Content-Type: text/plain\r\n\r\n", "body text ", "\r\n", "\r", "\n", "-",
+                "\r\n--" + BOUNDARY + "\r\n", "\r\n--" + BOUNDARY + "--\r\n",
+                "\r\n--" + BOUNDARY.substring(0, 10), "--" + BOUNDARY + "\r\n",
+                "\r\n--" + BOUNDARY + "  trailing junk\r\n", "\r\n-", "\r\n--" + BOUNDARY
+        };
+        final StringBuilder sb = new StringBuilder();
+        if (random.nextBoolean()) {
+            sb.append("--").append(BOUNDARY).append("\r\n");
+        }
+        while (sb.length() < length) {
+            sb.append(pieces[random.nextInt(pieces.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static String readAll(InputStream in, Random readPattern) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        while (true) {
+            final int mode = readPattern != null ? readPattern.nextInt(3) : 2;
+            if (mode == 0) {
+                final int b = in.read();
+                if (b < 0) break;
+                out.write(b);
+            } else {
+                final int len = mode == 1 ? 1 + readPattern.nextInt(5) : buffer.length;
+                final int n = in.read(buffer, 0, len);
+                if (n < 0) break;
+                out.write(buffer, 0, n);
+            }
+        }
+        return new String(out.toByteArray(), "ISO-8859-1");
+    }
+
+    /** Splits the way {@link MimeStreamParser} does: preamble, parts, then the epilogue. */
+    private static Split split(InputStream in, boolean legacy, Random readPattern)
+            throws IOException {
+        final Split split = new Split();
+        boolean moreParts = true;
+        boolean first = true;
+        while (moreParts) {
+            final InputStream part;
+            if (legacy) {
+                part = new LegacyMimeBoundaryInputStream(in, BOUNDARY);
+            } else {
+                part = new MimeBoundaryInputStream(in, BOUNDARY);
+            }
+            split.parts.add(readAll(part, first ? null : readPattern));
+            first = false;
+            final boolean parentEof;
+            if (legacy) {
+                moreParts = ((LegacyMimeBoundaryInputStream) part).hasMoreParts();
+                parentEof = ((LegacyMimeBoundaryInputStream) part).parentEOF();
+            } else {
+                moreParts = ((MimeBoundaryInputStream) part).hasMoreParts();
+                parentEof = ((MimeBoundaryInputStream) part).parentEOF();
+            }
+            split.flags.append(moreParts ? 'm' : '-').append(parentEof ? 'e' : '-');
+            if (parentEof) {
+                break;
+            }
+        }
+        split.rest = readAll(in, readPattern);
+        return split;
+    }
+
+    private static void assertSameSplit(String corpus, long seed) throws IOException {
+        final byte[] bytes = corpus.getBytes("ISO-8859-1");
+        final Split want = split(new ByteArrayInputStream(bytes), true, null);
+        final Split got = split(new LookaheadInputStream(
+                new TricklingInputStream(new ByteArrayInputStream(bytes), seed)), false,
+                new Random(seed));
+        assertEquals("parts for seed " + seed, want.parts, got.parts);
+        assertEquals("flags for seed " + seed, want.flags.toString(), got.flags.toString());
+        assertEquals("epilogue for seed " + seed, want.rest, got.rest);
+    }
+
+    @SmallTest
+    public void testMatchesLegacy() throws IOException {
+        for (long seed = 0; seed < 200; seed++) {
+            final Random random = new Random(seed);
+            assertSameSplit(corpus(random, random.nextInt(2000)), seed);
+        }
+    }
+
+    @SmallTest
+    public void testSimpleMultipart() throws IOException {
+        final String message = "preamble\r\n--" + BOUNDARY + "\r\none\r\n--" + BOUNDARY
+                + "\r\ntwo\r\n--" + BOUNDARY + "--\r\nepilogue";
+        final Split split = split(new LookaheadInputStream(
+                new ByteArrayInputStream(message.getBytes())), false, null);
+        assertEquals(3, split.parts.size());
+        assertEquals("preamble", split.parts.get(0));
+        assertEquals("one", split.parts.get(1));
+        assertEquals("two", split.parts.get(2));
+        assertEquals("m-m---", split.flags.toString());
+        assertEquals("epilogue", split.rest);
+    }
+
+    @SmallTest
+    public void testEmptyStream() throws IOException {
+        final MimeBoundaryInputStream in =
+                new MimeBoundaryInputStream(new ByteArrayInputStream(new byte[0]), BOUNDARY);
+        assertEquals(-1, in.read());
+        assertTrue(in.parentEOF());
+    }
+
+    /**
+     * Verifies that a part ends where its parent was truncated, as by stop(), even with bytes
+     * of the part already scanned.
+     */
+    @SmallTest
+    public void testTruncatedParent() throws IOException {
+        final String message = "body of the part\r\n--" + BOUNDARY + "--";
+        final LookaheadInputStream parent =
+                new LookaheadInputStream(new ByteArrayInputStream(message.getBytes()));
+        final MimeBoundaryInputStream part = new MimeBoundaryInputStream(parent, BOUNDARY);
+        assertEquals('b', part.read());
+        parent.truncate();
+        assertEquals(-1, part.read());
+        assertEquals(-1, part.read(new byte[16], 0, 16));
+        assertEquals(0, part.skip(16));
+    }
+
+    @SmallTest
+    public void testEolConversion() throws IOException {
+        final String[] inputs = { "a\rb\nc\r\nd", "\n\n\r\r\n\r", "", "no line ends" };
+        final String[] expected = {
+                "a\r\nb\r\nc\r\nd", "\r\n\r\n\r\n\r\n\r\n", "", "no line ends" };
+        for (int i = 0; i < inputs.length; i++) {
+            for (long seed = 0; seed < 10; seed++) {
+                assertEquals(expected[i], readAll(new EOLConvertingInputStream(
+                        new TricklingInputStream(new ByteArrayInputStream(inputs[i].getBytes()),
+                                seed)), new Random(seed)));
+            }
+        }
+    }
+
+    private static byte[] largeMultipart(int parts, int partLength) {
+        final Random random = new Random(1);
+        final StringBuilder sb = new StringBuilder("This is a multi-part message.\r\n");
+        final char[] line = new char[76];
+        for (int p = 0; p < parts; p++) {
+            sb.append("--").append(BOUNDARY).append("\r\n");
+            sb.append("Content-Type: application/octet-stream\r\n\r\n");
+            for (int written = 0; written < partLength; written += line.length + 2) {
+                for (int i = 0; i < line.length; i++) {
+                    line[i] = (char) ('A' + random.nextInt(26));
+                }
+                sb.append(line).append("\r\n");
+            }
+        }
+        sb.append("--").append(BOUNDARY).append("--\r\n");
+        return sb.toString().getBytes();
+    }
+
+    private static double measureMegabytesPerSecond(byte[] message, boolean legacy,
+            int iterations) throws IOException {
+        long bytes = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            InputStream in = new ByteArrayInputStream(message);
+            if (!legacy) {
+                in = new LookaheadInputStream(in);
+            }
+            final Split split = split(in, legacy, null);
+            for (String part : split.parts) {
+                bytes += part.length();
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        return (bytes / (1024.0 * 1024.0)) / (elapsed / 1e9);
+    }
+
+    @LargeTest
+    public void testBenchmark() throws IOException {
+        final byte[] message = largeMultipart(4, 1024 * 1024);
+        // warm up
+        measureMegabytesPerSecond(message, true, 2);
+        measureMegabytesPerSecond(message, false, 2);
+        final double legacyRate = measureMegabytesPerSecond(message, true, 5);
+        final double currentRate = measureMegabytesPerSecond(message, false, 5);
+        Log.i(LOG_TAG, String.format("multipart: legacy %.1f MB/s, buffered %.1f MB/s (%.1fx)",
+                legacyRate, currentRate, currentRate / legacyRate));
+    }
+}
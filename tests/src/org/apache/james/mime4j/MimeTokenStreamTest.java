@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+@SmallTest
+public class MimeTokenStreamTest extends TestCase {
+    private static final String MESSAGE =
+            "Subject: test\r\n"
+            + "Content-Type: multipart/mixed; boundary=\"outer\"\r\n"
+            + "\r\n"
+            + "preamble\r\n"
+            + "--outer\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "\r\n"
+            + "hello\r\n"
+            + "--outer\r\n"
+            + "Content-Type: message/rfc822\r\n"
+            + "\r\n"
+            + "Subject: inner\r\n"
+            + "\r\n"
+            + "inner body\r\n"
+            + "--outer\r\n"
+            + "Content-Type: application/octet-stream\r\n"
+            + "\r\n"
+            + "attachment\r\n"
+            + "--outer--\r\n"
+            + "epilogue\r\n";
+
+    private static String read(InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    private static MimeTokenStream open(String message) {
+        final MimeTokenStream stream = new MimeTokenStream();
+        stream.parse(new ByteArrayInputStream(message.getBytes()));
+        return stream;
+    }
+
+    /** Records the events the push parser delivers, in the same notation as {@link #pull}. */
+    private static class RecordingHandler extends AbstractContentHandler {
+        final StringBuilder events = new StringBuilder();
+
+        @Override public void startMessage() { events.append("[msg "); }
+        @Override public void endMessage() { events.append("msg] "); }
+        @Override public void startBodyPart() { events.append("[part "); }
+        @Override public void endBodyPart() { events.append("part] "); }
+        @Override public void startMultipart(BodyDescriptor bd) { events.append("[multi "); }
+        @Override public void endMultipart() { events.append("multi] "); }
+        @Override public void field(String field) { events.append("{").append(field).append("} "); }
+        @Override public void preamble(InputStream is) throws IOException {
+            events.append("pre(").append(read(is)).append(") ");
+        }
+        @Override public void epilogue(InputStream is) throws IOException {
+            events.append("epi(").append(read(is)).append(") ");
+        }
+        @Override public void body(BodyDescriptor bd, InputStream is) throws IOException {
+            events.append("body(").append(read(is)).append(") ");
+        }
+    }
+
+    private static String pull(MimeTokenStream stream) throws IOException {
+        final StringBuilder events = new StringBuilder();
+        for (int state = stream.next(); state != MimeTokenStream.T_END_OF_STREAM;
+                state = stream.next()) {
+            switch (state) {
+                case MimeTokenStream.T_START_MESSAGE: events.append("[msg "); break;
+                case MimeTokenStream.T_END_MESSAGE: events.append("msg] "); break;
+                case MimeTokenStream.T_START_BODYPART: events.append("[part "); break;
+                case MimeTokenStream.T_END_BODYPART: events.append("part] "); break;
+                case MimeTokenStream.T_START_MULTIPART: events.append("[multi "); break;
+                case MimeTokenStream.T_END_MULTIPART: events.append("multi] "); break;
+                case MimeTokenStream.T_FIELD:
+                    events.append("{").append(stream.getField()).append("} ");
+                    break;
+                case MimeTokenStream.T_PREAMBLE:
+                    events.append("pre(").append(read(stream.getInputStream())).append(") ");
+                    break;
+                case MimeTokenStream.T_EPILOGUE:
+                    events.append("epi(").append(read(stream.getInputStream())).append(") ");
+                    break;
+                case MimeTokenStream.T_BODY:
+                    events.append("body(").append(read(stream.getInputStream())).append(") ");
+                    break;
+            }
+        }
+        return events.toString();
+    }
+
+    public void testEvents() throws IOException {
+        assertEquals("[msg {Subject: test} {Content-Type: multipart/mixed; boundary=\"outer\"} "
+                + "[multi pre(preamble) "
+                + "[part {Content-Type: text/plain} body(hello) part] "
+                + "[part {Content-Type: message/rfc822} [msg {Subject: inner} body(inner body) "
+                + "msg] part] "
+                + "[part {Content-Type: application/octet-stream} body(attachment) part] "
+                + "epi(epilogue\r\n) multi] msg] ", pull(open(MESSAGE)));
+    }
+
+    public void testPushParserMatchesPull() throws IOException {
+        final MimeStreamParser parser = new MimeStreamParser();
+        final RecordingHandler handler = new RecordingHandler();
+        parser.setContentHandler(handler);
+        parser.parse(new ByteArrayInputStream(MESSAGE.getBytes()));
+        assertEquals(pull(open(MESSAGE)), handler.events.toString());
+        assertFalse(parser.getPrematureEof());
+    }
+
+    public void testUnreadBodiesAreSkipped() throws IOException {
+        final MimeTokenStream stream = open(MESSAGE);
+        int bodies = 0;
+        int state;
+        while ((state = stream.next()) != MimeTokenStream.T_END_OF_STREAM) {
+            if (state == MimeTokenStream.T_BODY) {
+                bodies++;
+            }
+        }
+        assertEquals(3, bodies);
+    }
+
+    public void testSkipBody() throws IOException {
+        final MimeTokenStream stream = open(MESSAGE);
+        final StringBuilder events = new StringBuilder();
+        int state;
+        while ((state = stream.next()) != MimeTokenStream.T_END_OF_STREAM) {
+            if (state == MimeTokenStream.T_END_HEADER
+                    && !stream.getBodyDescriptor().isMimeType("text/plain")
+                    && !stream.getBodyDescriptor().isMultipart()) {
+                stream.skipBody();
+            } else if (state == MimeTokenStream.T_BODY) {
+                events.append(read(stream.getInputStream())).append(' ');
+            } else if (state == MimeTokenStream.T_END_BODYPART) {
+                events.append("part ");
+            }
+        }
+        assertEquals("hello part part part ", events.toString());
+        assertFalse(stream.getPrematureEof());
+    }
+
+    public void testSkipBodyOnlyAfterHeader() throws IOException {
+        final MimeTokenStream stream = open(MESSAGE);
+        assertEquals(MimeTokenStream.T_START_MESSAGE, stream.next());
+        try {
+            stream.skipBody();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testStop() throws IOException {
+        final MimeTokenStream stream = open(MESSAGE);
+        int state;
+        int depth = 0;
+        while ((state = stream.next()) != MimeTokenStream.T_END_OF_STREAM) {
+            if (state == MimeTokenStream.T_START_BODYPART) {
+                depth++;
+                stream.stop();
+            } else if (state == MimeTokenStream.T_END_BODYPART) {
+                depth--;
+            } else if (state == MimeTokenStream.T_BODY) {
+                assertEquals("", read(stream.getInputStream()));
+            }
+        }
+        // Every part started before stop() is still ended, and no new one is started.
+        assertEquals(0, depth);
+    }
+}
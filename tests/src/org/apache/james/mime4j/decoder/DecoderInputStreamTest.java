@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.decoder;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the chunked {@link Base64InputStream} and {@link QuotedPrintableInputStream} against
+ * the per-byte implementations they replaced, and benchmarks the two.
+ */
+public class DecoderInputStreamTest extends TestCase {
+    private static final String LOG_TAG = "DecoderInputStreamTest";
+
+    private static final String BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private interface DecoderFactory {
+        InputStream create(InputStream in);
+    }
+
+    private static final DecoderFactory BASE64 = new DecoderFactory() {
+        @Override
+        public InputStream create(InputStream in) {
+            return new Base64InputStream(in);
+        }
+    };
+
+    private static final DecoderFactory LEGACY_BASE64 = new DecoderFactory() {
+        @Override
+        public InputStream create(InputStream in) {
+            return new LegacyBase64InputStream(in);
+        }
+    };
+
+    private static final DecoderFactory QP = new DecoderFactory() {
+        @Override
+        public InputStream create(InputStream in) {
+            return new QuotedPrintableInputStream(in);
+        }
+    };
+
+    private static final DecoderFactory LEGACY_QP = new DecoderFactory() {
+        @Override
+        public InputStream create(InputStream in) {
+            return new LegacyQuotedPrintableInputStream(in);
+        }
+    };
+
+    /** Hands out at most a few bytes per read, to exercise state carried across chunks. */
+    private static class TricklingInputStream extends FilterInputStream {
+        private final Random mRandom;
+
+        TricklingInputStream(InputStream in, long seed) {
+            super(in);
+            mRandom = new Random(seed);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1 + mRandom.nextInt(7)));
+        }
+    }
+
+    /** Base64 of random data, wrapped at 76 columns, with optional padding. */
+    private static byte[] base64Corpus(Random random, int decodedLength) {
+        final StringBuilder sb = new StringBuilder();
+        final byte[] data = new byte[decodedLength];
+        random.nextBytes(data);
+        int column = 0;
+        for (int i = 0; i < data.length; i += 3) {
+            final int remaining = Math.min(3, data.length - i);
+            int accum = (data[i] & 0xFF) << 16;
+            if (remaining > 1) accum |= (data[i + 1] & 0xFF) << 8;
+            if (remaining > 2) accum |= data[i + 2] & 0xFF;
+            sb.append(BASE64_ALPHABET.charAt((accum >> 18) & 0x3F));
+            sb.append(BASE64_ALPHABET.charAt((accum >> 12) & 0x3F));
+            sb.append(remaining > 1 ? BASE64_ALPHABET.charAt((accum >> 6) & 0x3F) : '=');
+            sb.append(remaining > 2 ? BASE64_ALPHABET.charAt(accum & 0x3F) : '=');
+            column += 4;
+            if (column >= 76) {
+                sb.append("\r\n");
+                column = 0;
+            }
+        }
+        return sb.toString().getBytes();
+    }
+
+    /** Quoted-printable-ish text, including soft breaks, trailing blanks and malformed escapes. */
+    private static byte[] qpCorpus(Random random, int length) {
+        final String[] pieces = {
+                "The quick brown fox ", "=3D", "=C3=A9", "=\r\n", "  \r\n", "\t\r\n", "=",
+                "==", "=4", "=G1", "=\rx", "jumps over", " ", "\t", "\r\n", "=e9", "lazy dog"
+        };
+        final StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            sb.append(pieces[random.nextInt(pieces.length)]);
+        }
+        return sb.toString().getBytes();
+    }
+
+    private static byte[] readAll(InputStream in, Random readPattern) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        while (true) {
+            final int mode = readPattern != null ? readPattern.nextInt(3) : 2;
+            if (mode == 0) {
+                final int b = in.read();
+                if (b < 0) break;
+                out.write(b);
+            } else {
+                final int len = mode == 1 ? 1 + readPattern.nextInt(5) : buffer.length;
+                final int n = in.read(buffer, 0, len);
+                if (n < 0) break;
+                out.write(buffer, 0, n);
+            }
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static void assertSameOutput(byte[] corpus, DecoderFactory expected,
+            DecoderFactory actual, long seed) throws IOException {
+        final byte[] want = readAll(expected.create(new ByteArrayInputStream(corpus)), null);
+        final byte[] got = readAll(actual.create(
+                new TricklingInputStream(new ByteArrayInputStream(corpus), seed)),
+                new Random(seed));
+        assertTrue("mismatch for seed " + seed, Arrays.equals(want, got));
+        final byte[] bulk = readAll(actual.create(new ByteArrayInputStream(corpus)), null);
+        assertTrue("bulk mismatch for seed " + seed, Arrays.equals(want, bulk));
+    }
+
+    @SmallTest
+    public void testBase64MatchesLegacy() throws IOException {
+        for (long seed = 0; seed < 50; seed++) {
+            final Random random = new Random(seed);
+            assertSameOutput(base64Corpus(random, random.nextInt(10000)), LEGACY_BASE64, BASE64,
+                    seed);
+        }
+    }
+
+    @SmallTest
+    public void testBase64Simple() throws IOException {
+        assertEquals("Hello, world",
+                new String(readAll(BASE64.create(
+                        new ByteArrayInputStream("SGVsbG8s\r\nIHdvcmxk".getBytes())), null)));
+        assertEquals("Hi", new String(readAll(BASE64.create(
+                new ByteArrayInputStream("SGk=\r\nignored".getBytes())), null)));
+        assertEquals(-1, BASE64.create(new ByteArrayInputStream(new byte[0])).read());
+    }
+
+    @SmallTest
+    public void testQuotedPrintableMatchesLegacy() throws IOException {
+        for (long seed = 0; seed < 50; seed++) {
+            final Random random = new Random(seed);
+            assertSameOutput(qpCorpus(random, random.nextInt(20000)), LEGACY_QP, QP, seed);
+        }
+    }
+
+    @SmallTest
+    public void testQuotedPrintableSimple() throws IOException {
+        assertEquals("café a=b soft break",
+                new String(readAll(QP.create(new ByteArrayInputStream(
+                        "caf=C3=A9 a=3Db soft=\r\n break   ".getBytes())), null), "UTF-8"));
+    }
+
+    private static double measureMegabytesPerSecond(byte[] corpus, DecoderFactory factory,
+            int iterations) throws IOException {
+        final byte[] buffer = new byte[8192];
+        long bytes = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            final InputStream in = factory.create(new ByteArrayInputStream(corpus));
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+                bytes += n;
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        return (bytes / (1024.0 * 1024.0)) / (elapsed / 1e9);
+    }
+
+    private static void benchmark(String name, byte[] corpus, DecoderFactory legacy,
+            DecoderFactory current) throws IOException {
+        // warm up
+        measureMegabytesPerSecond(corpus, legacy, 2);
+        measureMegabytesPerSecond(corpus, current, 2);
+        final double legacyRate = measureMegabytesPerSecond(corpus, legacy, 5);
+        final double currentRate = measureMegabytesPerSecond(corpus, current, 5);
+        Log.i(LOG_TAG, String.format("%s: legacy %.1f MB/s, chunked %.1f MB/s (%.1fx)", name,
+                legacyRate, currentRate, currentRate / legacyRate));
+    }
+
+    @LargeTest
+    public void testBase64Benchmark() throws IOException {
+        benchmark("base64", base64Corpus(new Random(1), 4 * 1024 * 1024), LEGACY_BASE64, BASE64);
+    }
+
+    @LargeTest
+    public void testQuotedPrintableBenchmark() throws IOException {
+        benchmark("quoted-printable", qpCorpus(new Random(1), 4 * 1024 * 1024), LEGACY_QP, QP);
+    }
+}